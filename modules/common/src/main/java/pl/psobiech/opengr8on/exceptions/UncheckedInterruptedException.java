@@ -19,6 +19,7 @@
 package pl.psobiech.opengr8on.exceptions;
 
 import java.net.SocketException;
+import java.nio.channels.ClosedByInterruptException;
 
 /**
  * Exception thrown when a thread was interrupted, should abort all processing of the given thread
@@ -38,6 +39,12 @@ public class UncheckedInterruptedException extends RuntimeException {
         Thread.currentThread().interrupt();
     }
 
+    public UncheckedInterruptedException(ClosedByInterruptException e) {
+        super(e.getMessage(), e);
+
+        Thread.currentThread().interrupt();
+    }
+
     /**
      * @return true, if the SocketException was caused by InterruptedException
      */
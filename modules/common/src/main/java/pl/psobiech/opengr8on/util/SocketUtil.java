@@ -28,6 +28,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.DatagramChannel;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.Optional;
@@ -73,6 +76,15 @@ public class SocketUtil {
         );
     }
 
+    /**
+     * @return socket on a random port, backed by a {@link DatagramChannel} (so direct buffers can be sent without copying them to the heap)
+     */
+    public static UDPSocket udpChannelRandomPort(InetAddress address) {
+        return new UDPSocket(
+                address, 0, true, true
+        );
+    }
+
     /**
      * TCP socket wrapper
      */
@@ -250,6 +262,11 @@ public class SocketUtil {
          */
         private final boolean broadcast;
 
+        /**
+         * Is the socket backed by a {@link DatagramChannel}
+         */
+        private final boolean channel;
+
         /**
          * Socket access lock
          */
@@ -260,6 +277,16 @@ public class SocketUtil {
          */
         private DatagramSocket socket;
 
+        /**
+         * Packet reused for sending buffers, when the socket is not backed by a channel (guarded by the socket access lock)
+         */
+        private final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+
+        /**
+         * Data of the reused send packet, grows to the largest datagram sent (guarded by the socket access lock)
+         */
+        private byte[] sendBuffer = new byte[0];
+
         /**
          * @param address   local address to bind on (on random local port)
          * @param broadcast should broadcasting be enabled on this socket
@@ -274,9 +301,20 @@ public class SocketUtil {
          * @param broadcast should broadcasting be enabled on this socket
          */
         public UDPSocket(InetAddress address, int port, boolean broadcast) {
+            this(address, port, broadcast, false);
+        }
+
+        /**
+         * @param address   local address to bind on
+         * @param port      port to listen on
+         * @param broadcast should broadcasting be enabled on this socket
+         * @param channel   should the socket be backed by a {@link DatagramChannel}
+         */
+        public UDPSocket(InetAddress address, int port, boolean broadcast, boolean channel) {
             this.address = address;
             this.port = port;
             this.broadcast = broadcast;
+            this.channel = channel;
         }
 
         /**
@@ -285,7 +323,13 @@ public class SocketUtil {
         public void open() {
             socketLock.lock();
             try {
-                this.socket = new DatagramSocket(null);
+                if (channel) {
+                    this.socket = DatagramChannel.open(StandardProtocolFamily.INET)
+                                                 .socket();
+                } else {
+                    this.socket = new DatagramSocket(null);
+                }
+
                 this.socket.setReuseAddress(true);
                 this.socket.setBroadcast(broadcast);
                 this.socket.setSoTimeout(DEFAULT_TIMEOUT_MILLISECONDS);
@@ -296,6 +340,8 @@ public class SocketUtil {
                     throw new UncheckedInterruptedException(e);
                 }
 
+                throw new UnexpectedException(e);
+            } catch (IOException e) {
                 throw new UnexpectedException(e);
             } finally {
                 socketLock.unlock();
@@ -327,6 +373,40 @@ public class SocketUtil {
             socketLock.lock();
             try {
                 socket.send(packet);
+            } catch (ClosedByInterruptException e) {
+                throw new UncheckedInterruptedException(e);
+            } catch (IOException e) {
+                throw new UnexpectedException(e);
+            } finally {
+                socketLock.unlock();
+            }
+        }
+
+        /**
+         * Sends the remaining buffer contents as a single datagram. Direct buffers are sent without any copying, when the socket is backed by a channel,
+         * otherwise the contents are copied to a send buffer reused between calls.
+         */
+        public void send(ByteBuffer buffer, InetAddress address, int port) {
+            socketLock.lock();
+            try {
+                final DatagramChannel datagramChannel = socket.getChannel();
+                if (datagramChannel == null) {
+                    final int length = buffer.remaining();
+                    if (sendBuffer.length < length) {
+                        sendBuffer = new byte[length];
+                    }
+
+                    buffer.get(sendBuffer, 0, length);
+
+                    sendPacket.setData(sendBuffer, 0, length);
+                    sendPacket.setAddress(address);
+                    sendPacket.setPort(port);
+                    socket.send(sendPacket);
+                } else {
+                    datagramChannel.send(buffer, new InetSocketAddress(address, port));
+                }
+            } catch (ClosedByInterruptException e) {
+                throw new UncheckedInterruptedException(e);
             } catch (IOException e) {
                 throw new UnexpectedException(e);
             } finally {
@@ -373,26 +453,56 @@ public class SocketUtil {
                     }
 
                     throw new UnexpectedException(e);
+                } catch (ClosedByInterruptException e) {
+                    throw new UncheckedInterruptedException(e);
                 } catch (IOException e) {
                     throw new UnexpectedException(e);
                 } finally {
                     tryRestoreDefaultSoTimeout();
                 }
 
-                return Optional.of(
-                        Payload.of(
-                                (Inet4Address) packet.getAddress(), packet.getPort(),
-                                Arrays.copyOfRange(
-                                        packet.getData(),
-                                        packet.getOffset(), packet.getOffset() + packet.getLength()
-                                )
-                        )
-                );
+                return Optional.of(asPayload(packet));
             } finally {
                 socketLock.unlock();
             }
         }
 
+        /**
+         * Waits for the default timeout for a packet, without holding the socket lock (so concurrent sending is not blocked). Intended for a single
+         * dedicated receiver thread.
+         *
+         * @return payload received or empty if timeout was reached
+         */
+        public Optional<Payload> receiveConcurrently(DatagramPacket packet) {
+            try {
+                receive(packet);
+            } catch (SocketTimeoutException e) {
+                return Optional.empty();
+            } catch (SocketException e) {
+                if (UncheckedInterruptedException.wasSocketInterrupted(e)) {
+                    throw new UncheckedInterruptedException(e);
+                }
+
+                throw new UnexpectedException(e);
+            } catch (ClosedByInterruptException e) {
+                throw new UncheckedInterruptedException(e);
+            } catch (IOException e) {
+                throw new UnexpectedException(e);
+            }
+
+            return Optional.of(asPayload(packet));
+        }
+
+        private static Payload asPayload(DatagramPacket packet) {
+            return Payload.of(
+                    (Inet4Address) packet.getAddress(), packet.getPort(),
+                    Arrays.copyOfRange(
+                            packet.getData(),
+                            packet.getOffset(), packet.getOffset() + packet.getLength()
+                    )
+            );
+        }
+
         private void receive(DatagramPacket packet) throws IOException {
             socket.receive(packet);
         }
@@ -24,6 +24,7 @@ import pl.psobiech.opengr8on.client.commands.*;
 import pl.psobiech.opengr8on.client.commands.ResetCommand.Response;
 import pl.psobiech.opengr8on.client.device.CLUDevice;
 import pl.psobiech.opengr8on.client.device.CipherTypeEnum;
+import pl.psobiech.opengr8on.exceptions.UncheckedInterruptedException;
 import pl.psobiech.opengr8on.exceptions.UnexpectedException;
 import pl.psobiech.opengr8on.tftp.TFTPClient;
 import pl.psobiech.opengr8on.tftp.TFTPTransferMode;
@@ -31,24 +32,63 @@ import pl.psobiech.opengr8on.tftp.exceptions.TFTPPacketException;
 import pl.psobiech.opengr8on.tftp.packets.TFTPErrorType;
 import pl.psobiech.opengr8on.util.*;
 import pl.psobiech.opengr8on.util.SocketUtil.Payload;
+import pl.psobiech.opengr8on.util.SocketUtil.UDPSocket;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.DatagramPacket;
 import java.net.Inet4Address;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class CLUClient extends Client implements Closeable {
     private static final Logger LOGGER = LoggerFactory.getLogger(CLUClient.class);
 
-    private static final Duration DEFAULT_TIMEOUT_DURATION = Duration.ofMillis(SocketUtil.DEFAULT_TIMEOUT_MILLISECONDS);
+    public static final Duration DEFAULT_TIMEOUT_DURATION = Duration.ofMillis(SocketUtil.DEFAULT_TIMEOUT_MILLISECONDS);
+
+    /**
+     * Default number of LUA script requests awaiting a response at the same time
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 8;
 
     private final CLUDevice cluDevice;
 
     private final TFTPClient tftpClient;
 
+    /**
+     * LUA script requests awaiting a response, by session id
+     */
+    private final Map<Integer, CompletableFuture<Optional<String>>> inFlightRequests = new ConcurrentHashMap<>();
+
+    private final InFlightWindow inFlightWindow = new InFlightWindow(DEFAULT_MAX_IN_FLIGHT_REQUESTS);
+
+    private final AtomicLong timedOutRequests = new AtomicLong();
+
+    private final AtomicLong lateResponses = new AtomicLong();
+
+    private final String scriptReceiverUuid = uuid(UUID.randomUUID(), LuaScriptCommand.Response.class);
+
+    private final ReentrantLock scriptSocketLock = new ReentrantLock();
+
+    /**
+     * Socket dedicated to LUA script requests (opened on first use), responses are read by a single receiver and dispatched by session id
+     */
+    private UDPSocket scriptSocket;
+
+    /**
+     * Receiver of LUA script responses, uses a platform thread, since it spends all of its time in a blocking receive
+     */
+    private ExecutorService scriptReceiverExecutor;
+
+    private volatile boolean closed;
+
     private CipherKey cipherKey;
 
     public CLUClient(Inet4Address localAddress, CLUDevice cluDevice) {
@@ -201,11 +241,166 @@ public class CLUClient extends Client implements Closeable {
      * @return response of the LUA Script
      */
     public Optional<String> execute(String script) {
-        final Integer sessionId = RandomUtil.integer();
+        try {
+            return executeAsync(script).get();
+        } catch (InterruptedException e) {
+            throw new UncheckedInterruptedException(e);
+        } catch (ExecutionException e) {
+            throw new UnexpectedException(e.getCause());
+        }
+    }
+
+    /**
+     * Attempts to execute LUA script on the CLU, without blocking the caller
+     *
+     * @return future response of the LUA Script (or empty() in case of a timeout), cancelling the future abandons the request
+     */
+    public CompletableFuture<Optional<String>> executeAsync(String script) {
+        return executeAsync(script, DEFAULT_TIMEOUT_DURATION);
+    }
+
+    /**
+     * Attempts to execute LUA script on the CLU, without blocking the caller. Requests are multiplexed (up to the in-flight window), so concurrent
+     * callers do not wait for each other's responses.
+     *
+     * @param timeout maximum time to wait for the response (including the time spent waiting for a free slot in the in-flight window)
+     * @return future response of the LUA Script (or empty() in case of a timeout), cancelling the future abandons the request
+     */
+    public CompletableFuture<Optional<String>> executeAsync(String script, Duration timeout) {
+        final long deadline = System.nanoTime() + timeout.toNanos();
+
+        final CompletableFuture<Optional<String>> future = new CompletableFuture<Optional<String>>()
+                .completeOnTimeout(Optional.empty(), timeout.toMillis(), TimeUnit.MILLISECONDS);
+        future.thenAccept(response -> {
+            if (response.isEmpty()) {
+                timedOutRequests.incrementAndGet();
+            }
+        });
+
+        executor.submit(() -> {
+            try {
+                sendScript(script, future, deadline);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        return future;
+    }
+
+    private void sendScript(String script, CompletableFuture<Optional<String>> future, long deadline) throws InterruptedException {
+        if (!inFlightWindow.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            return;
+        }
+
+        future.whenComplete((response, throwable) -> inFlightWindow.release());
+        if (future.isDone()) {
+            return;
+        }
+
+        final UDPSocket socket = getScriptSocket();
+
+        Integer sessionId;
+        do {
+            sessionId = RandomUtil.integer();
+        } while (inFlightRequests.putIfAbsent(sessionId, future) != null);
+
+        final Integer requestSessionId = sessionId;
+        future.whenComplete((response, throwable) -> inFlightRequests.remove(requestSessionId, future));
+
         final LuaScriptCommand.Request command = LuaScriptCommand.request(localAddress, sessionId, script);
+        send(socket, uuid(command), cipherKey, cluDevice.getAddress(), command.asByteArray());
+    }
 
-        return request(command, DEFAULT_TIMEOUT_DURATION)
-                .flatMap(payload -> LuaScriptCommand.parse(sessionId, payload));
+    private UDPSocket getScriptSocket() {
+        scriptSocketLock.lock();
+        try {
+            if (closed) {
+                throw new UnexpectedException("Client was closed");
+            }
+
+            if (scriptSocket == null) {
+                final UDPSocket socket = SocketUtil.udpRandomPort(localAddress);
+                socket.open();
+
+                scriptSocket = socket;
+                scriptReceiverExecutor = ThreadUtil.daemonExecutor("CLUClientReceiver");
+                scriptReceiverExecutor.submit(() -> receiveScriptResponses(socket));
+            }
+
+            return scriptSocket;
+        } finally {
+            scriptSocketLock.unlock();
+        }
+    }
+
+    /**
+     * Receives all LUA script responses and completes the matching in-flight requests
+     */
+    private void receiveScriptResponses(UDPSocket socket) {
+        final DatagramPacket packet = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
+
+        while (!closed && !Thread.interrupted()) {
+            try {
+                socket.receiveConcurrently(packet)
+                      .flatMap(encryptedPayload -> tryDecrypt(scriptReceiverUuid, cipherKey, encryptedPayload))
+                      .flatMap(payload -> LuaScriptCommand.responseFromByteArray(payload.buffer()))
+                      .ifPresent(this::dispatch);
+            } catch (UncheckedInterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (closed) {
+                    return;
+                }
+
+                LOGGER.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    private void dispatch(LuaScriptCommand.Response response) {
+        final CompletableFuture<Optional<String>> future = inFlightRequests.remove(response.getSessionId());
+        if (future != null && future.complete(Optional.of(response.getReturnValue()))) {
+            return;
+        }
+
+        lateResponses.incrementAndGet();
+        LOGGER.debug("Late or unexpected response for session {} from CLU {}", response.getSessionId(), cluDevice.getAddress());
+    }
+
+    /**
+     * @return maximum number of LUA script requests awaiting a response at the same time
+     */
+    public int getMaxInFlightRequests() {
+        return inFlightWindow.getSize();
+    }
+
+    /**
+     * Updates the maximum number of LUA script requests awaiting a response at the same time
+     */
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        inFlightWindow.resize(maxInFlightRequests);
+    }
+
+    /**
+     * @return number of LUA script requests currently awaiting a response
+     */
+    public int getInFlightRequestCount() {
+        return inFlightRequests.size();
+    }
+
+    /**
+     * @return total number of LUA script requests that timed out
+     */
+    public long getTimedOutRequestCount() {
+        return timedOutRequests.get();
+    }
+
+    /**
+     * @return total number of LUA script responses received after the request timed out, was cancelled or for unknown sessions
+     */
+    public long getLateResponseCount() {
+        return lateResponses.get();
     }
 
     /**
@@ -292,6 +487,7 @@ public class CLUClient extends Client implements Closeable {
 
         socketLock.lock();
         try {
+            discardResponses();
             send(uuid, cipherKey, cluDevice.getAddress(), command.asByteArray());
 
             return Util.repeatUntilTimeout(
@@ -312,4 +508,55 @@ public class CLUClient extends Client implements Closeable {
 
         send(uuid, cipherKey, cluDevice.getAddress(), command.asByteArray());
     }
+
+    @Override
+    public void close() {
+        scriptSocketLock.lock();
+        try {
+            closed = true;
+
+            for (CompletableFuture<Optional<String>> future : inFlightRequests.values()) {
+                future.complete(Optional.empty());
+            }
+
+            IOUtil.closeQuietly(scriptSocket);
+            ThreadUtil.closeQuietly(scriptReceiverExecutor);
+        } finally {
+            scriptSocketLock.unlock();
+        }
+
+        super.close();
+    }
+
+    /**
+     * Semaphore, that can be resized at runtime
+     */
+    private static class InFlightWindow extends Semaphore {
+        private int size;
+
+        InFlightWindow(int size) {
+            super(size);
+
+            this.size = size;
+        }
+
+        synchronized int getSize() {
+            return size;
+        }
+
+        synchronized void resize(int newSize) {
+            if (newSize < 1) {
+                throw new IllegalArgumentException("In-flight window must allow at least one request");
+            }
+
+            final int delta = newSize - size;
+            if (delta > 0) {
+                release(delta);
+            } else if (delta < 0) {
+                reducePermits(-delta);
+            }
+
+            size = newSize;
+        }
+    }
 }
@@ -46,7 +46,7 @@ public class Client implements Closeable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Client.class);
 
-    private static final int BUFFER_SIZE = 2048;
+    protected static final int BUFFER_SIZE = 2048;
 
     private static final int ESTIMATED_CLUS = 8;
 
@@ -58,7 +58,7 @@ public class Client implements Closeable {
 
     private final DatagramPacket responsePacket = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
 
-    private final ExecutorService executor = ThreadUtil.virtualExecutor("CLUClient");
+    protected final ExecutorService executor = ThreadUtil.virtualExecutor("CLUClient");
 
     private final Inet4Address broadcastAddress;
 
@@ -154,6 +154,7 @@ public class Client implements Closeable {
         final Future<Void> future = executor.submit(() -> {
             socketLock.lock();
             try {
+                discardResponses();
                 send(uuid, requestCipherKey, ipAddress, command.asByteArray());
 
                 Duration threadTimeout = timeout;
@@ -218,6 +219,18 @@ public class Client implements Closeable {
      * Encrypts and sends the buffer to the given ip address
      */
     protected void send(String uuid, CipherKey cipherKey, Inet4Address ipAddress, byte[] buffer) {
+        socketLock.lock();
+        try {
+            send(socket, uuid, cipherKey, ipAddress, buffer);
+        } finally {
+            socketLock.unlock();
+        }
+    }
+
+    /**
+     * Encrypts and sends the buffer to the given ip address, using the provided socket
+     */
+    protected void send(UDPSocket socket, String uuid, CipherKey cipherKey, Inet4Address ipAddress, byte[] buffer) {
         final Payload requestPayload = Payload.of(ipAddress, port, buffer);
         LOGGER.trace(
                 "%s\t--D->\t%s // %s"
@@ -230,18 +243,19 @@ public class Client implements Closeable {
         //                .formatted(uuid, Payload.of(ipAddress, port, encryptedRequest), cipherKey)
         //        );
 
-        socketLock.lock();
-        try {
-            socket.discard(responsePacket);
+        final DatagramPacket requestPacket = new DatagramPacket(encryptedRequest, encryptedRequest.length);
+        requestPacket.setAddress(requestPayload.address());
+        requestPacket.setPort(requestPayload.port());
 
-            final DatagramPacket requestPacket = new DatagramPacket(encryptedRequest, encryptedRequest.length);
-            requestPacket.setAddress(requestPayload.address());
-            requestPacket.setPort(requestPayload.port());
+        socket.send(requestPacket);
+    }
 
-            socket.send(requestPacket);
-        } finally {
-            socketLock.unlock();
-        }
+    /**
+     * Drops stale responses still pending on the socket (e.g. late responses of previously timed out requests), should be called while holding the
+     * socket lock, just before sending a new request
+     */
+    protected void discardResponses() {
+        socket.discard(responsePacket);
     }
 
     /**
@@ -0,0 +1,160 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import pl.psobiech.opengr8on.client.commands.LuaScriptCommand;
+import pl.psobiech.opengr8on.util.IPv4AddressUtil;
+import pl.psobiech.opengr8on.util.SocketUtil;
+import pl.psobiech.opengr8on.util.SocketUtil.Payload;
+import pl.psobiech.opengr8on.util.SocketUtil.UDPSocket;
+
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Execution(ExecutionMode.CONCURRENT)
+class CLUClientTest {
+    private static final Inet4Address LOCALHOST = IPv4AddressUtil.parseIPv4("127.0.0.1");
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(4);
+
+    private final CipherKey cipherKey = Mocks.cipherKey();
+
+    private final DatagramPacket packet = new DatagramPacket(new byte[Client.BUFFER_SIZE], Client.BUFFER_SIZE);
+
+    private UDPSocket cluSocket;
+
+    private CLUClient client;
+
+    @BeforeEach
+    void setUp() {
+        cluSocket = SocketUtil.udpRandomPort(LOCALHOST);
+        cluSocket.open();
+
+        client = new CLUClient(LOCALHOST, LOCALHOST, cipherKey, cluSocket.getLocalPort());
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        cluSocket.close();
+    }
+
+    @Test
+    void overlappingRequests() {
+        final List<CompletableFuture<Optional<String>>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(client.executeAsync("script" + i, TIMEOUT));
+        }
+
+        // all requests are in-flight before the first response is sent
+        final List<Request> requests = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            requests.add(receive(TIMEOUT).get());
+        }
+
+        for (Request request : requests.reversed()) {
+            respond(request, request.command().getScript());
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(Optional.of("script" + i), futures.get(i).join());
+        }
+
+        assertEquals(0, client.getInFlightRequestCount());
+        assertEquals(0, client.getLateResponseCount());
+    }
+
+    @Test
+    void lateResponse() throws Exception {
+        final CompletableFuture<Optional<String>> future = client.executeAsync("late", Duration.ofMillis(100));
+
+        final Request request = receive(TIMEOUT).get();
+        assertEquals(Optional.empty(), future.join());
+
+        respond(request, "late");
+
+        final long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (client.getLateResponseCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, client.getLateResponseCount());
+        assertEquals(1, client.getTimedOutRequestCount());
+        assertEquals(0, client.getInFlightRequestCount());
+    }
+
+    @Test
+    void inFlightWindow() {
+        client.setMaxInFlightRequests(1);
+
+        final CompletableFuture<Optional<String>> first = client.executeAsync("first", TIMEOUT);
+        final CompletableFuture<Optional<String>> second = client.executeAsync("second", TIMEOUT);
+
+        final Request firstRequest = receive(TIMEOUT).get();
+        assertTrue(receive(Duration.ofMillis(200)).isEmpty());
+
+        respond(firstRequest, firstRequest.command().getScript());
+        final Request secondRequest = receive(TIMEOUT).get();
+        respond(secondRequest, secondRequest.command().getScript());
+
+        assertEquals(
+                List.of("first", "second"),
+                List.of(first.join().get(), second.join().get())
+        );
+    }
+
+    private Optional<Request> receive(Duration timeout) {
+        return cluSocket.tryReceive(packet, timeout)
+                        .map(payload ->
+                                     new Request(
+                                             payload,
+                                             LuaScriptCommand.requestFromByteArray(cipherKey.decrypt(payload.buffer()).get())
+                                                             .get()
+                                     )
+                        );
+    }
+
+    private void respond(Request request, String returnValue) {
+        final byte[] buffer = cipherKey.encrypt(
+                LuaScriptCommand.response(LOCALHOST, request.command().getSessionId(), returnValue)
+                                .asByteArray()
+        );
+
+        final DatagramPacket responsePacket = new DatagramPacket(buffer, buffer.length);
+        responsePacket.setAddress(request.payload().address());
+        responsePacket.setPort(request.payload().port());
+
+        cluSocket.send(responsePacket);
+    }
+
+    private record Request(Payload payload, LuaScriptCommand.Request command) {
+    }
+}
@@ -61,7 +61,14 @@ public class InterfaceRegistryTest {
 
         // TODO: more granular checks
         final CLUInterface anInterface = vclu.getInterface();
-        assertEquals(19, anInterface.getFeatures().size());
+        assertEquals(22, anInterface.getFeatures().size());
+
+        final CLUInterfaceFeature stateApiPort = anInterface.getFeatures().stream()
+                                                            .filter(feature -> feature.getName().equals("StateAPIPort"))
+                                                            .findFirst()
+                                                            .orElseThrow();
+        assertEquals(31, stateApiPort.getIndex());
+        assertEquals("8080", stateApiPort.getDefault());
         assertEquals(5, anInterface.getMethods().size());
         assertEquals(3, anInterface.getEvents().size());
 
@@ -82,8 +89,19 @@ public class InterfaceRegistryTest {
         assertEquals("OBJECT", mqttTopic.getClassName());
 
         // TODO: more granular checks
-        assertEquals(2, mqttTopic.getFeatures().size());
+        assertEquals(4, mqttTopic.getFeatures().size());
         assertEquals(5, mqttTopic.getMethods().size());
         assertEquals(2, mqttTopic.getEvents().size());
+
+        final CLUInterfaceFeature maxQueuedMessages = mqttTopic.getFeatures().get(2);
+        assertEquals("MaxQueuedMessages", maxQueuedMessages.getName());
+        assertEquals(2, maxQueuedMessages.getIndex());
+        assertEquals("256", maxQueuedMessages.getDefault());
+
+        final CLUInterfaceFeature overflowPolicy = mqttTopic.getFeatures().get(3);
+        assertEquals("OverflowPolicy", overflowPolicy.getName());
+        assertEquals(3, overflowPolicy.getIndex());
+        assertEquals("0", overflowPolicy.getDefault());
+        assertEquals(2, overflowPolicy.getEnums().size());
     }
 }
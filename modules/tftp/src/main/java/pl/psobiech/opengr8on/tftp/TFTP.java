@@ -30,6 +30,8 @@ import pl.psobiech.opengr8on.util.ToStringUtil;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.Optional;
 
@@ -38,7 +40,7 @@ public class TFTP implements Closeable {
 
     static final int MIN_PACKET_SIZE = 4;
 
-    static final int MAX_PACKET_SIZE = TFTPPacket.MAX_DATA_LENGTH + 4;
+    static final int MAX_PACKET_SIZE = TFTPOptions.MAX_BLOCK_SIZE + 4;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TFTP.class);
 
@@ -70,6 +72,15 @@ public class TFTP implements Closeable {
         socket.send(packet.newDatagram(sendBuffer));
     }
 
+    /**
+     * Sends an already serialized packet (remaining buffer contents), without copying direct buffers if the socket is channel backed
+     */
+    public void send(ByteBuffer packetBuffer, InetAddress address, int port) {
+        LOGGER.trace("{}: {} {} {} bytes", ">", address, port, packetBuffer.remaining());
+
+        socket.send(packetBuffer, address, port);
+    }
+
     public Optional<TFTPPacket> receive(Duration timeout) throws TFTPPacketException {
         final DatagramPacket datagramPacket = new DatagramPacket(receiveBuffer, 0, receiveBuffer.length);
 
@@ -42,23 +42,33 @@ public class TFTPClient implements Closeable {
 
     private final int port;
 
+    private final TFTPOptions options;
+
     public TFTPClient(UDPSocket socket) {
         this(socket, TFTP.DEFAULT_PORT);
     }
 
     public TFTPClient(UDPSocket socket, int port) {
+        this(socket, port, TFTPOptions.DEFAULT);
+    }
+
+    /**
+     * @param options transfer options requested from the server, servers not supporting them (e.g. older CLUs) fall back to RFC 1350 transfers
+     */
+    public TFTPClient(UDPSocket socket, int port, TFTPOptions options) {
         this.tftp = new TFTP(socket);
         this.port = port;
+        this.options = options;
 
         tftp.open();
     }
 
     public void download(InetAddress host, TFTPTransferMode mode, String fileName, Path path) throws TFTPPacketException, IOException {
-        execute(new TFTPClientReceive(host, port, mode, fileName, path));
+        execute(new TFTPClientReceive(host, port, mode, options, fileName, path));
     }
 
     public void upload(InetAddress host, TFTPTransferMode mode, Path path, String fileName) throws TFTPPacketException, IOException {
-        execute(new TFTPClientSend(host, port, mode, fileName, path));
+        execute(new TFTPClientSend(host, port, mode, options, fileName, path));
     }
 
     private void execute(TFTPTransfer transfer) throws IOException, TFTPPacketException {
@@ -0,0 +1,329 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.tftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.psobiech.opengr8on.tftp.transfer.netascii.ToNetASCIIInputStream;
+import pl.psobiech.opengr8on.util.IOUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded (LRU) cache of contents of small files served by the TFTP server, so repeated reads of the same file do not touch the disk. Entries are invalidated
+ * by a {@link WatchService} on the server directory and by completed write transfers.
+ */
+public class TFTPFileCache implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TFTPFileCache.class);
+
+    public static final long DEFAULT_MAX_SIZE_BYTES = 4 * 1024 * 1024;
+
+    public static final long DEFAULT_MAX_FILE_SIZE_BYTES = 1024 * 1024;
+
+    private final long maxSizeBytes;
+
+    private final long maxFileSizeBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final LinkedHashMap<Key, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long sizeBytes;
+
+    /**
+     * Incremented on every invalidation, so contents loaded concurrently with a file modification do not get stored
+     */
+    private long generation;
+
+    private WatchService watchService;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong invalidatedCount = new AtomicLong();
+
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    public TFTPFileCache(long maxSizeBytes, long maxFileSizeBytes) {
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxFileSizeBytes = Math.min(maxSizeBytes, maxFileSizeBytes);
+    }
+
+    /**
+     * Starts watching the directory (along with its subdirectories) for changes, replacing the previous watch (if any). All entries are invalidated, since
+     * changes might have been missed while not watching.
+     */
+    public void watch(Path directory, ExecutorService executor) throws IOException {
+        final WatchService newWatchService = FileSystems.getDefault().newWatchService();
+        try {
+            register(newWatchService, directory);
+        } catch (IOException e) {
+            IOUtil.closeQuietly(newWatchService);
+
+            throw e;
+        }
+
+        lock.lock();
+        try {
+            IOUtil.closeQuietly(watchService);
+            watchService = newWatchService;
+        } finally {
+            lock.unlock();
+        }
+
+        invalidateAll();
+
+        executor.submit(() -> processEvents(newWatchService));
+    }
+
+    private static void register(WatchService watchService, Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subdirectory, BasicFileAttributes attrs) throws IOException {
+                subdirectory.register(
+                        watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY
+                );
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void processEvents(WatchService watchService) {
+        try {
+            do {
+                final WatchKey watchKey = watchService.take();
+                final Path directory = (Path) watchKey.watchable();
+
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        invalidateAll();
+
+                        continue;
+                    }
+
+                    final Path path = directory.resolve((Path) event.context());
+                    invalidate(path);
+
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                        try {
+                            register(watchService, path);
+                        } catch (IOException e) {
+                            LOGGER.warn(e.getMessage(), e);
+                        }
+                    }
+                }
+
+                watchKey.reset();
+            } while (!Thread.interrupted());
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            LOGGER.trace(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return contents of the file (converted according to the transfer mode), loaded from the disk when not yet cached, or empty if the file is missing,
+     *     too large to be cached or the cache is not watching for changes
+     */
+    public Optional<ByteBuffer> get(Path path, TFTPTransferMode mode) throws IOException {
+        final Key key = new Key(path, mode);
+
+        final long loadGeneration;
+        lock.lock();
+        try {
+            final ByteBuffer contents = entries.get(key);
+            if (contents != null) {
+                hitCount.incrementAndGet();
+
+                return Optional.of(contents.duplicate());
+            }
+
+            if (watchService == null) {
+                // without watching for changes, cached contents could get stale
+                missCount.incrementAndGet();
+
+                return Optional.empty();
+            }
+
+            loadGeneration = generation;
+        } finally {
+            lock.unlock();
+        }
+
+        missCount.incrementAndGet();
+        if (!Files.isRegularFile(path) || Files.size(path) > maxFileSizeBytes) {
+            return Optional.empty();
+        }
+
+        final ByteBuffer contents = load(path, mode);
+        if (contents.remaining() > maxFileSizeBytes) {
+            // NETASCII conversion might make the file grow
+            return Optional.empty();
+        }
+
+        lock.lock();
+        try {
+            if (generation == loadGeneration) {
+                final ByteBuffer previousContents = entries.put(key, contents);
+                if (previousContents != null) {
+                    // loaded concurrently by another transfer
+                    sizeBytes -= previousContents.capacity();
+                }
+
+                sizeBytes += contents.capacity();
+                evict();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return Optional.of(contents.duplicate());
+    }
+
+    private static ByteBuffer load(Path path, TFTPTransferMode mode) throws IOException {
+        if (mode != TFTPTransferMode.NETASCII) {
+            return ByteBuffer.wrap(Files.readAllBytes(path))
+                             .asReadOnlyBuffer();
+        }
+
+        try (InputStream inputStream = new ToNetASCIIInputStream(Files.newInputStream(path))) {
+            return ByteBuffer.wrap(inputStream.readAllBytes())
+                             .asReadOnlyBuffer();
+        }
+    }
+
+    private void evict() {
+        final Iterator<ByteBuffer> iterator = entries.values().iterator();
+        while (sizeBytes > maxSizeBytes && iterator.hasNext()) {
+            final ByteBuffer contents = iterator.next();
+            iterator.remove();
+
+            sizeBytes -= contents.capacity();
+            evictedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes the cached contents of the file, or of all files contained in the directory
+     */
+    public void invalidate(Path path) {
+        lock.lock();
+        try {
+            generation++;
+
+            final Iterator<Map.Entry<Key, ByteBuffer>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Key, ByteBuffer> entry = iterator.next();
+                if (!entry.getKey().path().startsWith(path)) {
+                    continue;
+                }
+
+                iterator.remove();
+
+                sizeBytes -= entry.getValue().capacity();
+                invalidatedCount.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            generation++;
+
+            invalidatedCount.addAndGet(entries.size());
+            entries.clear();
+            sizeBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Metrics getMetrics() {
+        final int entryCount;
+        final long currentSizeBytes;
+        lock.lock();
+        try {
+            entryCount = entries.size();
+            currentSizeBytes = sizeBytes;
+        } finally {
+            lock.unlock();
+        }
+
+        return new Metrics(
+                entryCount, currentSizeBytes,
+                hitCount.get(), missCount.get(), invalidatedCount.get(), evictedCount.get()
+        );
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            IOUtil.closeQuietly(watchService);
+            watchService = null;
+        } finally {
+            lock.unlock();
+        }
+
+        invalidateAll();
+    }
+
+    /**
+     * @param entryCount       number of cached files
+     * @param sizeBytes        size of cached file contents
+     * @param hitCount         number of reads served from the cache
+     * @param missCount        number of reads that had to access the disk
+     * @param invalidatedCount number of entries removed because the file was modified
+     * @param evictedCount     number of entries removed to make space for newer ones
+     */
+    public record Metrics(
+            int entryCount, long sizeBytes,
+            long hitCount, long missCount, long invalidatedCount, long evictedCount
+    ) {
+    }
+
+    private record Key(Path path, TFTPTransferMode mode) {
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.tftp;
+
+import pl.psobiech.opengr8on.tftp.exceptions.TFTPPacketException;
+import pl.psobiech.opengr8on.tftp.packets.TFTPErrorType;
+import pl.psobiech.opengr8on.tftp.packets.TFTPPacket;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Transfer options (RFC 2347), as requested by the client or acknowledged by the server. Options that are missing (or were sent with an invalid value) are
+ * null, and the RFC 1350 defaults apply.
+ *
+ * @param blockSize    blksize option (RFC 2348), number of data bytes in each DATA packet
+ * @param transferSize tsize option (RFC 2349), size of the file in bytes (0 in a read request, asking the server to provide the size)
+ * @param windowSize   windowsize option (RFC 7440), number of blocks sent before waiting for an acknowledgement
+ */
+public record TFTPOptions(Integer blockSize, Long transferSize, Integer windowSize) {
+    public static final String BLOCK_SIZE = "blksize";
+
+    public static final String TRANSFER_SIZE = "tsize";
+
+    public static final String WINDOW_SIZE = "windowsize";
+
+    public static final int MIN_BLOCK_SIZE = 8;
+
+    public static final int MAX_BLOCK_SIZE = 65464;
+
+    /**
+     * Largest block fitting in a single 1500 byte ethernet frame, leaving some headroom for tunneling (VPN, PPPoE)
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1428;
+
+    public static final int MAX_WINDOW_SIZE = 0xFFFF;
+
+    public static final int DEFAULT_WINDOW_SIZE = 16;
+
+    /**
+     * Largest window accepted by the server, bounds the amount of blocks kept in memory for retransmission
+     */
+    public static final int MAX_SERVER_WINDOW_SIZE = 32;
+
+    /**
+     * No options, plain RFC 1350 transfer
+     */
+    public static final TFTPOptions NONE = new TFTPOptions(null, null, null);
+
+    /**
+     * Options requested by the client by default
+     */
+    public static final TFTPOptions DEFAULT = new TFTPOptions(DEFAULT_BLOCK_SIZE, 0L, DEFAULT_WINDOW_SIZE);
+
+    /**
+     * @return known options parsed from the packet options, unknown or invalid options are ignored
+     */
+    public static TFTPOptions of(Map<String, String> options) {
+        final Long blockSize = parseLong(options.get(BLOCK_SIZE));
+        final Long transferSize = parseLong(options.get(TRANSFER_SIZE));
+        final Long windowSize = parseLong(options.get(WINDOW_SIZE));
+
+        return new TFTPOptions(
+                blockSize == null || blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE ? null : blockSize.intValue(),
+                transferSize == null || transferSize < 0 ? null : transferSize,
+                windowSize == null || windowSize < 1 || windowSize > MAX_WINDOW_SIZE ? null : windowSize.intValue()
+        );
+    }
+
+    private static Long parseLong(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public boolean isEmpty() {
+        return blockSize == null && transferSize == null && windowSize == null;
+    }
+
+    /**
+     * @return negotiated block size, or the RFC 1350 block size if not negotiated
+     */
+    public int getBlockSize() {
+        return blockSize == null ? TFTPPacket.MAX_DATA_LENGTH : blockSize;
+    }
+
+    /**
+     * @return negotiated window size, or 1 (lock-step transfer) if not negotiated
+     */
+    public int getWindowSize() {
+        return windowSize == null ? 1 : windowSize;
+    }
+
+    public TFTPOptions withTransferSize(Long transferSize) {
+        return new TFTPOptions(blockSize, transferSize, windowSize);
+    }
+
+    /**
+     * Server side negotiation of the options requested by the client
+     *
+     * @param maxBlockSize  largest block size supported by the server
+     * @param maxWindowSize largest window size supported by the server
+     * @param transferSize  file size to be acknowledged (if client requested tsize), null if unknown
+     * @return options to be acknowledged (OACK), empty if none were accepted
+     */
+    public TFTPOptions negotiate(int maxBlockSize, int maxWindowSize, Long transferSize) {
+        return new TFTPOptions(
+                blockSize == null ? null : Math.min(blockSize, maxBlockSize),
+                this.transferSize == null ? null : transferSize,
+                windowSize == null ? null : Math.min(windowSize, maxWindowSize)
+        );
+    }
+
+    /**
+     * Client side validation of options acknowledged by the server (OACK)
+     *
+     * @return acknowledged options, if those are acceptable by the client
+     */
+    public TFTPOptions acknowledge(TFTPOptions acknowledgedOptions) throws TFTPPacketException {
+        if (acknowledgedOptions.blockSize() != null && (blockSize == null || acknowledgedOptions.blockSize() > blockSize)) {
+            throw new TFTPPacketException(TFTPErrorType.OPTION_NEGOTIATION, "Unexpected block size acknowledged: " + acknowledgedOptions.blockSize());
+        }
+
+        if (acknowledgedOptions.transferSize() != null && transferSize == null) {
+            throw new TFTPPacketException(TFTPErrorType.OPTION_NEGOTIATION, "Unexpected transfer size acknowledged: " + acknowledgedOptions.transferSize());
+        }
+
+        if (acknowledgedOptions.windowSize() != null && (windowSize == null || acknowledgedOptions.windowSize() > windowSize)) {
+            throw new TFTPPacketException(TFTPErrorType.OPTION_NEGOTIATION, "Unexpected window size acknowledged: " + acknowledgedOptions.windowSize());
+        }
+
+        return acknowledgedOptions;
+    }
+
+    /**
+     * @return options as (ordered) packet option values
+     */
+    public Map<String, String> asMap() {
+        final Map<String, String> options = new LinkedHashMap<>();
+        if (blockSize != null) {
+            options.put(BLOCK_SIZE, String.valueOf(blockSize));
+        }
+
+        if (transferSize != null) {
+            options.put(TRANSFER_SIZE, String.valueOf(transferSize));
+        }
+
+        if (windowSize != null) {
+            options.put(WINDOW_SIZE, String.valueOf(windowSize));
+        }
+
+        return options;
+    }
+}
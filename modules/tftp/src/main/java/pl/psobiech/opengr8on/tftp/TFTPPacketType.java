@@ -34,6 +34,7 @@ public enum TFTPPacketType {
     DATA(3, TFTPDataPacket::new),
     ACKNOWLEDGEMENT(4, TFTPAcknowledgementPacket::new),
     ERROR(5, TFTPErrorPacket::new),
+    OPTION_ACKNOWLEDGEMENT(6, TFTPOptionAcknowledgementPacket::new),
     //
     ;
 
@@ -43,6 +43,7 @@ import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.Enumeration;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.regex.Matcher;
@@ -65,6 +66,10 @@ public class TFTPServer implements Closeable {
 
     private final TFTP serverTFTP;
 
+    private final TFTPFileCache fileCache = new TFTPFileCache(TFTPFileCache.DEFAULT_MAX_SIZE_BYTES, TFTPFileCache.DEFAULT_MAX_FILE_SIZE_BYTES);
+
+    private final CountDownLatch initialized = new CountDownLatch(1);
+
     private Future<Void> listener = null;
 
     public TFTPServer(NetworkInterface networkInterface, Path serverDirectory, int port, ServerMode mode) {
@@ -133,6 +138,7 @@ public class TFTPServer implements Closeable {
                                        LOGGER.debug("Starting TFTP Server on port " + getPort() + ". Server directory: " + serverDirectory + ". Server Mode is " + mode);
 
                                        FileUtil.mkdir(serverDirectory);
+                                       watchServerDirectory();
 
                                        listen();
 
@@ -143,19 +149,24 @@ public class TFTPServer implements Closeable {
         return listener;
     }
 
-    void awaitInitialized() throws InterruptedException {
-        synchronized (serverTFTP) {
-            serverTFTP.wait();
+    private void watchServerDirectory() {
+        try {
+            fileCache.watch(serverDirectory, executor);
+        } catch (Exception e) {
+            // files will be always read from the disk
+            LOGGER.warn("Could not watch server directory, file cache is disabled: " + e.getMessage(), e);
         }
     }
 
+    void awaitInitialized() throws InterruptedException {
+        initialized.await();
+    }
+
     private void listen() {
         final int port = getPort();
 
         try (serverTFTP) {
-            synchronized (serverTFTP) {
-                serverTFTP.notifyAll();
-            }
+            initialized.countDown();
 
             do {
                 TFTPPacket incomingPacket = null;
@@ -192,6 +203,10 @@ public class TFTPServer implements Closeable {
         return serverTFTP.getPort();
     }
 
+    public TFTPFileCache getFileCache() {
+        return fileCache;
+    }
+
     private void onPacketException(TFTPPacketException e, TFTPPacket incomingPacket) {
         LOGGER.error(e.getMessage(), e);
 
@@ -215,10 +230,10 @@ public class TFTPServer implements Closeable {
         LOGGER.debug("TFTP transfer " + requestPacket.getType() + " of " + requestPacket.getFileName() + " from/to " + path);
 
         executor.submit(() -> {
-            try (TFTP tftp = new TFTP(SocketUtil.udpRandomPort(localAddress))) {
+            try (TFTP tftp = new TFTP(SocketUtil.udpChannelRandomPort(localAddress))) {
                 tftp.open();
 
-                transferType.create(requestPacket, path)
+                transferType.create(requestPacket, path, fileCache)
                             .execute(tftp);
             } catch (UncheckedInterruptedException e) {
                 LOGGER.trace(e.getMessage(), e);
@@ -267,7 +282,7 @@ public class TFTPServer implements Closeable {
         ThreadUtil.cancel(listener);
         listener = null;
 
-        IOUtil.closeQuietly(serverTFTP);
+        IOUtil.closeQuietly(serverTFTP, fileCache);
     }
 
     public enum ServerMode {
@@ -56,11 +56,24 @@ public enum TFTPTransferType {
     }
 
     public TFTPTransfer create(TFTPRequestPacket packet, Path path) throws TFTPPacketException {
-        return creator.create(packet, path);
+        return create(packet, path, null);
+    }
+
+    /**
+     * @param fileCache cache of served file contents, null if disabled
+     */
+    public TFTPTransfer create(TFTPRequestPacket packet, Path path, TFTPFileCache fileCache) throws TFTPPacketException {
+        return creator.create(packet, path, fileCache);
     }
 
     public TFTPTransfer create(InetAddress host, int port, TFTPTransferMode mode, Path path, String location) throws TFTPPacketException {
-        return creator.create(host, port, mode, path, location);
+        return create(host, port, mode, TFTPOptions.NONE, path, location);
+    }
+
+    public TFTPTransfer create(
+            InetAddress host, int port, TFTPTransferMode mode, TFTPOptions options, Path path, String location
+    ) throws TFTPPacketException {
+        return creator.create(host, port, mode, options, path, location, null);
     }
 
     private Class<? extends TFTPPacket> packetClass() {
@@ -69,14 +82,16 @@ public enum TFTPTransferType {
 
     @FunctionalInterface
     private interface Creator {
-        default TFTPTransfer create(TFTPRequestPacket packet, Path path) throws TFTPPacketException {
+        default TFTPTransfer create(TFTPRequestPacket packet, Path path, TFTPFileCache fileCache) throws TFTPPacketException {
             return create(
                     packet.getAddress(), packet.getPort(),
-                    packet.getMode(),
-                    path, packet.getFileName()
+                    packet.getMode(), TFTPOptions.of(packet.getOptions()),
+                    path, packet.getFileName(), fileCache
             );
         }
 
-        TFTPTransfer create(InetAddress host, int port, TFTPTransferMode mode, Path path, String location) throws TFTPPacketException;
+        TFTPTransfer create(
+                InetAddress host, int port, TFTPTransferMode mode, TFTPOptions options, Path path, String location, TFTPFileCache fileCache
+        ) throws TFTPPacketException;
     }
 }
@@ -26,8 +26,14 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class TFTPDataPacket extends TFTPBaseBlockPacket {
+    /**
+     * Offset of the data in a serialized packet
+     */
+    public static final int DATA_OFFSET = HEADER_SIZE;
+
     private final int length;
 
     private final int offset;
@@ -43,7 +49,7 @@ public class TFTPDataPacket extends TFTPBaseBlockPacket {
         }
 
         this.offset = HEADER_SIZE;
-        this.length = Math.min(buffer.length - HEADER_SIZE, MAX_DATA_LENGTH);
+        this.length = buffer.length - HEADER_SIZE;
     }
 
     public TFTPDataPacket(InetAddress destination, int port, int blockNumber, byte[] buffer, int offset, int length) {
@@ -52,7 +58,17 @@ public class TFTPDataPacket extends TFTPBaseBlockPacket {
         this.buffer = buffer;
         this.offset = offset;
 
-        this.length = Math.min(length, MAX_DATA_LENGTH);
+        this.length = length;
+    }
+
+    /**
+     * Writes the packet header at the beginning of the buffer (buffer position is not modified)
+     */
+    public static void writeHeader(ByteBuffer buffer, int blockNumber) {
+        buffer.put(0, (byte) 0);
+        buffer.put(OPERATOR_TYPE_OFFSET, TFTPPacketType.DATA.packetType());
+        buffer.put(BLOCK_NUMBER_OFFSET, highNibble(blockNumber));
+        buffer.put(BLOCK_NUMBER_OFFSET + 1, lowNibble(blockNumber));
     }
 
     public byte[] getBuffer() {
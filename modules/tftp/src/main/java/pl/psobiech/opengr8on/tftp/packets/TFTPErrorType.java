@@ -19,7 +19,7 @@
 package pl.psobiech.opengr8on.tftp.packets;
 
 /**
- * Error codes according to RFC 783.
+ * Error codes according to RFC 783 (and RFC 2347 for option negotiation).
  */
 public enum TFTPErrorType {
     UNDEFINED(0),
@@ -29,6 +29,8 @@ public enum TFTPErrorType {
     ILLEGAL_OPERATION(4),
     UNKNOWN_TID(5),
     FILE_EXISTS(6),
+    NO_SUCH_USER(7),
+    OPTION_NEGOTIATION(8),
     //
     ;
 
@@ -0,0 +1,74 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.tftp.packets;
+
+import pl.psobiech.opengr8on.tftp.TFTPPacketType;
+import pl.psobiech.opengr8on.tftp.exceptions.TFTPPacketException;
+import pl.psobiech.opengr8on.util.SocketUtil.Payload;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Option acknowledgement packet (RFC 2347), sent by the server in place of the first DATA/ACK when it accepted any of the requested options
+ */
+public class TFTPOptionAcknowledgementPacket extends TFTPPacket {
+    private static final int HEADER_SIZE = 2;
+
+    private final Map<String, String> options;
+
+    public TFTPOptionAcknowledgementPacket(Payload payload) throws TFTPPacketException {
+        super(TFTPPacketType.OPTION_ACKNOWLEDGEMENT, payload.address(), payload.port());
+
+        final byte[] buffer = payload.buffer();
+        if (getType().packetType() != buffer[OPERATOR_TYPE_OFFSET]) {
+            throw new TFTPPacketException("TFTP operator code does not match type.");
+        }
+
+        this.options = Collections.unmodifiableMap(readOptions(buffer, HEADER_SIZE, buffer.length));
+    }
+
+    public TFTPOptionAcknowledgementPacket(InetAddress destination, int port, Map<String, String> options) {
+        super(TFTPPacketType.OPTION_ACKNOWLEDGEMENT, destination, port);
+
+        this.options = Collections.unmodifiableMap(new LinkedHashMap<>(options));
+    }
+
+    public Map<String, String> getOptions() {
+        return options;
+    }
+
+    @Override
+    public DatagramPacket newDatagram(byte[] data) {
+        data[0] = 0;
+        data[OPERATOR_TYPE_OFFSET] = type.packetType();
+
+        final int optionsLength = writeOptions(options, data, HEADER_SIZE);
+
+        return new DatagramPacket(data, 0, HEADER_SIZE + optionsLength, getAddress(), getPort());
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " OACK " + options;
+    }
+}
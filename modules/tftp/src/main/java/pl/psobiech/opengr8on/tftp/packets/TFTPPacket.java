@@ -26,8 +26,14 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 public abstract class TFTPPacket {
+    /**
+     * RFC 1350 block size, used unless a different one was negotiated with the blksize option
+     */
     public static final int MAX_DATA_LENGTH = 512;
 
     protected static final int OPERATOR_TYPE_OFFSET = 1;
@@ -80,6 +86,48 @@ public abstract class TFTPPacket {
         return valueAsBytes.length + 1;
     }
 
+    /**
+     * @return option name (lowercase) to value pairs, read from the null terminated strings located between from and to (RFC 2347)
+     */
+    public static Map<String, String> readOptions(byte[] buffer, int from, int to) {
+        final Map<String, String> options = new LinkedHashMap<>();
+
+        int offset = from;
+        while (offset < to) {
+            final byte[] nameAsBytes = readNullTerminated(buffer, offset, to);
+            offset += nameAsBytes.length + 1;
+            if (offset >= to) {
+                // option without a value
+                break;
+            }
+
+            final byte[] valueAsBytes = readNullTerminated(buffer, offset, to);
+            offset += valueAsBytes.length + 1;
+
+            if (nameAsBytes.length > 0) {
+                options.put(
+                        new String(nameAsBytes, StandardCharsets.US_ASCII).toLowerCase(Locale.ENGLISH),
+                        new String(valueAsBytes, StandardCharsets.US_ASCII)
+                );
+            }
+        }
+
+        return options;
+    }
+
+    /**
+     * @return number of bytes written
+     */
+    public static int writeOptions(Map<String, String> options, byte[] buffer, int offset) {
+        int length = 0;
+        for (Map.Entry<String, String> entry : options.entrySet()) {
+            length += writeNullTerminatedString(entry.getKey(), buffer, offset + length);
+            length += writeNullTerminatedString(entry.getValue(), buffer, offset + length);
+        }
+
+        return length;
+    }
+
     public static int readInt(byte[] buffer, int offset) {
         return asInt(buffer[offset], buffer[offset + 1]);
     }
@@ -24,6 +24,7 @@ import pl.psobiech.opengr8on.tftp.exceptions.TFTPPacketException;
 import pl.psobiech.opengr8on.util.SocketUtil.Payload;
 
 import java.net.InetAddress;
+import java.util.Map;
 
 public class TFTPReadRequestPacket extends TFTPRequestPacket {
     public TFTPReadRequestPacket(Payload payload) throws TFTPPacketException {
@@ -31,11 +32,20 @@ public class TFTPReadRequestPacket extends TFTPRequestPacket {
     }
 
     public TFTPReadRequestPacket(InetAddress destination, int port, String fileName, TFTPTransferMode mode) {
-        super(destination, port, TFTPPacketType.READ_REQUEST, fileName, mode);
+        this(destination, port, fileName, mode, Map.of());
+    }
+
+    public TFTPReadRequestPacket(InetAddress destination, int port, String fileName, TFTPTransferMode mode, Map<String, String> options) {
+        super(destination, port, TFTPPacketType.READ_REQUEST, fileName, mode, options);
+    }
+
+    @Override
+    public TFTPReadRequestPacket withoutOptions() {
+        return new TFTPReadRequestPacket(getAddress(), getPort(), getFileName(), getMode());
     }
 
     @Override
     public String toString() {
-        return super.toString() + " RRQ " + getFileName() + " " + getMode();
+        return super.toString() + " RRQ " + getFileName() + " " + getMode() + " " + getOptions();
     }
 }
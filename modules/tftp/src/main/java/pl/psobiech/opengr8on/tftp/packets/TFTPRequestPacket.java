@@ -26,6 +26,9 @@ import pl.psobiech.opengr8on.util.SocketUtil.Payload;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public abstract class TFTPRequestPacket extends TFTPPacket {
     private static final int HEADER_SIZE = 2;
@@ -36,11 +39,14 @@ public abstract class TFTPRequestPacket extends TFTPPacket {
 
     private final String fileName;
 
-    TFTPRequestPacket(InetAddress destination, int port, TFTPPacketType type, String fileName, TFTPTransferMode mode) {
+    private final Map<String, String> options;
+
+    TFTPRequestPacket(InetAddress destination, int port, TFTPPacketType type, String fileName, TFTPTransferMode mode, Map<String, String> options) {
         super(type, destination, port);
 
         this.fileName = fileName;
         this.mode = mode;
+        this.options = Collections.unmodifiableMap(new LinkedHashMap<>(options));
     }
 
     TFTPRequestPacket(TFTPPacketType type, Payload payload) throws TFTPPacketException {
@@ -60,10 +66,15 @@ public abstract class TFTPRequestPacket extends TFTPPacket {
             throw new TFTPPacketException("Bad file name and mode format.");
         }
 
-        final String modeAsString = readNullTerminatedString(buffer, FILE_NAME_OFFSET + fileNameAsBytes.length + 1, length)
+        final int modeOffset = FILE_NAME_OFFSET + fileNameAsBytes.length + 1;
+        final byte[] modeAsBytes = readNullTerminated(buffer, modeOffset, length);
+        final String modeAsString = new String(modeAsBytes, StandardCharsets.US_ASCII)
                 .toLowerCase(java.util.Locale.ENGLISH);
 
         this.mode = TFTPTransferMode.ofMode(modeAsString);
+        this.options = Collections.unmodifiableMap(
+                readOptions(buffer, modeOffset + modeAsBytes.length + 1, length)
+        );
     }
 
     public String getFileName() {
@@ -74,6 +85,18 @@ public abstract class TFTPRequestPacket extends TFTPPacket {
         return mode;
     }
 
+    /**
+     * @return RFC 2347 options (lowercase names) appended to the request, empty if peer does not support option negotiation
+     */
+    public Map<String, String> getOptions() {
+        return options;
+    }
+
+    /**
+     * @return same request, but without any options (for peers that reject option negotiation)
+     */
+    public abstract TFTPRequestPacket withoutOptions();
+
     @Override
     public DatagramPacket newDatagram(byte[] data) {
         data[0] = 0;
@@ -81,9 +104,10 @@ public abstract class TFTPRequestPacket extends TFTPPacket {
 
         final int fileNameLength = writeNullTerminatedString(fileName, data, FILE_NAME_OFFSET);
         final int modeLength = writeNullTerminatedString(mode.value(), data, HEADER_SIZE + fileNameLength);
+        final int optionsLength = writeOptions(options, data, HEADER_SIZE + fileNameLength + modeLength);
 
         return new DatagramPacket(
-                data, 0, HEADER_SIZE + fileNameLength + modeLength,
+                data, 0, HEADER_SIZE + fileNameLength + modeLength + optionsLength,
                 getAddress(), getPort()
         );
     }
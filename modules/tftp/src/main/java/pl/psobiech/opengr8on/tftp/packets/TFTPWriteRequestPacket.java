@@ -24,6 +24,7 @@ import pl.psobiech.opengr8on.tftp.exceptions.TFTPPacketException;
 import pl.psobiech.opengr8on.util.SocketUtil.Payload;
 
 import java.net.InetAddress;
+import java.util.Map;
 
 public class TFTPWriteRequestPacket extends TFTPRequestPacket {
     public TFTPWriteRequestPacket(Payload payload) throws TFTPPacketException {
@@ -31,11 +32,20 @@ public class TFTPWriteRequestPacket extends TFTPRequestPacket {
     }
 
     public TFTPWriteRequestPacket(InetAddress destination, int port, String fileName, TFTPTransferMode mode) {
-        super(destination, port, TFTPPacketType.WRITE_REQUEST, fileName, mode);
+        this(destination, port, fileName, mode, Map.of());
+    }
+
+    public TFTPWriteRequestPacket(InetAddress destination, int port, String fileName, TFTPTransferMode mode, Map<String, String> options) {
+        super(destination, port, TFTPPacketType.WRITE_REQUEST, fileName, mode, options);
+    }
+
+    @Override
+    public TFTPWriteRequestPacket withoutOptions() {
+        return new TFTPWriteRequestPacket(getAddress(), getPort(), getFileName(), getMode());
     }
 
     @Override
     public String toString() {
-        return super.toString() + " WRQ " + getFileName() + " " + getMode();
+        return super.toString() + " WRQ " + getFileName() + " " + getMode() + " " + getOptions();
     }
 }
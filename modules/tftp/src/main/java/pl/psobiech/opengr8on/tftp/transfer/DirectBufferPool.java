@@ -0,0 +1,68 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.tftp.transfer;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pool of direct buffers (expensive to allocate, and not reclaimed until GC), grouped by power of two capacities
+ */
+final class DirectBufferPool {
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private final Map<Integer, Queue<ByteBuffer>> buffers = new ConcurrentHashMap<>();
+
+    /**
+     * @return cleared buffer, of at least the requested capacity
+     */
+    ByteBuffer acquire(int minCapacity) {
+        final int capacity = capacity(minCapacity);
+
+        final ByteBuffer buffer = pool(capacity).poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+
+        return buffer.clear();
+    }
+
+    /**
+     * Returns the buffer to the pool (or drops it, if the pool is already full)
+     */
+    void release(ByteBuffer buffer) {
+        pool(buffer.capacity()).offer(buffer);
+    }
+
+    private Queue<ByteBuffer> pool(int capacity) {
+        return buffers.computeIfAbsent(capacity, ignored -> new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS));
+    }
+
+    private static int capacity(int minCapacity) {
+        final int capacity = Integer.highestOneBit(minCapacity);
+        if (capacity == minCapacity) {
+            return capacity;
+        }
+
+        return capacity << 1;
+    }
+}
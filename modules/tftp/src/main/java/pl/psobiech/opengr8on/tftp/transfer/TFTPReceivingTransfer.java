@@ -21,6 +21,7 @@ package pl.psobiech.opengr8on.tftp.transfer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pl.psobiech.opengr8on.tftp.TFTP;
+import pl.psobiech.opengr8on.tftp.TFTPOptions;
 import pl.psobiech.opengr8on.tftp.TFTPTransferMode;
 import pl.psobiech.opengr8on.tftp.exceptions.TFTPException;
 import pl.psobiech.opengr8on.tftp.exceptions.TFTPPacketException;
@@ -48,9 +49,14 @@ public abstract class TFTPReceivingTransfer extends TFTPTransfer {
         return outputStream;
     }
 
+    /**
+     * @param blockSize      negotiated block size (for the client, the default block size, since negotiation happens during the transfer)
+     * @param windowSize     negotiated window size (for the client, 1 since negotiation happens during the transfer)
+     * @param lastSentPacket packet that initiated the transfer (client request, or server ACK/OACK)
+     */
     protected void incomingTransfer(
             TFTP tftp, boolean server,
-            TFTPTransferMode mode,
+            TFTPTransferMode mode, int blockSize, int windowSize,
             InetAddress requestAddress, int requestPort,
             TFTPPacket lastSentPacket, Path targetPath
     ) throws IOException, TFTPPacketException {
@@ -76,8 +82,15 @@ public abstract class TFTPReceivingTransfer extends TFTPTransfer {
                 tftp.send(lastSentPacket);
             }
 
+            // client request, until the options it carries are either acknowledged or ignored by the server
+            TFTPRequestPacket requestPacket = !server && lastSentPacket instanceof TFTPRequestPacket packet ? packet : null;
+
             boolean firstPacket = !server;
-            int acknowledgedBlock = 0;
+
+            // block sequence numbers do not roll over, the block numbers received are their lower 16 bits
+            long receivedBlock = 0;
+            int unacknowledgedBlocks = 0;
+            boolean missingBlockAcknowledged = false;
             do {
                 final TFTPPacket responsePacket = readResponsePacket(tftp, firstPacket, requestAddress, requestPort, lastSentPacket);
                 if (firstPacket) {
@@ -87,28 +100,62 @@ public abstract class TFTPReceivingTransfer extends TFTPTransfer {
                     requestPort = responsePacket.getPort();
                 }
 
-                if (server && acknowledgedBlock == 0 && responsePacket instanceof TFTPRequestPacket) {
-                    // it must have missed our initial ack. Send another.
-                    lastSentPacket = new TFTPAcknowledgementPacket(requestAddress, requestPort, acknowledgedBlock);
+                if (server && receivedBlock == 0 && responsePacket instanceof TFTPRequestPacket) {
+                    // it must have missed our initial ack (or oack). Send another.
+                    tftp.send(lastSentPacket);
+
+                    continue;
+                }
+
+                if (!server && receivedBlock == 0 && responsePacket instanceof TFTPOptionAcknowledgementPacket optionAcknowledgementPacket) {
+                    if (requestPacket != null) {
+                        final TFTPOptions acknowledgedOptions = acknowledgeOptions(tftp, requestPacket, optionAcknowledgementPacket);
+                        blockSize = acknowledgedOptions.getBlockSize();
+                        windowSize = acknowledgedOptions.getWindowSize();
+                        requestPacket = null;
+
+                        lastSentPacket = new TFTPAcknowledgementPacket(requestAddress, requestPort, 0);
+                    }
+
+                    // OACK is acknowledged with block 0 (or the server missed our ack, send another)
                     tftp.send(lastSentPacket);
 
                     continue;
                 }
 
                 if (responsePacket instanceof TFTPDataPacket dataPacket) {
-                    final byte[] data = dataPacket.getBuffer();
-                    final int dataLength = dataPacket.getDataLength();
-                    final int dataOffset = dataPacket.getDataOffset();
-
-                    final int receivedBlock = ((TFTPDataPacket) responsePacket).getBlockNumber();
-                    if (receivedBlock == 0 || receivedBlock > acknowledgedBlock) {
-                        outputStream.write(data, dataOffset, dataLength);
-                        acknowledgedBlock = receivedBlock;
+                    final int receivedBlocks = blockDistance(receivedBlock, dataPacket.getBlockNumber());
+                    if (receivedBlocks != 1) {
+                        final boolean lastBlockRepeated = receivedBlocks == 0;
+                        if (windowSize == 1 || lastBlockRepeated || (receivedBlocks > 1 && receivedBlocks <= windowSize && !missingBlockAcknowledged)) {
+                            // lock-step: duplicate block, so our ack was lost
+                            // window: the last block received in order was resent, so our ack was lost (acked once per resent window)
+                            // window: a block was missed, ack (once) the last one received in order, so the sender resends the window from there
+                            if (receivedBlocks > 1) {
+                                missingBlockAcknowledged = windowSize > 1;
+                            }
+                            unacknowledgedBlocks = 0;
+
+                            lastSentPacket = new TFTPAcknowledgementPacket(requestAddress, requestPort, blockNumber(receivedBlock));
+                            tftp.send(lastSentPacket);
+                        }
+
+                        // window: duplicate blocks are ignored, so resent windows do not multiply acks (SAS)
+                        continue;
                     }
 
-                    if (dataLength >= TFTPDataPacket.MAX_DATA_LENGTH) {
-                        lastSentPacket = new TFTPAcknowledgementPacket(requestAddress, requestPort, receivedBlock);
-                        tftp.send(lastSentPacket);
+                    outputStream.write(dataPacket.getBuffer(), dataPacket.getDataOffset(), dataPacket.getDataLength());
+                    receivedBlock++;
+                    missingBlockAcknowledged = false;
+
+                    // sent at the end of the window, or resent on timeout
+                    lastSentPacket = new TFTPAcknowledgementPacket(requestAddress, requestPort, blockNumber(receivedBlock));
+                    if (dataPacket.getDataLength() >= blockSize) {
+                        if (++unacknowledgedBlocks >= windowSize) {
+                            unacknowledgedBlocks = 0;
+
+                            tftp.send(lastSentPacket);
+                        }
                     } else {
                         try {
                             // end of stream signal - The transfer is complete.
@@ -116,11 +163,12 @@ public abstract class TFTPReceivingTransfer extends TFTPTransfer {
 
                             FileUtil.mkdir(targetPath.getParent());
                             FileUtil.linkOrCopy(temporaryPath, targetPath);
+
+                            onReceived(targetPath);
                         } catch (Exception e) {
                             throw new TFTPPacketException(TFTPErrorType.UNDEFINED, e.getMessage(), e);
                         }
 
-                        lastSentPacket = new TFTPAcknowledgementPacket(requestAddress, requestPort, receivedBlock);
                         tftp.send(lastSentPacket);
 
                         if (!server) {
@@ -159,6 +207,20 @@ public abstract class TFTPReceivingTransfer extends TFTPTransfer {
                 }
 
                 if (responsePacket instanceof TFTPErrorPacket errorPacket) {
+                    if (requestPacket != null && receivedBlock == 0 && isOptionsRejected(requestPacket, errorPacket)) {
+                        LOGGER.debug("TFTP options rejected ({}), retrying without options", errorPacket);
+
+                        requestPacket = requestPacket.withoutOptions();
+                        requestAddress = requestPacket.getAddress();
+                        requestPort = requestPacket.getPort();
+                        firstPacket = true;
+
+                        lastSentPacket = requestPacket;
+                        tftp.send(lastSentPacket);
+
+                        continue;
+                    }
+
                     throw new TFTPException(
                             errorPacket.getError(),
                             "Unexpected response from tftp client during transfer (" + responsePacket + "). Transfer aborted."
@@ -174,4 +236,11 @@ public abstract class TFTPReceivingTransfer extends TFTPTransfer {
             FileUtil.deleteQuietly(temporaryPath);
         }
     }
+
+    /**
+     * Called once the received file replaced the target file, before the last acknowledgement is sent
+     */
+    protected void onReceived(Path targetPath) {
+        // NOP
+    }
 }
@@ -28,21 +28,30 @@ import pl.psobiech.opengr8on.tftp.exceptions.TFTPPacketException;
 import pl.psobiech.opengr8on.tftp.packets.TFTPAcknowledgementPacket;
 import pl.psobiech.opengr8on.tftp.packets.TFTPDataPacket;
 import pl.psobiech.opengr8on.tftp.packets.TFTPErrorType;
+import pl.psobiech.opengr8on.tftp.packets.TFTPOptionAcknowledgementPacket;
 import pl.psobiech.opengr8on.tftp.packets.TFTPPacket;
 import pl.psobiech.opengr8on.tftp.transfer.netascii.ToNetASCIIInputStream;
+import pl.psobiech.opengr8on.util.IOUtil;
 
 import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 public abstract class TFTPSendingTransfer extends TFTPTransfer {
     private static final Logger LOGGER = LoggerFactory.getLogger(TFTPSendingTransfer.class);
 
+    private static final DirectBufferPool BUFFER_POOL = new DirectBufferPool();
+
     protected static InputStream createInputStream(Path path, TFTPTransferMode mode) throws IOException {
         final InputStream inputStream = new BufferedInputStream(Files.newInputStream(path));
         if (mode == TFTPTransferMode.NETASCII) {
@@ -52,31 +61,80 @@ public abstract class TFTPSendingTransfer extends TFTPTransfer {
         return inputStream;
     }
 
+    private static Window createWindow(
+            Path path, ByteBuffer contents, TFTPTransferMode mode, int blockSize, int windowSize,
+            TFTPOptionAcknowledgementPacket optionAcknowledgementPacket
+    ) throws IOException {
+        if (contents != null) {
+            return new ByteBufferWindow(contents, blockSize, optionAcknowledgementPacket);
+        }
+
+        if (mode == TFTPTransferMode.NETASCII) {
+            // converted contents cannot be read at arbitrary positions
+            return new InputStreamWindow(createInputStream(path, mode), blockSize, windowSize, optionAcknowledgementPacket);
+        }
+
+        return new FileChannelWindow(FileChannel.open(path, StandardOpenOption.READ), blockSize, optionAcknowledgementPacket);
+    }
+
+    /**
+     * @param blockSize                   negotiated block size
+     * @param windowSize                  negotiated window size (1 for lock-step transfers)
+     * @param optionAcknowledgementPacket server OACK to be sent (and acknowledged by the client) before the first block, null if no options were accepted
+     */
+    protected void outgoingTransfer(
+            TFTP tftp, boolean server,
+            Path path, TFTPTransferMode mode, int blockSize, int windowSize,
+            TFTPOptionAcknowledgementPacket optionAcknowledgementPacket,
+            InetAddress requestAddress, int requestPort
+    ) throws TFTPPacketException, IOException {
+        outgoingTransfer(tftp, server, path, null, mode, blockSize, windowSize, optionAcknowledgementPacket, requestAddress, requestPort);
+    }
+
+    /**
+     * @param contents already converted (according to the mode) contents of the file, to be sent instead of reading the file, null to read the file
+     */
     protected void outgoingTransfer(
             TFTP tftp, boolean server,
-            Path path, TFTPTransferMode mode,
+            Path path, ByteBuffer contents, TFTPTransferMode mode, int blockSize, int windowSize,
+            TFTPOptionAcknowledgementPacket optionAcknowledgementPacket,
             InetAddress requestAddress, int requestPort
     ) throws TFTPPacketException, IOException {
-        try (InputStream inputStream = createInputStream(path, mode)) {
+        try (Window window = createWindow(path, contents, mode, blockSize, windowSize, optionAcknowledgementPacket)) {
             int retry = maxRetries;
 
             boolean firstPacket = !server;
 
-            int block = 1;
-            boolean readNextBlock = true;
-            TFTPDataPacket requestPacket = null;
+            // block sequence numbers do not roll over, the block numbers sent are their lower 16 bits
+            long acknowledgedBlock = 0;
+            long lastSentBlock = 0;
+            long lastBlock = -1;
+            if (optionAcknowledgementPacket != null) {
+                // OACK gets acknowledged as block 0
+                acknowledgedBlock = -1;
+
+                window.send(tftp, 0, 0, requestAddress, requestPort);
+            }
 
-            int lastRead = 0;
-            final byte[] buffer = new byte[TFTPDataPacket.MAX_DATA_LENGTH];
             do {
-                if (readNextBlock) {
-                    lastRead = inputStream.readNBytes(buffer, 0, buffer.length);
+                // fill the window with new blocks, once the previous ones get acknowledged
+                while (acknowledgedBlock >= 0 && lastBlock < 0 && lastSentBlock - acknowledgedBlock < windowSize) {
+                    final long block = ++lastSentBlock;
+                    if (window.read(block) < blockSize) {
+                        lastBlock = block;
+                    }
 
-                    requestPacket = new TFTPDataPacket(requestAddress, requestPort, block, buffer, 0, lastRead);
-                    tftp.send(requestPacket);
+                    window.send(tftp, block, block, requestAddress, requestPort);
                 }
 
-                final TFTPPacket responsePacket = readResponsePacket(tftp, firstPacket, requestAddress, requestPort, requestPacket);
+                final long firstUnacknowledgedBlock = acknowledgedBlock + 1;
+                final long lastUnacknowledgedBlock = lastSentBlock;
+                final InetAddress address = requestAddress;
+                final int port = requestPort;
+                final TFTPPacket responsePacket = readResponsePacket(
+                        tftp, firstPacket, requestAddress, requestPort,
+                        () -> window.send(tftp, firstUnacknowledgedBlock, lastUnacknowledgedBlock, address, port)
+                );
                 if (firstPacket) {
                     firstPacket = false;
 
@@ -91,26 +149,37 @@ public abstract class TFTPSendingTransfer extends TFTPTransfer {
                 }
 
                 // once we get here, we know we have an answer packet from the correct host.
-                if (ack.getBlockNumber() == block) {
-                    // next block number
-                    block = (block + 1) % (0xFFFF + 1);
-
-                    readNextBlock = true;
-                } else {
-                    /*
-                     * The original tftp spec would have called on us to resend the previous data here, however, that causes the SAS Syndrome.
-                     * http://www.faqs.org/rfcs/rfc1123.html section 4.2.3.1 The modified spec says that we ignore a duplicate ack. If the packet was really
-                     * lost, we will time out on receive, and resend the previous data at that point.
-                     */
-                    readNextBlock = false;
-
-                    if (retry-- < 0) {
-                        throw new TFTPException(
-                                TFTPErrorType.UNDEFINED, "Communication error, no more retries available"
-                        );
+                final int acknowledgedBlocks = blockDistance(acknowledgedBlock, ack.getBlockNumber());
+                if (acknowledgedBlocks > 0 && acknowledgedBlocks <= lastSentBlock - acknowledgedBlock) {
+                    acknowledgedBlock += acknowledgedBlocks;
+                    retry = maxRetries;
+
+                    if (acknowledgedBlock < lastSentBlock) {
+                        // receiver missed a block, resend the rest of the window
+                        window.send(tftp, acknowledgedBlock + 1, lastSentBlock, requestAddress, requestPort);
                     }
+
+                    continue;
+                }
+
+                /*
+                 * The original tftp spec would have called on us to resend the previous data here, however, that causes the SAS Syndrome.
+                 * http://www.faqs.org/rfcs/rfc1123.html section 4.2.3.1 The modified spec says that we ignore a duplicate ack. If the packet was really
+                 * lost, we will time out on receive, and resend the previous data at that point.
+                 *
+                 * In windowed transfers (RFC 7440) the receiver repeats its last ack once when it notices a missing block (and ignores duplicate blocks, so
+                 * there is no SAS), resend the whole window.
+                 */
+                if (windowSize > 1 && acknowledgedBlocks == 0 && acknowledgedBlock < lastSentBlock) {
+                    window.send(tftp, acknowledgedBlock + 1, lastSentBlock, requestAddress, requestPort);
+                }
+
+                if (retry-- < 0) {
+                    throw new TFTPException(
+                            TFTPErrorType.UNDEFINED, "Communication error, no more retries available"
+                    );
                 }
-            } while (lastRead == TFTPDataPacket.MAX_DATA_LENGTH && !Thread.interrupted());
+            } while ((lastBlock < 0 || acknowledgedBlock < lastBlock) && !Thread.interrupted());
         } catch (TFTPPacketException packetException) {
             tftp.send(packetException.asError(requestAddress, requestPort));
 
@@ -124,6 +193,9 @@ public abstract class TFTPSendingTransfer extends TFTPTransfer {
             throw packetException;
         } catch (UncheckedInterruptedException e) {
             throw e;
+        } catch (ClosedByInterruptException e) {
+            // reading the file was interrupted (and the file channel closed)
+            throw new UncheckedInterruptedException(e);
         } catch (Exception e) {
             final TFTPPacketException packetException = new TFTPPacketException(
                     TFTPErrorType.UNDEFINED, e.getMessage(), e
@@ -133,4 +205,185 @@ public abstract class TFTPSendingTransfer extends TFTPTransfer {
             throw packetException;
         }
     }
+
+    /**
+     * Blocks sent, but not yet acknowledged by the receiver (available for retransmission)
+     */
+    private abstract static class Window implements Closeable {
+        private final TFTPOptionAcknowledgementPacket optionAcknowledgementPacket;
+
+        Window(TFTPOptionAcknowledgementPacket optionAcknowledgementPacket) {
+            this.optionAcknowledgementPacket = optionAcknowledgementPacket;
+        }
+
+        /**
+         * @return length of the next block, shorter than block size if it is the last one
+         */
+        abstract int read(long block) throws IOException;
+
+        void send(TFTP tftp, long fromBlock, long toBlock, InetAddress address, int port) throws IOException {
+            for (long block = fromBlock; block <= toBlock; block++) {
+                if (block == 0 && optionAcknowledgementPacket != null) {
+                    tftp.send(optionAcknowledgementPacket);
+
+                    continue;
+                }
+
+                sendBlock(tftp, block, address, port);
+            }
+        }
+
+        protected abstract void sendBlock(TFTP tftp, long block, InetAddress address, int port) throws IOException;
+    }
+
+    /**
+     * Keeps the blocks of the window in memory, since the stream cannot be reread
+     */
+    private static class InputStreamWindow extends Window {
+        private final InputStream inputStream;
+
+        private final byte[][] buffers;
+
+        private final int[] lengths;
+
+        InputStreamWindow(InputStream inputStream, int blockSize, int windowSize, TFTPOptionAcknowledgementPacket optionAcknowledgementPacket) {
+            super(optionAcknowledgementPacket);
+
+            this.inputStream = inputStream;
+
+            this.buffers = new byte[windowSize][blockSize];
+            this.lengths = new int[windowSize];
+        }
+
+        @Override
+        int read(long block) throws IOException {
+            final int index = index(block);
+
+            final byte[] buffer = buffers[index];
+            lengths[index] = inputStream.readNBytes(buffer, 0, buffer.length);
+
+            return lengths[index];
+        }
+
+        @Override
+        protected void sendBlock(TFTP tftp, long block, InetAddress address, int port) throws IOException {
+            final int index = index(block);
+
+            tftp.send(new TFTPDataPacket(address, port, blockNumber(block), buffers[index], 0, lengths[index]));
+        }
+
+        private int index(long block) {
+            return (int) (block % buffers.length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Reads blocks at their file positions directly into a (pooled) direct buffer, right after the packet header. Retransmitted blocks are read again (most
+     * likely from the page cache), so the window is not kept in memory.
+     */
+    private static class FileChannelWindow extends Window {
+        private final FileChannel fileChannel;
+
+        private final int blockSize;
+
+        private final ByteBuffer buffer;
+
+        private long bufferedBlock = -1;
+
+        FileChannelWindow(FileChannel fileChannel, int blockSize, TFTPOptionAcknowledgementPacket optionAcknowledgementPacket) {
+            super(optionAcknowledgementPacket);
+
+            this.fileChannel = fileChannel;
+            this.blockSize = blockSize;
+
+            this.buffer = BUFFER_POOL.acquire(TFTPDataPacket.DATA_OFFSET + blockSize);
+        }
+
+        @Override
+        int read(long block) throws IOException {
+            final long blockPosition = (block - 1) * blockSize;
+
+            buffer.clear()
+                  .position(TFTPDataPacket.DATA_OFFSET)
+                  .limit(TFTPDataPacket.DATA_OFFSET + blockSize);
+            while (buffer.hasRemaining()) {
+                final int read = fileChannel.read(buffer, blockPosition + buffer.position() - TFTPDataPacket.DATA_OFFSET);
+                if (read < 0) {
+                    break;
+                }
+            }
+
+            buffer.flip();
+            bufferedBlock = block;
+
+            return buffer.limit() - TFTPDataPacket.DATA_OFFSET;
+        }
+
+        @Override
+        protected void sendBlock(TFTP tftp, long block, InetAddress address, int port) throws IOException {
+            if (bufferedBlock != block) {
+                read(block);
+            }
+
+            TFTPDataPacket.writeHeader(buffer, blockNumber(block));
+
+            tftp.send(buffer.position(0), address, port);
+        }
+
+        @Override
+        public void close() {
+            IOUtil.closeQuietly(fileChannel);
+
+            BUFFER_POOL.release(buffer);
+        }
+    }
+
+    /**
+     * Copies blocks from the in-memory file contents into a (pooled) direct buffer, right after the packet header
+     */
+    private static class ByteBufferWindow extends Window {
+        private final ByteBuffer contents;
+
+        private final int blockSize;
+
+        private final ByteBuffer buffer;
+
+        ByteBufferWindow(ByteBuffer contents, int blockSize, TFTPOptionAcknowledgementPacket optionAcknowledgementPacket) {
+            super(optionAcknowledgementPacket);
+
+            this.contents = contents;
+            this.blockSize = blockSize;
+
+            this.buffer = BUFFER_POOL.acquire(TFTPDataPacket.DATA_OFFSET + blockSize);
+        }
+
+        @Override
+        int read(long block) {
+            final long blockPosition = (block - 1) * blockSize;
+
+            return (int) Math.max(0, Math.min(blockSize, contents.limit() - blockPosition));
+        }
+
+        @Override
+        protected void sendBlock(TFTP tftp, long block, InetAddress address, int port) throws IOException {
+            final int length = read(block);
+
+            buffer.clear()
+                  .put(TFTPDataPacket.DATA_OFFSET, contents, Math.toIntExact((block - 1) * blockSize), length)
+                  .limit(TFTPDataPacket.DATA_OFFSET + length);
+            TFTPDataPacket.writeHeader(buffer, blockNumber(block));
+
+            tftp.send(buffer.position(0), address, port);
+        }
+
+        @Override
+        public void close() {
+            BUFFER_POOL.release(buffer);
+        }
+    }
 }
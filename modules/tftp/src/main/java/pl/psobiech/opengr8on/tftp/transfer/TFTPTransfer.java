@@ -21,10 +21,14 @@ package pl.psobiech.opengr8on.tftp.transfer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pl.psobiech.opengr8on.tftp.TFTP;
+import pl.psobiech.opengr8on.tftp.TFTPOptions;
 import pl.psobiech.opengr8on.tftp.exceptions.TFTPException;
 import pl.psobiech.opengr8on.tftp.exceptions.TFTPPacketException;
+import pl.psobiech.opengr8on.tftp.packets.TFTPErrorPacket;
 import pl.psobiech.opengr8on.tftp.packets.TFTPErrorType;
+import pl.psobiech.opengr8on.tftp.packets.TFTPOptionAcknowledgementPacket;
 import pl.psobiech.opengr8on.tftp.packets.TFTPPacket;
+import pl.psobiech.opengr8on.tftp.packets.TFTPRequestPacket;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
@@ -37,6 +41,8 @@ public abstract class TFTPTransfer {
 
     public static final int DEFAULT_RETRIES = 3;
 
+    private static final int MAX_BLOCK_NUMBER = 0xFFFF;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(TFTPTransfer.class);
 
     protected int maxRetries = DEFAULT_RETRIES;
@@ -47,11 +53,69 @@ public abstract class TFTPTransfer {
 
     public abstract void execute(TFTP tftp) throws IOException, TFTPPacketException;
 
+    /**
+     * @return block number (rolling over to 0 after 65535) of the block sequence number
+     */
+    protected static int blockNumber(long block) {
+        return (int) (block & MAX_BLOCK_NUMBER);
+    }
+
+    /**
+     * @return number of blocks from the block sequence number to the (later) block number, handling block number roll over
+     */
+    protected static int blockDistance(long fromBlock, int toBlockNumber) {
+        return (toBlockNumber - blockNumber(fromBlock)) & MAX_BLOCK_NUMBER;
+    }
+
+    /**
+     * @return true, if the error was (most likely) caused by a peer not supporting the options sent in the request, and the request should be repeated
+     * without them
+     */
+    protected static boolean isOptionsRejected(TFTPRequestPacket requestPacket, TFTPErrorPacket errorPacket) {
+        if (requestPacket.getOptions().isEmpty()) {
+            return false;
+        }
+
+        return switch (errorPacket.getError()) {
+            case OPTION_NEGOTIATION, ILLEGAL_OPERATION, UNDEFINED -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * @return options acknowledged by the server, if they are acceptable (otherwise the server gets notified with an error)
+     */
+    protected static TFTPOptions acknowledgeOptions(
+            TFTP tftp,
+            TFTPRequestPacket requestPacket, TFTPOptionAcknowledgementPacket optionAcknowledgementPacket
+    ) throws IOException, TFTPPacketException {
+        try {
+            return TFTPOptions.of(requestPacket.getOptions())
+                              .acknowledge(TFTPOptions.of(optionAcknowledgementPacket.getOptions()));
+        } catch (TFTPPacketException e) {
+            tftp.send(e.asError(optionAcknowledgementPacket.getAddress(), optionAcknowledgementPacket.getPort()));
+
+            throw e;
+        }
+    }
+
     protected TFTPPacket readResponsePacket(
             TFTP tftp,
             boolean allowAllOrigins,
             InetAddress requestAddress, int requestPort,
             TFTPPacket lastPacket
+    ) throws IOException, TFTPPacketException {
+        return readResponsePacket(tftp, allowAllOrigins, requestAddress, requestPort, () -> tftp.send(lastPacket));
+    }
+
+    /**
+     * @param retransmission resends the packets that were not acknowledged, on every timeout
+     */
+    protected TFTPPacket readResponsePacket(
+            TFTP tftp,
+            boolean allowAllOrigins,
+            InetAddress requestAddress, int requestPort,
+            Retransmission retransmission
     ) throws IOException, TFTPPacketException {
         int retires = 3;
 
@@ -59,7 +123,7 @@ public abstract class TFTPTransfer {
             final Optional<TFTPPacket> responsePacketOptional = tftp.receive(DEFAULT_TIMEOUT);
             if (responsePacketOptional.isEmpty()) {
                 // didn't get an ack for this data. need to resend it.
-                tftp.send(lastPacket);
+                retransmission.retransmit();
 
                 continue;
             }
@@ -88,4 +152,9 @@ public abstract class TFTPTransfer {
 
         throw new InterruptedIOException();
     }
+
+    @FunctionalInterface
+    protected interface Retransmission {
+        void retransmit() throws IOException;
+    }
 }
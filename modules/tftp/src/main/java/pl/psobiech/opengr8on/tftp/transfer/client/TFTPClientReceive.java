@@ -21,8 +21,10 @@ package pl.psobiech.opengr8on.tftp.transfer.client;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pl.psobiech.opengr8on.tftp.TFTP;
+import pl.psobiech.opengr8on.tftp.TFTPOptions;
 import pl.psobiech.opengr8on.tftp.TFTPTransferMode;
 import pl.psobiech.opengr8on.tftp.exceptions.TFTPPacketException;
+import pl.psobiech.opengr8on.tftp.packets.TFTPPacket;
 import pl.psobiech.opengr8on.tftp.packets.TFTPReadRequestPacket;
 import pl.psobiech.opengr8on.tftp.transfer.TFTPReceivingTransfer;
 
@@ -37,8 +39,12 @@ public class TFTPClientReceive extends TFTPReceivingTransfer {
 
     private final Path file;
 
-    public TFTPClientReceive(InetAddress host, int port, TFTPTransferMode mode, String fileName, Path file) {
-        this.tftpPacket = new TFTPReadRequestPacket(host, port, fileName, mode);
+    public TFTPClientReceive(InetAddress host, int port, TFTPTransferMode mode, TFTPOptions options, String fileName, Path file) {
+        // server sends the file size in response to tsize 0
+        this.tftpPacket = new TFTPReadRequestPacket(
+                host, port, fileName, mode,
+                options.transferSize() == null ? options.asMap() : options.withTransferSize(0L).asMap()
+        );
 
         this.file = file;
     }
@@ -47,6 +53,11 @@ public class TFTPClientReceive extends TFTPReceivingTransfer {
     public void execute(TFTP tftp) throws IOException, TFTPPacketException {
         tftp.send(tftpPacket);
 
-        incomingTransfer(tftp, false, tftpPacket.getMode(), tftpPacket.getAddress(), tftpPacket.getPort(), tftpPacket, file);
+        incomingTransfer(
+                tftp, false,
+                tftpPacket.getMode(), TFTPPacket.MAX_DATA_LENGTH, 1,
+                tftpPacket.getAddress(), tftpPacket.getPort(),
+                tftpPacket, file
+        );
     }
 }
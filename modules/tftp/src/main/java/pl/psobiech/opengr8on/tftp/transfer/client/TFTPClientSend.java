@@ -21,6 +21,7 @@ package pl.psobiech.opengr8on.tftp.transfer.client;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pl.psobiech.opengr8on.tftp.TFTP;
+import pl.psobiech.opengr8on.tftp.TFTPOptions;
 import pl.psobiech.opengr8on.tftp.TFTPTransferMode;
 import pl.psobiech.opengr8on.tftp.exceptions.TFTPException;
 import pl.psobiech.opengr8on.tftp.exceptions.TFTPPacketException;
@@ -29,46 +30,82 @@ import pl.psobiech.opengr8on.tftp.transfer.TFTPSendingTransfer;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.file.Files;
 import java.nio.file.Path;
 
 public class TFTPClientSend extends TFTPSendingTransfer {
     private static final Logger LOGGER = LoggerFactory.getLogger(TFTPClientSend.class);
 
-    private final TFTPWriteRequestPacket tftpPacket;
+    private final InetAddress host;
+
+    private final int port;
+
+    private final TFTPTransferMode mode;
+
+    private final TFTPOptions options;
+
+    private final String fileName;
 
     private final Path file;
 
-    public TFTPClientSend(InetAddress host, int port, TFTPTransferMode mode, String fileName, Path file) {
-        this.tftpPacket = new TFTPWriteRequestPacket(host, port, fileName, mode);
+    public TFTPClientSend(InetAddress host, int port, TFTPTransferMode mode, TFTPOptions options, String fileName, Path file) {
+        this.host = host;
+        this.port = port;
 
+        this.mode = mode;
+        this.options = options;
+
+        this.fileName = fileName;
         this.file = file;
     }
 
     @Override
     public void execute(TFTP tftp) throws IOException, TFTPPacketException {
+        TFTPWriteRequestPacket tftpPacket = new TFTPWriteRequestPacket(host, port, fileName, mode, requestOptions().asMap());
         tftp.send(tftpPacket);
 
-        InetAddress host = tftpPacket.getAddress();
-        int port = tftpPacket.getPort();
+        TFTPPacket responsePacket = readResponsePacket(tftp, true, host, port, tftpPacket);
+        if (responsePacket instanceof TFTPErrorPacket errorPacket && isOptionsRejected(tftpPacket, errorPacket)) {
+            LOGGER.debug("TFTP options rejected ({}), retrying without options", errorPacket);
 
-        final TFTPPacket responsePacket = readResponsePacket(tftp, true, host, port, tftpPacket);
-        host = responsePacket.getAddress();
-        port = responsePacket.getPort();
+            tftpPacket = tftpPacket.withoutOptions();
+            tftp.send(tftpPacket);
 
-        if (!(responsePacket instanceof TFTPAcknowledgementPacket)) {
-            if (responsePacket instanceof TFTPErrorPacket errorPacket) {
-                throw new TFTPException(
-                        errorPacket.getError(),
-                        "Unexpected response from tftp client during transfer (" + responsePacket + "). Transfer aborted."
-                );
-            }
+            responsePacket = readResponsePacket(tftp, true, host, port, tftpPacket);
+        }
 
+        final TFTPOptions acknowledgedOptions;
+        if (responsePacket instanceof TFTPOptionAcknowledgementPacket optionAcknowledgementPacket) {
+            acknowledgedOptions = acknowledgeOptions(tftp, tftpPacket, optionAcknowledgementPacket);
+        } else if (responsePacket instanceof TFTPAcknowledgementPacket) {
+            // server does not support options
+            acknowledgedOptions = TFTPOptions.NONE;
+        } else if (responsePacket instanceof TFTPErrorPacket errorPacket) {
+            throw new TFTPException(
+                    errorPacket.getError(),
+                    "Unexpected response from tftp client during transfer (" + responsePacket + "). Transfer aborted."
+            );
+        } else {
             throw new TFTPException(
                     TFTPErrorType.UNDEFINED,
                     "Unexpected response from tftp client during transfer (" + responsePacket + "). Transfer aborted."
             );
         }
 
-        outgoingTransfer(tftp, false, file, tftpPacket.getMode(), host, port);
+        outgoingTransfer(
+                tftp, false,
+                file, mode, acknowledgedOptions.getBlockSize(), acknowledgedOptions.getWindowSize(),
+                null,
+                responsePacket.getAddress(), responsePacket.getPort()
+        );
+    }
+
+    private TFTPOptions requestOptions() throws IOException {
+        if (options.transferSize() == null || mode == TFTPTransferMode.NETASCII) {
+            // size after conversion is unknown upfront
+            return options.withTransferSize(null);
+        }
+
+        return options.withTransferSize(Files.size(file));
     }
 }
@@ -21,13 +21,19 @@ package pl.psobiech.opengr8on.tftp.transfer.server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pl.psobiech.opengr8on.tftp.TFTP;
+import pl.psobiech.opengr8on.tftp.TFTPFileCache;
+import pl.psobiech.opengr8on.tftp.TFTPOptions;
 import pl.psobiech.opengr8on.tftp.TFTPTransferMode;
 import pl.psobiech.opengr8on.tftp.exceptions.TFTPPacketException;
 import pl.psobiech.opengr8on.tftp.packets.TFTPAcknowledgementPacket;
+import pl.psobiech.opengr8on.tftp.packets.TFTPErrorType;
+import pl.psobiech.opengr8on.tftp.packets.TFTPOptionAcknowledgementPacket;
+import pl.psobiech.opengr8on.tftp.packets.TFTPPacket;
 import pl.psobiech.opengr8on.tftp.transfer.TFTPReceivingTransfer;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.file.Files;
 import java.nio.file.Path;
 
 public class TFTPServerReceive extends TFTPReceivingTransfer {
@@ -39,21 +45,74 @@ public class TFTPServerReceive extends TFTPReceivingTransfer {
 
     private final TFTPTransferMode mode;
 
+    private final TFTPOptions options;
+
     private final Path path;
 
-    public TFTPServerReceive(InetAddress requestAddress, int requestPort, TFTPTransferMode mode, Path path, String location) {
+    private final TFTPFileCache fileCache;
+
+    /**
+     * @param fileCache cache of file contents to be invalidated once the file is replaced, null if there is none
+     */
+    public TFTPServerReceive(
+            InetAddress requestAddress, int requestPort,
+            TFTPTransferMode mode, TFTPOptions options,
+            Path path, String location, TFTPFileCache fileCache
+    ) {
         this.requestAddress = requestAddress;
         this.requestPort = requestPort;
 
         this.mode = mode;
+        this.options = options;
 
         this.path = path;
+        this.fileCache = fileCache;
     }
 
     @Override
     public void execute(TFTP tftp) throws IOException, TFTPPacketException {
-        final TFTPAcknowledgementPacket lastPacket = new TFTPAcknowledgementPacket(requestAddress, requestPort, 0);
+        final Long transferSize = options.transferSize();
+        if (transferSize != null) {
+            ensureUsableSpace(tftp, transferSize);
+        }
+
+        final TFTPOptions acknowledgedOptions = options.negotiate(TFTPOptions.MAX_BLOCK_SIZE, TFTPOptions.MAX_SERVER_WINDOW_SIZE, transferSize);
+
+        final TFTPPacket lastPacket;
+        if (acknowledgedOptions.isEmpty()) {
+            lastPacket = new TFTPAcknowledgementPacket(requestAddress, requestPort, 0);
+        } else {
+            lastPacket = new TFTPOptionAcknowledgementPacket(requestAddress, requestPort, acknowledgedOptions.asMap());
+        }
+
+        incomingTransfer(
+                tftp, true,
+                mode, acknowledgedOptions.getBlockSize(), acknowledgedOptions.getWindowSize(),
+                requestAddress, requestPort,
+                lastPacket, path
+        );
+    }
+
+    @Override
+    protected void onReceived(Path targetPath) {
+        if (fileCache != null) {
+            fileCache.invalidate(targetPath);
+        }
+    }
+
+    private void ensureUsableSpace(TFTP tftp, long transferSize) throws IOException, TFTPPacketException {
+        final Path parentPath = path.getParent();
+        if (parentPath == null || !Files.isDirectory(parentPath)) {
+            return;
+        }
+
+        if (Files.getFileStore(parentPath).getUsableSpace() < transferSize) {
+            final TFTPPacketException packetException = new TFTPPacketException(
+                    TFTPErrorType.OUT_OF_SPACE, "Not enough space for file of size: " + transferSize
+            );
+            tftp.send(packetException.asError(requestAddress, requestPort));
 
-        incomingTransfer(tftp, true, mode, requestAddress, requestPort, lastPacket, path);
+            throw packetException;
+        }
     }
 }
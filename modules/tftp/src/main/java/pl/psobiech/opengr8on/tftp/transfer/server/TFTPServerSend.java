@@ -21,12 +21,17 @@ package pl.psobiech.opengr8on.tftp.transfer.server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pl.psobiech.opengr8on.tftp.TFTP;
+import pl.psobiech.opengr8on.tftp.TFTPFileCache;
+import pl.psobiech.opengr8on.tftp.TFTPOptions;
 import pl.psobiech.opengr8on.tftp.TFTPTransferMode;
 import pl.psobiech.opengr8on.tftp.exceptions.TFTPPacketException;
+import pl.psobiech.opengr8on.tftp.packets.TFTPOptionAcknowledgementPacket;
 import pl.psobiech.opengr8on.tftp.transfer.TFTPSendingTransfer;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 
 public class TFTPServerSend extends TFTPSendingTransfer {
@@ -38,23 +43,75 @@ public class TFTPServerSend extends TFTPSendingTransfer {
 
     private final TFTPTransferMode mode;
 
+    private final TFTPOptions options;
+
     private final Path path;
 
+    private final TFTPFileCache fileCache;
+
+    /**
+     * @param fileCache cache of file contents, null if the file should always be read from the disk
+     */
     public TFTPServerSend(
             InetAddress requestAddress, int requestPort,
-            TFTPTransferMode mode,
-            Path path, String location
+            TFTPTransferMode mode, TFTPOptions options,
+            Path path, String location, TFTPFileCache fileCache
     ) {
         this.requestAddress = requestAddress;
         this.requestPort = requestPort;
 
         this.mode = mode;
+        this.options = options;
 
         this.path = path;
+        this.fileCache = fileCache;
+    }
+
+    private static Long transferSize(Path path, TFTPTransferMode mode) {
+        if (mode == TFTPTransferMode.NETASCII) {
+            // size after conversion is unknown upfront
+            return null;
+        }
+
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            // missing files are reported when opening the file for the transfer
+            LOGGER.trace(e.getMessage(), e);
+
+            return null;
+        }
     }
 
     @Override
     public void execute(TFTP tftp) throws IOException, TFTPPacketException {
-        outgoingTransfer(tftp, true, path, mode, requestAddress, requestPort);
+        final ByteBuffer contents = cachedContents();
+        final TFTPOptions acknowledgedOptions = options.negotiate(
+                TFTPOptions.MAX_BLOCK_SIZE, TFTPOptions.MAX_SERVER_WINDOW_SIZE,
+                contents == null ? transferSize(path, mode) : Long.valueOf(contents.remaining())
+        );
+
+        outgoingTransfer(
+                tftp, true,
+                path, contents, mode, acknowledgedOptions.getBlockSize(), acknowledgedOptions.getWindowSize(),
+                acknowledgedOptions.isEmpty() ? null : new TFTPOptionAcknowledgementPacket(requestAddress, requestPort, acknowledgedOptions.asMap()),
+                requestAddress, requestPort
+        );
+    }
+
+    private ByteBuffer cachedContents() {
+        if (fileCache == null) {
+            return null;
+        }
+
+        try {
+            return fileCache.get(path, mode)
+                            .orElse(null);
+        } catch (IOException e) {
+            // errors are reported when opening the file for the transfer
+            LOGGER.trace(e.getMessage(), e);
+
+            return null;
+        }
     }
 }
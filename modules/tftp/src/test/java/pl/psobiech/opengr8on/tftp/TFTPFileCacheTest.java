@@ -0,0 +1,167 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.tftp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import pl.psobiech.opengr8on.util.FileUtil;
+import pl.psobiech.opengr8on.util.IOUtil;
+import pl.psobiech.opengr8on.util.ThreadUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Execution(ExecutionMode.CONCURRENT)
+class TFTPFileCacheTest {
+    private Path rootDirectory;
+
+    private ExecutorService executor;
+
+    private TFTPFileCache fileCache;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        rootDirectory = FileUtil.temporaryDirectory();
+        FileUtil.mkdir(rootDirectory.resolve("a"));
+
+        executor = ThreadUtil.virtualExecutor("TFTPFileCacheTest");
+
+        fileCache = new TFTPFileCache(64, 16);
+    }
+
+    @AfterEach
+    void tearDown() {
+        IOUtil.closeQuietly(fileCache);
+        ThreadUtil.closeQuietly(executor);
+
+        FileUtil.deleteRecursively(rootDirectory);
+    }
+
+    @Test
+    void cached() throws Exception {
+        final Path path = rootDirectory.resolve("a").resolve("OM.LUA");
+        Files.writeString(path, "line1\nline2");
+        watch();
+
+        assertEquals("line1\nline2", contents(fileCache.get(path, TFTPTransferMode.OCTET)));
+        assertEquals("line1\nline2", contents(fileCache.get(path, TFTPTransferMode.OCTET)));
+        assertEquals("line1\r\nline2", contents(fileCache.get(path, TFTPTransferMode.NETASCII)));
+
+        final TFTPFileCache.Metrics metrics = fileCache.getMetrics();
+        assertEquals(2, metrics.entryCount());
+        assertEquals(23, metrics.sizeBytes());
+        assertEquals(1, metrics.hitCount());
+        assertEquals(2, metrics.missCount());
+    }
+
+    @Test
+    void notCached() throws Exception {
+        final Path path = rootDirectory.resolve("large.bin");
+        Files.write(path, new byte[17]);
+
+        final Path smallPath = rootDirectory.resolve("small.bin");
+        Files.write(smallPath, new byte[1]);
+        assertTrue(fileCache.get(smallPath, TFTPTransferMode.OCTET).isEmpty());
+
+        watch();
+        assertTrue(fileCache.get(path, TFTPTransferMode.OCTET).isEmpty());
+        assertTrue(fileCache.get(rootDirectory.resolve("missing.bin"), TFTPTransferMode.OCTET).isEmpty());
+        assertTrue(fileCache.get(rootDirectory.resolve("a"), TFTPTransferMode.OCTET).isEmpty());
+
+        fileCache.close();
+        assertTrue(fileCache.get(smallPath, TFTPTransferMode.OCTET).isEmpty());
+
+        assertEquals(0, fileCache.getMetrics().entryCount());
+    }
+
+    @Test
+    void evicted() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            Files.write(rootDirectory.resolve("file" + i + ".bin"), new byte[16]);
+        }
+        watch();
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(fileCache.get(rootDirectory.resolve("file" + i + ".bin"), TFTPTransferMode.OCTET).isPresent());
+        }
+
+        final TFTPFileCache.Metrics metrics = fileCache.getMetrics();
+        assertEquals(4, metrics.entryCount());
+        assertEquals(64, metrics.sizeBytes());
+        assertEquals(1, metrics.evictedCount());
+    }
+
+    @Test
+    void invalidated() throws Exception {
+        final Path directory = rootDirectory.resolve("a");
+        final Path path = directory.resolve("CONFIG.JSON");
+        Files.writeString(path, "{}");
+        watch();
+
+        assertTrue(fileCache.get(path, TFTPTransferMode.OCTET).isPresent());
+        assertTrue(fileCache.get(path, TFTPTransferMode.NETASCII).isPresent());
+
+        fileCache.invalidate(directory);
+
+        final TFTPFileCache.Metrics metrics = fileCache.getMetrics();
+        assertEquals(0, metrics.entryCount());
+        assertEquals(0, metrics.sizeBytes());
+        assertEquals(2, metrics.invalidatedCount());
+    }
+
+    @Test
+    void invalidatedOnModification() throws Exception {
+        final Path path = rootDirectory.resolve("a").resolve("MAIN.LUA");
+        Files.writeString(path, "old");
+        watch();
+
+        assertEquals("old", contents(fileCache.get(path, TFTPTransferMode.OCTET)));
+
+        Files.writeString(path, "new");
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+        while (fileCache.getMetrics().entryCount() > 0 && System.nanoTime() < deadline) {
+            ThreadUtil.sleep(10);
+        }
+
+        assertEquals("new", contents(fileCache.get(path, TFTPTransferMode.OCTET)));
+    }
+
+    /**
+     * Starts watching after test files are written, so their creation events do not invalidate the cache during the test
+     */
+    private void watch() throws Exception {
+        fileCache.watch(rootDirectory, executor);
+    }
+
+    private static String contents(Optional<ByteBuffer> contentsOptional) {
+        return StandardCharsets.US_ASCII.decode(contentsOptional.orElseThrow())
+                                        .toString();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.tftp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import pl.psobiech.opengr8on.tftp.exceptions.TFTPPacketException;
+import pl.psobiech.opengr8on.tftp.packets.TFTPErrorType;
+import pl.psobiech.opengr8on.tftp.packets.TFTPOptionAcknowledgementPacket;
+import pl.psobiech.opengr8on.tftp.packets.TFTPPacket;
+import pl.psobiech.opengr8on.tftp.packets.TFTPReadRequestPacket;
+import pl.psobiech.opengr8on.util.IPv4AddressUtil;
+import pl.psobiech.opengr8on.util.SocketUtil.Payload;
+
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Execution(ExecutionMode.CONCURRENT)
+class TFTPOptionsTest {
+    private static final Inet4Address LOCALHOST = IPv4AddressUtil.parseIPv4("127.0.0.1");
+
+    @Test
+    void requestRoundTrip() throws Exception {
+        final TFTPReadRequestPacket expectedPacket = new TFTPReadRequestPacket(
+                LOCALHOST, 69, "a:\\CONFIG.JSON", TFTPTransferMode.OCTET, TFTPOptions.DEFAULT.asMap()
+        );
+
+        final TFTPReadRequestPacket actualPacket = (TFTPReadRequestPacket) roundTrip(expectedPacket);
+
+        assertEquals(expectedPacket.getFileName(), actualPacket.getFileName());
+        assertEquals(expectedPacket.getMode(), actualPacket.getMode());
+        assertEquals(
+                Map.of(TFTPOptions.BLOCK_SIZE, "1428", TFTPOptions.TRANSFER_SIZE, "0", TFTPOptions.WINDOW_SIZE, "16"),
+                actualPacket.getOptions()
+        );
+        assertTrue(roundTrip(expectedPacket.withoutOptions()) instanceof TFTPReadRequestPacket packet && packet.getOptions().isEmpty());
+    }
+
+    @Test
+    void optionAcknowledgementRoundTrip() throws Exception {
+        final TFTPOptionAcknowledgementPacket actualPacket = (TFTPOptionAcknowledgementPacket) roundTrip(
+                new TFTPOptionAcknowledgementPacket(LOCALHOST, 69, Map.of("BLKSIZE", "1024"))
+        );
+
+        // option names are case-insensitive
+        assertEquals(1024, TFTPOptions.of(actualPacket.getOptions()).getBlockSize());
+    }
+
+    @Test
+    void invalidOptionsIgnored() {
+        assertEquals(
+                TFTPOptions.NONE,
+                TFTPOptions.of(Map.of(TFTPOptions.BLOCK_SIZE, "7", TFTPOptions.TRANSFER_SIZE, "-1", TFTPOptions.WINDOW_SIZE, "0", "unknown", "1"))
+        );
+        assertEquals(TFTPOptions.NONE, TFTPOptions.of(Map.of(TFTPOptions.BLOCK_SIZE, "65465", TFTPOptions.WINDOW_SIZE, "65536")));
+        assertEquals(TFTPPacket.MAX_DATA_LENGTH, TFTPOptions.NONE.getBlockSize());
+        assertEquals(1, TFTPOptions.NONE.getWindowSize());
+    }
+
+    @Test
+    void negotiate() {
+        assertEquals(new TFTPOptions(1024, null, 4), TFTPOptions.DEFAULT.withTransferSize(null).negotiate(1024, 4, 123L));
+        assertEquals(new TFTPOptions(1428, 123L, 16), TFTPOptions.DEFAULT.negotiate(TFTPOptions.MAX_BLOCK_SIZE, TFTPOptions.MAX_SERVER_WINDOW_SIZE, 123L));
+        assertEquals(new TFTPOptions(1428, null, 16), TFTPOptions.DEFAULT.negotiate(TFTPOptions.MAX_BLOCK_SIZE, TFTPOptions.MAX_SERVER_WINDOW_SIZE, null));
+        assertTrue(TFTPOptions.NONE.negotiate(TFTPOptions.MAX_BLOCK_SIZE, TFTPOptions.MAX_SERVER_WINDOW_SIZE, 123L).isEmpty());
+    }
+
+    @Test
+    void acknowledge() throws Exception {
+        assertEquals(new TFTPOptions(512, 5L, 1), TFTPOptions.DEFAULT.acknowledge(new TFTPOptions(512, 5L, 1)));
+
+        final TFTPPacketException largerBlock = assertThrows(
+                TFTPPacketException.class,
+                () -> TFTPOptions.DEFAULT.acknowledge(new TFTPOptions(TFTPOptions.DEFAULT_BLOCK_SIZE + 1, null, null))
+        );
+        assertEquals(TFTPErrorType.OPTION_NEGOTIATION, largerBlock.getError());
+
+        assertThrows(TFTPPacketException.class, () -> TFTPOptions.NONE.acknowledge(new TFTPOptions(null, 5L, null)));
+        assertThrows(TFTPPacketException.class, () -> TFTPOptions.DEFAULT.acknowledge(new TFTPOptions(null, null, TFTPOptions.DEFAULT_WINDOW_SIZE + 1)));
+    }
+
+    private static TFTPPacket roundTrip(TFTPPacket packet) throws TFTPPacketException {
+        final DatagramPacket datagramPacket = packet.newDatagram(new byte[TFTP.MAX_PACKET_SIZE]);
+
+        return TFTPPacket.newTFTPPacket(
+                Payload.of(
+                        LOCALHOST, datagramPacket.getPort(),
+                        Arrays.copyOfRange(datagramPacket.getData(), datagramPacket.getOffset(), datagramPacket.getOffset() + datagramPacket.getLength())
+                )
+        );
+    }
+}
@@ -27,16 +27,18 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 import pl.psobiech.opengr8on.tftp.TFTPServer.ServerMode;
 import pl.psobiech.opengr8on.tftp.exceptions.TFTPException;
-import pl.psobiech.opengr8on.tftp.packets.TFTPErrorType;
-import pl.psobiech.opengr8on.tftp.packets.TFTPPacket;
+import pl.psobiech.opengr8on.tftp.packets.*;
 import pl.psobiech.opengr8on.util.*;
 import pl.psobiech.opengr8on.util.SocketUtil.UDPSocket;
 
 import java.io.*;
 import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -45,6 +47,8 @@ import static org.junit.jupiter.api.Assertions.*;
 class TFTPTest {
     private static final Inet4Address LOCALHOST = IPv4AddressUtil.parseIPv4("127.0.0.1");
 
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
     private static Path rootDirectory;
 
     private static UDPSocket socket;
@@ -55,6 +59,8 @@ class TFTPTest {
 
     private static TFTPClient client;
 
+    private static TFTPClient legacyClient;
+
     @BeforeAll
     static void setUp() throws Exception {
         rootDirectory = FileUtil.temporaryDirectory();
@@ -67,13 +73,14 @@ class TFTPTest {
         server.awaitInitialized();
 
         client = new TFTPClient(SocketUtil.udpRandomPort(LOCALHOST), socket.getLocalPort());
+        legacyClient = new TFTPClient(SocketUtil.udpRandomPort(LOCALHOST), socket.getLocalPort(), TFTPOptions.NONE);
     }
 
     @AfterAll
     static void tearDown() throws Exception {
         ThreadUtil.cancel(serverFuture);
 
-        IOUtil.closeQuietly(client, server);
+        IOUtil.closeQuietly(client, legacyClient, server);
 
         FileUtil.deleteRecursively(rootDirectory);
     }
@@ -122,17 +129,33 @@ class TFTPTest {
                     0,
                     1,
                     1023, 1024, 1025, // multiple blocks
-                    0xFFFF * TFTPPacket.MAX_DATA_LENGTH + 1025 // block number rollover
+                    TFTPOptions.DEFAULT_BLOCK_SIZE, TFTPOptions.DEFAULT_BLOCK_SIZE + 1,
+                    0xFFFF * TFTPOptions.DEFAULT_BLOCK_SIZE + 1025 // block number rollover
             }
     )
     void uploadBinary(int fileSize) throws Exception {
+        uploadDownloadBinary(client, fileSize, "file_" + fileSize + ".bin");
+    }
+
+    @ParameterizedTest
+    @ValueSource(
+            ints = {
+                    0,
+                    1,
+                    1023, 1024, 1025, // multiple blocks
+                    0xFFFF * TFTPPacket.MAX_DATA_LENGTH + 1025 // block number rollover
+            }
+    )
+    void uploadBinaryWithoutOptions(int fileSize) throws Exception {
+        uploadDownloadBinary(legacyClient, fileSize, "legacy_" + fileSize + ".bin");
+    }
+
+    private static void uploadDownloadBinary(TFTPClient client, int fileSize, String fileName) throws Exception {
         final Path temporaryPathFrom = FileUtil.temporaryFile();
         final Path temporaryPathTo = FileUtil.temporaryFile();
         try {
             fillWithRandomBytes(fileSize, temporaryPathFrom);
 
-            final String fileName = "file_" + fileSize + ".bin";
-
             final Path expectedPath = rootDirectory.resolve(fileName);
             assertFalse(Files.exists(expectedPath));
 
@@ -161,6 +184,219 @@ class TFTPTest {
         }
     }
 
+    @Test
+    void downloadFromServerRejectingOptions() throws Exception {
+        final byte[] expectedBuffer = RandomUtil.bytes(3);
+
+        final ExecutorService executor = ThreadUtil.virtualExecutor("TFTPTest");
+        final Path temporaryPathTo = FileUtil.temporaryFile();
+        final TFTP rejectingServer = new TFTP(SocketUtil.udpRandomPort(LOCALHOST));
+        rejectingServer.open();
+        try (
+                rejectingServer;
+                TFTPClient optionsClient = new TFTPClient(SocketUtil.udpRandomPort(LOCALHOST), rejectingServer.getPort(), TFTPOptions.DEFAULT)
+        ) {
+            final Future<Void> rejectingServerFuture = executor.submit(() -> {
+                rejectOptionsAndSend(rejectingServer, expectedBuffer);
+
+                return null;
+            });
+
+            optionsClient.download(LOCALHOST, TFTPTransferMode.OCTET, "file.bin", temporaryPathTo);
+            rejectingServerFuture.get();
+
+            assertArrayEquals(expectedBuffer, Files.readAllBytes(temporaryPathTo));
+        } finally {
+            ThreadUtil.closeQuietly(executor);
+
+            FileUtil.deleteQuietly(temporaryPathTo);
+        }
+    }
+
+    @Test
+    void windowedDownloadWithMissingBlock() throws Exception {
+        final int blockSize = 8;
+        final byte[] expectedBuffer = RandomUtil.bytes(4 * blockSize + 3);
+
+        final ExecutorService executor = ThreadUtil.virtualExecutor("TFTPTest");
+        final Path temporaryPathTo = FileUtil.temporaryFile();
+        final TFTP lossyServer = new TFTP(SocketUtil.udpRandomPort(LOCALHOST));
+        lossyServer.open();
+        try (
+                lossyServer;
+                TFTPClient windowedClient = new TFTPClient(
+                        SocketUtil.udpRandomPort(LOCALHOST), lossyServer.getPort(),
+                        new TFTPOptions(blockSize, null, 4)
+                )
+        ) {
+            final Future<Void> lossyServerFuture = executor.submit(() -> {
+                sendWindowMissingBlock(lossyServer, blockSize, expectedBuffer);
+
+                return null;
+            });
+
+            windowedClient.download(LOCALHOST, TFTPTransferMode.OCTET, "file.bin", temporaryPathTo);
+            lossyServerFuture.get();
+
+            assertArrayEquals(expectedBuffer, Files.readAllBytes(temporaryPathTo));
+        } finally {
+            ThreadUtil.closeQuietly(executor);
+
+            FileUtil.deleteQuietly(temporaryPathTo);
+        }
+    }
+
+    @Test
+    void windowedDownloadWithLostAcknowledgement() throws Exception {
+        final int blockSize = 8;
+        final byte[] expectedBuffer = RandomUtil.bytes(8 * blockSize + 3);
+
+        final ExecutorService executor = ThreadUtil.virtualExecutor("TFTPTest");
+        final Path temporaryPathTo = FileUtil.temporaryFile();
+        final TFTP lossyServer = new TFTP(SocketUtil.udpRandomPort(LOCALHOST));
+        lossyServer.open();
+        try (
+                lossyServer;
+                TFTPClient windowedClient = new TFTPClient(
+                        SocketUtil.udpRandomPort(LOCALHOST), lossyServer.getPort(),
+                        new TFTPOptions(blockSize, null, 4)
+                )
+        ) {
+            final Future<Void> lossyServerFuture = executor.submit(() -> {
+                sendWindowLostAcknowledgement(lossyServer, blockSize, expectedBuffer);
+
+                return null;
+            });
+
+            windowedClient.download(LOCALHOST, TFTPTransferMode.OCTET, "file.bin", temporaryPathTo);
+            lossyServerFuture.get();
+
+            assertArrayEquals(expectedBuffer, Files.readAllBytes(temporaryPathTo));
+        } finally {
+            ThreadUtil.closeQuietly(executor);
+
+            FileUtil.deleteQuietly(temporaryPathTo);
+        }
+    }
+
+    @Test
+    void serverResendsWindowFromAcknowledgedBlock() throws Exception {
+        final int blockSize = 8;
+        final byte[] expectedBuffer = RandomUtil.bytes(4 * blockSize + 3);
+
+        final String fileName = "windowed.bin";
+        Files.write(rootDirectory.resolve(fileName), expectedBuffer);
+
+        try (TFTP lossyClient = new TFTP(SocketUtil.udpRandomPort(LOCALHOST))) {
+            lossyClient.open();
+            lossyClient.send(new TFTPReadRequestPacket(
+                    LOCALHOST, socket.getLocalPort(), fileName, TFTPTransferMode.OCTET,
+                    new TFTPOptions(blockSize, null, 4).asMap()
+            ));
+
+            final TFTPOptionAcknowledgementPacket optionAcknowledgementPacket = (TFTPOptionAcknowledgementPacket) lossyClient.receive(TIMEOUT).orElseThrow();
+            assertEquals(new TFTPOptions(blockSize, null, 4), TFTPOptions.of(optionAcknowledgementPacket.getOptions()));
+
+            final InetAddress address = optionAcknowledgementPacket.getAddress();
+            final int port = optionAcknowledgementPacket.getPort();
+            lossyClient.send(new TFTPAcknowledgementPacket(address, port, 0));
+            for (int block = 1; block <= 4; block++) {
+                assertEquals(block, ((TFTPDataPacket) lossyClient.receive(TIMEOUT).orElseThrow()).getBlockNumber());
+            }
+
+            // as if blocks 3 and 4 were lost
+            lossyClient.send(new TFTPAcknowledgementPacket(address, port, 2));
+            for (int block = 3; block <= 5; block++) {
+                final TFTPDataPacket dataPacket = (TFTPDataPacket) lossyClient.receive(TIMEOUT).orElseThrow();
+                assertEquals(block, dataPacket.getBlockNumber());
+                assertArrayEquals(
+                        Arrays.copyOfRange(expectedBuffer, (block - 1) * blockSize, Math.min(block * blockSize, expectedBuffer.length)),
+                        Arrays.copyOfRange(dataPacket.getBuffer(), dataPacket.getDataOffset(), dataPacket.getDataOffset() + dataPacket.getDataLength())
+                );
+            }
+
+            lossyClient.send(new TFTPAcknowledgementPacket(address, port, 5));
+        }
+    }
+
+    /**
+     * Behaves like a server on a lossy network, where the third block of the window gets lost
+     */
+    private static void sendWindowMissingBlock(TFTP tftp, int blockSize, byte[] buffer) throws Exception {
+        final TFTPRequestPacket request = (TFTPRequestPacket) tftp.receive(TIMEOUT).orElseThrow();
+        final TFTPOptions options = TFTPOptions.of(request.getOptions());
+        assertEquals(4, options.getWindowSize());
+
+        tftp.send(new TFTPOptionAcknowledgementPacket(request.getAddress(), request.getPort(), options.asMap()));
+        assertEquals(0, ((TFTPAcknowledgementPacket) tftp.receive(TIMEOUT).orElseThrow()).getBlockNumber());
+
+        for (int block : new int[]{1, 2, 4}) {
+            tftp.send(new TFTPDataPacket(request.getAddress(), request.getPort(), block, buffer, (block - 1) * blockSize, blockSize));
+        }
+
+        // client acknowledges the last block received in order
+        assertEquals(2, ((TFTPAcknowledgementPacket) tftp.receive(TIMEOUT).orElseThrow()).getBlockNumber());
+
+        for (int block : new int[]{3, 4}) {
+            tftp.send(new TFTPDataPacket(request.getAddress(), request.getPort(), block, buffer, (block - 1) * blockSize, blockSize));
+        }
+        tftp.send(new TFTPDataPacket(request.getAddress(), request.getPort(), 5, buffer, 4 * blockSize, buffer.length - 4 * blockSize));
+
+        assertEquals(5, ((TFTPAcknowledgementPacket) tftp.receive(TIMEOUT).orElseThrow()).getBlockNumber());
+    }
+
+    /**
+     * Behaves like a server on a lossy network, where the acknowledgement of the first window gets lost
+     */
+    private static void sendWindowLostAcknowledgement(TFTP tftp, int blockSize, byte[] buffer) throws Exception {
+        final TFTPRequestPacket request = (TFTPRequestPacket) tftp.receive(TIMEOUT).orElseThrow();
+        final TFTPOptions options = TFTPOptions.of(request.getOptions());
+        assertEquals(4, options.getWindowSize());
+
+        tftp.send(new TFTPOptionAcknowledgementPacket(request.getAddress(), request.getPort(), options.asMap()));
+        assertEquals(0, ((TFTPAcknowledgementPacket) tftp.receive(TIMEOUT).orElseThrow()).getBlockNumber());
+
+        for (int block = 1; block <= 4; block++) {
+            tftp.send(new TFTPDataPacket(request.getAddress(), request.getPort(), block, buffer, (block - 1) * blockSize, blockSize));
+        }
+        assertEquals(4, ((TFTPAcknowledgementPacket) tftp.receive(TIMEOUT).orElseThrow()).getBlockNumber());
+
+        // as if the acknowledgement was lost, the window is resent and acknowledged again (before the client times out)
+        for (int block = 1; block <= 4; block++) {
+            tftp.send(new TFTPDataPacket(request.getAddress(), request.getPort(), block, buffer, (block - 1) * blockSize, blockSize));
+        }
+        assertEquals(4, ((TFTPAcknowledgementPacket) tftp.receive(Duration.ofSeconds(1)).orElseThrow()).getBlockNumber());
+
+        for (int block = 5; block <= 8; block++) {
+            tftp.send(new TFTPDataPacket(request.getAddress(), request.getPort(), block, buffer, (block - 1) * blockSize, blockSize));
+        }
+        assertEquals(8, ((TFTPAcknowledgementPacket) tftp.receive(TIMEOUT).orElseThrow()).getBlockNumber());
+
+        tftp.send(new TFTPDataPacket(request.getAddress(), request.getPort(), 9, buffer, 8 * blockSize, buffer.length - 8 * blockSize));
+        assertEquals(9, ((TFTPAcknowledgementPacket) tftp.receive(TIMEOUT).orElseThrow()).getBlockNumber());
+    }
+
+    /**
+     * Behaves like a server that does not support option negotiation at all
+     */
+    private static void rejectOptionsAndSend(TFTP tftp, byte[] buffer) throws Exception {
+        final TFTPRequestPacket requestWithOptions = (TFTPRequestPacket) tftp.receive(TIMEOUT).orElseThrow();
+        assertEquals(String.valueOf(TFTPOptions.DEFAULT_BLOCK_SIZE), requestWithOptions.getOptions().get(TFTPOptions.BLOCK_SIZE));
+
+        tftp.send(new TFTPErrorPacket(
+                requestWithOptions.getAddress(), requestWithOptions.getPort(),
+                TFTPErrorType.OPTION_NEGOTIATION, "Options not supported"
+        ));
+
+        final TFTPRequestPacket request = (TFTPRequestPacket) tftp.receive(TIMEOUT).orElseThrow();
+        assertTrue(request.getOptions().isEmpty());
+
+        tftp.send(new TFTPDataPacket(request.getAddress(), request.getPort(), 1, buffer, 0, buffer.length));
+
+        final TFTPAcknowledgementPacket acknowledgementPacket = (TFTPAcknowledgementPacket) tftp.receive(TIMEOUT).orElseThrow();
+        assertEquals(1, acknowledgementPacket.getBlockNumber());
+    }
+
     @Test
     void uploadDownloadTextAsciiLF() throws Exception {
         final String expectedString = "Some test string" + System.lineSeparator() + "and a second line" + System.lineSeparator() + " ;-)";
@@ -289,6 +525,36 @@ class TFTPTest {
         }
     }
 
+    @Test
+    void downloadCachedFile() throws Exception {
+        final Path temporaryPathTo = FileUtil.temporaryFile();
+        try {
+            final String fileName = "downloadCachedFile.json";
+            final Path path = rootDirectory.resolve(fileName);
+            Files.writeString(path, "{\"version\": 1}");
+
+            client.download(LOCALHOST, TFTPTransferMode.OCTET, fileName, temporaryPathTo);
+            assertEquals("{\"version\": 1}", Files.readString(temporaryPathTo));
+
+            final long hitCount = server.getFileCache().getMetrics().hitCount();
+            client.download(LOCALHOST, TFTPTransferMode.OCTET, fileName, temporaryPathTo);
+            assertEquals("{\"version\": 1}", Files.readString(temporaryPathTo));
+            assertTrue(server.getFileCache().getMetrics().hitCount() > hitCount);
+
+            Files.writeString(path, "{\"version\": 2}");
+
+            // modification is noticed asynchronously by the server
+            final long deadline = System.nanoTime() + TIMEOUT.multipliedBy(3).toNanos();
+            do {
+                client.download(LOCALHOST, TFTPTransferMode.OCTET, fileName, temporaryPathTo);
+            } while (!Files.readString(temporaryPathTo).equals("{\"version\": 2}") && System.nanoTime() < deadline);
+
+            assertEquals("{\"version\": 2}", Files.readString(temporaryPathTo));
+        } finally {
+            FileUtil.deleteQuietly(temporaryPathTo);
+        }
+    }
+
     @Test
     void downloadNotFound() throws Exception {
         final Path temporaryPathTo = FileUtil.temporaryFile();
@@ -0,0 +1,57 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.tftp.transfer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Execution(ExecutionMode.CONCURRENT)
+class DirectBufferPoolTest {
+    @Test
+    void capacityRoundedUp() {
+        final DirectBufferPool pool = new DirectBufferPool();
+
+        assertEquals(1024, pool.acquire(1024).capacity());
+        assertEquals(2048, pool.acquire(1432).capacity());
+        assertEquals(65536, pool.acquire(65468).capacity());
+    }
+
+    @Test
+    void reused() {
+        final DirectBufferPool pool = new DirectBufferPool();
+
+        final ByteBuffer buffer = pool.acquire(516);
+        assertTrue(buffer.isDirect());
+
+        buffer.position(10).limit(20);
+        pool.release(buffer);
+
+        final ByteBuffer reusedBuffer = pool.acquire(600);
+        assertSame(buffer, reusedBuffer);
+        assertEquals(0, reusedBuffer.position());
+        assertEquals(reusedBuffer.capacity(), reusedBuffer.limit());
+
+        assertNotSame(buffer, pool.acquire(600));
+    }
+}
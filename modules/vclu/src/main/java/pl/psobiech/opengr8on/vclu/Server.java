@@ -38,6 +38,7 @@ import pl.psobiech.opengr8on.util.IPv4AddressUtil.NetworkInterfaceDto;
 import pl.psobiech.opengr8on.util.SocketUtil.Payload;
 import pl.psobiech.opengr8on.util.SocketUtil.UDPSocket;
 import pl.psobiech.opengr8on.vclu.Main.CluKeys;
+import pl.psobiech.opengr8on.vclu.api.StateApiServer;
 import pl.psobiech.opengr8on.vclu.system.lua.LuaThread;
 import pl.psobiech.opengr8on.vclu.system.lua.LuaThreadFactory;
 import pl.psobiech.opengr8on.vclu.system.objects.VirtualCLU;
@@ -94,6 +95,8 @@ public class Server implements Closeable {
 
     private final MqttClient mqttClient = new MqttClient();
 
+    private final StateApiServer stateApiServer = new StateApiServer();
+
     private LuaThread mainThread;
 
     private List<CipherKey> unicastCipherKeys;
@@ -483,6 +486,7 @@ public class Server implements Closeable {
         unicastCipherKeys = List.of(projectCipherKey);
 
         mqttClient.stop();
+        stateApiServer.stop();
         tftpServer.stop();
 
         startClu();
@@ -549,14 +553,29 @@ public class Server implements Closeable {
 
         if (currentClu.isMqttEnabled()) {
             final Path mqttPath = parentDirectory.resolve("mqtt");
+            FileUtil.mkdir(mqttPath);
 
             mqttClient.start(
                     currentClu.getMqttUrl(), currentClu.getName(),
                     mqttPath.resolve("ca.crt"),
                     mqttPath.resolve("certificate.crt"), mqttPath.resolve("key.pem"),
+                    mqttPath.resolve("outbound.journal"),
                     currentClu
             );
         }
+
+        if (currentClu.isStateApiEnabled() && currentClu.getStateApiToken() == null) {
+            LOGGER.error("State API is enabled (UseStateAPI), but StateAPIToken is empty, the State API is not started");
+        } else if (currentClu.isStateApiEnabled()) {
+            try {
+                stateApiServer.start(
+                        cluDevice.getAddress(), currentClu.getStateApiPort(), currentClu.getStateApiToken(),
+                        mainThread.virtualSystem()
+                );
+            } catch (Exception e) {
+                LOGGER.error("Could not start State API", e);
+            }
+        }
     }
 
     protected LuaValue luaCall(String script) {
@@ -709,7 +728,7 @@ public class Server implements Closeable {
     public void close() {
         ThreadUtil.closeQuietly(executor);
 
-        IOUtil.closeQuietly(tftpServer, mqttClient, mainThread);
+        IOUtil.closeQuietly(tftpServer, mqttClient, stateApiServer, mainThread);
         IOUtil.closeQuietly(commandSocket, broadcastCommandSocket, responseSocket);
     }
 
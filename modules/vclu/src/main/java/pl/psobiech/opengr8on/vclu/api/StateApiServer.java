@@ -0,0 +1,530 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolConfig;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler.HandshakeComplete;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.luaj.vm2.LuaValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.psobiech.opengr8on.exceptions.UnexpectedException;
+import pl.psobiech.opengr8on.util.ObjectMapperFactory;
+import pl.psobiech.opengr8on.util.ThreadUtil;
+import pl.psobiech.opengr8on.vclu.system.VirtualSystem;
+import pl.psobiech.opengr8on.vclu.system.VirtualSystem.FeatureListener;
+import pl.psobiech.opengr8on.vclu.system.objects.VirtualObject;
+import pl.psobiech.opengr8on.vclu.util.LuaUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * JSON state API of the VirtualSystem objects, values are read and written directly on the objects (without going through Lua):
+ * <ul>
+ *     <li>GET /api/objects - all objects with their (last known) feature values</li>
+ *     <li>GET /api/objects/{name} - single object</li>
+ *     <li>POST /api/get - bulk get of current values, e.g. {"CLU0": ["UPTIME"], "TIMER1": []} (empty list for all features)</li>
+ *     <li>POST /api/set - bulk set, e.g. {"TIMER1": {"TIME": 1000}}</li>
+ *     <li>GET /api/stream - WebSocket, that pushes feature changes (optionally limited with ?objects=CLU0,TIMER1)</li>
+ * </ul>
+ * Requests have to provide the (required) token with "Authorization: Bearer {token}" header or "token" query parameter. Secret features (e.g. credentials)
+ * are not exposed. The stream pushes changes of the stored feature values, computed features (e.g. CLU0 UPTIME) are pushed only when they are read
+ * (e.g. by Lua or with /api/get).
+ */
+public class StateApiServer implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StateApiServer.class);
+
+    private static final String OBJECTS_PATH = "/api/objects";
+
+    private static final String GET_PATH = "/api/get";
+
+    private static final String SET_PATH = "/api/set";
+
+    private static final String STREAM_PATH = "/api/stream";
+
+    private static final String TOKEN_PARAMETER = "token";
+
+    private static final String OBJECTS_PARAMETER = "objects";
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private static final int MAX_CONTENT_LENGTH = 1024 * 1024;
+
+    private static final AttributeKey<Set<String>> OBJECTS_FILTER = AttributeKey.valueOf("objectsFilter");
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final ExecutorService executor = ThreadUtil.virtualExecutor("StateApi");
+
+    private final ChannelGroup streams = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+
+    private final FeatureListener featureListener = this::onFeatureChanged;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private EventLoopGroup eventLoopGroup;
+
+    private Channel serverChannel;
+
+    private volatile VirtualSystem virtualSystem;
+
+    private volatile byte[] token;
+
+    /**
+     * @param token required token, the API is not started without it
+     */
+    public void start(InetAddress address, int port, String token, VirtualSystem virtualSystem) {
+        if (token == null || token.isEmpty()) {
+            throw new UnexpectedException("State API requires a non-empty token");
+        }
+
+        lock.lock();
+        try {
+            stop();
+
+            this.virtualSystem = virtualSystem;
+            this.token = token.getBytes(StandardCharsets.UTF_8);
+
+            eventLoopGroup = new MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory());
+            serverChannel = new ServerBootstrap()
+                    .group(eventLoopGroup)
+                    .channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel channel) {
+                            channel.pipeline()
+                                   .addLast(new HttpServerCodec())
+                                   .addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH))
+                                   .addLast(new RequestHandler())
+                                   .addLast(new WebSocketServerProtocolHandler(
+                                           WebSocketServerProtocolConfig.newBuilder()
+                                                                        .websocketPath(STREAM_PATH)
+                                                                        .checkStartsWith(true)
+                                                                        .build()
+                                   ))
+                                   .addLast(new StreamHandler());
+                        }
+                    })
+                    .bind(new InetSocketAddress(address, port))
+                    .syncUninterruptibly()
+                    .channel();
+
+            virtualSystem.addFeatureListener(featureListener);
+
+            LOGGER.info("State API listening on {}", serverChannel.localAddress());
+        } catch (Exception e) {
+            stop();
+
+            throw new UnexpectedException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getPort() {
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    /**
+     * @return number of change notifications not sent, because the client was not reading fast enough
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public void stop() {
+        lock.lock();
+        try {
+            final VirtualSystem currentVirtualSystem = virtualSystem;
+            if (currentVirtualSystem != null) {
+                currentVirtualSystem.removeFeatureListener(featureListener);
+                virtualSystem = null;
+            }
+
+            streams.close().awaitUninterruptibly();
+
+            if (serverChannel != null) {
+                serverChannel.close().awaitUninterruptibly();
+                serverChannel = null;
+            }
+
+            if (eventLoopGroup != null) {
+                eventLoopGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+                eventLoopGroup = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        stop();
+
+        ThreadUtil.closeQuietly(executor);
+    }
+
+    private void onFeatureChanged(VirtualObject object, int index, LuaValue value) {
+        if (streams.isEmpty() || object.isSecret(index)) {
+            return;
+        }
+
+        final Map<String, Object> change = new LinkedHashMap<>();
+        change.put("object", object.getName());
+        change.put("feature", object.getFeatureName(index));
+        change.put("index", index);
+        change.put("value", LuaUtil.asObject(value));
+
+        final byte[] changeAsBytes = writeJson(change);
+        for (Channel channel : streams) {
+            final Set<String> objectsFilter = channel.attr(OBJECTS_FILTER).get();
+            if (objectsFilter != null && !objectsFilter.contains(object.getName())) {
+                continue;
+            }
+
+            if (!channel.isWritable()) {
+                droppedCount.incrementAndGet();
+
+                continue;
+            }
+
+            channel.writeAndFlush(new TextWebSocketFrame(Unpooled.wrappedBuffer(changeAsBytes)));
+        }
+    }
+
+    private boolean isAuthorized(FullHttpRequest request, QueryStringDecoder queryString) {
+        final byte[] currentToken = token;
+        if (currentToken == null) {
+            return false;
+        }
+
+        String requestToken = null;
+        final String authorization = request.headers().get(HttpHeaderNames.AUTHORIZATION);
+        if (authorization != null && authorization.startsWith(BEARER_PREFIX)) {
+            requestToken = authorization.substring(BEARER_PREFIX.length());
+        } else {
+            final List<String> tokenParameter = queryString.parameters().get(TOKEN_PARAMETER);
+            if (tokenParameter != null && !tokenParameter.isEmpty()) {
+                requestToken = tokenParameter.getFirst();
+            }
+        }
+
+        return requestToken != null && MessageDigest.isEqual(currentToken, requestToken.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Response handle(HttpMethod method, String path, byte[] body) throws IOException {
+        final VirtualSystem currentVirtualSystem = virtualSystem;
+        if (currentVirtualSystem == null) {
+            return Response.error(HttpResponseStatus.SERVICE_UNAVAILABLE, "VCLU is not running");
+        }
+
+        if (method.equals(HttpMethod.GET) && path.equals(OBJECTS_PATH)) {
+            final Map<String, Object> objects = new LinkedHashMap<>();
+            for (VirtualObject object : currentVirtualSystem.getObjects()) {
+                objects.put(object.getName(), values(object, object.getFeatureNames(), false));
+            }
+
+            return Response.ok(objects);
+        }
+
+        if (method.equals(HttpMethod.GET) && path.startsWith(OBJECTS_PATH + "/")) {
+            final String name = QueryStringDecoder.decodeComponent(path.substring(OBJECTS_PATH.length() + 1));
+            final VirtualObject object = currentVirtualSystem.getObject(name);
+            if (object == null) {
+                return Response.error(HttpResponseStatus.NOT_FOUND, "Unknown object: " + name);
+            }
+
+            return Response.ok(values(object, object.getFeatureNames(), false));
+        }
+
+        if (method.equals(HttpMethod.POST) && path.equals(GET_PATH)) {
+            return bulkGet(currentVirtualSystem, ObjectMapperFactory.JSON.readTree(body));
+        }
+
+        if (method.equals(HttpMethod.POST) && path.equals(SET_PATH)) {
+            return bulkSet(currentVirtualSystem, ObjectMapperFactory.JSON.readTree(body));
+        }
+
+        return Response.error(HttpResponseStatus.NOT_FOUND, "Unknown endpoint: " + method + " " + path);
+    }
+
+    private static Response bulkGet(VirtualSystem virtualSystem, JsonNode requestNode) {
+        if (requestNode == null || !requestNode.isObject()) {
+            return Response.error(HttpResponseStatus.BAD_REQUEST, "Expected an object of object names");
+        }
+
+        final Map<VirtualObject, Map<Integer, String>> selection = new LinkedHashMap<>();
+        for (Iterator<Entry<String, JsonNode>> iterator = requestNode.fields(); iterator.hasNext(); ) {
+            final Entry<String, JsonNode> entry = iterator.next();
+
+            final VirtualObject object = virtualSystem.getObject(entry.getKey());
+            if (object == null) {
+                return Response.error(HttpResponseStatus.NOT_FOUND, "Unknown object: " + entry.getKey());
+            }
+
+            final Map<Integer, String> featureNames = object.getFeatureNames();
+            final Map<Integer, String> selectedFeatures = new LinkedHashMap<>();
+            for (JsonNode featureNode : entry.getValue()) {
+                final Optional<Integer> index = featureIndex(featureNames, featureNode.asText());
+                if (index.isEmpty()) {
+                    return Response.error(HttpResponseStatus.NOT_FOUND, "Unknown feature: " + entry.getKey() + "." + featureNode.asText());
+                }
+
+                selectedFeatures.put(index.get(), featureNames.get(index.get()));
+            }
+
+            selection.put(object, selectedFeatures.isEmpty() ? featureNames : selectedFeatures);
+        }
+
+        final Map<String, Object> objects = new LinkedHashMap<>();
+        for (Entry<VirtualObject, Map<Integer, String>> entry : selection.entrySet()) {
+            objects.put(entry.getKey().getName(), values(entry.getKey(), entry.getValue(), true));
+        }
+
+        return Response.ok(objects);
+    }
+
+    private static Response bulkSet(VirtualSystem virtualSystem, JsonNode requestNode) {
+        if (requestNode == null || !requestNode.isObject()) {
+            return Response.error(HttpResponseStatus.BAD_REQUEST, "Expected an object of object names");
+        }
+
+        // validate everything first, so that invalid requests do not change anything
+        final Map<VirtualObject, Map<Integer, LuaValue>> changes = new LinkedHashMap<>();
+        for (Iterator<Entry<String, JsonNode>> iterator = requestNode.fields(); iterator.hasNext(); ) {
+            final Entry<String, JsonNode> entry = iterator.next();
+
+            final VirtualObject object = virtualSystem.getObject(entry.getKey());
+            if (object == null) {
+                return Response.error(HttpResponseStatus.NOT_FOUND, "Unknown object: " + entry.getKey());
+            }
+
+            if (!entry.getValue().isObject()) {
+                return Response.error(HttpResponseStatus.BAD_REQUEST, "Expected an object of feature values: " + entry.getKey());
+            }
+
+            final Map<Integer, String> featureNames = object.getFeatureNames();
+            final Map<Integer, LuaValue> objectChanges = new LinkedHashMap<>();
+            for (Iterator<Entry<String, JsonNode>> featureIterator = entry.getValue().fields(); featureIterator.hasNext(); ) {
+                final Entry<String, JsonNode> featureEntry = featureIterator.next();
+
+                final Optional<Integer> index = featureIndex(featureNames, featureEntry.getKey());
+                if (index.isEmpty()) {
+                    return Response.error(HttpResponseStatus.NOT_FOUND, "Unknown feature: " + entry.getKey() + "." + featureEntry.getKey());
+                }
+
+                objectChanges.put(index.get(), LuaUtil.fromJson(featureEntry.getValue()));
+            }
+
+            changes.put(object, objectChanges);
+        }
+
+        final Map<String, Object> objects = new LinkedHashMap<>();
+        for (Entry<VirtualObject, Map<Integer, LuaValue>> entry : changes.entrySet()) {
+            final VirtualObject object = entry.getKey();
+
+            final Map<String, Object> values = new LinkedHashMap<>();
+            for (Entry<Integer, LuaValue> change : entry.getValue().entrySet()) {
+                final int index = change.getKey();
+                object.set(index, change.getValue());
+
+                values.put(object.getFeatureName(index), LuaUtil.asObject(object.getValue(index)));
+            }
+
+            objects.put(object.getName(), values);
+        }
+
+        return Response.ok(objects);
+    }
+
+    private static Optional<Integer> featureIndex(Map<Integer, String> featureNames, String nameOrIndex) {
+        for (Entry<Integer, String> entry : featureNames.entrySet()) {
+            if (entry.getValue().equalsIgnoreCase(nameOrIndex) || String.valueOf(entry.getKey()).equals(nameOrIndex)) {
+                return Optional.of(entry.getKey());
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * @param current if true, the current value is read (computed features are evaluated), otherwise the last known value is returned
+     */
+    private static Map<String, Object> values(VirtualObject object, Map<Integer, String> features, boolean current) {
+        final Map<String, Object> values = new LinkedHashMap<>();
+        for (Entry<Integer, String> entry : features.entrySet()) {
+            final int index = entry.getKey();
+
+            values.put(entry.getValue(), LuaUtil.asObject(current ? object.get(index) : object.getValue(index)));
+        }
+
+        return values;
+    }
+
+    private static byte[] writeJson(Object value) {
+        try {
+            return ObjectMapperFactory.JSON.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    private static void send(ChannelHandlerContext ctx, FullHttpRequest request, Response response) {
+        final FullHttpResponse httpResponse = new DefaultFullHttpResponse(
+                request.protocolVersion(), response.status(),
+                Unpooled.wrappedBuffer(writeJson(response.body()))
+        );
+        httpResponse.headers()
+                    .set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON)
+                    .setInt(HttpHeaderNames.CONTENT_LENGTH, httpResponse.content().readableBytes());
+
+        final boolean keepAlive = HttpUtil.isKeepAlive(request);
+        HttpUtil.setKeepAlive(httpResponse, keepAlive);
+
+        final ChannelFuture writeFuture = ctx.writeAndFlush(httpResponse);
+        if (!keepAlive) {
+            writeFuture.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private record Response(HttpResponseStatus status, Object body) {
+        static Response ok(Object body) {
+            return new Response(HttpResponseStatus.OK, body);
+        }
+
+        static Response error(HttpResponseStatus status, String message) {
+            return new Response(status, Map.of("error", message));
+        }
+    }
+
+    private class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            final QueryStringDecoder queryString = new QueryStringDecoder(request.uri());
+            if (!isAuthorized(request, queryString)) {
+                send(ctx, request, Response.error(HttpResponseStatus.UNAUTHORIZED, "Invalid token"));
+
+                return;
+            }
+
+            final String path = queryString.path();
+            if (path.equals(STREAM_PATH)) {
+                final List<String> objectsParameter = queryString.parameters().get(OBJECTS_PARAMETER);
+                if (objectsParameter != null) {
+                    ctx.channel()
+                       .attr(OBJECTS_FILTER)
+                       .set(Set.of(String.join(",", objectsParameter).split(",")));
+                }
+
+                // handled by the WebSocket protocol handler
+                ctx.fireChannelRead(request.retain());
+
+                return;
+            }
+
+            final HttpMethod method = request.method();
+            final byte[] body = new byte[request.content().readableBytes()];
+            request.content().readBytes(body);
+
+            // feature functions might block, so requests are handled outside of the event loop
+            final FullHttpRequest requestHeaders = request.replace(Unpooled.EMPTY_BUFFER);
+            executor.submit(() -> {
+                Response response;
+                try {
+                    response = handle(method, path, body);
+                } catch (IOException e) {
+                    response = Response.error(HttpResponseStatus.BAD_REQUEST, e.getMessage());
+                } catch (Exception e) {
+                    LOGGER.error(e.getMessage(), e);
+
+                    response = Response.error(HttpResponseStatus.INTERNAL_SERVER_ERROR, String.valueOf(e.getMessage()));
+                }
+
+                try {
+                    send(ctx, requestHeaders, response);
+                } finally {
+                    requestHeaders.release();
+                }
+            });
+        }
+    }
+
+    private class StreamHandler extends SimpleChannelInboundHandler<WebSocketFrame> {
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object event) throws Exception {
+            if (event instanceof HandshakeComplete) {
+                streams.add(ctx.channel());
+            }
+
+            super.userEventTriggered(ctx, event);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, WebSocketFrame frame) {
+            // the stream is push only, client messages are ignored
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.mqtt;
+
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+import io.moquette.broker.security.IAuthenticator;
+import io.moquette.interception.AbstractInterceptHandler;
+import io.moquette.interception.messages.InterceptPublishMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * In-process MQTT broker, external clients connect over plain TCP, while local messages skip the network stack
+ */
+public class EmbeddedMqttBroker implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedMqttBroker.class);
+
+    private static final Runnable NO_ACKNOWLEDGEMENT = () -> {
+        // NOP
+    };
+
+    private final Server server = new Server();
+
+    private final String clientId;
+
+    private final MqttMessageHandler externalMessageHandler;
+
+    /**
+     * @param clientId               client id used for the local publications
+     * @param externalMessageHandler receives messages published by the external clients
+     */
+    public EmbeddedMqttBroker(String clientId, MqttMessageHandler externalMessageHandler) {
+        this.clientId = clientId;
+        this.externalMessageHandler = externalMessageHandler;
+    }
+
+    /**
+     * @param username when not null, external clients are required to authenticate with the username and password
+     */
+    public void start(String host, int port, String username, String password) {
+        final Properties properties = new Properties();
+        properties.setProperty("host", host);
+        properties.setProperty("port", Integer.toString(port));
+        properties.setProperty("password_file", "");
+        properties.setProperty("allow_anonymous", Boolean.toString(username == null));
+        properties.setProperty("authenticator_class", "");
+        properties.setProperty("authorizator_class", "");
+
+        final IAuthenticator authenticator;
+        if (username == null) {
+            authenticator = null;
+        } else {
+            final byte[] passwordBytes = Objects.requireNonNullElse(password, "").getBytes(StandardCharsets.UTF_8);
+
+            authenticator = (connectingClientId, connectingUsername, connectingPassword) ->
+                    username.equals(connectingUsername) && connectingPassword != null && MessageDigest.isEqual(passwordBytes, connectingPassword);
+        }
+
+        server.startServer(new MemoryConfig(properties), List.of(new PublishInterceptHandler()), null, authenticator, null);
+
+        LOGGER.info("Embedded MQTT broker listening on {}:{}", host, port);
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * Publishes the message to the external subscribers (local subscribers are expected to be notified by the caller)
+     */
+    public void publish(String topic, byte[] payload, boolean retained) {
+        server.internalPublish(
+                MqttMessageBuilders.publish()
+                                   .topicName(topic)
+                                   .retained(retained)
+                                   .qos(MqttQoS.AT_LEAST_ONCE)
+                                   .payload(Unpooled.wrappedBuffer(payload))
+                                   .build(),
+                clientId
+        );
+    }
+
+    @Override
+    public void close() {
+        server.stopServer();
+    }
+
+    private class PublishInterceptHandler extends AbstractInterceptHandler {
+        @Override
+        public String getID() {
+            return clientId;
+        }
+
+        @Override
+        public void onPublish(InterceptPublishMessage message) {
+            final ByteBuf payloadBuffer = message.getPayload();
+            try {
+                externalMessageHandler.onMessage(message.getTopicName(), ByteBufUtil.getBytes(payloadBuffer), NO_ACKNOWLEDGEMENT);
+            } catch (Exception e) {
+                LOGGER.error(e.getMessage(), e);
+            } finally {
+                ReferenceCountUtil.release(payloadBuffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.mqtt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Serial command queue of a single device, processed outside the MQTT callback thread.
+ * Commands that arrive while the previous one is being processed are coalesced, only the latest one is applied.
+ *
+ * @param <R> command result type
+ */
+public class MqttCommandQueue<R> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MqttCommandQueue.class);
+
+    private final AtomicReference<byte[]> pendingPayload = new AtomicReference<>();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private final Executor executor;
+
+    private final Function<byte[], R> command;
+
+    private final Consumer<R> onApplied;
+
+    public MqttCommandQueue(Executor executor, Function<byte[], R> command) {
+        this(executor, command, ignored -> {
+        });
+    }
+
+    /**
+     * @param onApplied called with the result of the last applied command, skipped when a newer command is already pending
+     */
+    public MqttCommandQueue(Executor executor, Function<byte[], R> command, Consumer<R> onApplied) {
+        this.executor = executor;
+        this.command = command;
+        this.onApplied = onApplied;
+    }
+
+    public void submit(byte[] payload) {
+        if (pendingPayload.getAndSet(payload) != null) {
+            coalescedCount.incrementAndGet();
+        }
+
+        schedule();
+    }
+
+    private void schedule() {
+        if (running.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            byte[] payload;
+            while ((payload = pendingPayload.getAndSet(null)) != null) {
+                try {
+                    final R result = command.apply(payload);
+                    if (pendingPayload.get() == null) {
+                        onApplied.accept(result);
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.error(e.getMessage(), e);
+                }
+            }
+        } finally {
+            running.set(false);
+        }
+
+        // command submitted after the loop ended, but before the running flag was cleared
+        if (pendingPayload.get() != null) {
+            schedule();
+        }
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.mqtt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.psobiech.opengr8on.exceptions.UnexpectedException;
+import pl.psobiech.opengr8on.util.IOUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded, memory-mapped journal of outbound messages (the latest message per topic),
+ * that could not be sent while the client was disconnected. The journal survives restarts of the VCLU.
+ */
+public class MqttOutboundJournal implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MqttOutboundJournal.class);
+
+    private static final int MAGIC = 0x4d514a31; // MQJ1
+
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+
+    private static final int WRITE_POSITION_OFFSET = Integer.BYTES;
+
+    private static final int RECORD_OVERHEAD = Short.BYTES + 1 + Integer.BYTES;
+
+    private static final byte FLAG_RETAINED = 1;
+
+    private final FileChannel fileChannel;
+
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Position of the latest record of each topic (in the order of the latest write)
+     */
+    private final Map<String, Integer> recordPositions = new LinkedHashMap<>();
+
+    private int writePosition;
+
+    private long droppedCount;
+
+    public MqttOutboundJournal(Path path, int capacity) {
+        try {
+            this.fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+
+        load();
+    }
+
+    private void load() {
+        writePosition = HEADER_SIZE;
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(WRITE_POSITION_OFFSET, writePosition);
+
+            return;
+        }
+
+        final int storedWritePosition = Math.min(buffer.getInt(WRITE_POSITION_OFFSET), buffer.capacity());
+        int position = HEADER_SIZE;
+        try {
+            while (position < storedWritePosition) {
+                final Message message = read(position);
+                final int nextPosition = position + recordSize(message.topic().getBytes(StandardCharsets.UTF_8), message.payload());
+                if (nextPosition > storedWritePosition) {
+                    break;
+                }
+
+                recordPositions.remove(message.topic());
+                recordPositions.put(message.topic(), position);
+
+                position = nextPosition;
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            LOGGER.warn("MQTT outbound journal is corrupted at position {}, ignoring the remaining records", position);
+        }
+
+        writePosition = position;
+        buffer.putInt(WRITE_POSITION_OFFSET, writePosition);
+    }
+
+    /**
+     * Stores the message, replacing any previously stored message of the same topic
+     *
+     * @return false, if the journal is full
+     */
+    public synchronized boolean write(String topic, byte[] payload, boolean retained) {
+        final byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        final int recordSize = recordSize(topicBytes, payload);
+        if (writePosition + recordSize > buffer.capacity()) {
+            compact();
+
+            if (writePosition + recordSize > buffer.capacity()) {
+                droppedCount++;
+                LOGGER.warn("MQTT outbound journal is full, dropped message for topic {}", topic);
+
+                return false;
+            }
+        }
+
+        recordPositions.remove(topic);
+        append(topic, topicBytes, payload, retained);
+        buffer.putInt(WRITE_POSITION_OFFSET, writePosition);
+
+        return true;
+    }
+
+    /**
+     * Rewrites the latest records of all topics at the beginning of the journal, discarding superseded records
+     */
+    private void compact() {
+        final List<Message> messages = messages();
+
+        recordPositions.clear();
+        writePosition = HEADER_SIZE;
+        for (Message message : messages) {
+            append(message.topic(), message.topic().getBytes(StandardCharsets.UTF_8), message.payload(), message.retained());
+        }
+
+        buffer.putInt(WRITE_POSITION_OFFSET, writePosition);
+    }
+
+    private void append(String topic, byte[] topicBytes, byte[] payload, boolean retained) {
+        final int position = writePosition;
+
+        buffer.position(position);
+        buffer.putShort((short) topicBytes.length);
+        buffer.put(topicBytes);
+        buffer.put(retained ? FLAG_RETAINED : 0);
+        buffer.putInt(payload.length);
+        buffer.put(payload);
+
+        recordPositions.put(topic, position);
+        writePosition = position + recordSize(topicBytes, payload);
+    }
+
+    /**
+     * @return the latest stored message of every topic (in the order of the latest write), the journal is cleared
+     */
+    public synchronized List<Message> drain() {
+        final List<Message> messages = messages();
+
+        recordPositions.clear();
+        writePosition = HEADER_SIZE;
+        buffer.putInt(WRITE_POSITION_OFFSET, writePosition);
+
+        return messages;
+    }
+
+    private List<Message> messages() {
+        final List<Message> messages = new ArrayList<>(recordPositions.size());
+        for (int position : recordPositions.values()) {
+            messages.add(read(position));
+        }
+
+        return messages;
+    }
+
+    private Message read(int position) {
+        final int topicLength = Short.toUnsignedInt(buffer.getShort(position));
+        if (topicLength == 0) {
+            throw new IllegalArgumentException("Empty topic");
+        }
+
+        final byte[] topicBytes = new byte[topicLength];
+        buffer.get(position + Short.BYTES, topicBytes);
+
+        final int flagsPosition = position + Short.BYTES + topicLength;
+        final boolean retained = (buffer.get(flagsPosition) & FLAG_RETAINED) != 0;
+
+        final int payloadLength = buffer.getInt(flagsPosition + 1);
+        if (payloadLength < 0) {
+            throw new IllegalArgumentException("Negative payload length");
+        }
+
+        final byte[] payload = new byte[payloadLength];
+        buffer.get(flagsPosition + 1 + Integer.BYTES, payload);
+
+        return new Message(new String(topicBytes, StandardCharsets.UTF_8), payload, retained);
+    }
+
+    private static int recordSize(byte[] topicBytes, byte[] payload) {
+        return RECORD_OVERHEAD + topicBytes.length + payload.length;
+    }
+
+    /**
+     * @return topics with a stored message
+     */
+    public synchronized Set<String> getTopics() {
+        return new HashSet<>(recordPositions.keySet());
+    }
+
+    public synchronized int size() {
+        return recordPositions.size();
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    @Override
+    public synchronized void close() {
+        buffer.force();
+
+        IOUtil.closeQuietly(fileChannel);
+    }
+
+    public record Message(String topic, byte[] payload, boolean retained) {
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.psobiech.opengr8on.util.ThreadUtil;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded outbound MQTT queue, drained asynchronously within the in-flight window of the client (while connected).
+ * Messages are sent in FIFO order, only messages explicitly offered as coalescible (e.g. state updates) are coalesced per topic
+ * (only the latest value of a pending topic is sent).
+ */
+public class MqttOutboundQueue implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MqttOutboundQueue.class);
+
+    private static final long RETRY_DELAY_MILLIS = 10L;
+
+    private final ExecutorService executor = ThreadUtil.virtualExecutor("MQTTOutbound");
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition connectedCondition = lock.newCondition();
+
+    private final Deque<Message> queue = new ArrayDeque<>();
+
+    private final Map<String, Message> pendingByTopic = new HashMap<>();
+
+    private final AtomicLong publishedCount = new AtomicLong();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    private final int capacity;
+
+    private final Semaphore inFlight;
+
+    private boolean connected;
+
+    /**
+     * Incremented on every connection change, to detect a connection change during a publication
+     */
+    private long connectionGeneration;
+
+    private final Publisher publisher;
+
+    public MqttOutboundQueue(int maxInFlight, int capacity, Publisher publisher) {
+        this.capacity = capacity;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.publisher = publisher;
+
+        executor.submit(this::drain);
+    }
+
+    /**
+     * Messages are published only while connected, the queue starts disconnected
+     */
+    public void setConnected(boolean connected) {
+        lock.lock();
+        try {
+            this.connected = connected;
+            connectionGeneration++;
+
+            if (connected) {
+                connectedCondition.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param coalesce true, if the message may replace the payload of a pending coalescible message of the same topic
+     * @return true, if the message was queued (or coalesced with a pending message of the same topic), false if it was dropped
+     */
+    public boolean offer(String topic, byte[] payload, boolean retained, boolean coalesce) {
+        final long enqueuedAt = System.nanoTime();
+
+        lock.lock();
+        try {
+            if (coalesce) {
+                final Message pendingMessage = pendingByTopic.get(topic);
+                if (pendingMessage != null) {
+                    pendingMessage.payload = payload;
+                    pendingMessage.enqueuedAt = enqueuedAt;
+                    coalescedCount.incrementAndGet();
+
+                    return true;
+                }
+            }
+
+            if (queue.size() >= capacity) {
+                droppedCount.incrementAndGet();
+                LOGGER.warn("MQTT outbound queue is full, dropped message for topic {}", topic);
+
+                return false;
+            }
+
+            final Message message = new Message(topic, payload, retained, coalesce, enqueuedAt);
+            queue.addLast(message);
+            if (coalesce) {
+                pendingByTopic.put(topic, message);
+            }
+
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        return true;
+    }
+
+    private void drain() {
+        try {
+            while (!Thread.interrupted()) {
+                inFlight.acquire();
+
+                final long generation = awaitConnected();
+                final Message message = take();
+                try {
+                    publisher.publish(message.topic, message.payload, message.retained, new DeliveryListener(message));
+                } catch (MqttException e) {
+                    inFlight.release();
+
+                    final int reasonCode = e.getReasonCode();
+                    if (reasonCode == MqttException.REASON_CODE_MAX_INFLIGHT) {
+                        requeue(message);
+
+                        Thread.sleep(RETRY_DELAY_MILLIS);
+                    } else if (isConnectionError(reasonCode)) {
+                        requeue(message);
+
+                        // wait for the connection callback
+                        onDisconnected(generation);
+                    } else {
+                        droppedCount.incrementAndGet();
+                        LOGGER.error("Could not publish message for topic {}", message.topic, e);
+                    }
+                } catch (RuntimeException e) {
+                    inFlight.release();
+
+                    droppedCount.incrementAndGet();
+                    LOGGER.error("Could not publish message for topic {}", message.topic, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean isConnectionError(int reasonCode) {
+        return reasonCode == MqttException.REASON_CODE_CLIENT_NOT_CONNECTED
+               || reasonCode == MqttException.REASON_CODE_CONNECTION_LOST;
+    }
+
+    /**
+     * @return generation of the current connection
+     */
+    private long awaitConnected() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!connected) {
+                connectedCondition.await();
+            }
+
+            return connectionGeneration;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Parks the drainer until the next connection change, unless the connection has changed since the publication started
+     */
+    private void onDisconnected(long generation) {
+        lock.lock();
+        try {
+            if (connectionGeneration == generation) {
+                connected = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Message take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty()) {
+                notEmpty.await();
+            }
+
+            final Message message = queue.removeFirst();
+            if (message.coalesce) {
+                pendingByTopic.remove(message.topic);
+            }
+
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void requeue(Message message) {
+        lock.lock();
+        try {
+            if (message.coalesce) {
+                if (pendingByTopic.containsKey(message.topic)) {
+                    // a newer value is already pending
+                    coalescedCount.incrementAndGet();
+
+                    return;
+                }
+
+                pendingByTopic.put(message.topic, message);
+            }
+
+            queue.addFirst(message);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onDelivered(Message message) {
+        inFlight.release();
+
+        final long latencyNanos = System.nanoTime() - message.enqueuedAt;
+        publishedCount.incrementAndGet();
+        totalLatencyNanos.addAndGet(latencyNanos);
+        maxLatencyNanos.accumulateAndGet(latencyNanos, Math::max);
+    }
+
+    private void onFailed(Message message, Throwable throwable) {
+        inFlight.release();
+
+        if (throwable instanceof MqttException e && isConnectionError(e.getReasonCode())) {
+            // the connection was lost while the message was in flight, it is sent again after reconnecting (or journaled until then)
+            LOGGER.debug("Connection lost while delivering message for topic {}, requeueing", message.topic);
+
+            requeue(message);
+
+            return;
+        }
+
+        droppedCount.incrementAndGet();
+        LOGGER.error("Could not deliver message for topic {}", message.topic, throwable);
+    }
+
+    /**
+     * Moves the queued messages into the journal (in the queue order), skipping topics that already have a newer journaled message
+     *
+     * @return number of journaled messages
+     */
+    public int drainTo(MqttOutboundJournal journal) {
+        lock.lock();
+        try {
+            final Set<String> journaledTopics = journal.getTopics();
+
+            int journaledCount = 0;
+            for (Message message : queue) {
+                if (journaledTopics.contains(message.topic)) {
+                    coalescedCount.incrementAndGet();
+                } else if (journal.write(message.topic, message.payload, message.retained)) {
+                    journaledCount++;
+                } else {
+                    droppedCount.incrementAndGet();
+                }
+            }
+
+            queue.clear();
+            pendingByTopic.clear();
+
+            return journaledCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRemainingCapacity() {
+        lock.lock();
+        try {
+            return Math.max(0, capacity - queue.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Metrics getMetrics() {
+        final int queueDepth;
+        lock.lock();
+        try {
+            queueDepth = queue.size();
+        } finally {
+            lock.unlock();
+        }
+
+        final long published = publishedCount.get();
+
+        return new Metrics(
+                queueDepth,
+                coalescedCount.get(), droppedCount.get(), published,
+                published == 0 ? 0L : TimeUnit.NANOSECONDS.toMillis(totalLatencyNanos.get() / published),
+                TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get())
+        );
+    }
+
+    @Override
+    public void close() {
+        ThreadUtil.closeQuietly(executor);
+    }
+
+    /**
+     * @param queueDepth number of messages waiting to be published
+     * @param coalescedCount number of messages replaced by a newer value of the same topic
+     * @param droppedCount number of messages that could not be queued or delivered
+     * @param publishedCount number of delivered messages
+     * @param averageLatencyMillis average time between queueing and delivery of a message
+     * @param maxLatencyMillis maximum time between queueing and delivery of a message
+     */
+    public record Metrics(
+            int queueDepth,
+            long coalescedCount, long droppedCount, long publishedCount,
+            long averageLatencyMillis, long maxLatencyMillis
+    ) {
+    }
+
+    @FunctionalInterface
+    public interface Publisher {
+        void publish(String topic, byte[] payload, boolean retained, IMqttActionListener listener) throws MqttException;
+    }
+
+    private static class Message {
+        private final String topic;
+
+        private final boolean retained;
+
+        private final boolean coalesce;
+
+        private byte[] payload;
+
+        private long enqueuedAt;
+
+        private Message(String topic, byte[] payload, boolean retained, boolean coalesce, long enqueuedAt) {
+            this.topic = topic;
+            this.payload = payload;
+            this.retained = retained;
+            this.coalesce = coalesce;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private class DeliveryListener implements IMqttActionListener {
+        private final Message message;
+
+        private DeliveryListener(Message message) {
+            this.message = message;
+        }
+
+        @Override
+        public void onSuccess(IMqttToken asyncActionToken) {
+            onDelivered(message);
+        }
+
+        @Override
+        public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+            onFailed(message, exception);
+        }
+    }
+}
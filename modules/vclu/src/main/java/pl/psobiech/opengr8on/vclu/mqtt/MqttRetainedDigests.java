@@ -0,0 +1,181 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.mqtt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.psobiech.opengr8on.exceptions.UnexpectedException;
+import pl.psobiech.opengr8on.util.FileUtil;
+import pl.psobiech.opengr8on.util.ObjectMapperFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Digests of retained payloads by topic: delivered to the broker (persisted, so that unchanged retained messages are not
+ * republished after a restart) and pending delivery (kept in memory only).
+ */
+public class MqttRetainedDigests implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MqttRetainedDigests.class);
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private final Path path;
+
+    private final Map<String, byte[]> pendingDigests = new HashMap<>();
+
+    private final Map<String, byte[]> deliveredDigests = new HashMap<>();
+
+    private byte[] serverDigest;
+
+    private boolean dirty;
+
+    /**
+     * @param path file of the delivered digests, null if the digests should not be persisted
+     */
+    public MqttRetainedDigests(Path path) {
+        this.path = path;
+
+        load();
+    }
+
+    private void load() {
+        if (path == null || !Files.exists(path) || FileUtil.size(path) == 0) {
+            return;
+        }
+
+        try {
+            final Snapshot snapshot = ObjectMapperFactory.JSON.readValue(path.toFile(), Snapshot.class);
+
+            serverDigest = snapshot.server();
+            deliveredDigests.putAll(snapshot.digests());
+        } catch (IOException e) {
+            // messages will be republished
+            LOGGER.warn("Ignoring unreadable retained message digests {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * Digests of a different server are discarded (the broker does not have those retained messages)
+     */
+    public synchronized void setServer(String serverUrl) {
+        final byte[] digest = digest(serverUrl.getBytes(StandardCharsets.UTF_8));
+        if (serverDigest != null && MessageDigest.isEqual(serverDigest, digest)) {
+            return;
+        }
+
+        serverDigest = digest;
+        pendingDigests.clear();
+        deliveredDigests.clear();
+        dirty = true;
+    }
+
+    /**
+     * @return true, if the payload differs from the latest pending (or delivered) payload of the topic (the payload becomes pending)
+     */
+    public synchronized boolean markPending(String topic, byte[] payload) {
+        final byte[] digest = digest(payload);
+        final byte[] previousDigest = pendingDigests.getOrDefault(topic, deliveredDigests.get(topic));
+        if (previousDigest != null && MessageDigest.isEqual(previousDigest, digest)) {
+            return false;
+        }
+
+        pendingDigests.put(topic, digest);
+
+        return true;
+    }
+
+    public synchronized void onDelivered(String topic, byte[] payload) {
+        final byte[] digest = digest(payload);
+
+        deliveredDigests.put(topic, digest);
+        removePending(topic, digest);
+        dirty = true;
+    }
+
+    public synchronized void onFailed(String topic, byte[] payload) {
+        removePending(topic, digest(payload));
+    }
+
+    private void removePending(String topic, byte[] digest) {
+        final byte[] pendingDigest = pendingDigests.get(topic);
+        if (pendingDigest != null && MessageDigest.isEqual(pendingDigest, digest)) {
+            pendingDigests.remove(topic);
+        }
+    }
+
+    /**
+     * Writes the delivered digests (if changed), the previous file is replaced atomically
+     */
+    public synchronized void flush() {
+        if (path == null || !dirty) {
+            return;
+        }
+
+        final Path temporaryPath = FileUtil.temporaryFile(path.getParent());
+        try {
+            try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                final ByteBuffer buffer = ByteBuffer.wrap(ObjectMapperFactory.JSON.writeValueAsBytes(new Snapshot(serverDigest, deliveredDigests)));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.error("Could not write retained message digests {}", path, e);
+        } finally {
+            FileUtil.deleteQuietly(temporaryPath);
+        }
+    }
+
+    private static byte[] digest(byte[] payload) {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM)
+                                .digest(payload);
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    /**
+     * @param server  digest of the server URL
+     * @param digests digests of the delivered payloads, by topic
+     */
+    private record Snapshot(byte[] server, Map<String, byte[]> digests) {
+    }
+}
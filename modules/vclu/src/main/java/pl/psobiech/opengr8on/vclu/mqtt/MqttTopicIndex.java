@@ -0,0 +1,186 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.mqtt;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Subscription index, a trie of topic filter levels (supporting the single level {@code +} and multi level {@code #} wildcards).
+ * Matching a topic visits only the matching branches, so it depends on the topic depth and not on the number of filters.
+ */
+public class MqttTopicIndex<T> {
+    private static final String LEVEL_SEPARATOR = "/";
+
+    private static final String SINGLE_LEVEL_WILDCARD = "+";
+
+    private static final String MULTI_LEVEL_WILDCARD = "#";
+
+    private static final String SYSTEM_TOPIC_PREFIX = "$";
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Node<T> root = new Node<>();
+
+    private final Map<String, Set<T>> subscribersByFilter = new HashMap<>();
+
+    /**
+     * @return true, if this is the first subscriber of the topic filter
+     */
+    public boolean add(String topicFilter, T subscriber) {
+        lock.writeLock().lock();
+        try {
+            Node<T> node = root;
+            for (String level : levels(topicFilter)) {
+                node = node.children.computeIfAbsent(level, ignored -> new Node<>());
+            }
+            node.subscribers.add(subscriber);
+
+            final Set<T> subscribers = subscribersByFilter.computeIfAbsent(topicFilter, ignored -> new LinkedHashSet<>());
+            final boolean first = subscribers.isEmpty();
+            subscribers.add(subscriber);
+
+            return first;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true, if this was the last subscriber of the topic filter
+     */
+    public boolean remove(String topicFilter, T subscriber) {
+        lock.writeLock().lock();
+        try {
+            final Set<T> subscribers = subscribersByFilter.get(topicFilter);
+            if (subscribers == null || !subscribers.remove(subscriber)) {
+                return false;
+            }
+
+            remove(root, levels(topicFilter), 0, subscriber);
+            if (!subscribers.isEmpty()) {
+                return false;
+            }
+
+            subscribersByFilter.remove(topicFilter);
+
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static <T> boolean remove(Node<T> node, String[] levels, int index, T subscriber) {
+        if (index == levels.length) {
+            node.subscribers.remove(subscriber);
+        } else {
+            final String level = levels[index];
+            final Node<T> child = node.children.get(level);
+            if (child != null && remove(child, levels, index + 1, subscriber)) {
+                node.children.remove(level);
+            }
+        }
+
+        return node.isEmpty();
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            root.children.clear();
+            root.subscribers.clear();
+            subscribersByFilter.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return subscribers of all topic filters matching the topic (each subscriber is returned once)
+     */
+    public Set<T> match(String topic) {
+        final Set<T> subscribers = new LinkedHashSet<>();
+
+        lock.readLock().lock();
+        try {
+            match(root, levels(topic), 0, subscribers);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return subscribers;
+    }
+
+    private static <T> void match(Node<T> node, String[] levels, int index, Set<T> subscribers) {
+        // wildcards do not match topics starting with $ (e.g. $SYS)
+        final boolean wildcardsAllowed = index > 0 || !levels[0].startsWith(SYSTEM_TOPIC_PREFIX);
+        if (wildcardsAllowed) {
+            // "a/#" matches also "a"
+            final Node<T> multiLevelNode = node.children.get(MULTI_LEVEL_WILDCARD);
+            if (multiLevelNode != null) {
+                subscribers.addAll(multiLevelNode.subscribers);
+            }
+        }
+
+        if (index == levels.length) {
+            subscribers.addAll(node.subscribers);
+
+            return;
+        }
+
+        final Node<T> child = node.children.get(levels[index]);
+        if (child != null) {
+            match(child, levels, index + 1, subscribers);
+        }
+
+        if (wildcardsAllowed) {
+            final Node<T> singleLevelNode = node.children.get(SINGLE_LEVEL_WILDCARD);
+            if (singleLevelNode != null) {
+                match(singleLevelNode, levels, index + 1, subscribers);
+            }
+        }
+    }
+
+    public Set<String> getTopicFilters() {
+        lock.readLock().lock();
+        try {
+            return Set.copyOf(subscribersByFilter.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static String[] levels(String topic) {
+        return topic.split(LEVEL_SEPARATOR, -1);
+    }
+
+    private static class Node<T> {
+        private final Map<String, Node<T>> children = new HashMap<>(4);
+
+        private final Set<T> subscribers = new LinkedHashSet<>(2);
+
+        private boolean isEmpty() {
+            return children.isEmpty() && subscribers.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.psobiech.opengr8on.exceptions.UnexpectedException;
+import pl.psobiech.opengr8on.util.FileUtil;
+import pl.psobiech.opengr8on.util.IOUtil;
+import pl.psobiech.opengr8on.util.ObjectMapperFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Snapshot (JSON object) and an append-only change log (one JSON object per line). Changes are appended to the log,
+ * once the log grows over the threshold it is compacted into a new snapshot (of the values provided by the owner),
+ * that replaces the previous one atomically.
+ */
+public class StorageLog implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StorageLog.class);
+
+    private static final byte NEW_LINE = '\n';
+
+    private final Path snapshotPath;
+
+    private final Path logPath;
+
+    private final long compactionThresholdBytes;
+
+    private final Supplier<Map<String, Object>> valuesSupplier;
+
+    private FileChannel logChannel;
+
+    /**
+     * @param valuesSupplier current values (the restored values, with all appended changes applied), to be written into the snapshot
+     */
+    public StorageLog(Path snapshotPath, Path logPath, long compactionThresholdBytes, Supplier<Map<String, Object>> valuesSupplier) {
+        this.snapshotPath = snapshotPath;
+        this.logPath = logPath;
+        this.compactionThresholdBytes = compactionThresholdBytes;
+        this.valuesSupplier = valuesSupplier;
+    }
+
+    /**
+     * @return values of the snapshot, with the changes from the log applied (corrupted entries are skipped)
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Map<String, Object> restore() {
+        final Map<String, Object> values = new HashMap<>();
+
+        try {
+            if (Files.exists(snapshotPath) && FileUtil.size(snapshotPath) > 0) {
+                values.putAll(ObjectMapperFactory.JSON.readValue(snapshotPath.toFile(), HashMap.class));
+            }
+
+            boolean complete = true;
+            if (Files.exists(logPath)) {
+                final List<String> lines = Files.readAllLines(logPath, StandardCharsets.UTF_8);
+                for (int i = 0; i < lines.size(); i++) {
+                    final String line = lines.get(i);
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+
+                    try {
+                        values.putAll(ObjectMapperFactory.JSON.readValue(line, HashMap.class));
+                    } catch (JsonProcessingException e) {
+                        complete = false;
+
+                        if (i == lines.size() - 1) {
+                            // the last change was not fully written
+                            LOGGER.warn("Ignoring incomplete storage log entry: {}", e.getMessage());
+                        } else {
+                            LOGGER.error("Skipping corrupted storage log entry at line {}: {}", i + 1, line, e);
+                        }
+                    }
+                }
+            }
+
+            openLog();
+            if (!complete) {
+                compact(values);
+            }
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+
+        return values;
+    }
+
+    /**
+     * Appends the changed values to the log (and compacts the log, when it grows over the threshold)
+     */
+    public synchronized void append(Map<String, Object> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        try {
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                outputStream.write(ObjectMapperFactory.JSON.writeValueAsBytes(Collections.singletonMap(entry.getKey(), entry.getValue())));
+                outputStream.write(NEW_LINE);
+            }
+
+            final FileChannel channel = openLog();
+            final ByteBuffer buffer = ByteBuffer.wrap(outputStream.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+
+            if (channel.size() > compactionThresholdBytes) {
+                compact(valuesSupplier.get());
+            }
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    /**
+     * Removes all values (empty snapshot and log)
+     */
+    public synchronized void erase() {
+        try {
+            compact(Collections.emptyMap());
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    /**
+     * Writes the values into a new snapshot, that atomically replaces the previous one, and truncates the log
+     */
+    private void compact(Map<String, Object> values) throws IOException {
+        final Path temporaryPath = FileUtil.temporaryFile(snapshotPath.getParent());
+        try {
+            try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                final ByteBuffer buffer = ByteBuffer.wrap(ObjectMapperFactory.JSON.writeValueAsBytes(values));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+
+            Files.move(temporaryPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            FileUtil.deleteQuietly(temporaryPath);
+        }
+
+        // replaying the log over the new snapshot is harmless, so the log is truncated only after the snapshot is in place
+        final FileChannel channel = openLog();
+        channel.truncate(0);
+        channel.force(true);
+
+        LOGGER.debug("Storage compacted into {} ({} values)", snapshotPath, values.size());
+    }
+
+    private FileChannel openLog() throws IOException {
+        if (logChannel == null) {
+            logChannel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        return logChannel;
+    }
+
+    @Override
+    public synchronized void close() {
+        IOUtil.closeQuietly(logChannel);
+        logChannel = null;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system;
+
+import pl.psobiech.opengr8on.util.IOUtil;
+import pl.psobiech.opengr8on.util.ThreadUtil;
+
+import java.io.Closeable;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.Inet4Address;
+import java.net.ProxySelector;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Version;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * HttpClients shared by all HttpRequest objects, so that connections (and HTTP/2 streams) are reused between objects with the same settings
+ */
+public class HttpClientPool implements Closeable {
+    private final ExecutorService executor = ThreadUtil.virtualExecutor("HttpClientPool");
+
+    private final Map<Key, HttpClient> clients = new ConcurrentHashMap<>();
+
+    /**
+     * @return client bound to the local address, created on first use
+     */
+    public HttpClient get(Inet4Address localAddress, Duration connectTimeout, Version version) {
+        return clients.computeIfAbsent(
+                new Key(localAddress, connectTimeout, version),
+                key -> HttpClient.newBuilder()
+                                 .localAddress(key.localAddress())
+                                 .proxy(ProxySelector.getDefault())
+                                 .cookieHandler(new CookieManager(null, CookiePolicy.ACCEPT_NONE))
+                                 .connectTimeout(key.connectTimeout())
+                                 .executor(executor)
+                                 .version(key.version())
+                                 .build()
+        );
+    }
+
+    @Override
+    public void close() {
+        IOUtil.closeQuietly(clients.values());
+        clients.clear();
+
+        ThreadUtil.closeQuietly(executor);
+    }
+
+    private record Key(Inet4Address localAddress, Duration connectTimeout, Version version) {
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.psobiech.opengr8on.exceptions.UnexpectedException;
+import pl.psobiech.opengr8on.util.IOUtil;
+import pl.psobiech.opengr8on.util.ThreadUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single HTTP server shared by all HttpListener objects of the VCLU. Requests are routed to the listener with the longest matching path prefix, every route
+ * has a bounded number of pending requests (requests above the limit are rejected with 503 Service Unavailable).
+ * Routes of the same path are stacked, the latest registered route handles the requests, until it is closed.
+ */
+public class HttpListenerServer implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpListenerServer.class);
+
+    private static final int STOP_DELAY_SECONDS = 1;
+
+    private static final String PATH_SEPARATOR = "/";
+
+    private static final int NO_RESPONSE_BODY = -1;
+
+    public static final int STATUS_NOT_FOUND = 404;
+
+    public static final int STATUS_INTERNAL_SERVER_ERROR = 500;
+
+    public static final int STATUS_SERVICE_UNAVAILABLE = 503;
+
+    private final ExecutorService executor = ThreadUtil.virtualExecutor("HttpListenerServer");
+
+    /**
+     * Routes (stacked per path, the latest registered last) sorted in reverse order, so that longer paths are checked before their prefixes
+     */
+    private final Map<String, Deque<Route>> routes = new ConcurrentSkipListMap<>(Comparator.reverseOrder());
+
+    private final HttpServer httpServer;
+
+    public HttpListenerServer(InetSocketAddress address) {
+        try {
+            this.httpServer = HttpServer.create(address, 0);
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+
+        this.httpServer.createContext(PATH_SEPARATOR, this::onExchange);
+        this.httpServer.setExecutor(executor);
+        this.httpServer.start();
+    }
+
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    /**
+     * @param path route path prefix (empty or "/" matches every request)
+     * @param queueCapacity maximum number of requests pending a response
+     * @return registered route, closing the route unregisters it
+     */
+    public Route register(String path, int queueCapacity, RequestHandler handler) {
+        final Route route = new Route(normalize(path), queueCapacity, handler);
+
+        routes.compute(route.path, (ignored, pathRoutes) -> {
+            final Deque<Route> newPathRoutes = pathRoutes == null ? new ConcurrentLinkedDeque<>() : pathRoutes;
+            if (!newPathRoutes.isEmpty()) {
+                LOGGER.warn("HTTP route {} was already registered, shadowing the previous route until this one is closed", route.path);
+            }
+
+            newPathRoutes.addLast(route);
+
+            return newPathRoutes;
+        });
+
+        return route;
+    }
+
+    private void onExchange(HttpExchange exchange) {
+        final Route route = findRoute(exchange.getRequestURI());
+        if (route == null) {
+            respondQuietly(exchange, STATUS_NOT_FOUND);
+
+            return;
+        }
+
+        if (!route.permits.tryAcquire()) {
+            LOGGER.warn("HTTP route {} queue is full, rejecting request", route.path);
+
+            respondQuietly(exchange, STATUS_SERVICE_UNAVAILABLE);
+
+            return;
+        }
+
+        final Request request = new Request(route, exchange);
+        try {
+            route.handler.handle(request);
+        } catch (Exception e) {
+            LOGGER.error(e.getMessage(), e);
+
+            request.respond(STATUS_INTERNAL_SERVER_ERROR, Map.of(), null);
+        }
+    }
+
+    private Route findRoute(URI uri) {
+        final String path = normalize(uri.getPath());
+        for (Deque<Route> pathRoutes : routes.values()) {
+            final Route route = pathRoutes.peekLast();
+            if (route != null && route.matches(path)) {
+                return route;
+            }
+        }
+
+        return null;
+    }
+
+    private static String normalize(String path) {
+        if (path == null || path.isEmpty() || path.equals(PATH_SEPARATOR)) {
+            return "";
+        }
+
+        final String pathWithSeparator = path.startsWith(PATH_SEPARATOR) ? path : PATH_SEPARATOR + path;
+        if (pathWithSeparator.endsWith(PATH_SEPARATOR)) {
+            return pathWithSeparator.substring(0, pathWithSeparator.length() - 1);
+        }
+
+        return pathWithSeparator;
+    }
+
+    private static void respondQuietly(HttpExchange exchange, int statusCode) {
+        try {
+            exchange.sendResponseHeaders(statusCode, NO_RESPONSE_BODY);
+        } catch (IOException e) {
+            LOGGER.debug(e.getMessage(), e);
+        } finally {
+            IOUtil.closeQuietly(exchange);
+        }
+    }
+
+    @Override
+    public void close() {
+        routes.clear();
+
+        httpServer.stop(STOP_DELAY_SECONDS);
+        ThreadUtil.closeQuietly(executor);
+    }
+
+    @FunctionalInterface
+    public interface RequestHandler {
+        /**
+         * Handles the request, the response can be sent later (from any thread)
+         */
+        void handle(Request request) throws Exception;
+    }
+
+    public class Route implements Closeable {
+        private final String path;
+
+        private final Semaphore permits;
+
+        private final RequestHandler handler;
+
+        private Route(String path, int queueCapacity, RequestHandler handler) {
+            this.path = path;
+            this.permits = new Semaphore(queueCapacity);
+            this.handler = handler;
+        }
+
+        private boolean matches(String requestPath) {
+            return path.isEmpty()
+                   || requestPath.equals(path)
+                   || (requestPath.startsWith(path) && requestPath.startsWith(PATH_SEPARATOR, path.length()));
+        }
+
+        /**
+         * Unregisters the route, the previously registered route of the same path (if any) handles the following requests
+         */
+        @Override
+        public void close() {
+            routes.computeIfPresent(path, (ignored, pathRoutes) -> {
+                pathRoutes.remove(this);
+
+                return pathRoutes.isEmpty() ? null : pathRoutes;
+            });
+        }
+    }
+
+    /**
+     * Single request routed to a handler, responding completes the exchange (the connection is kept alive, when the client allows it)
+     */
+    public static class Request {
+        private final Route route;
+
+        private final HttpExchange exchange;
+
+        private final AtomicBoolean responded = new AtomicBoolean();
+
+        private Request(Route route, HttpExchange exchange) {
+            this.route = route;
+            this.exchange = exchange;
+        }
+
+        public String getMethod() {
+            return exchange.getRequestMethod();
+        }
+
+        public URI getUri() {
+            return exchange.getRequestURI();
+        }
+
+        public Headers getHeaders() {
+            return exchange.getRequestHeaders();
+        }
+
+        public byte[] readBody() throws IOException {
+            return exchange.getRequestBody().readAllBytes();
+        }
+
+        public boolean isResponded() {
+            return responded.get();
+        }
+
+        /**
+         * Sends the response, only the first call has any effect
+         *
+         * @return true, if the response was sent by this call
+         */
+        public boolean respond(int statusCode, Map<String, String> headers, byte[] body) {
+            if (!responded.compareAndSet(false, true)) {
+                return false;
+            }
+
+            try {
+                final Headers responseHeaders = exchange.getResponseHeaders();
+                for (Entry<String, String> entry : headers.entrySet()) {
+                    responseHeaders.add(entry.getKey(), entry.getValue());
+                }
+
+                if (body == null || body.length == 0) {
+                    exchange.sendResponseHeaders(statusCode, NO_RESPONSE_BODY);
+                } else {
+                    exchange.sendResponseHeaders(statusCode, body.length);
+                    try (OutputStream outputStream = exchange.getResponseBody()) {
+                        outputStream.write(body);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.warn(e.getMessage(), e);
+            } finally {
+                IOUtil.closeQuietly(exchange);
+
+                route.permits.release();
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system;
+
+import pl.psobiech.opengr8on.util.FileUtil;
+import pl.psobiech.opengr8on.util.IOUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Subscription;
+
+/**
+ * HTTP response body, kept in memory up to the configured size and written to a temporary file only above it. Closing removes the temporary file.
+ */
+public class HttpResponseBody implements Closeable {
+    private final byte[] bytes;
+
+    private final Path path;
+
+    private final long size;
+
+    private HttpResponseBody(byte[] bytes, Path path, long size) {
+        this.bytes = bytes;
+        this.path = path;
+        this.size = size;
+    }
+
+    /**
+     * @param maxInMemoryBytes bodies larger than this are written to a temporary file
+     */
+    public static BodyHandler<HttpResponseBody> handler(long maxInMemoryBytes) {
+        return responseInfo -> new Subscriber(maxInMemoryBytes);
+    }
+
+    /**
+     * @return body backed by the provided bytes
+     */
+    public static HttpResponseBody of(byte[] bytes) {
+        return new HttpResponseBody(bytes, null, bytes.length);
+    }
+
+    /**
+     * @return body bytes, only available if the body is kept in memory
+     */
+    public Optional<byte[]> getBytes() {
+        return Optional.ofNullable(bytes);
+    }
+
+    /**
+     * @return true, if the body is kept in memory (not in a temporary file)
+     */
+    public boolean isInMemory() {
+        return path == null;
+    }
+
+    /**
+     * @return body size in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return new stream of the body (to be closed by the caller)
+     */
+    public InputStream openStream() throws IOException {
+        if (isInMemory()) {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        return Files.newInputStream(path);
+    }
+
+    /**
+     * @return body decoded as UTF-8
+     */
+    public String asString() throws IOException {
+        if (isInMemory()) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        return Files.readString(path, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        FileUtil.deleteQuietly(path);
+    }
+
+    private static class Subscriber implements BodySubscriber<HttpResponseBody> {
+        private final long maxInMemoryBytes;
+
+        private final CompletableFuture<HttpResponseBody> result = new CompletableFuture<>();
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private long size;
+
+        private Path path;
+
+        private FileChannel fileChannel;
+
+        private Subscriber(long maxInMemoryBytes) {
+            this.maxInMemoryBytes = maxInMemoryBytes;
+        }
+
+        @Override
+        public CompletionStage<HttpResponseBody> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            if (result.isDone()) {
+                return;
+            }
+
+            try {
+                for (ByteBuffer item : items) {
+                    size += item.remaining();
+                    if (fileChannel == null && size > maxInMemoryBytes) {
+                        spill();
+                    }
+
+                    if (fileChannel == null) {
+                        final byte[] itemBytes = new byte[item.remaining()];
+                        item.get(itemBytes);
+
+                        buffer.write(itemBytes);
+                    } else {
+                        while (item.hasRemaining()) {
+                            fileChannel.write(item);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                onError(e);
+            }
+        }
+
+        private void spill() throws IOException {
+            path = FileUtil.temporaryFile();
+            fileChannel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            final ByteBuffer bufferedBytes = ByteBuffer.wrap(buffer.toByteArray());
+            while (bufferedBytes.hasRemaining()) {
+                fileChannel.write(bufferedBytes);
+            }
+
+            buffer.reset();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            IOUtil.closeQuietly(fileChannel);
+            FileUtil.deleteQuietly(path);
+
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (result.isDone()) {
+                return;
+            }
+
+            if (fileChannel == null) {
+                result.complete(new HttpResponseBody(buffer.toByteArray(), null, size));
+
+                return;
+            }
+
+            try {
+                fileChannel.close();
+
+                result.complete(new HttpResponseBody(null, path, size));
+            } catch (IOException e) {
+                onError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LRU cache of HTTP responses, bounded by the total size of cached bodies and headers. Entries are keyed by method, URI and selected request headers,
+ * freshness follows Cache-Control/Expires (capped on every lookup by the maximum age requested by the caller), stale entries can be revalidated with
+ * ETag/Last-Modified.
+ */
+public class HttpResponseCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpResponseCache.class);
+
+    /**
+     * Request headers that select between different representations of the same URI
+     */
+    private static final List<String> KEY_HEADERS = List.of("Accept", "Accept-Language", "Authorization");
+
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+
+    private static final String HEADER_EXPIRES = "Expires";
+
+    private static final String HEADER_DATE = "Date";
+
+    private static final String HEADER_AGE = "Age";
+
+    private static final String HEADER_ETAG = "ETag";
+
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
+    public static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    public static final int STATUS_OK = 200;
+
+    public static final int STATUS_NOT_MODIFIED = 304;
+
+    private static final String DIRECTIVE_NO_STORE = "no-store";
+
+    private static final String DIRECTIVE_NO_CACHE = "no-cache";
+
+    private static final String DIRECTIVE_MAX_AGE = "max-age=";
+
+    private final long maxSizeBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long sizeBytes;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong revalidatedCount = new AtomicLong();
+
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    public HttpResponseCache(long maxSizeBytes) {
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * @return cache key of the request, or empty if requests with this method are not cacheable
+     */
+    public static Optional<Key> key(HttpRequest request) {
+        final String method = request.method();
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            return Optional.empty();
+        }
+
+        final HttpHeaders headers = request.headers();
+        final List<String> headerValues = new ArrayList<>(KEY_HEADERS.size());
+        for (String header : KEY_HEADERS) {
+            headerValues.add(String.join(",", headers.allValues(header)));
+        }
+
+        return Optional.of(new Key(method, request.uri(), headerValues));
+    }
+
+    /**
+     * @return request with conditional headers, that allow the server to confirm that the cached entry is still valid
+     */
+    public static HttpRequest withValidators(HttpRequest request, Entry entry) {
+        if (entry.etag == null && entry.lastModified == null) {
+            return request;
+        }
+
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(request, (name, value) -> true);
+        if (entry.etag != null) {
+            builder.setHeader(HEADER_IF_NONE_MATCH, entry.etag);
+        }
+
+        if (entry.lastModified != null) {
+            builder.setHeader(HEADER_IF_MODIFIED_SINCE, entry.lastModified);
+        }
+
+        return builder.build();
+    }
+
+    public Optional<Entry> get(Key key) {
+        lock.lock();
+        try {
+            return Optional.ofNullable(entries.get(key));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the response, if it is allowed by its Cache-Control headers and has either a positive freshness lifetime or validators
+     *
+     * @param maxAge maximum time, the response can be served without revalidation
+     * @return stored entry
+     */
+    public Optional<Entry> put(Key key, int statusCode, HttpHeaders responseHeaders, Map<String, String> headers, byte[] body, Duration maxAge) {
+        final OptionalLong freshnessMillis = freshnessLifetimeMillis(responseHeaders, maxAge);
+        final String etag = responseHeaders.firstValue(HEADER_ETAG).orElse(null);
+        final String lastModified = responseHeaders.firstValue(HEADER_LAST_MODIFIED).orElse(null);
+        if (statusCode != STATUS_OK
+            || freshnessMillis.isEmpty()
+            || (freshnessMillis.getAsLong() == 0 && etag == null && lastModified == null)) {
+            remove(key);
+
+            return Optional.empty();
+        }
+
+        final Entry entry = new Entry(statusCode, headers, body, etag, lastModified, serverFreshnessLifetimeMillis(responseHeaders).orElse(0L));
+        if (entry.sizeBytes > maxSizeBytes) {
+            remove(key);
+
+            return Optional.empty();
+        }
+
+        lock.lock();
+        try {
+            final Entry previousEntry = entries.put(key, entry);
+            if (previousEntry != null) {
+                sizeBytes -= previousEntry.sizeBytes;
+            }
+
+            sizeBytes += entry.sizeBytes;
+            evict();
+        } finally {
+            lock.unlock();
+        }
+
+        return Optional.of(entry);
+    }
+
+    /**
+     * Extends the freshness of the entry, after the server confirmed it is still valid (with 304 Not Modified)
+     */
+    public Entry revalidated(Key key, Entry entry, HttpHeaders responseHeaders) {
+        revalidatedCount.incrementAndGet();
+
+        entry.refresh(serverFreshnessLifetimeMillis(responseHeaders).orElse(0L));
+
+        lock.lock();
+        try {
+            // the entry might have been evicted in the meantime, a newer response stored in the meantime is kept
+            if (!entries.containsKey(key)) {
+                entries.put(key, entry);
+
+                sizeBytes += entry.sizeBytes;
+                evict();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return entry;
+    }
+
+    public void remove(Key key) {
+        lock.lock();
+        try {
+            final Entry entry = entries.remove(key);
+            if (entry != null) {
+                sizeBytes -= entry.sizeBytes;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recordHit() {
+        hitCount.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        missCount.incrementAndGet();
+    }
+
+    private void evict() {
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (sizeBytes > maxSizeBytes && iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            iterator.remove();
+
+            sizeBytes -= entry.sizeBytes;
+            evictedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return how long the response is fresh (0 means it has to be revalidated before every use), or empty if it must not be stored
+     */
+    static OptionalLong freshnessLifetimeMillis(HttpHeaders headers, Duration maxAge) {
+        final OptionalLong serverLifetimeMillis = serverFreshnessLifetimeMillis(headers);
+        if (serverLifetimeMillis.isEmpty()) {
+            return serverLifetimeMillis;
+        }
+
+        return OptionalLong.of(
+                Math.min(serverLifetimeMillis.getAsLong(), maxAge.toMillis())
+        );
+    }
+
+    /**
+     * @return how long the response is fresh according to the server (Long.MAX_VALUE if the server did not specify it), or empty if it must not be stored
+     */
+    private static OptionalLong serverFreshnessLifetimeMillis(HttpHeaders headers) {
+        Long lifetimeMillis = null;
+        for (String cacheControl : headers.allValues(HEADER_CACHE_CONTROL)) {
+            for (String directive : cacheControl.split(",")) {
+                final String normalizedDirective = directive.trim().toLowerCase();
+                if (normalizedDirective.equals(DIRECTIVE_NO_STORE)) {
+                    return OptionalLong.empty();
+                }
+
+                if (normalizedDirective.equals(DIRECTIVE_NO_CACHE)) {
+                    lifetimeMillis = 0L;
+                } else if (normalizedDirective.startsWith(DIRECTIVE_MAX_AGE) && lifetimeMillis == null) {
+                    lifetimeMillis = parseSeconds(normalizedDirective.substring(DIRECTIVE_MAX_AGE.length())) * 1000;
+                }
+            }
+        }
+
+        if (lifetimeMillis == null) {
+            final Optional<String> expires = headers.firstValue(HEADER_EXPIRES);
+            if (expires.isEmpty()) {
+                return OptionalLong.of(Long.MAX_VALUE);
+            }
+
+            lifetimeMillis = expiresMillis(expires.get(), headers.firstValue(HEADER_DATE).orElse(null));
+        }
+
+        final long ageMillis = headers.firstValue(HEADER_AGE)
+                                      .map(HttpResponseCache::parseSeconds)
+                                      .orElse(0L) * 1000;
+
+        return OptionalLong.of(
+                Math.max(0, lifetimeMillis - ageMillis)
+        );
+    }
+
+    private static long expiresMillis(String expires, String date) {
+        try {
+            final ZonedDateTime expiresAt = ZonedDateTime.parse(expires, DateTimeFormatter.RFC_1123_DATE_TIME);
+            final ZonedDateTime now = date == null ? ZonedDateTime.now() : ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME);
+
+            return Duration.between(now, expiresAt).toMillis();
+        } catch (DateTimeParseException e) {
+            // invalid dates (e.g. "0") mean already expired
+            LOGGER.trace(e.getMessage(), e);
+
+            return 0;
+        }
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public Metrics getMetrics() {
+        final int entryCount;
+        final long currentSizeBytes;
+        lock.lock();
+        try {
+            entryCount = entries.size();
+            currentSizeBytes = sizeBytes;
+        } finally {
+            lock.unlock();
+        }
+
+        return new Metrics(
+                entryCount, currentSizeBytes,
+                hitCount.get(), missCount.get(), revalidatedCount.get(), evictedCount.get()
+        );
+    }
+
+    /**
+     * @param entryCount number of cached responses
+     * @param sizeBytes approximate size of cached responses
+     * @param hitCount number of requests served from the cache, without contacting the server
+     * @param missCount number of requests sent to the server, that could not be served from the cache
+     * @param revalidatedCount number of requests served from the cache, after the server confirmed the entry is still valid
+     * @param evictedCount number of entries removed to make space for newer ones
+     */
+    public record Metrics(
+            int entryCount, long sizeBytes,
+            long hitCount, long missCount, long revalidatedCount, long evictedCount
+    ) {
+    }
+
+    public record Key(String method, URI uri, List<String> headerValues) {
+    }
+
+    public static class Entry {
+        private final int statusCode;
+
+        private final Map<String, String> headers;
+
+        private final byte[] body;
+
+        private final String etag;
+
+        private final String lastModified;
+
+        private final long sizeBytes;
+
+        private volatile long storedAtNanos;
+
+        private volatile long serverFreshnessMillis;
+
+        private Entry(int statusCode, Map<String, String> headers, byte[] body, String etag, String lastModified, long serverFreshnessMillis) {
+            this.statusCode = statusCode;
+            this.headers = Map.copyOf(headers);
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.serverFreshnessMillis = serverFreshnessMillis;
+            this.storedAtNanos = System.nanoTime();
+
+            long headersSize = 0;
+            for (Map.Entry<String, String> header : this.headers.entrySet()) {
+                headersSize += header.getKey().length() + header.getValue().length();
+            }
+
+            this.sizeBytes = body.length + headersSize * Character.BYTES;
+        }
+
+        private void refresh(long serverFreshnessMillis) {
+            this.serverFreshnessMillis = serverFreshnessMillis;
+            this.storedAtNanos = System.nanoTime();
+        }
+
+        /**
+         * @param maxAge maximum age requested by the caller, entries are never fresh for longer than allowed by the server
+         * @return true, if the entry can be served without revalidation
+         */
+        public boolean isFresh(Duration maxAge) {
+            final long freshnessMillis = Math.min(serverFreshnessMillis, maxAge.toMillis());
+
+            return System.nanoTime() - storedAtNanos < TimeUnit.MILLISECONDS.toNanos(freshnessMillis);
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.psobiech.opengr8on.util.ThreadUtil;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hashed timing wheel, that executes short tasks at absolute (System.nanoTime()) deadlines, with the precision of a single tick.
+ * Scheduling and cancelling are O(1), a single thread serves all timeouts (and sleeps while there are none).
+ */
+public class TimingWheel implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimingWheel.class);
+
+    /**
+     * Bucket 0 counts timeouts late by less than 1ms, bucket i counts timeouts late by [2^(i-1), 2^i) ms, the last bucket counts everything above
+     */
+    public static final int LATENESS_BUCKETS = 16;
+
+    private final ExecutorService executor = ThreadUtil.virtualExecutor("TimingWheel");
+
+    private final long tickNanos;
+
+    private final int mask;
+
+    private final Deque<Timeout>[] buckets;
+
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition timeoutScheduled = lock.newCondition();
+
+    private final AtomicLongArray latenessHistogram = new AtomicLongArray(LATENESS_BUCKETS);
+
+    private final long startNanos = System.nanoTime();
+
+    private long currentTick;
+
+    private volatile boolean closed;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickDuration, TimeUnit tickUnit, int wheelSize) {
+        if (wheelSize <= 0 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size has to be a power of 2: " + wheelSize);
+        }
+
+        this.tickNanos = Math.max(1, tickUnit.toNanos(tickDuration));
+        this.mask = wheelSize - 1;
+
+        this.buckets = new Deque[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+
+        executor.submit(this::run);
+    }
+
+    /**
+     * @param deadlineNanos absolute deadline, as returned by System.nanoTime()
+     */
+    public Timeout schedule(Runnable task, long deadlineNanos) {
+        final Timeout timeout = new Timeout(this, task, deadlineNanos);
+        newTimeouts.add(timeout);
+
+        lock.lock();
+        try {
+            pendingCount.incrementAndGet();
+            timeoutScheduled.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        return timeout;
+    }
+
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * @return counts of expired timeouts, by lateness (see {@link #LATENESS_BUCKETS})
+     */
+    public long[] getLatenessHistogram() {
+        final long[] histogram = new long[LATENESS_BUCKETS];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = latenessHistogram.get(i);
+        }
+
+        return histogram;
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                awaitPendingTimeouts();
+
+                final long tickDeadline = startNanos + (currentTick + 1) * tickNanos;
+                long remainingNanos;
+                while ((remainingNanos = tickDeadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.sleep(remainingNanos);
+                }
+
+                transferNewTimeouts();
+                expireTimeouts(buckets[(int) (currentTick & mask)]);
+
+                currentTick++;
+            }
+        } catch (InterruptedException e) {
+            LOGGER.trace(e.getMessage(), e);
+        } catch (Exception e) {
+            LOGGER.error(e.getMessage(), e);
+        }
+    }
+
+    private void awaitPendingTimeouts() throws InterruptedException {
+        if (pendingCount.get() > 0) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            while (pendingCount.get() == 0 && !closed) {
+                timeoutScheduled.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // buckets contain no pending timeouts, so the idle ticks can be skipped
+        currentTick = Math.max(currentTick, tickOf(System.nanoTime()));
+    }
+
+    private long tickOf(long nanos) {
+        return Math.max(0, nanos - startNanos) / tickNanos;
+    }
+
+    private void transferNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (!timeout.isPending()) {
+                continue;
+            }
+
+            final long tick = Math.max(currentTick, tickOf(timeout.deadlineNanos));
+            timeout.remainingRounds = (tick - currentTick) / buckets.length;
+
+            buckets[(int) (tick & mask)].add(timeout);
+        }
+    }
+
+    private void expireTimeouts(Deque<Timeout> bucket) {
+        final Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            final Timeout timeout = iterator.next();
+            if (!timeout.isPending()) {
+                iterator.remove();
+
+                continue;
+            }
+
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+
+                continue;
+            }
+
+            iterator.remove();
+            if (timeout.expire()) {
+                recordLateness(System.nanoTime() - timeout.deadlineNanos);
+
+                try {
+                    timeout.task.run();
+                } catch (Exception e) {
+                    LOGGER.error(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private void recordLateness(long latenessNanos) {
+        final long latenessMillis = TimeUnit.NANOSECONDS.toMillis(latenessNanos);
+
+        final int bucket;
+        if (latenessMillis <= 0) {
+            bucket = 0;
+        } else {
+            bucket = Math.min(LATENESS_BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(latenessMillis));
+        }
+
+        latenessHistogram.incrementAndGet(bucket);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        executor.shutdownNow();
+        ThreadUtil.closeQuietly(executor);
+    }
+
+    public static final class Timeout {
+        private final TimingWheel timingWheel;
+
+        private final Runnable task;
+
+        private final long deadlineNanos;
+
+        private final AtomicReference<State> state = new AtomicReference<>(State.PENDING);
+
+        /**
+         * Full rotations of the wheel left, before the timeout expires (accessed only by the wheel thread)
+         */
+        private long remainingRounds;
+
+        private Timeout(TimingWheel timingWheel, Runnable task, long deadlineNanos) {
+            this.timingWheel = timingWheel;
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public long getDeadlineNanos() {
+            return deadlineNanos;
+        }
+
+        public boolean isPending() {
+            return state.get() == State.PENDING;
+        }
+
+        /**
+         * @return false, if the timeout has already expired (or was cancelled)
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(State.PENDING, State.CANCELLED)) {
+                return false;
+            }
+
+            timingWheel.pendingCount.decrementAndGet();
+
+            return true;
+        }
+
+        private boolean expire() {
+            if (!state.compareAndSet(State.PENDING, State.EXPIRED)) {
+                return false;
+            }
+
+            timingWheel.pendingCount.decrementAndGet();
+
+            return true;
+        }
+
+        private enum State {
+            PENDING,
+            EXPIRED,
+            CANCELLED,
+            //
+            ;
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package pl.psobiech.opengr8on.vclu.system;
 
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pl.psobiech.opengr8on.client.CLUClient;
@@ -30,6 +31,7 @@ import pl.psobiech.opengr8on.util.IOUtil;
 import pl.psobiech.opengr8on.util.RandomUtil;
 import pl.psobiech.opengr8on.util.ThreadUtil;
 import pl.psobiech.opengr8on.vclu.system.ClientRegistry.Subscription;
+import pl.psobiech.opengr8on.vclu.system.lua.LuaScheduler;
 import pl.psobiech.opengr8on.vclu.system.lua.LuaThread;
 import pl.psobiech.opengr8on.vclu.system.objects.*;
 import pl.psobiech.opengr8on.vclu.system.objects.VirtualCLU.Features;
@@ -39,15 +41,20 @@ import pl.psobiech.opengr8on.vclu.util.LuaUtil;
 
 import java.io.Closeable;
 import java.net.Inet4Address;
+import java.net.InetSocketAddress;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 public class VirtualSystem implements Closeable {
@@ -61,8 +68,30 @@ public class VirtualSystem implements Closeable {
 
     private static final String CLIENT_REPORT_PREFIX = "clientReport:";
 
+    private static final long TIMING_WHEEL_TICK_MILLIS = 10;
+
+    private static final int TIMING_WHEEL_SIZE = 512;
+
+    private static final int HTTP_PORT = 80;
+
+    private static final long HTTP_RESPONSE_CACHE_MAX_SIZE_BYTES = 4 * 1024 * 1024;
+
     private final ExecutorService executor = ThreadUtil.virtualExecutor("VSYSTEM");
 
+    /**
+     * Shared by all timers of this system
+     */
+    private final TimingWheel timingWheel = new TimingWheel(TIMING_WHEEL_TICK_MILLIS, TimeUnit.MILLISECONDS, TIMING_WHEEL_SIZE);
+
+    /**
+     * Shared by all http requests of this system
+     */
+    private final HttpClientPool httpClientPool = new HttpClientPool();
+
+    private final HttpResponseCache httpResponseCache = new HttpResponseCache(HTTP_RESPONSE_CACHE_MAX_SIZE_BYTES);
+
+    private final ReentrantLock httpListenerServerLock = new ReentrantLock();
+
     private final Inet4Address localAddress;
 
     private final int port;
@@ -77,8 +106,12 @@ public class VirtualSystem implements Closeable {
 
     private final ProjectObjectRegistry projectObjectRegistry;
 
+    private final List<FeatureListener> featureListeners = new CopyOnWriteArrayList<>();
+
     private LuaThread luaThread;
 
+    private HttpListenerServer httpListenerServer;
+
     private VirtualCLU currentClu = null;
 
     public VirtualSystem(Path rootDirectory, Inet4Address localAddress, int port, CipherKey cipherKey) {
@@ -95,10 +128,66 @@ public class VirtualSystem implements Closeable {
         return objectsByName.get(name);
     }
 
+    /**
+     * @return snapshot of all objects of this system
+     */
+    public List<VirtualObject> getObjects() {
+        return List.copyOf(objectsByName.values());
+    }
+
+    public void addFeatureListener(FeatureListener listener) {
+        featureListeners.add(listener);
+    }
+
+    public void removeFeatureListener(FeatureListener listener) {
+        featureListeners.remove(listener);
+    }
+
+    /**
+     * Notifies listeners, that the feature value of the object has changed
+     */
+    public void onFeatureChanged(VirtualObject object, int index, LuaValue value) {
+        for (FeatureListener listener : featureListeners) {
+            try {
+                listener.onFeatureChanged(object, index, value);
+            } catch (Exception e) {
+                LOGGER.error(e.getMessage(), e);
+            }
+        }
+    }
+
     public VirtualCLU getCurrentClu() {
         return currentClu;
     }
 
+    public TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    public HttpClientPool getHttpClientPool() {
+        return httpClientPool;
+    }
+
+    public HttpResponseCache getHttpResponseCache() {
+        return httpResponseCache;
+    }
+
+    /**
+     * @return HTTP server shared by all HttpListener objects, started on first use
+     */
+    public HttpListenerServer getHttpListenerServer() {
+        httpListenerServerLock.lock();
+        try {
+            if (httpListenerServer == null) {
+                httpListenerServer = new HttpListenerServer(new InetSocketAddress(localAddress, HTTP_PORT));
+            }
+
+            return httpListenerServer;
+        } finally {
+            httpListenerServerLock.unlock();
+        }
+    }
+
     @SuppressWarnings("resource")
     public void newObject(int index, String name, Inet4Address ipAddress) {
         final VirtualObject virtualObject = switch (index) {
@@ -118,7 +207,7 @@ public class VirtualSystem implements Closeable {
     public void newGate(int index, String name) {
         final VirtualObject virtualObject = switch (index) {
             case HttpRequest.INDEX -> new HttpRequest(this, name, localAddress);
-            case HttpListener.INDEX -> new HttpListener(this, name, localAddress);
+            case HttpListener.INDEX -> new HttpListener(this, name);
             case MqttTopic.INDEX -> new MqttTopic(this, name);
             default -> new VirtualObject(this, name);
         };
@@ -146,6 +235,38 @@ public class VirtualSystem implements Closeable {
         return luaThread.luaCall(script);
     }
 
+    /**
+     * Reports every assignment of the global variable to the listener
+     *
+     * @return current value of the variable, or empty when LUA is not running (and the variable is not watched)
+     */
+    public Optional<LuaValue> watchGlobal(String name, BiConsumer<String, LuaValue> listener) {
+        if (luaThread == null) {
+            return Optional.empty();
+        }
+
+        return Optional.of(luaThread.watchGlobal(name, listener));
+    }
+
+    /**
+     * Executes the function as a coroutine, blocking calls inside (e.g. SYSTEM.Wait) yield instead of blocking other scripts
+     */
+    public LuaValue call(LuaValue function) {
+        return call(function, LuaValue.NONE);
+    }
+
+    /**
+     * Executes the function with arguments as a coroutine, blocking calls inside (e.g. SYSTEM.Wait) yield instead of blocking other scripts
+     */
+    public LuaValue call(LuaValue function, Varargs args) {
+        if (luaThread == null) {
+            return function.invoke(args)
+                           .arg1();
+        }
+
+        return luaThread.call(function, args);
+    }
+
     public void loop() {
         final long startTime = System.nanoTime();
 
@@ -161,6 +282,12 @@ public class VirtualSystem implements Closeable {
     }
 
     public void sleep(long millis) {
+        if (LuaScheduler.isCoroutine()) {
+            LuaScheduler.sleep(millis);
+
+            return;
+        }
+
         sleepNanos(TimeUnit.MILLISECONDS.toNanos(millis));
     }
 
@@ -177,7 +304,7 @@ public class VirtualSystem implements Closeable {
 
     public String clientRegister(Inet4Address remoteIpAddress, Inet4Address ipAddress, int port, int sessionId, List<Subscription> subscription) {
         clientRegistry.register(ipAddress, port, sessionId, client -> {
-            final String valuesAsString = CLIENT_REPORT_PREFIX + sessionId + ":" + fetchValues(subscription);
+            final String valuesAsString = clientReport(sessionId, subscription);
 
             sendResponse(client, valuesAsString);
 
@@ -190,7 +317,15 @@ public class VirtualSystem implements Closeable {
             }
         });
 
-        return CLIENT_REPORT_PREFIX + sessionId + ":" + fetchValues(subscription);
+        return clientReport(sessionId, subscription);
+    }
+
+    private String clientReport(int sessionId, List<Subscription> subscriptions) {
+        final StringBuilder sb = new StringBuilder(CLIENT_REPORT_PREFIX)
+                .append(sessionId)
+                .append(':');
+
+        return appendValues(sb, subscriptions).toString();
     }
 
     /**
@@ -211,21 +346,47 @@ public class VirtualSystem implements Closeable {
         return LuaValue.valueOf(sessionId);
     }
 
-    @SuppressWarnings("resource")
     public String fetchValues(List<Subscription> subscriptions) {
-        return LuaUtil.stringifyList(subscriptions, subscription -> {
+        return appendValues(new StringBuilder(), subscriptions).toString();
+    }
+
+    /**
+     * Appends current values of all subscriptions as a LUA table literal, e.g. {1, "a", nil}
+     *
+     * @return the same StringBuilder
+     */
+    @SuppressWarnings("resource")
+    public StringBuilder appendValues(StringBuilder sb, List<Subscription> subscriptions) {
+        sb.append('{');
+        for (int i = 0; i < subscriptions.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+
+            final Subscription subscription = subscriptions.get(i);
             final VirtualObject object = subscription.object();
             final int index = subscription.index();
-            final LuaValue value = object.get(index);
 
-            return LuaUtil.stringifyRaw(value, "nil");
-        });
+            LuaUtil.appendRaw(sb, object.get(index), "nil");
+        }
+
+        return sb.append('}');
     }
 
     @Override
     public void close() {
         IOUtil.closeQuietly(clientRegistry);
         IOUtil.closeQuietly(objectsByName.values());
+        IOUtil.closeQuietly(timingWheel);
+        IOUtil.closeQuietly(httpClientPool);
+
+        httpListenerServerLock.lock();
+        try {
+            IOUtil.closeQuietly(httpListenerServer);
+            httpListenerServer = null;
+        } finally {
+            httpListenerServerLock.unlock();
+        }
 
         ThreadUtil.closeQuietly(executor);
     }
@@ -267,4 +428,12 @@ public class VirtualSystem implements Closeable {
     public void setLuaThread(LuaThread luaThread) {
         this.luaThread = luaThread;
     }
+
+    @FunctionalInterface
+    public interface FeatureListener {
+        /**
+         * Called on the thread that changed the value, should not block
+         */
+        void onFeatureChanged(VirtualObject object, int index, LuaValue value);
+    }
 }
@@ -54,9 +54,7 @@ public class InitLuaLib extends TwoArgFunction {
     private static String argsToString(Varargs args) {
         final StringBuilder sb = new StringBuilder();
         for (int i = 1; i <= args.narg(); i++) {
-            sb.append(
-                    LuaUtil.stringifyRaw(args.arg(i))
-            );
+            LuaUtil.appendRaw(sb, args.arg(i), null);
         }
 
         return sb.toString();
@@ -262,7 +260,8 @@ public class InitLuaLib extends TwoArgFunction {
         }
 
         return LuaValue.valueOf(
-                FETCH_VALUES_PREFIX + virtualSystem.fetchValues(subscriptions)
+                virtualSystem.appendValues(new StringBuilder(FETCH_VALUES_PREFIX), subscriptions)
+                             .toString()
         );
     }
 
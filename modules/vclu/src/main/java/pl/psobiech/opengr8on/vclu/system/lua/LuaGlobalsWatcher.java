@@ -0,0 +1,137 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system.lua;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.ThreeArgFunction;
+import org.luaj.vm2.lib.TwoArgFunction;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Reports assignments of the watched global variables. Watched variables are moved out of the raw globals table into a shadow table,
+ * so every assignment goes through the __newindex metamethod (and every read through __index). Should be used while holding the globals lock.
+ * <p>
+ * Watched variables are visible to regular reads (e.g. {@code counter} or {@code _G["counter"]}) only, raw access
+ * ({@code rawget(_G, "counter")}) and iteration ({@code pairs(_G)}, {@code next(_G)}) do not see them (LuaJ does not support __pairs).
+ * A metatable already set on the globals is kept: its metamethods remain in place and unwatched variables are still handled by its
+ * __index and __newindex.
+ */
+public class LuaGlobalsWatcher {
+    private final Globals globals;
+
+    private final LuaTable watchedValues = LuaValue.tableOf();
+
+    private final Map<String, BiConsumer<String, LuaValue>> listeners = new ConcurrentHashMap<>();
+
+    public LuaGlobalsWatcher(Globals globals) {
+        this.globals = globals;
+    }
+
+    /**
+     * @param listener called with the name and the new value, after every assignment of the variable
+     * @return current value of the variable
+     */
+    public LuaValue watch(String name, BiConsumer<String, LuaValue> listener) {
+        if (listeners.isEmpty()) {
+            install();
+        }
+
+        final LuaValue key = LuaValue.valueOf(name);
+        if (listeners.put(name, listener) != null) {
+            return watchedValues.rawget(key);
+        }
+
+        final LuaValue value = globals.rawget(key);
+        watchedValues.rawset(key, value);
+        globals.rawset(key, LuaValue.NIL);
+
+        return value;
+    }
+
+    private void install() {
+        final LuaValue previousMetatable = globals.getmetatable();
+        final LuaValue previousIndex = previousMetatable == null ? LuaValue.NIL : previousMetatable.rawget(LuaValue.INDEX);
+        final LuaValue previousNewIndex = previousMetatable == null ? LuaValue.NIL : previousMetatable.rawget(LuaValue.NEWINDEX);
+
+        final LuaTable metatable = LuaValue.tableOf();
+        if (previousMetatable != null) {
+            Varargs entry = previousMetatable.next(LuaValue.NIL);
+            while (!entry.arg1().isnil()) {
+                metatable.rawset(entry.arg1(), entry.arg(2));
+
+                entry = previousMetatable.next(entry.arg1());
+            }
+        }
+
+        metatable.rawset(
+                LuaValue.INDEX,
+                new TwoArgFunction() {
+                    @Override
+                    public LuaValue call(LuaValue table, LuaValue key) {
+                        if (isWatched(key)) {
+                            return watchedValues.rawget(key);
+                        }
+
+                        if (previousIndex.isfunction()) {
+                            return previousIndex.call(table, key);
+                        }
+
+                        return previousIndex.isnil() ? LuaValue.NIL : previousIndex.get(key);
+                    }
+                }
+        );
+        metatable.rawset(
+                LuaValue.NEWINDEX,
+                new ThreeArgFunction() {
+                    @Override
+                    public LuaValue call(LuaValue table, LuaValue key, LuaValue value) {
+                        final BiConsumer<String, LuaValue> listener = key.type() == LuaValue.TSTRING ? listeners.get(key.tojstring()) : null;
+                        if (listener == null) {
+                            if (previousNewIndex.isfunction()) {
+                                previousNewIndex.call(table, key, value);
+                            } else if (previousNewIndex.isnil()) {
+                                table.rawset(key, value);
+                            } else {
+                                previousNewIndex.set(key, value);
+                            }
+
+                            return LuaValue.NONE;
+                        }
+
+                        watchedValues.rawset(key, value);
+                        listener.accept(key.tojstring(), value);
+
+                        return LuaValue.NONE;
+                    }
+                }
+        );
+
+        globals.setmetatable(metatable);
+    }
+
+    private boolean isWatched(LuaValue key) {
+        return key.type() == LuaValue.TSTRING && listeners.containsKey(key.tojstring());
+    }
+}
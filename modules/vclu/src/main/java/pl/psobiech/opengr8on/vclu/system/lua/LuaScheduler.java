@@ -0,0 +1,410 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system.lua;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.OrphanedThread;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.psobiech.opengr8on.exceptions.UncheckedInterruptedException;
+import pl.psobiech.opengr8on.exceptions.UnexpectedException;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cooperative scheduler, that runs LUA functions as coroutines on a shared LUA state. Tasks are executed in order by the scheduler thread, on
+ * reusable driver coroutines (LuaJ backs every coroutine with its own platform thread). Every resumed coroutine holds the globals lock until it yields
+ * or finishes, blocking operations (e.g. SYSTEM.Wait or remote calls) yield the coroutine instead of blocking the lock owner, and the coroutine
+ * gets resumed once the awaited result is available. Additional coroutines are only created when all existing ones wait.
+ */
+public class LuaScheduler implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LuaScheduler.class);
+
+    /**
+     * Idle coroutines kept for reuse, the rest gets finished (releasing their threads)
+     */
+    private static final int MAX_IDLE_COROUTINES = 8;
+
+    private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(1);
+
+    private static final ThreadLocal<Task> CURRENT_TASK = new ThreadLocal<>();
+
+    /**
+     * Context of the calls made by the current (non-coroutine) thread
+     */
+    private static final ThreadLocal<Object> CALL_CONTEXT = new ThreadLocal<>();
+
+    private final Globals globals;
+
+    private final ReentrantLock globalsLock;
+
+    /**
+     * Tasks to be started and coroutines to be resumed, processed in order by the scheduler thread
+     */
+    private final BlockingQueue<Runnable> runQueue = new LinkedBlockingQueue<>();
+
+    /**
+     * Coroutines without a task (only accessed by the scheduler thread)
+     */
+    private final Deque<Coroutine> idleCoroutines = new ArrayDeque<>();
+
+    /**
+     * Coroutines waiting for the task to be resumed (only accessed by the scheduler thread)
+     */
+    private final Set<Coroutine> waitingCoroutines = new HashSet<>();
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    public LuaScheduler(Globals globals, ReentrantLock globalsLock) {
+        this.globals = globals;
+        this.globalsLock = globalsLock;
+
+        // LuaJ resumes coroutines in synchronized blocks, which would pin a virtual thread
+        this.thread = Thread.ofPlatform()
+                            .name(getClass().getSimpleName())
+                            .daemon(true)
+                            .start(this::run);
+    }
+
+    /**
+     * @return true, if the current thread executes a coroutine started by the scheduler
+     */
+    public static boolean isCoroutine() {
+        return CURRENT_TASK.get() != null;
+    }
+
+    /**
+     * Executes the runnable, coroutines started by it (directly or through {@link #call(LuaValue, Varargs)}) can access the context
+     */
+    public static void runWithContext(Object context, Runnable runnable) {
+        final Object previousContext = CALL_CONTEXT.get();
+        CALL_CONTEXT.set(context);
+        try {
+            runnable.run();
+        } finally {
+            if (previousContext == null) {
+                CALL_CONTEXT.remove();
+            } else {
+                CALL_CONTEXT.set(previousContext);
+            }
+        }
+    }
+
+    /**
+     * @return context of the current coroutine (or thread), if it is of the requested type
+     */
+    public static <T> Optional<T> currentContext(Class<T> contextClass) {
+        final Task task = CURRENT_TASK.get();
+        final Object context = task == null ? CALL_CONTEXT.get() : task.context;
+        if (contextClass.isInstance(context)) {
+            return Optional.of(contextClass.cast(context));
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Suspends the current coroutine for the specified amount of time, outside a coroutine blocks the current thread
+     */
+    public static void sleep(long millis) {
+        if (!isCoroutine()) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                throw new UncheckedInterruptedException(e);
+            }
+
+            return;
+        }
+
+        await(
+                new CompletableFuture<Void>()
+                        .completeOnTimeout(null, millis, TimeUnit.MILLISECONDS)
+        );
+    }
+
+    /**
+     * Yields the current coroutine until the future completes, outside a coroutine blocks the current thread
+     *
+     * @return future result
+     */
+    public static <T> T await(CompletableFuture<T> future) {
+        final Task task = CURRENT_TASK.get();
+        if (task != null && !future.isDone()) {
+            task.yield(future);
+        }
+
+        return get(future);
+    }
+
+    private static <T> T get(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new UncheckedInterruptedException(e);
+        } catch (CancellationException e) {
+            throw new UnexpectedException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+
+            if (cause instanceof Error error) {
+                throw error;
+            }
+
+            throw new UnexpectedException(cause);
+        }
+    }
+
+    /**
+     * Schedules the function to be executed as a coroutine and waits (without holding the globals lock) for it to finish. When called from an already
+     * scheduled coroutine, the function is executed directly.
+     *
+     * @return function result
+     */
+    public Varargs call(LuaValue function, Varargs args) {
+        if (isCoroutine()) {
+            return function.invoke(args);
+        }
+
+        final Task task = new Task(function, args);
+        runQueue.add(() -> start(task));
+        if (closed) {
+            // scheduler thread might have already finished
+            task.result.cancel(false);
+        }
+
+        try {
+            return get(task.result);
+        } catch (UncheckedInterruptedException e) {
+            // do not start the task, if it is still queued
+            task.result.cancel(false);
+
+            throw e;
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                runQueue.take()
+                        .run();
+            }
+        } catch (InterruptedException e) {
+            LOGGER.trace(e.getMessage(), e);
+        } finally {
+            // queued tasks get cancelled, waiting ones get resumed to finish their coroutines
+            Runnable runnable;
+            while ((runnable = runQueue.poll()) != null) {
+                runnable.run();
+            }
+
+            for (Coroutine coroutine : List.copyOf(waitingCoroutines)) {
+                resume(coroutine);
+            }
+
+            for (Coroutine coroutine : List.copyOf(idleCoroutines)) {
+                finish(coroutine);
+            }
+        }
+    }
+
+    private void start(Task task) {
+        if (closed) {
+            task.result.cancel(false);
+        }
+
+        if (task.result.isDone()) {
+            return;
+        }
+
+        Coroutine coroutine = idleCoroutines.pollFirst();
+        if (coroutine == null) {
+            coroutine = new Coroutine();
+        }
+
+        coroutine.task = task;
+        resume(coroutine);
+    }
+
+    private void resume(Coroutine coroutine) {
+        waitingCoroutines.remove(coroutine);
+
+        final Varargs resumeResult;
+        globalsLock.lock();
+        try {
+            resumeResult = coroutine.thread.resume(LuaValue.NONE);
+        } finally {
+            globalsLock.unlock();
+        }
+
+        final Task task = coroutine.task;
+        if (!resumeResult.arg1().toboolean()) {
+            // coroutine failed outside the task body, so it cannot be reused
+            if (task != null) {
+                task.result.completeExceptionally(new LuaError(resumeResult.arg(2).tojstring()));
+            }
+
+            return;
+        }
+
+        if (coroutine.isDead()) {
+            return;
+        }
+
+        if (task == null) {
+            if (closed || idleCoroutines.size() >= MAX_IDLE_COROUTINES) {
+                finish(coroutine);
+            } else {
+                idleCoroutines.addFirst(coroutine);
+            }
+
+            return;
+        }
+
+        waitingCoroutines.add(coroutine);
+        task.pending.whenComplete((result, throwable) ->
+                runQueue.add(() -> {
+                    if (waitingCoroutines.contains(coroutine)) {
+                        resume(coroutine);
+                    }
+                })
+        );
+    }
+
+    private void finish(Coroutine coroutine) {
+        idleCoroutines.remove(coroutine);
+
+        // without a task the coroutine returns
+        coroutine.task = null;
+        resume(coroutine);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        // wakes up the scheduler thread
+        runQueue.add(() -> {
+        });
+
+        try {
+            thread.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            LOGGER.trace(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reusable coroutine, executing tasks assigned by the scheduler one by one
+     */
+    private final class Coroutine extends VarArgFunction {
+        private final org.luaj.vm2.LuaThread thread = new org.luaj.vm2.LuaThread(globals, this);
+
+        private volatile Task task;
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            Task currentTask;
+            while ((currentTask = task) != null) {
+                currentTask.run();
+                task = null;
+
+                if (closed) {
+                    break;
+                }
+
+                // wait for the next task
+                globals.yield(LuaValue.NONE);
+            }
+
+            return LuaValue.NONE;
+        }
+
+        private boolean isDead() {
+            return thread.getStatus().equals("dead");
+        }
+    }
+
+    private final class Task {
+        private final LuaValue function;
+
+        private final Varargs args;
+
+        private final Object context = CALL_CONTEXT.get();
+
+        private final CompletableFuture<Varargs> result = new CompletableFuture<>();
+
+        private volatile CompletableFuture<?> pending;
+
+        private Task(LuaValue function, Varargs args) {
+            this.function = function;
+            this.args = args;
+        }
+
+        private void run() {
+            CURRENT_TASK.set(this);
+            try {
+                result.complete(function.invoke(args));
+            } catch (OrphanedThread e) {
+                result.completeExceptionally(e);
+
+                throw e;
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                CURRENT_TASK.remove();
+            }
+        }
+
+        private void yield(CompletableFuture<?> future) {
+            pending = future;
+
+            // globals lock is held by the scheduler thread, so the running coroutine is the one executing this task
+            globals.yield(LuaValue.NONE);
+
+            pending = null;
+            if (closed) {
+                throw new CancellationException("LUA scheduler was closed");
+            }
+        }
+    }
+}
@@ -22,6 +22,7 @@ import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaClosure;
 import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pl.psobiech.opengr8on.exceptions.UncheckedInterruptedException;
@@ -30,6 +31,7 @@ import pl.psobiech.opengr8on.vclu.system.VirtualSystem;
 
 import java.io.Closeable;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
 public class LuaThread implements Closeable {
     private static final Logger LOGGER = LoggerFactory.getLogger(LuaThread.class);
@@ -40,6 +42,10 @@ public class LuaThread implements Closeable {
 
     private final Globals globals;
 
+    private final LuaScheduler scheduler;
+
+    private final LuaGlobalsWatcher globalsWatcher;
+
     private final Thread thread;
 
     private final boolean emergency;
@@ -69,19 +75,57 @@ public class LuaThread implements Closeable {
 
         this.virtualSystem = virtualSystem;
         this.globals = globals;
+        this.scheduler = new LuaScheduler(globals, globalsLock);
+        this.globalsWatcher = new LuaGlobalsWatcher(globals);
         this.emergency = emergency;
     }
 
     public LuaValue luaCall(String script) {
+        final String chunk = "return %s".formatted(script);
+        if (LuaScheduler.isCoroutine()) {
+            // globals lock is already held on behalf of the current coroutine
+            return globals.load(chunk)
+                          .call();
+        }
+
+        final LuaValue function;
         globalsLock.lock();
         try {
-            return globals.load("return %s".formatted(script))
-                          .call();
+            function = globals.load(chunk);
+        } finally {
+            globalsLock.unlock();
+        }
+
+        return call(function, LuaValue.NONE);
+    }
+
+    /**
+     * Reports every assignment of the global variable to the listener (executed by the assigning script, while holding the globals lock)
+     *
+     * @return current value of the variable
+     */
+    public LuaValue watchGlobal(String name, BiConsumer<String, LuaValue> listener) {
+        if (LuaScheduler.isCoroutine()) {
+            // globals lock is already held on behalf of the current coroutine
+            return globalsWatcher.watch(name, listener);
+        }
+
+        globalsLock.lock();
+        try {
+            return globalsWatcher.watch(name, listener);
         } finally {
             globalsLock.unlock();
         }
     }
 
+    /**
+     * Executes the function as a coroutine, without blocking other scripts while it waits
+     */
+    public LuaValue call(LuaValue function, Varargs args) {
+        return scheduler.call(function, args)
+                        .arg1();
+    }
+
     public VirtualSystem virtualSystem() {
         return virtualSystem;
     }
@@ -106,6 +150,6 @@ public class LuaThread implements Closeable {
             LOGGER.trace(e.getMessage(), e);
         }
 
-        IOUtil.closeQuietly(globals.STDOUT, globals.STDERR);
+        IOUtil.closeQuietly(scheduler, globals.STDOUT, globals.STDERR);
     }
 }
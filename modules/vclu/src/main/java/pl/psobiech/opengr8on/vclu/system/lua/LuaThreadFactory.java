@@ -73,7 +73,7 @@ public class LuaThreadFactory {
         // globals.load(new Bit32Lib());
         globals.load(new TableLib());
         globals.load(new StringLib());
-        // globals.load(new CoroutineLib());
+        // globals.load(new CoroutineLib()); // user coroutines run outside the scheduler, deadlocking on the globals lock
         // globals.load(new JseMathLib());
         // globals.load(new JseIoLib());
         // globals.load(new JseOsLib()); // dangerous, allows OS access from LUA
@@ -18,6 +18,7 @@
 
 package pl.psobiech.opengr8on.vclu.system.objects;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.sun.net.httpserver.Headers;
 import org.luaj.vm2.LuaValue;
@@ -27,16 +28,16 @@ import pl.psobiech.opengr8on.exceptions.UnexpectedException;
 import pl.psobiech.opengr8on.util.ObjectMapperFactory;
 import pl.psobiech.opengr8on.util.Util;
 import pl.psobiech.opengr8on.vclu.ServerVersion;
+import pl.psobiech.opengr8on.vclu.system.HttpResponseBody;
 import pl.psobiech.opengr8on.vclu.system.VirtualSystem;
 import pl.psobiech.opengr8on.vclu.util.LuaUtil;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.net.http.HttpHeaders;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -69,15 +70,26 @@ public abstract class BaseHttpObject extends VirtualObject {
         super(virtualSystem, name, featureClass, methodClass, eventClass);
     }
 
-    protected static LuaValue parseResponseBody(HttpType responseType, Path responseBody) {
+    protected static LuaValue parseResponseBody(HttpType responseType, HttpResponseBody responseBody) {
         try {
             // TODO: does it make sense to check for filesize?
             return switch (responseType) {
                 case NONE -> LuaValue.NIL;
-                case JSON -> LuaUtil.fromJson(ObjectMapperFactory.JSON.readTree(responseBody.toFile()));
-                case XML -> LuaUtil.fromJson(ObjectMapperFactory.XML.readTree(responseBody.toFile()));
-                case FORM_DATA -> LuaUtil.fromObject(urlDecode(Files.readString(responseBody, StandardCharsets.UTF_8)));
-                default -> LuaValue.valueOf(Files.readString(responseBody, StandardCharsets.UTF_8));
+                case JSON -> {
+                    try (
+                            InputStream inputStream = responseBody.openStream();
+                            JsonParser parser = ObjectMapperFactory.JSON.createParser(inputStream)
+                    ) {
+                        yield LuaUtil.fromJson(parser);
+                    }
+                }
+                case XML -> {
+                    try (InputStream inputStream = responseBody.openStream()) {
+                        yield LuaUtil.fromJson(ObjectMapperFactory.XML.readTree(inputStream));
+                    }
+                }
+                case FORM_DATA -> LuaUtil.fromObject(urlDecode(responseBody.asString()));
+                default -> LuaValue.valueOf(responseBody.asString());
             };
         } catch (IOException e) {
             LOGGER.error(e.getMessage(), e);
@@ -91,7 +103,11 @@ public abstract class BaseHttpObject extends VirtualObject {
             // TODO: does it make sense to check for filesize?
             return switch (responseType) {
                 case NONE -> LuaValue.NIL;
-                case JSON -> LuaUtil.fromJson(ObjectMapperFactory.JSON.readTree(responseBody));
+                case JSON -> {
+                    try (JsonParser parser = ObjectMapperFactory.JSON.createParser(responseBody)) {
+                        yield LuaUtil.fromJson(parser);
+                    }
+                }
                 case XML -> LuaUtil.fromJson(ObjectMapperFactory.XML.readTree(responseBody));
                 case FORM_DATA -> LuaUtil.fromObject(urlDecode(new String(responseBody, StandardCharsets.UTF_8)));
                 default -> LuaValue.valueOf(new String(responseBody, StandardCharsets.UTF_8));
@@ -18,140 +18,189 @@
 
 package pl.psobiech.opengr8on.vclu.system.objects;
 
-import com.sun.net.httpserver.Headers;
-import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpServer;
 import org.luaj.vm2.LuaValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import pl.psobiech.opengr8on.exceptions.UnexpectedException;
-import pl.psobiech.opengr8on.util.IOUtil;
+import pl.psobiech.opengr8on.vclu.system.HttpListenerServer;
+import pl.psobiech.opengr8on.vclu.system.HttpListenerServer.Request;
+import pl.psobiech.opengr8on.vclu.system.HttpListenerServer.Route;
 import pl.psobiech.opengr8on.vclu.system.VirtualSystem;
+import pl.psobiech.opengr8on.vclu.system.lua.LuaScheduler;
 import pl.psobiech.opengr8on.vclu.util.LuaUtil;
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Inet4Address;
-import java.net.InetSocketAddress;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.util.Deque;
+import java.util.EnumMap;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Optional;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Handles requests routed by the shared {@link HttpListenerServer} (by the PATH feature), every request is handled in its own context, so request and
+ * response features read or written by the REQUEST event handlers refer to the request that triggered them.
+ */
 public class HttpListener extends BaseHttpObject {
     public static final int INDEX = 120;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(HttpListener.class);
 
-    private static final int STOP_DELAY_SECONDS = 1;
+    private static final String HEADER_SERVER = "Server";
 
-    private static final int HTTP_PORT = 80;
+    /**
+     * Maximum number of requests pending a response, above which requests are rejected with 503 Service Unavailable
+     */
+    private static final int MAX_PENDING_REQUESTS = 16;
 
-    private static final String HEADER_SERVER = "Server";
+    private static final Features[] REQUEST_FEATURES = {
+            Features.PATH, Features.METHOD, Features.QUERY, Features.REQUEST_TYPE, Features.REQUEST_HEADERS, Features.REQUEST_BODY
+    };
 
-    private static final int STATUS_NOT_FOUND = 404;
+    private final ReentrantLock routeLock = new ReentrantLock();
 
-    private static final int STATUS_INTERNAL_SERVER_ERROR = 500;
+    /**
+     * Feature values set outside a request context (e.g. during object initialization), used as defaults for every request
+     */
+    private final Map<Features, LuaValue> configuredValues = new ConcurrentHashMap<>();
 
-    private final HttpServer httpServer;
+    private final Deque<RequestContext> pendingRequests = new ConcurrentLinkedDeque<>();
 
-    private HttpExchange exchange;
+    private Route route;
 
-    public HttpListener(VirtualSystem virtualSystem, String name, Inet4Address localAddress) {
+    public HttpListener(VirtualSystem virtualSystem, String name) {
         super(
                 virtualSystem, name,
                 Features.class, Methods.class, Events.class
         );
 
-        try {
-            this.httpServer = HttpServer.create();
-            this.httpServer.bind(new InetSocketAddress(localAddress, HTTP_PORT), 0);
+        for (Features feature : Features.values()) {
+            register(feature, arg -> onFeature(feature, arg));
+        }
 
-            this.httpServer.createContext(
-                    "/",
-                    newExchange -> {
-                        if (!isEventRegistered(Events.REQUEST)) {
-                            tryErrorIfNotClosed(STATUS_NOT_FOUND, newExchange);
+        register(Methods.SEND_RESPONSE, this::onSendResponse);
+        register(Methods.CLEAR, this::onClear);
 
-                            return;
-                        }
+        updateRoute(LuaValue.NIL);
+    }
 
-                        awaitEventTrigger(Events.REQUEST);
-                        IOUtil.closeQuietly(exchange);
+    private LuaValue onFeature(Features feature, LuaValue arg) {
+        final Optional<RequestContext> requestContext = currentRequest();
+        if (requestContext.isPresent()) {
+            if (LuaUtil.isNil(arg)) {
+                return requestContext.get().get(feature);
+            }
 
-                        set(Features.METHOD, LuaValue.valueOf(newExchange.getRequestMethod()));
+            requestContext.get().values.put(feature, arg);
 
-                        final URI uri = newExchange.getRequestURI();
-                        set(Features.PATH, LuaValue.valueOf(uri.getPath()));
-                        set(Features.QUERY, LuaUtil.fromObject(urlDecode(uri.getRawQuery())));
+            return arg;
+        }
 
-                        set(Features.REQUEST_HEADERS, LuaUtil.fromObject(getHeaders(newExchange.getRequestHeaders())));
+        if (LuaUtil.isNil(arg)) {
+            return configuredValues.getOrDefault(feature, LuaValue.NIL);
+        }
 
-                        final String contentType = newExchange.getRequestHeaders().getFirst(HEADER_CONTENT_TYPE);
-                        final HttpType requestType = HttpType.ofContentType(contentType);
-                        set(Features.REQUEST_TYPE, parseResponseBody(requestType, newExchange.getRequestBody().readAllBytes()));
+        configuredValues.put(feature, arg);
+        if (feature == Features.PATH) {
+            updateRoute(arg);
+        }
 
-                        this.exchange = newExchange;
-                        triggerEvent(
-                                Events.REQUEST,
-                                () -> tryErrorIfNotClosed(STATUS_NOT_FOUND, newExchange)
-                        );
-                    }
-            );
+        return arg;
+    }
 
-            this.httpServer.setExecutor(scheduler);
-            this.httpServer.start();
-        } catch (IOException e) {
-            throw new UnexpectedException(e);
-        }
+    private void updateRoute(LuaValue pathValue) {
+        final String path = LuaUtil.isNil(pathValue) ? null : pathValue.checkjstring();
 
-        register(Methods.SEND_RESPONSE, this::onSendResponse);
-        register(Methods.CLEAR, this::onClear);
+        routeLock.lock();
+        try {
+            if (route != null) {
+                route.close();
+            }
+
+            route = virtualSystem.getHttpListenerServer()
+                                 .register(path, MAX_PENDING_REQUESTS, this::onRequest);
+        } finally {
+            routeLock.unlock();
+        }
     }
 
-    private static void tryErrorIfNotClosed(int statusCode, HttpExchange newExchange) {
-        if (newExchange == null) {
+    private void onRequest(Request request) throws Exception {
+        if (!isEventRegistered(Events.REQUEST)) {
+            request.respond(HttpListenerServer.STATUS_NOT_FOUND, Map.of(), null);
+
             return;
         }
 
-        try {
-            newExchange.sendResponseHeaders(statusCode, 0);
-        } catch (Exception e) {
-            // NOP
+        final RequestContext requestContext = new RequestContext(request);
+        requestContext.values.put(Features.METHOD, LuaValue.valueOf(request.getMethod()));
+
+        final URI uri = request.getUri();
+        requestContext.values.put(Features.PATH, LuaValue.valueOf(uri.getPath()));
+        requestContext.values.put(Features.QUERY, LuaUtil.fromObject(urlDecode(uri.getRawQuery())));
+        requestContext.values.put(Features.REQUEST_HEADERS, LuaUtil.fromObject(getHeaders(request.getHeaders())));
+
+        final String contentType = request.getHeaders().getFirst(HEADER_CONTENT_TYPE);
+        final HttpType requestType = HttpType.ofContentType(contentType);
+        requestContext.values.put(Features.REQUEST_TYPE, LuaValue.valueOf(requestType.ordinal()));
+        requestContext.values.put(Features.REQUEST_BODY, parseResponseBody(requestType, request.readBody()));
+
+        // latest request values are published as the raw feature values (e.g. for the state API),
+        // reads by the scripts outside of request handlers still return the configured values
+        for (Features feature : REQUEST_FEATURES) {
+            setValue(feature, requestContext.values.get(feature));
         }
 
-        IOUtil.closeQuietly(newExchange);
+        pendingRequests.add(requestContext);
+        triggerEvent(
+                Events.REQUEST, requestContext,
+                () -> {
+                    pendingRequests.remove(requestContext);
+
+                    request.respond(HttpListenerServer.STATUS_NOT_FOUND, Map.of(), null);
+                }
+        );
+    }
+
+    private Optional<RequestContext> currentRequest() {
+        return LuaScheduler.currentContext(RequestContext.class)
+                           .filter(requestContext -> requestContext.listener() == this);
     }
 
     private LuaValue onSendResponse(LuaValue bodyArg) {
-        final HttpExchange currentExchange = this.exchange;
+        // responses sent outside of REQUEST handlers refer to the latest pending request
+        final RequestContext requestContext = currentRequest()
+                .orElseGet(pendingRequests::peekLast);
+        if (requestContext == null) {
+            LOGGER.warn("{}.sendResponse() -- NO PENDING REQUEST", name);
+
+            return LuaValue.NIL;
+        }
 
+        pendingRequests.remove(requestContext);
+
+        final Request request = requestContext.request;
         try {
-            final HttpType responseType = HttpType.values()[get(Features.RESPONSE_TYPE).checkint()];
+            final HttpType responseType = HttpType.values()[requestContext.get(Features.RESPONSE_TYPE).checkint()];
 
             final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
             headers.put(HEADER_CONTENT_TYPE, responseType.contentType());
             headers.put(HEADER_SERVER, VERSION_INFO);
-            headers.putAll(LuaUtil.tableStringString(get(Features.RESPONSE_HEADERS)));
-
-            final Headers responseHeaders = currentExchange.getResponseHeaders();
-            for (Entry<String, String> entry : headers.entrySet()) {
-                responseHeaders.add(entry.getKey(), entry.getValue());
-            }
+            headers.putAll(LuaUtil.tableStringString(requestContext.get(Features.RESPONSE_HEADERS)));
 
             // TODO: create HttpListener v3 to support body as method parameter
-            final String responseBodyAsString = stringifyBody(responseType, LuaUtil.isNil(bodyArg) ? get(Features.RESPONSE_BODY) : bodyArg);
-            final byte[] responseAsBytes = responseBodyAsString.getBytes(StandardCharsets.UTF_8);
+            final String responseBodyAsString = stringifyBody(responseType, LuaUtil.isNil(bodyArg) ? requestContext.get(Features.RESPONSE_BODY) : bodyArg);
 
-            currentExchange.sendResponseHeaders(get(Features.RESPONSE_STATUS).checkint(), responseAsBytes.length);
-            try (OutputStream outputStream = currentExchange.getResponseBody()) {
-                outputStream.write(responseAsBytes);
-            }
+            request.respond(
+                    requestContext.get(Features.RESPONSE_STATUS).checkint(),
+                    headers,
+                    responseBodyAsString.getBytes(StandardCharsets.UTF_8)
+            );
         } catch (Exception e) {
             LOGGER.error(e.getMessage(), e);
         } finally {
-            tryErrorIfNotClosed(STATUS_INTERNAL_SERVER_ERROR, currentExchange);
+            request.respond(HttpListenerServer.STATUS_INTERNAL_SERVER_ERROR, Map.of(), null);
         }
 
         return LuaValue.NIL;
@@ -159,25 +208,71 @@ public class HttpListener extends BaseHttpObject {
 
     private LuaValue onClear() {
         // TODO: which exactly features to clear?
-        clear(Features.REQUEST_BODY);
-        clear(Features.REQUEST_HEADERS);
-        clear(Features.REQUEST_TYPE);
+        final Features[] clearedFeatures = {
+                Features.REQUEST_BODY, Features.REQUEST_HEADERS, Features.REQUEST_TYPE,
+                Features.RESPONSE_STATUS, Features.RESPONSE_HEADERS, Features.RESPONSE_BODY
+        };
+
+        final Optional<RequestContext> requestContext = currentRequest();
+        for (Features feature : clearedFeatures) {
+            if (requestContext.isPresent()) {
+                requestContext.get().values.put(feature, LuaValue.NIL);
+            } else {
+                configuredValues.remove(feature);
+            }
 
-        clear(Features.RESPONSE_STATUS);
-        clear(Features.RESPONSE_HEADERS);
-        clear(Features.RESPONSE_BODY);
+            clear(feature);
+        }
 
         return LuaValue.NIL;
     }
 
     @Override
     public void close() {
-        tryErrorIfNotClosed(STATUS_INTERNAL_SERVER_ERROR, exchange);
-        httpServer.stop(STOP_DELAY_SECONDS);
+        routeLock.lock();
+        try {
+            if (route != null) {
+                route.close();
+                route = null;
+            }
+        } finally {
+            routeLock.unlock();
+        }
+
+        RequestContext requestContext;
+        while ((requestContext = pendingRequests.poll()) != null) {
+            requestContext.request.respond(HttpListenerServer.STATUS_SERVICE_UNAVAILABLE, Map.of(), null);
+        }
 
         super.close();
     }
 
+    /**
+     * Feature values of a single request, falling back to the values configured on the listener
+     */
+    private class RequestContext {
+        private final Request request;
+
+        private final Map<Features, LuaValue> values = new EnumMap<>(Features.class);
+
+        private RequestContext(Request request) {
+            this.request = request;
+        }
+
+        private HttpListener listener() {
+            return HttpListener.this;
+        }
+
+        private LuaValue get(Features feature) {
+            return values.getOrDefault(feature, configuredValues.getOrDefault(feature, LuaValue.NIL));
+        }
+
+        @Override
+        public String toString() {
+            return request.getMethod() + " " + request.getUri();
+        }
+    }
+
     private enum Features implements IFeature {
         PATH(0),
         METHOD(1),
@@ -21,23 +21,24 @@ package pl.psobiech.opengr8on.vclu.system.objects;
 import org.luaj.vm2.LuaValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import pl.psobiech.opengr8on.util.FileUtil;
 import pl.psobiech.opengr8on.util.IOUtil;
 import pl.psobiech.opengr8on.util.ThreadUtil;
+import pl.psobiech.opengr8on.vclu.system.HttpResponseBody;
+import pl.psobiech.opengr8on.vclu.system.HttpResponseCache;
 import pl.psobiech.opengr8on.vclu.system.VirtualSystem;
 import pl.psobiech.opengr8on.vclu.util.LuaUtil;
 
-import java.net.*;
+import java.net.Inet4Address;
+import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpClient.Version;
 import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse;
-import java.net.http.HttpResponse.BodyHandlers;
-import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Optional;
 import java.util.TreeMap;
 import java.util.concurrent.Future;
 
@@ -48,9 +49,22 @@ public class HttpRequest extends BaseHttpObject {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(HttpRequest.class);
 
+    /**
+     * Response bodies up to this size are kept in memory, larger are written to a temporary file
+     */
+    private static final long DEFAULT_MAX_IN_MEMORY_BODY_BYTES = 256 * 1024;
+
+    private static final String CACHE_STATUS_HIT = "HIT";
+
+    private static final String CACHE_STATUS_MISS = "MISS";
+
+    private static final String CACHE_STATUS_REVALIDATED = "REVALIDATED";
+
     private final HttpClient httpClient;
 
-    private Future<HttpResponse<Path>> httpFuture;
+    private final HttpResponseCache cache;
+
+    private Future<HttpResponse<HttpResponseBody>> httpFuture;
 
     private Future<?> responseFuture;
 
@@ -60,14 +74,14 @@ public class HttpRequest extends BaseHttpObject {
                 Features.class, Methods.class, Events.class
         );
 
-        this.httpClient = HttpClient.newBuilder()
-                                    .localAddress(localAddress)
-                                    .proxy(ProxySelector.getDefault())
-                                    .cookieHandler(new CookieManager(null, CookiePolicy.ACCEPT_NONE))
-                                    .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT_MILLIS))
-                                    .executor(scheduler)
-                                    .version(Version.HTTP_2)
-                                    .build();
+        this.httpClient = virtualSystem.getHttpClientPool()
+                                       .get(localAddress, Duration.ofMillis(CONNECT_TIMEOUT_MILLIS), Version.HTTP_2);
+
+        this.cache = virtualSystem.getHttpResponseCache();
+
+        set(Features.MAX_IN_MEMORY_BODY_SIZE, LuaValue.valueOf(DEFAULT_MAX_IN_MEMORY_BODY_BYTES));
+        // caching is opt-in, by setting the maximum age (in seconds)
+        set(Features.CACHE_MAX_AGE, LuaValue.valueOf(0));
 
         register(Features.ACTIVE, () ->
                 LuaValue.valueOf(responseFuture != null && !responseFuture.isDone())
@@ -99,41 +113,73 @@ public class HttpRequest extends BaseHttpObject {
         final String requestBodyAsString = stringifyBody(requestType, LuaUtil.isNil(bodyArg) ? get(Features.REQUEST_BODY) : bodyArg);
 
         final java.net.http.HttpRequest request = createRequest(requestType, requestBodyAsString);
+        final long maxInMemoryBodyBytes = get(Features.MAX_IN_MEMORY_BODY_SIZE).checklong();
+
+        final Duration cacheMaxAge = Duration.ofSeconds(get(Features.CACHE_MAX_AGE).optlong(0));
+        final Optional<HttpResponseCache.Key> cacheKey = cacheMaxAge.isPositive() ? HttpResponseCache.key(request) : Optional.empty();
 
         this.responseFuture = scheduler.submit(
                 () -> {
-                    final Path temporaryFile = FileUtil.temporaryFile();
+                    HttpResponseBody responseBody = null;
                     try {
+                        final HttpResponseCache.Entry cachedEntry = cacheKey.flatMap(cache::get)
+                                                                            .orElse(null);
+                        if (cachedEntry != null && cachedEntry.isFresh(cacheMaxAge)) {
+                            cache.recordHit();
+
+                            LOGGER.trace("HTTP Response (cached) {} {}", request.method(), request.uri());
+
+                            onResponse(cachedEntry, CACHE_STATUS_HIT);
+
+                            return;
+                        }
+
+                        final java.net.http.HttpRequest conditionalRequest = cachedEntry == null
+                                                                             ? request : HttpResponseCache.withValidators(request, cachedEntry);
+
                         LOGGER.trace("HTTP Request {} {} / BODY: {}", request.method(), request.uri(), requestBodyAsString);
 
-                        this.httpFuture = httpClient.sendAsync(request, BodyHandlers.ofFile(temporaryFile));
+                        this.httpFuture = httpClient.sendAsync(conditionalRequest, HttpResponseBody.handler(maxInMemoryBodyBytes));
 
                         triggerEvent(Events.REQUEST_SENT);
 
-                        final HttpResponse<Path> response = httpFuture.get();
+                        final HttpResponse<HttpResponseBody> response = httpFuture.get();
+                        responseBody = response.body();
+
                         final int statusCode = response.statusCode();
                         final HttpHeaders headers = response.headers();
-                        final HttpType responseType = headers.firstValue(HEADER_CONTENT_TYPE)
-                                                             .map(HttpType::ofContentType)
-                                                             .orElse(HttpType.OTHER);
-
-                        set(Features.RESPONSE_STATUS, LuaValue.valueOf(statusCode));
-                        set(Features.RESPONSE_TYPE, LuaValue.valueOf(responseType.ordinal()));
-                        set(Features.RESPONSE_HEADERS, LuaUtil.fromObject(getHeaders(headers)));
-                        final LuaValue responseBodyValue = parseResponseBody(responseType, response.body());
-                        set(Features.RESPONSE_BODY, responseBodyValue);
-
-                        LOGGER.trace("HTTP Response {} {} / BODY: {}", request.method(), request.uri(), LuaUtil.stringifyRaw(responseBodyValue));
-
-                        triggerEvent(Events.RESPONSE);
+                        if (cachedEntry != null && statusCode == HttpResponseCache.STATUS_NOT_MODIFIED) {
+                            onResponse(cache.revalidated(cacheKey.get(), cachedEntry, headers), CACHE_STATUS_REVALIDATED);
+
+                            return;
+                        }
+
+                        final Map<String, String> headersMap = getHeaders(headers);
+                        final String cacheStatus;
+                        if (cacheKey.isPresent()) {
+                            cache.recordMiss();
+                            cacheStatus = CACHE_STATUS_MISS;
+
+                            final Optional<byte[]> responseBytes = responseBody.getBytes();
+                            if (responseBytes.isPresent()) {
+                                cache.put(cacheKey.get(), statusCode, headers, headersMap, responseBytes.get(), cacheMaxAge);
+                            } else {
+                                cache.remove(cacheKey.get());
+                            }
+                        } else {
+                            cacheStatus = null;
+                        }
+
+                        onResponse(statusCode, headersMap, headers.firstValue(HEADER_CONTENT_TYPE).orElse(null), responseBody, cacheStatus);
                     } catch (Exception e) {
                         LOGGER.error("HTTP Error {} {}", request.method(), request.uri(), e);
 
                         clear(Features.RESPONSE_STATUS);
                         clear(Features.RESPONSE_HEADERS);
                         clear(Features.RESPONSE_BODY);
+                        clear(Features.CACHE_STATUS);
                     } finally {
-                        FileUtil.deleteQuietly(temporaryFile);
+                        IOUtil.closeQuietly(responseBody);
                     }
                 }
         );
@@ -141,6 +187,33 @@ public class HttpRequest extends BaseHttpObject {
         return LuaValue.NIL;
     }
 
+    private void onResponse(HttpResponseCache.Entry cachedEntry, String cacheStatus) {
+        final Map<String, String> headers = cachedEntry.getHeaders();
+        final String contentType = headers.entrySet()
+                                          .stream()
+                                          .filter(entry -> entry.getKey().equalsIgnoreCase(HEADER_CONTENT_TYPE))
+                                          .map(Entry::getValue)
+                                          .findFirst()
+                                          .orElse(null);
+
+        onResponse(cachedEntry.getStatusCode(), headers, contentType, HttpResponseBody.of(cachedEntry.getBody()), cacheStatus);
+    }
+
+    private void onResponse(int statusCode, Map<String, String> headers, String contentType, HttpResponseBody responseBody, String cacheStatus) {
+        final HttpType responseType = contentType == null ? HttpType.OTHER : HttpType.ofContentType(contentType);
+
+        set(Features.RESPONSE_STATUS, LuaValue.valueOf(statusCode));
+        set(Features.RESPONSE_TYPE, LuaValue.valueOf(responseType.ordinal()));
+        set(Features.RESPONSE_HEADERS, LuaUtil.fromObject(headers));
+        final LuaValue responseBodyValue = parseResponseBody(responseType, responseBody);
+        set(Features.RESPONSE_BODY, responseBodyValue);
+        set(Features.CACHE_STATUS, cacheStatus == null ? LuaValue.NIL : LuaValue.valueOf(cacheStatus));
+
+        LOGGER.trace("HTTP Response {} / BODY: {}", statusCode, LuaUtil.stringifyRaw(responseBodyValue));
+
+        triggerEvent(Events.RESPONSE);
+    }
+
     private java.net.http.HttpRequest createRequest(HttpType requestType, String requestBodyAsString) {
         final String host = get(Features.HOST).checkjstring();
         final String path = get(Features.PATH).checkjstring();
@@ -204,8 +277,6 @@ public class HttpRequest extends BaseHttpObject {
 
         ThreadUtil.cancel(httpFuture);
         ThreadUtil.cancel(responseFuture);
-
-        IOUtil.closeQuietly(httpClient);
     }
 
     private enum Features implements IFeature {
@@ -222,6 +293,9 @@ public class HttpRequest extends BaseHttpObject {
         RESPONSE_BODY(10),
         RESPONSE_STATUS(11),
         ACTIVE(12),
+        MAX_IN_MEMORY_BODY_SIZE(13),
+        CACHE_MAX_AGE(14),
+        CACHE_STATUS(15),
         //
         ;
 
@@ -20,32 +20,38 @@ package pl.psobiech.opengr8on.vclu.system.objects;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import org.eclipse.paho.client.mqttv3.MqttException;
 import org.luaj.vm2.LuaValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import pl.psobiech.opengr8on.exceptions.UncheckedInterruptedException;
 import pl.psobiech.opengr8on.exceptions.UnexpectedException;
 import pl.psobiech.opengr8on.util.ObjectMapperFactory;
 import pl.psobiech.opengr8on.vclu.MqttClient;
+import pl.psobiech.opengr8on.vclu.mqtt.MqttMessageHandler;
 import pl.psobiech.opengr8on.vclu.system.VirtualSystem;
+import pl.psobiech.opengr8on.vclu.system.lua.LuaScheduler;
 import pl.psobiech.opengr8on.vclu.util.LuaUtil;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashSet;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.CompletableFuture;
 
-public class MqttTopic extends VirtualObject {
+public class MqttTopic extends VirtualObject implements MqttMessageHandler {
     public static final int INDEX = 999;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MqttTopic.class);
 
+    private static final int DEFAULT_MAX_QUEUED_MESSAGES = 256;
+
     private final Set<String> topicFilters = new HashSet<>();
 
-    private final LinkedBlockingDeque<Map.Entry<String, Message>> messageQueue = new LinkedBlockingDeque<>();
+    private final Deque<Message> messageQueue = new ArrayDeque<>();
+
+    private boolean dispatching;
 
     private MqttClient mqttClient;
 
@@ -55,6 +61,9 @@ public class MqttTopic extends VirtualObject {
                 Features.class, Methods.class, Events.class
         );
 
+        set(Features.MAX_QUEUED_MESSAGES, LuaValue.valueOf(DEFAULT_MAX_QUEUED_MESSAGES));
+        set(Features.OVERFLOW_POLICY, LuaValue.valueOf(OverflowPolicy.DROP_OLDEST.value));
+
         register(Methods.SUBSCRIBE, this::subscribe);
         register(Methods.UNSUBSCRIBE, this::unsubscribe);
         register(Methods.PUBLISH, this::publish);
@@ -88,6 +97,13 @@ public class MqttTopic extends VirtualObject {
 
     public void setMqttClient(MqttClient mqttClient) {
         this.mqttClient = mqttClient;
+        if (mqttClient == null) {
+            return;
+        }
+
+        for (String topicFilter : topicFilters) {
+            mqttClient.subscribe(topicFilter, this);
+        }
     }
 
     @Override
@@ -103,37 +119,25 @@ public class MqttTopic extends VirtualObject {
     }
 
     private LuaValue subscribe(LuaValue arg1) {
-        try {
-            final String topic = arg1.checkjstring();
+        final String topic = arg1.checkjstring();
 
-            topicFilters.add(topic);
-            if (mqttClient != null) {
-                mqttClient.subscribe(topic);
-            }
-
-            return LuaValue.TRUE;
-        } catch (MqttException e) {
-            LOGGER.error(e.getMessage(), e);
+        topicFilters.add(topic);
+        if (mqttClient != null) {
+            mqttClient.subscribe(topic, this);
         }
 
-        return LuaValue.FALSE;
+        return LuaValue.TRUE;
     }
 
     private LuaValue unsubscribe(LuaValue arg1) {
-        try {
-            final String topic = arg1.checkjstring();
-
-            topicFilters.remove(topic);
-            if (mqttClient != null) {
-                mqttClient.unsubscribe(topic);
-            }
+        final String topic = arg1.checkjstring();
 
-            return LuaValue.TRUE;
-        } catch (MqttException e) {
-            LOGGER.error(e.getMessage(), e);
+        topicFilters.remove(topic);
+        if (mqttClient != null) {
+            mqttClient.unsubscribe(topic, this);
         }
 
-        return LuaValue.FALSE;
+        return LuaValue.TRUE;
     }
 
     private LuaValue publish(LuaValue topicArg, LuaValue messageArg) {
@@ -157,24 +161,107 @@ public class MqttTopic extends VirtualObject {
             mqttClient.publish(topic, payload);
 
             return LuaValue.TRUE;
-        } catch (IOException | MqttException e) {
+        } catch (IOException e) {
             LOGGER.error(e.getMessage(), e);
         }
 
         return LuaValue.FALSE;
     }
 
+    /**
+     * Queues the message and dispatches it to the MESSAGE event handlers as soon as possible,
+     * messages are delivered one at a time (in the order of arrival) and acknowledged after their handlers complete
+     */
+    @Override
     public void onMessage(String topic, byte[] payload, Runnable acknowledged) {
-        if (!isSubscribedTo(topic)) {
-            return;
+        final Message message = new Message(topic, payload, acknowledged);
+
+        final Message droppedMessage;
+        synchronized (messageQueue) {
+            if (messageQueue.size() < getMaxQueuedMessages()) {
+                droppedMessage = null;
+                messageQueue.addLast(message);
+            } else if (getOverflowPolicy() == OverflowPolicy.DROP_NEWEST) {
+                droppedMessage = message;
+            } else {
+                droppedMessage = messageQueue.pollFirst();
+                messageQueue.addLast(message);
+            }
+
+            if (!dispatching) {
+                dispatching = true;
+                scheduler.submit(this::dispatch);
+            }
+        }
+
+        if (droppedMessage != null) {
+            LOGGER.warn("{} message queue is full, dropped message from topic {}", name, droppedMessage.topic());
+
+            droppedMessage.acknowledgement()
+                          .run();
+        }
+    }
+
+    private void dispatch() {
+        while (true) {
+            final Message message;
+            synchronized (messageQueue) {
+                message = messageQueue.pollFirst();
+                if (message == null) {
+                    dispatching = false;
+
+                    return;
+                }
+            }
+
+            try {
+                deliver(message);
+            } catch (UncheckedInterruptedException e) {
+                synchronized (messageQueue) {
+                    dispatching = false;
+                }
+
+                throw e;
+            } catch (Exception e) {
+                LOGGER.error(e.getMessage(), e);
+            } finally {
+                message.acknowledgement()
+                       .run();
+            }
+        }
+    }
+
+    private void deliver(Message message) {
+        final CompletableFuture<Void> completed = new CompletableFuture<>();
+
+        awaitEventTrigger(Events.MESSAGE);
+        set(Features.TOPIC, LuaValue.valueOf(message.topic()));
+        set(Features.MESSAGE, messageFromPayload(message));
+        if (!triggerEvent(Events.MESSAGE, () -> completed.complete(null)) && isEventRegistered(Events.MESSAGE)) {
+            // handlers were not started
+            completed.complete(null);
         }
 
-        while (!messageQueue.offer(Map.entry(topic, new Message(payload, acknowledged)))) {
-            // TODO: retry/fail logic
-            Thread.yield();
+        try {
+            LuaScheduler.await(completed);
+        } finally {
+            clearMessage();
         }
     }
 
+    private int getMaxQueuedMessages() {
+        final LuaValue value = get(Features.MAX_QUEUED_MESSAGES);
+        if (!value.isnumber()) {
+            return DEFAULT_MAX_QUEUED_MESSAGES;
+        }
+
+        return Math.max(1, value.toint());
+    }
+
+    private OverflowPolicy getOverflowPolicy() {
+        return OverflowPolicy.byValue(get(Features.OVERFLOW_POLICY).optint(OverflowPolicy.DROP_OLDEST.value));
+    }
+
     private boolean isSubscribedTo(String topic) {
         for (String topicFilter : topicFilters) {
             if (org.eclipse.paho.client.mqttv3.MqttTopic.isMatched(topicFilter, topic)) {
@@ -189,28 +276,6 @@ public class MqttTopic extends VirtualObject {
         return topicFilters;
     }
 
-    @Override
-    public void loop() {
-        final String currentPayload = getMessage();
-        if (currentPayload == null || currentPayload.isEmpty()) {
-            Entry<String, Message> entry;
-            while ((entry = messageQueue.poll()) != null) {
-                final String topic = entry.getKey();
-                final Message message = entry.getValue();
-
-                awaitEventTrigger(Events.MESSAGE);
-                set(Features.TOPIC, LuaValue.valueOf(topic));
-                set(Features.MESSAGE, messageFromPayload(message));
-                if (triggerEvent(Events.MESSAGE, this::clearMessage)) {
-                    message.acknowledgement()
-                           .run();
-                }
-
-                Thread.yield();
-            }
-        }
-    }
-
     private void clearTopic() {
         clear(Features.TOPIC);
     }
@@ -219,10 +284,6 @@ public class MqttTopic extends VirtualObject {
         return LuaUtil.stringifyRaw(get(Features.TOPIC));
     }
 
-    private String getMessage() {
-        return LuaUtil.stringifyRaw(get(Features.MESSAGE));
-    }
-
     private void clearMessage() {
         clear(Features.MESSAGE);
     }
@@ -230,6 +291,8 @@ public class MqttTopic extends VirtualObject {
     private enum Features implements IFeature {
         TOPIC(0),
         MESSAGE(1),
+        MAX_QUEUED_MESSAGES(2),
+        OVERFLOW_POLICY(3),
         //
         ;
 
@@ -282,6 +345,33 @@ public class MqttTopic extends VirtualObject {
         }
     }
 
-    private record Message(byte[] payload, Runnable acknowledgement) {
+    public enum OverflowPolicy {
+        DROP_OLDEST(0),
+        DROP_NEWEST(1),
+        //
+        ;
+
+        private final int value;
+
+        OverflowPolicy(int value) {
+            this.value = value;
+        }
+
+        public static OverflowPolicy byValue(int value) {
+            for (OverflowPolicy policy : values()) {
+                if (policy.value == value) {
+                    return policy;
+                }
+            }
+
+            return DROP_OLDEST;
+        }
+
+        public int value() {
+            return value;
+        }
+    }
+
+    private record Message(String topic, byte[] payload, Runnable acknowledgement) {
     }
 }
@@ -21,20 +21,18 @@ package pl.psobiech.opengr8on.vclu.system.objects;
 import org.luaj.vm2.LuaValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import pl.psobiech.opengr8on.exceptions.UnexpectedException;
 import pl.psobiech.opengr8on.util.FileUtil;
-import pl.psobiech.opengr8on.util.ObjectMapperFactory;
+import pl.psobiech.opengr8on.util.IOUtil;
+import pl.psobiech.opengr8on.vclu.storage.StorageLog;
 import pl.psobiech.opengr8on.vclu.system.VirtualSystem;
 import pl.psobiech.opengr8on.vclu.system.lua.fn.LuaOneArgFunction;
 import pl.psobiech.opengr8on.vclu.util.LuaUtil;
 
-import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
@@ -44,11 +42,25 @@ public class Storage extends VirtualObject {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Storage.class);
 
-    private final Path storagePath;
+    private static final long LOG_COMPACTION_THRESHOLD_BYTES = 64 * 1024;
+
+    private static final long STORE_DELAY_MILLIS = 1000L;
+
+    private final StorageLog storageLog;
 
     private final ReentrantLock variablesLock = new ReentrantLock();
 
-    private final Map<String, LuaValue> variables = new HashMap<>();
+    /**
+     * Stored variables (converted from lua values), by name, the source of the storage log snapshots
+     */
+    private final Map<String, Object> variables = new HashMap<>();
+
+    /**
+     * Changed variables, that are not yet stored
+     */
+    private final Map<String, Object> dirtyVariables = new HashMap<>();
+
+    private boolean storeScheduled;
 
     public Storage(VirtualSystem virtualSystem, String name, Path storageRootPath) {
         super(
@@ -58,7 +70,11 @@ public class Storage extends VirtualObject {
 
         FileUtil.mkdir(storageRootPath);
 
-        this.storagePath = storageRootPath.resolve("storage.json");
+        this.storageLog = new StorageLog(
+                storageRootPath.resolve("storage.json"), storageRootPath.resolve("storage.log"),
+                LOG_COMPACTION_THRESHOLD_BYTES,
+                this::getStoredVariables
+        );
 
         set(Features.STORAGE_UTILIZATION, LuaValue.valueOf(2));
 
@@ -67,11 +83,14 @@ public class Storage extends VirtualObject {
 
             variablesLock.lock();
             try {
-                variables.put(variableName, LuaValue.NIL);
+                variables.putIfAbsent(variableName, null);
             } finally {
                 variablesLock.unlock();
             }
 
+            virtualSystem.watchGlobal(variableName, this::onAssigned)
+                         .ifPresent(value -> onAssigned(variableName, value));
+
             return LuaValue.NIL;
         });
 
@@ -80,14 +99,16 @@ public class Storage extends VirtualObject {
             try {
                 final Set<String> variableNames = new HashSet<>(variables.keySet());
                 for (String variableName : variableNames) {
-                    variables.put(variableName, LuaValue.NIL);
+                    variables.put(variableName, null);
                 }
-
-                FileUtil.truncate(storagePath);
+                dirtyVariables.clear();
             } finally {
                 variablesLock.unlock();
             }
 
+            // outside the variables lock, since the storage log obtains the variables (during the compaction)
+            storageLog.erase();
+
             return LuaValue.NIL;
         });
     }
@@ -95,74 +116,77 @@ public class Storage extends VirtualObject {
     @Override
     public void setup() {
         restore();
-
-        scheduler.scheduleAtFixedRate(this::updateAndStore, 1, 1, TimeUnit.SECONDS);
     }
 
-    @SuppressWarnings("unchecked")
     private void restore() {
-        if (!Files.exists(storagePath)) {
-            return;
+        final Map<String, Object> storedVariables = storageLog.restore();
+
+        variablesLock.lock();
+        try {
+            variables.putAll(storedVariables);
+        } finally {
+            variablesLock.unlock();
         }
+    }
 
+    private Map<String, Object> getStoredVariables() {
         variablesLock.lock();
         try {
-            final Map<String, Object> storedVariables = ObjectMapperFactory.JSON.readValue(storagePath.toFile(), HashMap.class);
-            for (Entry<String, Object> entry : storedVariables.entrySet()) {
-                variables.put(entry.getKey(), LuaUtil.fromObject(entry.getValue()));
-            }
-        } catch (IOException e) {
-            throw new UnexpectedException(e);
+            return new HashMap<>(variables);
         } finally {
             variablesLock.unlock();
         }
     }
 
-    private void updateAndStore() {
-        boolean changed = false;
-        final Map<String, Object> storedVariables = new HashMap<>();
+    /**
+     * Marks the variable as dirty (executed by the assigning script), the changes are stored after a short delay
+     */
+    private void onAssigned(String variableName, LuaValue value) {
+        // converted now, since the script might modify the value later on
+        final Object storedValue = LuaUtil.asObject(value);
 
         variablesLock.lock();
         try {
-            final Set<String> variableNames = new HashSet<>(variables.keySet());
-            for (String variableName : variableNames) {
-                final LuaValue value = virtualSystem.luaCall(variableName);
-                if (!value.equals(variables.put(variableName, value))) {
-                    changed = true;
-                }
+            if (Objects.equals(storedValue, variables.put(variableName, storedValue))) {
+                return;
+            }
 
-                variables.put(variableName, value);
-                storedVariables.put(variableName, LuaUtil.asObject(value));
+            dirtyVariables.put(variableName, storedValue);
+            if (!storeScheduled) {
+                storeScheduled = true;
+
+                scheduler.schedule(this::store, STORE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
             }
         } finally {
             variablesLock.unlock();
         }
-
-        if (changed) {
-            try {
-                ObjectMapperFactory.JSON.writeValue(storagePath.toFile(), storedVariables);
-            } catch (IOException e) {
-                throw new UnexpectedException(e);
-            }
-        }
     }
 
+    /**
+     * Appends only the dirty variables to the storage log
+     */
     private void store() {
+        final Map<String, Object> changedVariables;
+
         variablesLock.lock();
         try {
-            final Map<String, Object> storedVariables = new HashMap<>();
-            for (Entry<String, LuaValue> entry : variables.entrySet()) {
-                final String variableName = entry.getKey();
+            changedVariables = new HashMap<>(dirtyVariables);
+            dirtyVariables.clear();
 
-                storedVariables.put(variableName, LuaUtil.asObject(entry.getValue()));
-            }
-
-            ObjectMapperFactory.JSON.writeValue(storagePath.toFile(), storedVariables);
-        } catch (IOException e) {
-            throw new UnexpectedException(e);
+            storeScheduled = false;
         } finally {
             variablesLock.unlock();
         }
+
+        storageLog.append(changedVariables);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+
+        store();
+        IOUtil.closeQuietly(storageLog);
     }
 
     private enum Features implements IFeature {
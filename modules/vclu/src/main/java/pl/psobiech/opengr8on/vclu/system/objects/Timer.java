@@ -19,31 +19,57 @@
 package pl.psobiech.opengr8on.vclu.system.objects;
 
 import org.luaj.vm2.LuaValue;
-import pl.psobiech.opengr8on.util.ThreadUtil;
+import pl.psobiech.opengr8on.vclu.system.TimingWheel;
 import pl.psobiech.opengr8on.vclu.system.VirtualSystem;
 import pl.psobiech.opengr8on.vclu.util.LuaUtil;
 
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Timer driven by the shared timing wheel, deadlines are absolute (System.nanoTime()), so neither the intervals nor pause/resume accumulate drift.
+ * State is updated under the lock, events are triggered by the scheduler (in the order of the state changes).
+ */
 public class Timer extends VirtualObject {
     public static final int INDEX = 6;
 
-    private final AtomicLong counter = new AtomicLong(0);
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final TimingWheel timingWheel;
+
+    private TimingWheel.Timeout timeout;
+
+    /**
+     * Incremented whenever the timeout is scheduled or cancelled, timeouts that already expired (so could not be cancelled) compare it to
+     * detect that they are stale (guarded by the lock)
+     */
+    private long timeoutGeneration;
 
-    private volatile Future<?> timerFuture = null;
+    private long periodNanos;
 
-    private volatile long lastLoopTime;
+    private long deadlineNanos;
+
+    /**
+     * Time left, while the timer is paused
+     */
+    private long remainingNanos;
 
     private volatile State state = State.STOPPED;
 
+    /**
+     * Completes after the last fired events were triggered (guarded by the lock)
+     */
+    private CompletableFuture<Void> firedEvents = CompletableFuture.completedFuture(null);
+
     public Timer(VirtualSystem virtualSystem, String name) {
         super(
                 virtualSystem, name,
                 Features.class, Methods.class, Events.class
         );
 
+        this.timingWheel = virtualSystem.getTimingWheel();
+
         register(Features.TIME, (arg1) -> {
             if (LuaUtil.isNil(arg1)) {
                 return getValue(Features.TIME);
@@ -51,7 +77,7 @@ public class Timer extends VirtualObject {
 
             if (state == State.COUNTING) {
                 restartTimer(
-                        TimeUnit.MILLISECONDS.toNanos(get(Features.TIME).checklong())
+                        TimeUnit.MILLISECONDS.toNanos(arg1.checklong())
                 );
             }
 
@@ -60,61 +86,175 @@ public class Timer extends VirtualObject {
         set(Features.MODE, LuaValue.ZERO);
 
         register(Features.STATE, () -> LuaValue.valueOf(state.ordinal()));
-        register(Features.VALUE, () -> LuaValue.valueOf(TimeUnit.NANOSECONDS.toMillis(counter.get())));
+        register(Features.VALUE, () -> LuaValue.valueOf(TimeUnit.NANOSECONDS.toMillis(getRemainingNanos())));
 
         register(Methods.START, this::onStart);
         register(Methods.STOP, this::onStop);
         register(Methods.PAUSE, this::onPause);
     }
 
+    private long getTimeNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(getValue(Features.TIME).optlong(0));
+    }
+
+    private long getRemainingNanos() {
+        lock.lock();
+        try {
+            return switch (state) {
+                case COUNTING -> Math.max(0, deadlineNanos - System.nanoTime());
+                case PAUSED -> remainingNanos;
+                case STOPPED -> getTimeNanos();
+            };
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private LuaValue onStart() {
-        restartTimer(
-                TimeUnit.MILLISECONDS.toNanos(get(Features.TIME).checklong())
-        );
+        lock.lock();
+        try {
+            restartTimer(getTimeNanos());
 
-        state = State.COUNTING;
-        triggerEvent(Events.START);
+            state = State.COUNTING;
+            fireEvents(Events.START);
+        } finally {
+            lock.unlock();
+        }
 
         return LuaValue.NIL;
     }
 
+    /**
+     * Queues the events to be triggered by the scheduler, after the previously fired events (should be called while holding the lock,
+     * never blocks)
+     */
+    private void fireEvents(Events... events) {
+        firedEvents = firedEvents.handleAsync(
+                (ignored, throwable) -> {
+                    for (Events event : events) {
+                        triggerEvent(event);
+                    }
+
+                    return null;
+                },
+                scheduler
+        );
+    }
+
     private void restartTimer(long time) {
-        ThreadUtil.cancel(timerFuture);
+        lock.lock();
+        try {
+            cancelTimeout();
+
+            periodNanos = time;
+            schedule(System.nanoTime() + time);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        this.counter.set(time);
+    private void schedule(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
 
-        this.lastLoopTime = System.nanoTime();
+        final long generation = ++timeoutGeneration;
+        this.timeout = timingWheel.schedule(() -> onTimeout(generation), deadlineNanos);
+    }
 
-        this.timerFuture = this.scheduler.scheduleAtFixedRate(
-                new TimerTask(time),
-                time, time, TimeUnit.NANOSECONDS
-        );
+    private void cancelTimeout() {
+        timeoutGeneration++;
+
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
     }
 
     private LuaValue onStop() {
-        state = State.STOPPED;
+        lock.lock();
+        try {
+            stop();
 
-        ThreadUtil.cancel(timerFuture);
+            fireEvents(Events.STOP);
+        } finally {
+            lock.unlock();
+        }
 
-        counter.set(TimeUnit.MILLISECONDS.toNanos(get(Features.TIME).checklong()));
+        return LuaValue.NIL;
+    }
 
-        triggerEvent(Events.STOP);
+    private void stop() {
+        state = State.STOPPED;
 
-        return LuaValue.NIL;
+        cancelTimeout();
     }
 
     private LuaValue onPause() {
-        if (state == State.PAUSED) {
-            lastLoopTime = System.nanoTime();
-            state = State.COUNTING;
-        } else if (state == State.COUNTING) {
-            state = State.PAUSED;
-            triggerEvent(Events.PAUSE);
+        lock.lock();
+        try {
+            if (state == State.PAUSED) {
+                schedule(System.nanoTime() + remainingNanos);
+
+                state = State.COUNTING;
+            } else if (state == State.COUNTING) {
+                remainingNanos = Math.max(0, deadlineNanos - System.nanoTime());
+                cancelTimeout();
+
+                state = State.PAUSED;
+                fireEvents(Events.PAUSE);
+            }
+        } finally {
+            lock.unlock();
         }
 
         return LuaValue.NIL;
     }
 
+    /**
+     * Executed by the timing wheel thread
+     *
+     * @param generation timeout generation, when the timeout was scheduled
+     */
+    private void onTimeout(long generation) {
+        lock.lock();
+        try {
+            // the timeout expired while the timer was restarted, paused or stopped
+            if (generation != timeoutGeneration || state != State.COUNTING) {
+                return;
+            }
+
+            if (periodNanos > 0 && getValue(Features.MODE).checkint() == Mode.INTERVAL.mode()) {
+                // next deadline is based on the previous one (skipping the periods that were missed entirely)
+                final long now = System.nanoTime();
+                long nextDeadlineNanos = deadlineNanos + periodNanos;
+                if (nextDeadlineNanos <= now) {
+                    nextDeadlineNanos += ((now - nextDeadlineNanos) / periodNanos + 1) * periodNanos;
+                }
+
+                schedule(nextDeadlineNanos);
+
+                fireEvents(Events.TIMER);
+            } else {
+                stop();
+
+                fireEvents(Events.STOP, Events.TIMER);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            cancelTimeout();
+        } finally {
+            lock.unlock();
+        }
+
+        super.close();
+    }
+
     private enum Mode {
         COUNT_DOWN(0),
         INTERVAL(1),
@@ -198,34 +338,4 @@ public class Timer extends VirtualObject {
             return address;
         }
     }
-
-    private class TimerTask implements Runnable {
-        private final long time;
-
-        private TimerTask(long time) {
-            this.time = time;
-        }
-
-        @Override
-        public void run() {
-            if (state != State.COUNTING) {
-                return;
-            }
-
-            final long now = System.nanoTime();
-            final long delta = now - lastLoopTime;
-            lastLoopTime = now;
-
-            final long value = counter.addAndGet(-delta);
-            if (value <= 0) {
-                if (get(Features.MODE).checkint() == Mode.INTERVAL.mode()) {
-                    counter.set(time - (value % time));
-                } else {
-                    onStop();
-                }
-
-                triggerEvent(Events.TIMER);
-            }
-        }
-    }
 }
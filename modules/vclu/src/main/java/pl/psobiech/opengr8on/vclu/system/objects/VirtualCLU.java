@@ -22,13 +22,13 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
-import org.eclipse.paho.client.mqttv3.MqttException;
 import org.luaj.vm2.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pl.psobiech.opengr8on.exceptions.UnexpectedException;
 import pl.psobiech.opengr8on.util.ObjectMapperFactory;
 import pl.psobiech.opengr8on.vclu.MqttClient;
+import pl.psobiech.opengr8on.vclu.mqtt.MqttCommandQueue;
 import pl.psobiech.opengr8on.vclu.mqtt.MqttDiscovery;
 import pl.psobiech.opengr8on.vclu.mqtt.MqttDiscoveryDevice;
 import pl.psobiech.opengr8on.vclu.mqtt.MqttDiscoveryOrigin;
@@ -53,6 +53,7 @@ import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 public class VirtualCLU extends VirtualObject implements Closeable {
@@ -62,6 +63,8 @@ public class VirtualCLU extends VirtualObject implements Closeable {
 
     private static final int TIME_CHANGE_EVENT_TRIGGER_DELTA_SECONDS = 60;
 
+    private static final int DEFAULT_STATE_API_PORT = 8080;
+
     private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss");
 
     private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
@@ -97,6 +100,9 @@ public class VirtualCLU extends VirtualObject implements Closeable {
         register(Features.TIMESTAMP, this::getCurrentEpochSeconds);
         set(Features.TIME_ZONE, LuaValue.valueOf(CLUTimeZone.UTC.value()));
 
+        markSecret(Features.MQTT_URL);
+        markSecret(Features.STATE_API_TOKEN);
+
         set(Features.MQTT_URL, LuaValue.valueOf("ssl://localhost:8883"));
         set(Features.USE_MQTT, LuaValue.valueOf(false));
         set(Features.MQTT_CONNECTION, LuaValue.valueOf(false));
@@ -105,6 +111,9 @@ public class VirtualCLU extends VirtualObject implements Closeable {
         set(Features.MQTT_DISCOVERY_PREFIX, LuaValue.valueOf("homeassistant"));
         set(Features.MQTT_MESSAGE, LuaValue.tableOf());
 
+        set(Features.USE_STATE_API, LuaValue.valueOf(false));
+        set(Features.STATE_API_PORT, LuaValue.valueOf(DEFAULT_STATE_API_PORT));
+
         register(Methods.ADD_TO_LOG, this::addToLog);
         register(Methods.CLEAR_LOG, this::clearLog);
 
@@ -139,6 +148,28 @@ public class VirtualCLU extends VirtualObject implements Closeable {
         return LuaUtil.stringifyRaw(get(Features.MQTT_URL));
     }
 
+    public boolean isStateApiEnabled() {
+        return LuaUtil.trueish(
+                get(Features.USE_STATE_API)
+        );
+    }
+
+    public int getStateApiPort() {
+        return get(Features.STATE_API_PORT).checkint();
+    }
+
+    /**
+     * @return token required by the state API, or null if it is not configured (the state API is not started without it)
+     */
+    public String getStateApiToken() {
+        final LuaValue token = get(Features.STATE_API_TOKEN);
+        if (LuaUtil.isNil(token) || token.checkjstring().isEmpty()) {
+            return null;
+        }
+
+        return token.checkjstring();
+    }
+
     public void setMqttConnected(boolean value) {
         set(Features.MQTT_CONNECTION, LuaValue.valueOf(value));
     }
@@ -275,18 +306,19 @@ public class VirtualCLU extends VirtualObject implements Closeable {
         );
 
         try {
-            mqttClient
-                    .publish(
+            mqttClient.publishRetainedIfChanged(
+                    Map.of(
                             rootTopic + "/config",
-                            ObjectMapperFactory.JSON.writeValueAsBytes(discoveryMessage),
-                            true
-                    );
-        } catch (MqttException | JsonProcessingException e) {
+                            ObjectMapperFactory.JSON.writeValueAsBytes(discoveryMessage)
+                    )
+            );
+        } catch (JsonProcessingException e) {
             throw new UnexpectedException("Could not publish discovery message for " + discoveryMessage.getUniqueId(), e);
         }
 
-        mqttClient.subscribe(
-                rootTopic + "/set",
+        // the LUA event is awaited outside the MQTT callback, superseded commands are coalesced
+        final MqttCommandQueue<Void> commandQueue = new MqttCommandQueue<>(
+                scheduler,
                 bytes -> {
                     try {
                         final JsonNode jsonNode = ObjectMapperFactory.JSON.readTree(bytes);
@@ -300,12 +332,16 @@ public class VirtualCLU extends VirtualObject implements Closeable {
                             triggerEvent(Events.MQTT_RECEIVE_VALUE);
                             awaitEventTrigger(Events.MQTT_RECEIVE_VALUE);
                         }
+
+                        return null;
                     } catch (IOException e) {
                         throw new UnexpectedException(e);
                     }
                 }
         );
 
+        mqttClient.subscribe(rootTopic + "/set", commandQueue::submit);
+
         return LuaValue.NIL;
     }
 
@@ -318,15 +354,11 @@ public class VirtualCLU extends VirtualObject implements Closeable {
         final String discoveryPrefix = get(Features.MQTT_DISCOVERY_PREFIX).checkjstring();
         final String rootTopic = "%s/%s/%s".formatted(discoveryPrefix, "sensor", uniqueId);
 
-        try {
-            mqttClient
-                    .publish(
-                            rootTopic + "/state",
-                            state.getBytes(StandardCharsets.UTF_8)
-                    );
-        } catch (MqttException e) {
-            LOGGER.error("Could not publish state update message for {}", uniqueId, e);
-        }
+        mqttClient
+                .publishState(
+                        rootTopic + "/state",
+                        state.getBytes(StandardCharsets.UTF_8)
+                );
 
         return LuaValue.NIL;
     }
@@ -348,6 +380,10 @@ public class VirtualCLU extends VirtualObject implements Closeable {
 
     public void addMqttSubscription(MqttTopic mqttTopic) {
         mqttTopics.add(mqttTopic);
+
+        if (mqttClient != null) {
+            mqttTopic.setMqttClient(mqttClient);
+        }
     }
 
     public List<MqttTopic> getMqttTopics() {
@@ -409,6 +445,10 @@ public class VirtualCLU extends VirtualObject implements Closeable {
         MQTT_DISCOVERY(23),
         MQTT_DISCOVERY_PREFIX(24),
         MQTT_MESSAGE(25),
+        //
+        USE_STATE_API(30),
+        STATE_API_PORT(31),
+        STATE_API_TOKEN(32),
         ;
 
         private final int index;
@@ -23,14 +23,16 @@ import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import pl.psobiech.opengr8on.exceptions.UncheckedInterruptedException;
 import pl.psobiech.opengr8on.util.ThreadUtil;
 import pl.psobiech.opengr8on.vclu.system.VirtualSystem;
+import pl.psobiech.opengr8on.vclu.system.lua.LuaScheduler;
 import pl.psobiech.opengr8on.vclu.system.lua.fn.*;
 import pl.psobiech.opengr8on.vclu.util.LuaUtil;
 
 import java.io.Closeable;
 import java.util.*;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Function;
 
@@ -47,6 +49,8 @@ public class VirtualObject implements Closeable {
 
     private final Map<Integer, BaseLuaFunction> featureFunctions = new Hashtable<>();
 
+    private final Set<Integer> secretFeatures = Collections.synchronizedSet(new HashSet<>());
+
     private final Map<Integer, BaseLuaFunction> methodFunctions = new Hashtable<>();
 
     private final Map<Integer, List<LuaNoArgConsumer>> eventFunctions = new Hashtable<>();
@@ -57,7 +61,7 @@ public class VirtualObject implements Closeable {
 
     private final Class<? extends Enum<? extends IEvent>> eventClass;
 
-    private final Map<IEvent, Future<?>> eventTriggerFuture = new Hashtable<>();
+    private final Map<IEvent, CompletableFuture<?>> eventTriggerFuture = new Hashtable<>();
 
     public VirtualObject(VirtualSystem virtualSystem, String name) {
         this(
@@ -208,7 +212,45 @@ public class VirtualObject implements Closeable {
                 LuaUtil.stringify(luaValue)
         );
 
-        featureValues.put(index, luaValue);
+        final LuaValue previousValue = featureValues.put(index, luaValue);
+        if (virtualSystem != null && !luaValue.equals(previousValue)) {
+            virtualSystem.onFeatureChanged(this, index, luaValue);
+        }
+    }
+
+    /**
+     * Marks the feature (e.g. containing credentials) as not to be exposed outside of the VCLU
+     */
+    protected void markSecret(IFeature feature) {
+        secretFeatures.add(feature.index());
+    }
+
+    public boolean isSecret(int index) {
+        return secretFeatures.contains(index);
+    }
+
+    /**
+     * @return names of the (not secret) features of this object by index (features without a name, e.g. of unsupported objects, are named by their index)
+     */
+    public Map<Integer, String> getFeatureNames() {
+        final Map<Integer, String> featureNames = new TreeMap<>();
+        for (Enum<? extends IFeature> enumConstant : featureClass.getEnumConstants()) {
+            featureNames.put(((IFeature) enumConstant).index(), enumConstant.name());
+        }
+
+        for (Integer index : featureValues.keySet()) {
+            featureNames.putIfAbsent(index, String.valueOf(index));
+        }
+
+        featureNames.keySet().removeIf(this::isSecret);
+
+        return featureNames;
+    }
+
+    public String getFeatureName(int index) {
+        return IFeature.byIndex(index, featureClass)
+                       .map(Enum::name)
+                       .orElseGet(() -> String.valueOf(index));
     }
 
     public void register(IMethod feature, LuaSupplier fn) {
@@ -282,19 +324,7 @@ public class VirtualObject implements Closeable {
             awaitEventTrigger(event);
             eventTriggerFuture.put(
                     event,
-                    scheduler.submit(() -> {
-                        try {
-                            for (LuaNoArgConsumer luaFunction : luaFunctions) {
-                                try {
-                                    luaFunction.call();
-                                } catch (Exception e) {
-                                    LOGGER.error(e.getMessage(), e);
-                                }
-                            }
-                        } finally {
-                            tryFireHandler(onCompleted);
-                        }
-                    })
+                    CompletableFuture.runAsync(() -> callHandlers(luaFunctions, onCompleted), scheduler)
             );
 
             return true;
@@ -305,6 +335,50 @@ public class VirtualObject implements Closeable {
         return false;
     }
 
+    /**
+     * Triggers the event without waiting for the previous triggers to complete, handlers can access the context through
+     * {@link LuaScheduler#currentContext(Class)}
+     */
+    public boolean triggerEvent(IEvent event, Object context, Runnable onCompleted) {
+        if (!isEventRegistered(event)) {
+            LOGGER.trace("{}.triggerEvent({}) -- NOT REGISTERED", name, event.name());
+
+            tryFireHandler(onCompleted);
+
+            return false;
+        }
+
+        final List<LuaNoArgConsumer> luaFunctions = eventFunctions.getOrDefault(event.address(), Collections.emptyList());
+        try {
+            LOGGER.debug("{}.triggerEvent({}, {})", name, event.name(), context);
+
+            CompletableFuture.runAsync(
+                    () -> LuaScheduler.runWithContext(context, () -> callHandlers(luaFunctions, onCompleted)),
+                    scheduler
+            );
+
+            return true;
+        } catch (Exception e) {
+            LOGGER.error(e.getMessage(), e);
+        }
+
+        return false;
+    }
+
+    private void callHandlers(List<LuaNoArgConsumer> luaFunctions, Runnable onCompleted) {
+        try {
+            for (LuaNoArgConsumer luaFunction : luaFunctions) {
+                try {
+                    luaFunction.call();
+                } catch (Exception e) {
+                    LOGGER.error(e.getMessage(), e);
+                }
+            }
+        } finally {
+            tryFireHandler(onCompleted);
+        }
+    }
+
     private void tryFireHandler(Runnable onCompleted) {
         if (onCompleted != null) {
             scheduler.submit(onCompleted);
@@ -317,13 +391,27 @@ public class VirtualObject implements Closeable {
         return eventFunctions.containsKey(address);
     }
 
+    /**
+     * Waits for the previous event handlers to finish, when called from a LUA coroutine, the coroutine yields instead
+     */
     public void awaitEventTrigger(IEvent event) {
-        ThreadUtil.await(eventTriggerFuture.remove(event));
+        final CompletableFuture<?> future = eventTriggerFuture.remove(event);
+        if (future == null) {
+            return;
+        }
+
+        try {
+            LuaScheduler.await(future);
+        } catch (UncheckedInterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            LOGGER.error(e.getMessage(), e);
+        }
     }
 
     public void addEventHandler(int address, LuaFunction luaFunction) {
         eventFunctions.computeIfAbsent(address, ignored -> new ArrayList<>())
-                      .add(luaFunction::call);
+                      .add(() -> virtualSystem.call(luaFunction));
     }
 
     public void addEventHandler(IEvent event, LuaNoArgConsumer luaFunction) {
@@ -1,19 +1,18 @@
 package pl.psobiech.opengr8on.vclu.system.objects.remoteclu;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import org.eclipse.paho.client.mqttv3.MqttException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import pl.psobiech.opengr8on.util.ObjectMapperFactory;
-import pl.psobiech.opengr8on.util.ThreadUtil;
 import pl.psobiech.opengr8on.util.ToStringUtil;
+import pl.psobiech.opengr8on.vclu.mqtt.MqttCommandQueue;
 import pl.psobiech.opengr8on.vclu.mqtt.MqttDiscovery;
 import pl.psobiech.opengr8on.vclu.system.objects.VirtualCLU;
+import pl.psobiech.opengr8on.xml.omp.system.specificObjects.Feature;
+import pl.psobiech.opengr8on.xml.omp.system.specificObjects.SpecificObject;
 
-import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 
 public abstract class BaseRemoteCLUSensor implements RemoteCLUDevice {
     private final Logger LOGGER = LoggerFactory.getLogger(getClass());
@@ -32,116 +31,53 @@ public abstract class BaseRemoteCLUSensor implements RemoteCLUDevice {
     }
 
     @Override
-    public void register() {
-        sendDiscoveryMessage();
-        subscribeCommandMessages();
-        scheduleStatePolling();
-    }
-
-    private void sendDiscoveryMessage() {
-        final MqttDiscovery discoveryMessage = getDiscoveryMessage();
-        final String discoveryTopic = discoveryMessage.getDiscoveryTopic();
-        if (discoveryTopic == null) {
-            return;
-        }
-
-        try {
-            currentClu.getMqttClient()
-                      .publish(
-                              discoveryTopic,
-                              ObjectMapperFactory.JSON.writeValueAsBytes(discoveryMessage),
-                              true
-                      );
-        } catch (MqttException | JsonProcessingException | RuntimeException e) {
-            LOGGER.error("Could not publish discovery message for {}", discoveryMessage.getUniqueId(), e);
-        }
-    }
-
-    private void subscribeCommandMessages() {
+    public Optional<Consumer<byte[]>> createCommandHandler() {
         final MqttDiscovery discoveryMessage = getDiscoveryMessage();
         final String commandTopic = discoveryMessage.getCommandTopic();
         if (commandTopic == null) {
-            return;
+            return Optional.empty();
         }
 
-        currentClu.getMqttClient()
-                  .subscribe(
-                          commandTopic,
-                          bytes -> {
-                              LOGGER.trace("MQTT Subscribe: {} / {}", commandTopic, ToStringUtil.toString(bytes));
-
-                              try {
-                                  Optional<JsonNode> stateNode = writeValue(remoteCLU, bytes);
-                                  if (stateNode.isEmpty()) {
-                                      stateNode = readValue(remoteCLU);
-                                  }
-
-                                  if (stateNode.isPresent()) {
-                                      currentClu.getMqttClient()
-                                                .publish(
-                                                        discoveryMessage.getStateTopic(),
-                                                        ObjectMapperFactory.JSON.writeValueAsBytes(stateNode.get())
-                                                );
-                                  }
-                              } catch (MqttException | JsonProcessingException | RuntimeException e) {
-                                  LOGGER.error("Could not publish state update message for {}", discoveryMessage.getUniqueId(), e);
-                              }
-                          }
-                  );
+        // remote execution can take seconds, so commands are applied outside the MQTT callback,
+        // and only the latest one (of the commands received in the meantime) is applied
+        final MqttCommandQueue<Optional<JsonNode>> commandQueue = new MqttCommandQueue<>(
+                scheduler,
+                bytes -> {
+                    try {
+                        final Optional<JsonNode> stateNode = writeValue(remoteCLU, bytes);
+                        if (stateNode.isPresent()) {
+                            return stateNode;
+                        }
+
+                        return readValue(remoteCLU);
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Could not publish state update message for {}", discoveryMessage.getUniqueId(), e);
+
+                        return Optional.empty();
+                    }
+                },
+                stateNode -> stateNode.ifPresent(node -> remoteCLU.publishState(this, node, true))
+        );
+
+        return Optional.of(
+                bytes -> {
+                    LOGGER.trace("MQTT Subscribe: {} / {}", commandTopic, ToStringUtil.toString(bytes));
+
+                    commandQueue.submit(bytes);
+                }
+        );
     }
 
-    private void scheduleStatePolling() {
-        final MqttDiscovery discoveryMessage = getDiscoveryMessage();
-        final String stateTopic = discoveryMessage.getStateTopic();
-        if (stateTopic == null) {
-            return;
-        }
-
-        scheduler.execute(() -> {
-            String lastState = null;
-            while (!Thread.currentThread().isInterrupted()) {
-                ThreadUtil.sleepRandomized(60_000L, 45_000);
-
-                lastState = pushState(lastState);
-            }
-        });
+    protected static Optional<Feature> findFeature(SpecificObject object, String name) {
+        return object.getFeatures().stream()
+                     .filter(feature -> feature.getName().equalsIgnoreCase(name))
+                     .findAny();
     }
 
-    protected String pushState(String lastState) {
-        final MqttDiscovery discoveryMessage = getDiscoveryMessage();
-        final String stateTopic = discoveryMessage.getStateTopic();
-        if (stateTopic == null) {
-            return lastState;
-        }
-
-        try {
-            final Optional<JsonNode> stateNode = readValue(remoteCLU);
-            if (stateNode.isEmpty()) {
-                return lastState;
-            }
-
-            final String stateAsString;
-            try {
-                stateAsString = ObjectMapperFactory.JSON.writeValueAsString(stateNode.get());
-            } catch (JsonProcessingException e) {
-                LOGGER.error("Could not serialize state for {}", discoveryMessage.getUniqueId(), e);
-
-                return lastState;
-            }
-
-            if (stateAsString.equals(lastState)) {
-                return lastState;
-            }
-            lastState = stateAsString;
-
-            currentClu.getMqttClient()
-                      .publish(
-                              stateTopic,
-                              stateAsString.getBytes(StandardCharsets.UTF_8)
-                      );
-        } catch (MqttException | RuntimeException e) {
-            LOGGER.error("Could not publish state update message for {}", discoveryMessage.getUniqueId(), e);
-        }
-        return lastState;
+    /**
+     * @return LUA expression reading the feature value on the remote CLU
+     */
+    protected static String getFeatureExpression(SpecificObject object, Feature feature) {
+        return String.format("%s:get(%d)", object.getNameOnCLU(), feature.getIndex());
     }
 }
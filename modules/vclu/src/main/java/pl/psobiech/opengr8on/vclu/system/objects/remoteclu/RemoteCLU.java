@@ -21,10 +21,10 @@ package pl.psobiech.opengr8on.vclu.system.objects.remoteclu;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import org.apache.commons.lang3.StringUtils;
-import org.eclipse.paho.client.mqttv3.MqttException;
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
 import org.luaj.vm2.compiler.LuaC;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,27 +32,61 @@ import pl.psobiech.opengr8on.client.CLUClient;
 import pl.psobiech.opengr8on.client.CipherKey;
 import pl.psobiech.opengr8on.util.IOUtil;
 import pl.psobiech.opengr8on.util.ObjectMapperFactory;
+import pl.psobiech.opengr8on.util.RandomUtil;
 import pl.psobiech.opengr8on.util.ThreadUtil;
+import pl.psobiech.opengr8on.vclu.MqttClient;
 import pl.psobiech.opengr8on.vclu.mqtt.MqttDiscovery;
 import pl.psobiech.opengr8on.vclu.system.ProjectObjectRegistry;
 import pl.psobiech.opengr8on.vclu.system.VirtualSystem;
+import pl.psobiech.opengr8on.vclu.system.lua.LuaScheduler;
 import pl.psobiech.opengr8on.vclu.system.lua.fn.LuaOneArgFunction;
+import pl.psobiech.opengr8on.vclu.system.lua.fn.LuaVarArgFunction;
 import pl.psobiech.opengr8on.vclu.system.objects.VirtualCLU;
 import pl.psobiech.opengr8on.vclu.system.objects.VirtualObject;
 import pl.psobiech.opengr8on.vclu.util.LuaUtil;
 import pl.psobiech.opengr8on.xml.omp.system.specificObjects.SpecificObject;
 
 import java.net.Inet4Address;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 public class RemoteCLU extends VirtualObject {
     private static final Logger LOGGER = LoggerFactory.getLogger(RemoteCLU.class);
 
     public static final int INDEX = 1;
 
+    /**
+     * How often the state poller checks for devices due for polling
+     */
+    private static final int STATE_POLLING_TICK_MILLIS = 1_000;
+
+    /**
+     * Sustained number of requests per second sent to a single remote CLU
+     */
+    private static final double MAX_REQUESTS_PER_SECOND = 10;
+
+    /**
+     * Number of requests that can be sent to a single remote CLU at once, before the rate limit applies
+     */
+    private static final int MAX_REQUESTS_BURST = 20;
+
+    /**
+     * How often subscriptions are registered again on the remote CLU (e.g. in case it was restarted)
+     */
+    private static final int SUBSCRIPTION_REFRESH_MILLIS = 60_000;
+
     private final ProjectObjectRegistry objectRegistry;
 
     private final CLUClient client;
@@ -63,9 +97,32 @@ public class RemoteCLU extends VirtualObject {
 
     private final Map<String, RemoteCLUDevice> devices = new Hashtable<>();
 
+    private final RemoteCLUStatePoller statePoller;
+
+    private final RemoteCLUSubscriber subscriber;
+
+    private volatile boolean subscribed = false;
+
+    private volatile boolean subscriptionsRejected = false;
+
+    private volatile boolean subscribedDevicesPolled = false;
+
+    private final TokenBucket requestLimiter = new TokenBucket(MAX_REQUESTS_PER_SECOND, MAX_REQUESTS_BURST);
+
+    private final Map<Integer, CompletableFuture<LuaValue>> asyncRequests = new ConcurrentHashMap<>();
+
+    private final AtomicInteger asyncRequestId = new AtomicInteger();
+
     private boolean mqttInitialized = false;
 
     public RemoteCLU(VirtualSystem virtualSystem, ProjectObjectRegistry projectObjectRegistry, String name, Inet4Address address, Inet4Address localAddress, CipherKey cipherKey, int port) {
+        this(
+                virtualSystem, projectObjectRegistry, name,
+                new CLUClient(localAddress, address, cipherKey, port), localAddress, cipherKey
+        );
+    }
+
+    RemoteCLU(VirtualSystem virtualSystem, ProjectObjectRegistry projectObjectRegistry, String name, CLUClient client, Inet4Address localAddress, CipherKey cipherKey) {
         super(
                 virtualSystem, name,
                 IFeature.EMPTY.class, Methods.class, IEvent.EMPTY.class,
@@ -78,15 +135,19 @@ public class RemoteCLU extends VirtualObject {
         // LoadState.install(globals);
         LuaC.install(localLuaContext);
 
-        this.client = new CLUClient(localAddress, address, cipherKey, port);
+        this.client = client;
 
         register(Methods.EXECUTE, (LuaOneArgFunction) arg1 -> {
             final String script = arg1.checkjstring();
 
             return remoteExecute(script);
         });
+        register(Methods.EXECUTE_ASYNC, (LuaVarArgFunction) this::onExecuteAsync);
+        register(Methods.CANCEL, (LuaOneArgFunction) this::onCancel);
 
         this.currentClu = virtualSystem.getCurrentClu();
+        this.statePoller = new RemoteCLUStatePoller(this, currentClu);
+        this.subscriber = new RemoteCLUSubscriber(this, statePoller, localAddress, cipherKey);
     }
 
     @Override
@@ -170,63 +231,303 @@ public class RemoteCLU extends VirtualObject {
 
             devices.put(object.getNameOnCLU(), sensor);
 
-            sensor.register();
+            if (sensor.isStatePolled()) {
+                if (RemoteCLUSubscriber.isSubscribable(sensor)) {
+                    subscriber.add(sensor);
+                } else {
+                    statePoller.add(sensor);
+                }
+            }
+        }
+
+        registerDevices(devices.values());
+
+        scheduler.scheduleWithFixedDelay(
+                this::refreshSubscriptions,
+                0, SUBSCRIPTION_REFRESH_MILLIS,
+                TimeUnit.MILLISECONDS
+        );
+
+        scheduler.scheduleWithFixedDelay(
+                statePoller::pollDue,
+                RandomUtil.integer(STATE_POLLING_TICK_MILLIS), STATE_POLLING_TICK_MILLIS,
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Publishes discovery messages of all devices (serialized in parallel, unchanged messages are not published again)
+     * and subscribes to all command topics with a single request
+     */
+    private void registerDevices(Collection<RemoteCLUDevice> devices) {
+        final MqttClient mqttClient = currentClu.getMqttClient();
+
+        final Map<String, byte[]> discoveryPayloads = devices.parallelStream()
+                                                             .map(RemoteCLUDevice::getDiscoveryMessage)
+                                                             .filter(discoveryMessage -> discoveryMessage.getDiscoveryTopic() != null)
+                                                             .map(RemoteCLU::serializeDiscoveryMessage)
+                                                             .flatMap(Optional::stream)
+                                                             .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (first, second) -> second));
+        mqttClient.publishRetainedIfChanged(discoveryPayloads);
+
+        final Map<String, Consumer<byte[]>> commandHandlers = new HashMap<>();
+        for (RemoteCLUDevice device : devices) {
+            device.createCommandHandler()
+                  .ifPresent(handler -> commandHandlers.put(device.getDiscoveryMessage().getCommandTopic(), handler));
+        }
+        mqttClient.subscribe(commandHandlers);
+    }
+
+    private static Optional<Map.Entry<String, byte[]>> serializeDiscoveryMessage(MqttDiscovery discoveryMessage) {
+        try {
+            return Optional.of(
+                    Map.entry(
+                            discoveryMessage.getDiscoveryTopic(),
+                            ObjectMapperFactory.JSON.writeValueAsBytes(discoveryMessage)
+                    )
+            );
+        } catch (JsonProcessingException e) {
+            LOGGER.error("Could not serialize discovery message for {}", discoveryMessage.getUniqueId(), e);
+
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Registers device subscriptions on the remote CLU (again, in case it was restarted and lost them), falls back to polling, if the remote CLU
+     * never accepted them or while they cannot be registered again
+     */
+    private void refreshSubscriptions() {
+        if (subscriptionsRejected) {
+            return;
+        }
+
+        if (subscriber.register()) {
+            subscribed = true;
+
+            if (subscribedDevicesPolled) {
+                LOGGER.info("Remote CLU {} accepted subscriptions again, stopped polling device states", name);
+
+                subscribedDevicesPolled = false;
+                subscriber.getDevices()
+                          .forEach(statePoller::remove);
+            }
+
+            return;
+        }
+
+        if (!subscribed) {
+            LOGGER.warn("Remote CLU {} did not accept subscriptions, polling device states instead", name);
+
+            subscriptionsRejected = true;
+            subscriber.getDevices()
+                      .forEach(statePoller::add);
+
+            return;
+        }
+
+        if (!subscribedDevicesPolled) {
+            LOGGER.warn("Could not renew subscriptions on remote CLU {}, polling device states until they are accepted again", name);
+
+            subscribedDevicesPolled = true;
+            subscriber.getDevices()
+                      .forEach(statePoller::add);
         }
     }
 
     public void mqttOnValueChange(String nameOnCLU, LuaValue arg2) {
         final RemoteCLUDevice remoteCLUDevice = devices.get(nameOnCLU);
         if (remoteCLUDevice != null) {
-            final MqttDiscovery discoveryMessage = remoteCLUDevice.getDiscoveryMessage();
-
-            final Optional<JsonNode> stateNode = remoteCLUDevice.readValue(this);
-            if (stateNode.isPresent()) {
-                try {
-                    currentClu.getMqttClient()
-                              .publish(
-                                      discoveryMessage.getStateTopic(),
-                                      ObjectMapperFactory.JSON.writeValueAsBytes(stateNode.get())
-                              );
-                } catch (MqttException | JsonProcessingException e) {
-                    LOGGER.error("Could not publish state update message for {}", discoveryMessage.getUniqueId(), e);
-                }
-            }
+            remoteCLUDevice.readValue(this)
+                           .ifPresent(stateNode -> publishState(remoteCLUDevice, stateNode, true));
         }
     }
 
+    /**
+     * @return current device state, read from the remote CLU in a single request
+     */
+    public Optional<JsonNode> readState(RemoteCLUDevice device) {
+        return statePoller.read(device);
+    }
+
+    /**
+     * Publishes the device state, if it changed since the last publication (or always, when forced)
+     */
+    public void publishState(RemoteCLUDevice device, JsonNode stateNode, boolean force) {
+        statePoller.publish(device, stateNode, force);
+    }
+
+    /**
+     * Executes the script on the remote CLU, when called from a LUA coroutine, the coroutine yields while the request is pending
+     *
+     * @return parsed return value of the script or NIL in case of a timeout
+     */
     public LuaValue remoteExecute(String script) {
-        return client.execute(script)
-                     .map(returnValue -> {
-                              returnValue = StringUtils.stripToNull(returnValue);
-                              if (returnValue == null) {
-                                  return null;
-                              }
-
-                              if (returnValue.startsWith("{")) {
-                                  try {
-                                      return localLuaContext.load("return %s".formatted(returnValue))
-                                                            .call();
-                                  } catch (Exception e) {
-                                      // Might not have been a proper LUA table
-                                      // TODO: implement a more robust check
-
-                                      LOGGER.error(e.getMessage(), e);
-                                  }
-                              }
-
-                              final LuaString luaString = LuaValue.valueOf(returnValue);
-                              if (luaString.isnumber()) {
-                                  return luaString.checknumber();
-                              }
-
-                              return luaString;
-                          }
-                     )
-                     .orElse(LuaValue.NIL);
+        return LuaScheduler.await(
+                remoteExecuteAsync(script, CLUClient.DEFAULT_TIMEOUT_DURATION)
+        );
+    }
+
+    /**
+     * @return future parsed return value of the script or NIL in case of a timeout (or when the request rate limit does not allow sending the request
+     * within the timeout), cancelling the future abandons the request
+     */
+    public CompletableFuture<LuaValue> remoteExecuteAsync(String script, Duration timeout) {
+        final long delayNanos = requestLimiter.reserve(timeout);
+        if (delayNanos < 0) {
+            LOGGER.warn("Request rate limit of {} exceeded, dropping request", name);
+
+            return CompletableFuture.completedFuture(LuaValue.NIL);
+        }
+
+        final CompletableFuture<Optional<String>> responseFuture;
+        if (delayNanos == 0) {
+            responseFuture = client.executeAsync(script, timeout);
+        } else {
+            // time spent waiting for the rate limiter counts towards the timeout
+            responseFuture = delayedExecuteAsync(script, timeout.minusNanos(delayNanos), delayNanos);
+        }
+
+        final CompletableFuture<LuaValue> future = responseFuture.thenApply(returnValue ->
+                                                                                    returnValue.map(this::parseReturnValue)
+                                                                                               .orElse(LuaValue.NIL)
+        );
+        future.whenComplete((returnValue, throwable) -> {
+            if (future.isCancelled()) {
+                responseFuture.cancel(false);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * @return future response of the request sent after the delay, cancelling it either prevents the request from being sent or abandons it
+     */
+    private CompletableFuture<Optional<String>> delayedExecuteAsync(String script, Duration timeout, long delayNanos) {
+        final CompletableFuture<Optional<String>> responseFuture = new CompletableFuture<>();
+
+        final ScheduledFuture<?> delayedRequest = scheduler.schedule(
+                () -> {
+                    if (responseFuture.isDone()) {
+                        // cancelled while waiting for the rate limiter
+                        return;
+                    }
+
+                    final CompletableFuture<Optional<String>> requestFuture;
+                    try {
+                        requestFuture = client.executeAsync(script, timeout);
+                    } catch (Exception e) {
+                        responseFuture.completeExceptionally(e);
+
+                        return;
+                    }
+
+                    requestFuture.whenComplete((returnValue, throwable) -> {
+                        if (throwable == null) {
+                            responseFuture.complete(returnValue);
+                        } else {
+                            responseFuture.completeExceptionally(throwable);
+                        }
+                    });
+                    responseFuture.whenComplete((returnValue, throwable) -> {
+                        if (responseFuture.isCancelled()) {
+                            requestFuture.cancel(false);
+                        }
+                    });
+                },
+                delayNanos, TimeUnit.NANOSECONDS
+        );
+        responseFuture.whenComplete((returnValue, throwable) -> {
+            if (responseFuture.isCancelled()) {
+                delayedRequest.cancel(false);
+            }
+        });
+
+        return responseFuture;
+    }
+
+    private LuaValue parseReturnValue(String returnValue) {
+        returnValue = StringUtils.stripToNull(returnValue);
+        if (returnValue == null) {
+            return LuaValue.NIL;
+        }
+
+        if (returnValue.startsWith("{")) {
+            try {
+                return localLuaContext.load("return %s".formatted(returnValue))
+                                      .call();
+            } catch (Exception e) {
+                // Might not have been a proper LUA table
+                // TODO: implement a more robust check
+
+                LOGGER.error(e.getMessage(), e);
+            }
+        }
+
+        final LuaString luaString = LuaValue.valueOf(returnValue);
+        if (luaString.isnumber()) {
+            return luaString.checknumber();
+        }
+
+        return luaString;
+    }
+
+    /**
+     * execute_async(script, callback, timeoutMillis): executes the script in the background and calls back with the result (NIL on timeout)
+     *
+     * @return request id, that can be used to cancel the request
+     */
+    private LuaValue onExecuteAsync(Varargs args) {
+        final String script = args.checkjstring(1);
+        final LuaValue callback = args.optfunction(2, null);
+        final Duration timeout = Duration.ofMillis(args.optlong(3, CLUClient.DEFAULT_TIMEOUT_DURATION.toMillis()));
+
+        final int requestId = asyncRequestId.incrementAndGet();
+        final CompletableFuture<LuaValue> future = remoteExecuteAsync(script, timeout);
+        asyncRequests.put(requestId, future);
+
+        future.whenCompleteAsync(
+                (returnValue, throwable) -> {
+                    asyncRequests.remove(requestId);
+
+                    if (callback == null || future.isCancelled()) {
+                        return;
+                    }
+
+                    if (throwable != null) {
+                        LOGGER.error("Remote execute failed on {}", name, throwable);
+
+                        returnValue = LuaValue.NIL;
+                    }
+
+                    try {
+                        virtualSystem.call(callback, returnValue);
+                    } catch (Exception e) {
+                        LOGGER.error(e.getMessage(), e);
+                    }
+                },
+                scheduler
+        );
+
+        return LuaValue.valueOf(requestId);
+    }
+
+    private LuaValue onCancel(LuaValue arg1) {
+        final CompletableFuture<LuaValue> future = asyncRequests.remove(arg1.checkint());
+
+        return LuaValue.valueOf(future != null && future.cancel(false));
     }
 
     @Override
     public void close() {
+        asyncRequests.values()
+                     .forEach(future -> future.cancel(false));
+        asyncRequests.clear();
+
+        // unsubscribes synchronously, while the client is still open
+        IOUtil.closeQuietly(subscriber);
+
         super.close();
 
         IOUtil.closeQuietly(client);
@@ -235,6 +536,9 @@ public class RemoteCLU extends VirtualObject {
     private enum Methods implements IMethod {
         EXECUTE(0),
         //
+        EXECUTE_ASYNC(10),
+        CANCEL(11),
+        //
         ;
 
         private final int index;
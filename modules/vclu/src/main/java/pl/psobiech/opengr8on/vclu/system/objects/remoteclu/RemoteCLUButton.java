@@ -1,11 +1,10 @@
 package pl.psobiech.opengr8on.vclu.system.objects.remoteclu;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
-import org.eclipse.paho.client.mqttv3.MqttException;
+import org.luaj.vm2.LuaValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pl.psobiech.opengr8on.util.ObjectMapperFactory;
@@ -15,6 +14,7 @@ import pl.psobiech.opengr8on.vclu.mqtt.MqttDiscoveryDevice;
 import pl.psobiech.opengr8on.vclu.system.objects.VirtualCLU;
 import pl.psobiech.opengr8on.xml.omp.system.specificObjects.SpecificObject;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
@@ -53,30 +53,6 @@ public class RemoteCLUButton implements RemoteCLUDevice {
         );
     }
 
-    @Override
-    public void register() {
-        sendDiscoveryMessage();
-    }
-
-    private void sendDiscoveryMessage() {
-        final MqttDiscovery discoveryMessage = getDiscoveryMessage();
-        final String discoveryTopic = discoveryMessage.getDiscoveryTopic();
-        if (discoveryTopic == null) {
-            return;
-        }
-
-        try {
-            currentClu.getMqttClient()
-                      .publish(
-                              discoveryTopic,
-                              ObjectMapperFactory.JSON.writeValueAsBytes(discoveryMessage),
-                              true
-                      );
-        } catch (MqttException | JsonProcessingException | RuntimeException e) {
-            LOGGER.error("Could not publish discovery message for {}", discoveryMessage.getUniqueId(), e);
-        }
-    }
-
     @Override
     public MqttDiscovery getDiscoveryMessage() {
         return discoveryMessage;
@@ -88,12 +64,23 @@ public class RemoteCLUButton implements RemoteCLUDevice {
     }
 
     @Override
-    public Optional<JsonNode> readValue(RemoteCLU remoteCLU) {
-        final int value = remoteCLU.remoteExecute(String.format("%s:get(%d)", object.getNameOnCLU(), 0)).optint(0);
+    public List<String> getStateExpressions() {
+        return List.of(String.format("%s:get(%d)", object.getNameOnCLU(), 0));
+    }
+
+    @Override
+    public Optional<JsonNode> toState(List<LuaValue> values) {
+        final int value = values.getFirst().optint(0);
 
         final ObjectNode stateNode = ObjectMapperFactory.JSON.createObjectNode();
         stateNode.set("event_type", value > 0 ? new TextNode("press") : NullNode.getInstance());
 
         return Optional.of(stateNode);
     }
+
+    @Override
+    public boolean isStatePolled() {
+        // button presses are reported by the remote CLU
+        return false;
+    }
 }
@@ -1,16 +1,47 @@
 package pl.psobiech.opengr8on.vclu.system.objects.remoteclu;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import org.luaj.vm2.LuaValue;
 import pl.psobiech.opengr8on.vclu.mqtt.MqttDiscovery;
 
+import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 public interface RemoteCLUDevice {
     Optional<JsonNode> writeValue(RemoteCLU remoteCLU, byte[] bytes);
 
-    Optional<JsonNode> readValue(RemoteCLU remoteCLU);
+    /**
+     * @return current device state, read from the remote CLU in a single request
+     */
+    default Optional<JsonNode> readValue(RemoteCLU remoteCLU) {
+        return remoteCLU.readState(this);
+    }
+
+    /**
+     * @return LUA expressions, evaluated on the remote CLU, that the device state is built from (see {@link #toState(List)})
+     */
+    List<String> getStateExpressions();
+
+    /**
+     * @param values values of the {@link #getStateExpressions()}, in the same order
+     * @return device state
+     */
+    Optional<JsonNode> toState(List<LuaValue> values);
+
+    /**
+     * @return true, if the device state should be periodically polled and published
+     */
+    default boolean isStatePolled() {
+        return true;
+    }
 
     MqttDiscovery getDiscoveryMessage();
 
-    void register();
+    /**
+     * @return handler of the messages received on the command topic of the device, if the device accepts commands
+     */
+    default Optional<Consumer<byte[]>> createCommandHandler() {
+        return Optional.empty();
+    }
 }
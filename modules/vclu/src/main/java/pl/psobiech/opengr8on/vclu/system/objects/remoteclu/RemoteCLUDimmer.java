@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.IntNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
+import org.luaj.vm2.LuaValue;
 import pl.psobiech.opengr8on.exceptions.UnexpectedException;
 import pl.psobiech.opengr8on.util.ObjectMapperFactory;
 import pl.psobiech.opengr8on.vclu.mqtt.MqttDiscoveryDevice;
@@ -13,16 +14,18 @@ import pl.psobiech.opengr8on.xml.omp.system.specificObjects.Feature;
 import pl.psobiech.opengr8on.xml.omp.system.specificObjects.SpecificObject;
 
 import java.io.IOException;
-import java.util.Map;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.function.UnaryOperator;
-import java.util.stream.Collectors;
 
 public class RemoteCLUDimmer extends BaseRemoteCLUSensor implements RemoteCLUDevice {
     private final SpecificObject object;
 
+    private final Feature valueFeature;
+
+    private final List<String> stateExpressions;
+
     private final MqttDiscoveryLight discoveryMessage;
 
     public RemoteCLUDimmer(
@@ -34,6 +37,8 @@ public class RemoteCLUDimmer extends BaseRemoteCLUSensor implements RemoteCLUDev
         super(scheduler, currentClu, remoteCLU);
 
         this.object = object;
+        this.valueFeature = findFeature(object, "Value").orElse(null);
+        this.stateExpressions = valueFeature == null ? List.of() : List.of(getFeatureExpression(object, valueFeature));
 
         final String uniqueId = clu.getNameOnCLU() + "_" + object.getNameOnCLU();
         this.discoveryMessage = new MqttDiscoveryLight(
@@ -56,10 +61,6 @@ public class RemoteCLUDimmer extends BaseRemoteCLUSensor implements RemoteCLUDev
 
     @Override
     public Optional<JsonNode> writeValue(RemoteCLU remoteCLU, byte[] bytes) {
-        final Map<String, Feature> valueFeatures = object.getFeatures().stream()
-                                                         .filter(feature1 -> feature1.getName().equalsIgnoreCase("Value"))
-                                                         .collect(Collectors.toMap(Feature::getName, UnaryOperator.identity()));
-
         final JsonNode stateNode;
         try {
             stateNode = ObjectMapperFactory.JSON.readTree(bytes);
@@ -84,18 +85,19 @@ public class RemoteCLUDimmer extends BaseRemoteCLUSensor implements RemoteCLUDev
             value = 0;
         }
 
-        remoteCLU.remoteExecute(String.format("%s:set(%d, %f)", object.getNameOnCLU(), valueFeatures.get("Value").getIndex(), asFloat(value)));
+        remoteCLU.remoteExecute(String.format("%s:set(%d, %f)", object.getNameOnCLU(), valueFeature.getIndex(), asFloat(value)));
 
         return Optional.of(stateNode);
     }
 
     @Override
-    public Optional<JsonNode> readValue(RemoteCLU remoteCLU) {
-        final Map<String, Feature> valueFeatures = object.getFeatures().stream()
-                                                         .filter(feature1 -> feature1.getName().equalsIgnoreCase("Value"))
-                                                         .collect(Collectors.toMap(Feature::getName, UnaryOperator.identity()));
+    public List<String> getStateExpressions() {
+        return stateExpressions;
+    }
 
-        final double value = remoteCLU.remoteExecute(String.format("%s:get(%d)", object.getNameOnCLU(), valueFeatures.get("Value").getIndex())).optdouble(0d);
+    @Override
+    public Optional<JsonNode> toState(List<LuaValue> values) {
+        final double value = values.getFirst().optdouble(0d);
 
         final ObjectNode stateNode = ObjectMapperFactory.JSON.createObjectNode();
         stateNode.set("state", new TextNode(value > 0 ? "ON" : "OFF"));
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.IntNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
+import org.luaj.vm2.LuaValue;
 import pl.psobiech.opengr8on.exceptions.UnexpectedException;
 import pl.psobiech.opengr8on.util.ObjectMapperFactory;
 import pl.psobiech.opengr8on.vclu.mqtt.MqttDiscoveryDevice;
@@ -13,12 +14,15 @@ import pl.psobiech.opengr8on.xml.omp.system.specificObjects.Feature;
 import pl.psobiech.opengr8on.xml.omp.system.specificObjects.SpecificObject;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class RemoteCLULedRgbLight extends BaseRemoteCLUSensor implements RemoteCLUDevice {
 
@@ -26,6 +30,10 @@ public class RemoteCLULedRgbLight extends BaseRemoteCLUSensor implements RemoteC
 
     private final SpecificObject object;
 
+    private final Map<String, Feature> valueFeatures;
+
+    private final List<String> stateExpressions;
+
     private final MqttDiscoveryLight discoveryMessage;
 
     public RemoteCLULedRgbLight(
@@ -37,6 +45,15 @@ public class RemoteCLULedRgbLight extends BaseRemoteCLUSensor implements RemoteC
         super(scheduler, currentClu, remoteCLU);
 
         this.object = object;
+        this.valueFeatures = object.getFeatures().stream()
+                                   .filter(feature1 -> !feature1.getName().equalsIgnoreCase("Value"))
+                                   .filter(feature1 -> feature1.getName().endsWith("Value"))
+                                   .collect(Collectors.toMap(Feature::getName, UnaryOperator.identity()));
+        this.stateExpressions = Stream.of("RedValue", "GreenValue", "BlueValue", "WhiteValue")
+                                      .map(valueFeatures::get)
+                                      .filter(Objects::nonNull)
+                                      .map(feature -> getFeatureExpression(object, feature))
+                                      .toList();
 
         final String uniqueId = clu.getNameOnCLU() + "_" + object.getNameOnCLU();
         this.discoveryMessage = new MqttDiscoveryLight(
@@ -54,11 +71,6 @@ public class RemoteCLULedRgbLight extends BaseRemoteCLUSensor implements RemoteC
 
     @Override
     public Optional<JsonNode> writeValue(RemoteCLU remoteCLU, byte[] bytes) {
-        final Map<String, Feature> valueFeatures = object.getFeatures().stream()
-                                                         .filter(feature1 -> !feature1.getName().equalsIgnoreCase("Value"))
-                                                         .filter(feature1 -> feature1.getName().endsWith("Value"))
-                                                         .collect(Collectors.toMap(Feature::getName, UnaryOperator.identity()));
-
         try {
             final JsonNode stateNode = ObjectMapperFactory.JSON.readTree(bytes);
 
@@ -101,10 +113,15 @@ public class RemoteCLULedRgbLight extends BaseRemoteCLUSensor implements RemoteC
             }
 
             // todo: PS remember not all features have the same id's as methods
-            remoteCLU.remoteExecute(String.format("%s:execute(%d, %d)", object.getNameOnCLU(), valueFeatures.get("RedValue").getIndex(), redValue));
-            remoteCLU.remoteExecute(String.format("%s:execute(%d, %d)", object.getNameOnCLU(), valueFeatures.get("GreenValue").getIndex(), greenValue));
-            remoteCLU.remoteExecute(String.format("%s:execute(%d, %d)", object.getNameOnCLU(), valueFeatures.get("BlueValue").getIndex(), blueValue));
-            remoteCLU.remoteExecute(String.format("%s:execute(%d, %d)", object.getNameOnCLU(), SET_WHITE_VALUE_METHOD, whiteValue));
+            // all values are set in a single request (table constructor evaluates the calls in order)
+            remoteCLU.remoteExecute(
+                    "{%s, %s, %s, %s}".formatted(
+                            String.format("%s:execute(%d, %d)", object.getNameOnCLU(), valueFeatures.get("RedValue").getIndex(), redValue),
+                            String.format("%s:execute(%d, %d)", object.getNameOnCLU(), valueFeatures.get("GreenValue").getIndex(), greenValue),
+                            String.format("%s:execute(%d, %d)", object.getNameOnCLU(), valueFeatures.get("BlueValue").getIndex(), blueValue),
+                            String.format("%s:execute(%d, %d)", object.getNameOnCLU(), SET_WHITE_VALUE_METHOD, whiteValue)
+                    )
+            );
 
             if (stateNode instanceof ObjectNode stateObjectNode) {
                 stateObjectNode.set("color_mode", new TextNode("rgbw"));
@@ -117,16 +134,20 @@ public class RemoteCLULedRgbLight extends BaseRemoteCLUSensor implements RemoteC
     }
 
     @Override
-    public Optional<JsonNode> readValue(RemoteCLU remoteCLU) {
-        final Map<String, Feature> valueFeatures = object.getFeatures().stream()
-                                                         .filter(feature1 -> !feature1.getName().equalsIgnoreCase("Value"))
-                                                         .filter(feature1 -> feature1.getName().endsWith("Value"))
-                                                         .collect(Collectors.toMap(Feature::getName, UnaryOperator.identity()));
-
-        final int redValue = remoteCLU.remoteExecute(String.format("%s:get(%d)", object.getNameOnCLU(), valueFeatures.get("RedValue").getIndex())).optint(0);
-        final int greenValue = remoteCLU.remoteExecute(String.format("%s:get(%d)", object.getNameOnCLU(), valueFeatures.get("GreenValue").getIndex())).optint(0);
-        final int blueValue = remoteCLU.remoteExecute(String.format("%s:get(%d)", object.getNameOnCLU(), valueFeatures.get("BlueValue").getIndex())).optint(0);
-        final int whiteValue = remoteCLU.remoteExecute(String.format("%s:get(%d)", object.getNameOnCLU(), valueFeatures.get("WhiteValue").getIndex())).optint(0);
+    public List<String> getStateExpressions() {
+        return stateExpressions;
+    }
+
+    @Override
+    public Optional<JsonNode> toState(List<LuaValue> values) {
+        if (values.size() < 4) {
+            return Optional.empty();
+        }
+
+        final int redValue = values.get(0).optint(0);
+        final int greenValue = values.get(1).optint(0);
+        final int blueValue = values.get(2).optint(0);
+        final int whiteValue = values.get(3).optint(0);
 
         final ObjectNode colorNode = ObjectMapperFactory.JSON.createObjectNode();
         colorNode.set("r", new IntNode(redValue));
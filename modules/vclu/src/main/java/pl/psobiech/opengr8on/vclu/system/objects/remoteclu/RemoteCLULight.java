@@ -3,6 +3,7 @@ package pl.psobiech.opengr8on.vclu.system.objects.remoteclu;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
+import org.luaj.vm2.LuaValue;
 import pl.psobiech.opengr8on.exceptions.UnexpectedException;
 import pl.psobiech.opengr8on.util.ObjectMapperFactory;
 import pl.psobiech.opengr8on.vclu.mqtt.MqttDiscoveryDevice;
@@ -12,15 +13,17 @@ import pl.psobiech.opengr8on.xml.omp.system.specificObjects.Feature;
 import pl.psobiech.opengr8on.xml.omp.system.specificObjects.SpecificObject;
 
 import java.io.IOException;
-import java.util.Map;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
-import java.util.function.UnaryOperator;
-import java.util.stream.Collectors;
 
 public class RemoteCLULight extends BaseRemoteCLUSensor implements RemoteCLUDevice {
     private final SpecificObject object;
 
+    private final Feature valueFeature;
+
+    private final List<String> stateExpressions;
+
     private final MqttDiscoveryLight discoveryMessage;
 
     public RemoteCLULight(
@@ -32,6 +35,8 @@ public class RemoteCLULight extends BaseRemoteCLUSensor implements RemoteCLUDevi
         super(scheduler, currentClu, remoteCLU);
 
         this.object = object;
+        this.valueFeature = findFeature(object, "Value").orElse(null);
+        this.stateExpressions = valueFeature == null ? List.of() : List.of(getFeatureExpression(object, valueFeature));
 
         final String uniqueId = clu.getNameOnCLU() + "_" + object.getNameOnCLU();
         this.discoveryMessage = new MqttDiscoveryLight(
@@ -54,10 +59,6 @@ public class RemoteCLULight extends BaseRemoteCLUSensor implements RemoteCLUDevi
 
     @Override
     public Optional<JsonNode> writeValue(RemoteCLU remoteCLU, byte[] bytes) {
-        final Map<String, Feature> valueFeatures = object.getFeatures().stream()
-                                                         .filter(feature1 -> feature1.getName().equalsIgnoreCase("Value"))
-                                                         .collect(Collectors.toMap(Feature::getName, UnaryOperator.identity()));
-
         final JsonNode stateNode;
         try {
             stateNode = ObjectMapperFactory.JSON.readTree(bytes);
@@ -77,18 +78,19 @@ public class RemoteCLULight extends BaseRemoteCLUSensor implements RemoteCLUDevi
             value = 0;
         }
 
-        remoteCLU.remoteExecute(String.format("%s:set(%d, %d)", object.getNameOnCLU(), valueFeatures.get("Value").getIndex(), value));
+        remoteCLU.remoteExecute(String.format("%s:set(%d, %d)", object.getNameOnCLU(), valueFeature.getIndex(), value));
 
         return Optional.of(stateNode);
     }
 
     @Override
-    public Optional<JsonNode> readValue(RemoteCLU remoteCLU) {
-        final Map<String, Feature> valueFeatures = object.getFeatures().stream()
-                                                         .filter(feature1 -> feature1.getName().equalsIgnoreCase("Value"))
-                                                         .collect(Collectors.toMap(Feature::getName, UnaryOperator.identity()));
+    public List<String> getStateExpressions() {
+        return stateExpressions;
+    }
 
-        final int value = remoteCLU.remoteExecute(String.format("%s:get(%d)", object.getNameOnCLU(), valueFeatures.get("Value").getIndex())).optint(0);
+    @Override
+    public Optional<JsonNode> toState(List<LuaValue> values) {
+        final int value = values.getFirst().optint(0);
 
         final ObjectNode stateNode = ObjectMapperFactory.JSON.createObjectNode();
         stateNode.set("state", new TextNode(value > 0 ? "ON" : "OFF"));
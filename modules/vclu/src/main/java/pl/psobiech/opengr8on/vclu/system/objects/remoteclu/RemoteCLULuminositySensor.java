@@ -11,12 +11,15 @@ import pl.psobiech.opengr8on.vclu.util.LuaUtil;
 import pl.psobiech.opengr8on.xml.omp.system.specificObjects.Feature;
 import pl.psobiech.opengr8on.xml.omp.system.specificObjects.SpecificObject;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 
 public class RemoteCLULuminositySensor extends BaseRemoteCLUSensor implements RemoteCLUDevice {
     private final SpecificObject object;
 
+    private final List<String> stateExpressions;
+
     private final MqttDiscovery discoveryMessage;
 
     public RemoteCLULuminositySensor(
@@ -29,9 +32,9 @@ public class RemoteCLULuminositySensor extends BaseRemoteCLUSensor implements Re
 
         this.object = object;
 
-        final Optional<Feature> valueFeature = object.getFeatures().stream()
-                                                     .filter(feature1 -> feature1.getName().equalsIgnoreCase("Value"))
-                                                     .findAny();
+        final Optional<Feature> valueFeature = findFeature(object, "Value");
+        this.stateExpressions = valueFeature.map(feature -> List.of(getFeatureExpression(object, feature)))
+                                            .orElseGet(List::of);
 
         if (valueFeature.isEmpty()) {
             this.discoveryMessage = null;
@@ -63,16 +66,13 @@ public class RemoteCLULuminositySensor extends BaseRemoteCLUSensor implements Re
     }
 
     @Override
-    public Optional<JsonNode> readValue(RemoteCLU remoteCLU) {
-        final Optional<Feature> valueFeature = object.getFeatures().stream()
-                                                     .filter(feature1 -> feature1.getName().equalsIgnoreCase("Value"))
-                                                     .findAny();
-
-        if (valueFeature.isEmpty()) {
-            return Optional.empty();
-        }
+    public List<String> getStateExpressions() {
+        return stateExpressions;
+    }
 
-        final LuaValue luaValue = remoteCLU.remoteExecute("%s:get(%d)".formatted(object.getNameOnCLU(), valueFeature.get().getIndex()));
+    @Override
+    public Optional<JsonNode> toState(List<LuaValue> values) {
+        final LuaValue luaValue = values.getFirst();
         if (LuaUtil.isNil(luaValue)) {
             return Optional.empty();
         }
@@ -4,15 +4,16 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.IntNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.luaj.vm2.LuaValue;
 import pl.psobiech.opengr8on.exceptions.UnexpectedException;
 import pl.psobiech.opengr8on.util.ObjectMapperFactory;
 import pl.psobiech.opengr8on.vclu.mqtt.MqttDiscoveryDevice;
 import pl.psobiech.opengr8on.vclu.mqtt.MqttDiscoveryShutter;
 import pl.psobiech.opengr8on.vclu.system.objects.VirtualCLU;
-import pl.psobiech.opengr8on.xml.omp.system.specificObjects.Feature;
 import pl.psobiech.opengr8on.xml.omp.system.specificObjects.SpecificObject;
 
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 
@@ -23,6 +24,8 @@ public class RemoteCLUShutter extends BaseRemoteCLUSensor implements RemoteCLUDe
 
     private final SpecificObject object;
 
+    private final List<String> stateExpressions;
+
     public RemoteCLUShutter(
             ExecutorService scheduler,
             VirtualCLU currentClu, RemoteCLU remoteCLU,
@@ -32,6 +35,8 @@ public class RemoteCLUShutter extends BaseRemoteCLUSensor implements RemoteCLUDe
         super(scheduler, currentClu, remoteCLU);
 
         this.object = object;
+        this.stateExpressions = findFeature(object, "Position").map(feature -> List.of(getFeatureExpression(object, feature)))
+                                                               .orElseGet(List::of);
 
         final String uniqueId = clu.getNameOnCLU() + "_" + object.getNameOnCLU();
         this.discoveryMessage = new MqttDiscoveryShutter(
@@ -91,15 +96,13 @@ public class RemoteCLUShutter extends BaseRemoteCLUSensor implements RemoteCLUDe
     }
 
     @Override
-    public Optional<JsonNode> readValue(RemoteCLU remoteCLU) {
-        final Optional<Feature> positionFeature = object.getFeatures().stream()
-                                                        .filter(feature1 -> feature1.getName().equalsIgnoreCase("Position"))
-                                                        .findAny();
-        if (positionFeature.isEmpty()) {
-            return Optional.empty();
-        }
+    public List<String> getStateExpressions() {
+        return stateExpressions;
+    }
 
-        final int position = remoteCLU.remoteExecute(String.format("%s:get(%d)", object.getNameOnCLU(), positionFeature.get().getIndex())).optint(0);
+    @Override
+    public Optional<JsonNode> toState(List<LuaValue> values) {
+        final int position = values.getFirst().optint(0);
 
         final ObjectNode stateNode = ObjectMapperFactory.JSON.createObjectNode();
         stateNode.set("position", new IntNode(position));
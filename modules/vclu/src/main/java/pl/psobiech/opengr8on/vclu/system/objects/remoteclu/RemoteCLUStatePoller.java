@@ -0,0 +1,362 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system.objects.remoteclu;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.psobiech.opengr8on.util.ObjectMapperFactory;
+import pl.psobiech.opengr8on.util.RandomUtil;
+import pl.psobiech.opengr8on.vclu.mqtt.MqttDiscovery;
+import pl.psobiech.opengr8on.vclu.system.objects.VirtualCLU;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+
+/**
+ * Polls the state of all devices bridged from a single remote CLU, using one generated LUA script per batch of device features (instead of a
+ * request per feature), and publishes only the states that changed.
+ * <p>
+ * Each device has its own polling interval: it drops to the minimum after a state change or a command and doubles with every poll that finds the
+ * device unchanged, up to the maximum.
+ */
+public class RemoteCLUStatePoller {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RemoteCLUStatePoller.class);
+
+    /**
+     * Maximum length of a single generated script (so the request and response fit in a single datagram)
+     */
+    static final int MAX_SCRIPT_LENGTH = 1024;
+
+    /**
+     * Maximum number of values returned by a single generated script
+     */
+    static final int MAX_BATCH_VALUES = 48;
+
+    /**
+     * Polling interval of recently changed or commanded devices
+     */
+    static final long MIN_POLL_INTERVAL_MILLIS = 2_000;
+
+    /**
+     * Polling interval of devices, that did not change for a longer time
+     */
+    static final long MAX_POLL_INTERVAL_MILLIS = 60_000;
+
+    private static final String KEY_PREFIX = "v";
+
+    private final RemoteCLU remoteCLU;
+
+    private final VirtualCLU currentClu;
+
+    private final List<RemoteCLUDevice> devices = new CopyOnWriteArrayList<>();
+
+    private final Map<RemoteCLUDevice, String> lastStates = new ConcurrentHashMap<>();
+
+    private final Map<RemoteCLUDevice, PollSchedule> schedules = new ConcurrentHashMap<>();
+
+    private final LongSupplier clock;
+
+    private volatile List<Batch> batches = List.of();
+
+    public RemoteCLUStatePoller(RemoteCLU remoteCLU, VirtualCLU currentClu) {
+        this(remoteCLU, currentClu, System::currentTimeMillis);
+    }
+
+    RemoteCLUStatePoller(RemoteCLU remoteCLU, VirtualCLU currentClu, LongSupplier clock) {
+        this.remoteCLU = remoteCLU;
+        this.currentClu = currentClu;
+        this.clock = clock;
+    }
+
+    /**
+     * Adds the device to the periodically polled devices
+     */
+    public void add(RemoteCLUDevice device) {
+        if (device.getStateExpressions().isEmpty()) {
+            return;
+        }
+
+        // spread the initial polls of all devices over the maximum interval
+        schedules.put(device, new PollSchedule(MAX_POLL_INTERVAL_MILLIS, clock.getAsLong() + RandomUtil.integer((int) MAX_POLL_INTERVAL_MILLIS)));
+
+        devices.add(device);
+        batches = createBatches(devices);
+    }
+
+    /**
+     * Removes the device from the periodically polled devices
+     */
+    public void remove(RemoteCLUDevice device) {
+        if (devices.remove(device)) {
+            schedules.remove(device);
+            batches = createBatches(devices);
+        }
+    }
+
+    /**
+     * Reads and publishes the (changed) state of all polled devices
+     */
+    public void poll() {
+        poll(batches);
+    }
+
+    /**
+     * Reads and publishes the (changed) state of devices, which polling interval has elapsed. Devices that are almost due are polled along, so
+     * they share the requests.
+     */
+    public void pollDue() {
+        final long now = clock.getAsLong();
+
+        boolean anyDue = false;
+        final List<RemoteCLUDevice> dueDevices = new ArrayList<>();
+        for (RemoteCLUDevice device : devices) {
+            final PollSchedule schedule = schedules.get(device);
+            final long timeLeft = schedule.nextPollAt - now;
+            if (timeLeft <= 0) {
+                anyDue = true;
+                dueDevices.add(device);
+            } else if (timeLeft <= schedule.intervalMillis / 4) {
+                dueDevices.add(device);
+            }
+        }
+
+        if (anyDue) {
+            poll(createBatches(dueDevices));
+        }
+    }
+
+    private void poll(List<Batch> batches) {
+        for (Batch batch : batches) {
+            final Optional<LuaValue[]> values = execute(batch.script(), batch.size());
+            if (values.isEmpty()) {
+                batch.entries()
+                     .forEach(entry -> backOff(entry.device()));
+
+                continue;
+            }
+
+            for (BatchEntry entry : batch.entries()) {
+                final RemoteCLUDevice device = entry.device();
+                final List<LuaValue> deviceValues = Arrays.asList(values.get())
+                                                          .subList(entry.offset(), entry.offset() + device.getStateExpressions().size());
+
+                boolean changed = false;
+                try {
+                    final Optional<JsonNode> stateNode = device.toState(deviceValues);
+                    if (stateNode.isPresent()) {
+                        changed = publishIfChanged(device, stateNode.get(), false);
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.error("Could not update state of {}", device.getDiscoveryMessage().getUniqueId(), e);
+                }
+
+                if (changed) {
+                    markActive(device);
+                } else {
+                    backOff(device);
+                }
+            }
+        }
+    }
+
+    /**
+     * Shortens the polling interval of the device to the minimum (e.g. after a command was sent to it)
+     */
+    public void markActive(RemoteCLUDevice device) {
+        final PollSchedule schedule = schedules.get(device);
+        if (schedule == null) {
+            return;
+        }
+
+        schedule.intervalMillis = MIN_POLL_INTERVAL_MILLIS;
+        schedule.nextPollAt = clock.getAsLong() + MIN_POLL_INTERVAL_MILLIS;
+    }
+
+    private void backOff(RemoteCLUDevice device) {
+        final PollSchedule schedule = schedules.get(device);
+        if (schedule == null) {
+            return;
+        }
+
+        schedule.intervalMillis = Math.min(schedule.intervalMillis * 2, MAX_POLL_INTERVAL_MILLIS);
+        schedule.nextPollAt = clock.getAsLong() + schedule.intervalMillis;
+    }
+
+    /**
+     * @return current polling interval of the device
+     */
+    long getPollIntervalMillis(RemoteCLUDevice device) {
+        return schedules.get(device).intervalMillis;
+    }
+
+    /**
+     * @return current device state, read with a single request
+     */
+    public Optional<JsonNode> read(RemoteCLUDevice device) {
+        final List<String> expressions = device.getStateExpressions();
+        if (expressions.isEmpty()) {
+            return Optional.empty();
+        }
+
+        final StringBuilder script = new StringBuilder("{");
+        for (int i = 0; i < expressions.size(); i++) {
+            appendEntry(script, i, expressions.get(i));
+        }
+        script.append("}");
+
+        return execute(script.toString(), expressions.size())
+                .flatMap(values -> device.toState(Arrays.asList(values)));
+    }
+
+    /**
+     * Publishes the device state, if it changed since the last publication (or always, when forced, e.g. in response to a command). Changes and
+     * commands shorten the polling interval of the device.
+     */
+    public void publish(RemoteCLUDevice device, JsonNode stateNode, boolean force) {
+        if (publishIfChanged(device, stateNode, force) || force) {
+            markActive(device);
+        }
+    }
+
+    /**
+     * @return true, if the state changed since the last publication (the first publication is not considered a change)
+     */
+    private boolean publishIfChanged(RemoteCLUDevice device, JsonNode stateNode, boolean force) {
+        final MqttDiscovery discoveryMessage = device.getDiscoveryMessage();
+        final String stateTopic = discoveryMessage.getStateTopic();
+        if (stateTopic == null) {
+            return false;
+        }
+
+        final String stateAsString;
+        try {
+            stateAsString = ObjectMapperFactory.JSON.writeValueAsString(stateNode);
+        } catch (JsonProcessingException e) {
+            LOGGER.error("Could not serialize state for {}", discoveryMessage.getUniqueId(), e);
+
+            return false;
+        }
+
+        final String lastState = lastStates.put(device, stateAsString);
+        final boolean changed = !stateAsString.equals(lastState);
+        if (!force && !changed) {
+            return false;
+        }
+
+        try {
+            currentClu.getMqttClient()
+                      .publishState(
+                              stateTopic,
+                              stateAsString.getBytes(StandardCharsets.UTF_8)
+                      );
+        } catch (RuntimeException e) {
+            LOGGER.error("Could not publish state update message for {}", discoveryMessage.getUniqueId(), e);
+        }
+
+        return changed && lastState != null;
+    }
+
+    private Optional<LuaValue[]> execute(String script, int size) {
+        final LuaValue returnValue = remoteCLU.remoteExecute(script);
+        if (!(returnValue instanceof LuaTable table)) {
+            LOGGER.debug("Unexpected state response from {}: {}", remoteCLU.getName(), returnValue);
+
+            return Optional.empty();
+        }
+
+        final LuaValue[] values = new LuaValue[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = table.get(KEY_PREFIX + i);
+        }
+
+        return Optional.of(values);
+    }
+
+    private static List<Batch> createBatches(List<RemoteCLUDevice> devices) {
+        final List<Batch> batches = new ArrayList<>();
+
+        StringBuilder script = new StringBuilder("{");
+        List<BatchEntry> entries = new ArrayList<>();
+        int size = 0;
+        for (RemoteCLUDevice device : devices) {
+            final List<String> expressions = device.getStateExpressions();
+
+            int expressionsLength = 0;
+            for (String expression : expressions) {
+                expressionsLength += KEY_PREFIX.length() + 5 + expression.length();
+            }
+
+            if (size > 0 && (size + expressions.size() > MAX_BATCH_VALUES || script.length() + expressionsLength > MAX_SCRIPT_LENGTH)) {
+                batches.add(new Batch(script.append("}").toString(), size, entries));
+
+                script = new StringBuilder("{");
+                entries = new ArrayList<>();
+                size = 0;
+            }
+
+            entries.add(new BatchEntry(device, size));
+            for (String expression : expressions) {
+                appendEntry(script, size++, expression);
+            }
+        }
+
+        if (size > 0) {
+            batches.add(new Batch(script.append("}").toString(), size, entries));
+        }
+
+        return List.copyOf(batches);
+    }
+
+    private static void appendEntry(StringBuilder script, int index, String expression) {
+        if (index > 0) {
+            script.append(",");
+        }
+
+        script.append(KEY_PREFIX).append(index)
+              .append("=").append(expression);
+    }
+
+    private record Batch(String script, int size, List<BatchEntry> entries) {
+    }
+
+    private record BatchEntry(RemoteCLUDevice device, int offset) {
+    }
+
+    private static class PollSchedule {
+        private volatile long intervalMillis;
+
+        private volatile long nextPollAt;
+
+        PollSchedule(long intervalMillis, long nextPollAt) {
+            this.intervalMillis = intervalMillis;
+            this.nextPollAt = nextPollAt;
+        }
+    }
+}
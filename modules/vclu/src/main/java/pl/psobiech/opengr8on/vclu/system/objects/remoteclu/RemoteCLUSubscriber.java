@@ -0,0 +1,359 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system.objects.remoteclu;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.compiler.LuaC;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.psobiech.opengr8on.client.CipherKey;
+import pl.psobiech.opengr8on.client.Client;
+import pl.psobiech.opengr8on.client.commands.LuaScriptCommand;
+import pl.psobiech.opengr8on.exceptions.UncheckedInterruptedException;
+import pl.psobiech.opengr8on.util.IOUtil;
+import pl.psobiech.opengr8on.util.RandomUtil;
+import pl.psobiech.opengr8on.util.SocketUtil;
+import pl.psobiech.opengr8on.util.SocketUtil.Payload;
+import pl.psobiech.opengr8on.util.SocketUtil.UDPSocket;
+import pl.psobiech.opengr8on.util.ThreadUtil;
+
+import java.io.Closeable;
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Subscribes to state changes of devices bridged from a remote CLU (the same way OM does, using SYSTEM:clientRegister), and publishes the
+ * pushed clientReport values instead of polling them. Only devices, which state is built from plain feature reads (OBJ:get(index)) can be
+ * subscribed.
+ */
+public class RemoteCLUSubscriber implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RemoteCLUSubscriber.class);
+
+    private static final String CLIENT_REPORT_PREFIX = "clientReport:";
+
+    private static final Pattern FEATURE_EXPRESSION_PATTERN = Pattern.compile("^([A-Za-z_][A-Za-z0-9_]*):get\\((\\d+)\\)$");
+
+    private static final int BUFFER_SIZE = 2048;
+
+    private static final Duration UNSUBSCRIBE_TIMEOUT = Duration.ofSeconds(1);
+
+    private final RemoteCLU remoteCLU;
+
+    private final RemoteCLUStatePoller statePoller;
+
+    private final Inet4Address localAddress;
+
+    private final CipherKey cipherKey;
+
+    private final Globals localLuaContext;
+
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+
+    private UDPSocket socket;
+
+    private ExecutorService receiverExecutor;
+
+    private volatile boolean closed;
+
+    public RemoteCLUSubscriber(RemoteCLU remoteCLU, RemoteCLUStatePoller statePoller, Inet4Address localAddress, CipherKey cipherKey) {
+        this.remoteCLU = remoteCLU;
+        this.statePoller = statePoller;
+        this.localAddress = localAddress;
+        this.cipherKey = cipherKey;
+
+        this.localLuaContext = new Globals();
+        LuaC.install(localLuaContext);
+    }
+
+    /**
+     * @return true, if the device state can be subscribed to (all of its state expressions are plain feature reads)
+     */
+    public static boolean isSubscribable(RemoteCLUDevice device) {
+        final List<String> expressions = device.getStateExpressions();
+
+        return !expressions.isEmpty()
+               && expressions.stream().allMatch(expression -> FEATURE_EXPRESSION_PATTERN.matcher(expression).matches());
+    }
+
+    /**
+     * Adds the device to the subscribed devices (takes effect on the next {@link #register()})
+     */
+    public synchronized void add(RemoteCLUDevice device) {
+        if (!isSubscribable(device)) {
+            throw new IllegalArgumentException("Device state cannot be subscribed to");
+        }
+
+        final List<String> expressions = device.getStateExpressions();
+
+        Session session = sessions.isEmpty() ? null : sessions.getLast();
+        if (session == null || session.size + expressions.size() > RemoteCLUStatePoller.MAX_BATCH_VALUES) {
+            session = new Session(RandomUtil.integer(Integer.MAX_VALUE));
+            sessions.add(session);
+        }
+
+        session.entries.add(new SessionEntry(device, session.size));
+        for (String expression : expressions) {
+            final Matcher matcher = FEATURE_EXPRESSION_PATTERN.matcher(expression);
+            if (matcher.matches()) {
+                session.features.add("{%s, %s}".formatted(matcher.group(1), matcher.group(2)));
+            }
+        }
+        session.size += expressions.size();
+    }
+
+    /**
+     * @return all subscribed devices
+     */
+    public List<RemoteCLUDevice> getDevices() {
+        return sessions.stream()
+                       .flatMap(session -> session.entries.stream())
+                       .map(SessionEntry::device)
+                       .toList();
+    }
+
+    /**
+     * Registers (or refreshes) all subscriptions on the remote CLU, and publishes the initially reported values
+     *
+     * @return true, if the remote CLU accepted all subscriptions
+     */
+    public boolean register() {
+        if (sessions.isEmpty()) {
+            return true;
+        }
+
+        final UDPSocket socket = getSocket();
+
+        boolean registered = true;
+        for (Session session : sessions) {
+            final LuaValue returnValue = remoteCLU.remoteExecute(
+                    "SYSTEM:clientRegister(\"%s\", %d, %d, {%s})"
+                            .formatted(
+                                    localAddress.getHostAddress(), socket.getLocalPort(), session.sessionId,
+                                    String.join(",", session.features)
+                            )
+            );
+
+            if (!returnValue.isstring() || !onReport(returnValue.tojstring())) {
+                LOGGER.warn("Could not subscribe to {}, unexpected response: {}", remoteCLU.getName(), returnValue);
+
+                registered = false;
+            }
+        }
+
+        return registered;
+    }
+
+    /**
+     * @return local port, that receives the clientReport messages
+     */
+    public int getPort() {
+        return getSocket().getLocalPort();
+    }
+
+    private synchronized UDPSocket getSocket() {
+        if (socket == null) {
+            socket = SocketUtil.udpRandomPort(localAddress);
+            socket.open();
+
+            // platform thread, since it spends all of its time in a blocking receive
+            receiverExecutor = ThreadUtil.daemonExecutor("RemoteCLUSubscriber");
+            receiverExecutor.submit(this::receiveReports);
+        }
+
+        return socket;
+    }
+
+    private void receiveReports() {
+        final DatagramPacket packet = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
+
+        while (!closed && !Thread.interrupted()) {
+            try {
+                socket.receiveConcurrently(packet)
+                      .flatMap(encryptedPayload -> Client.tryDecrypt(remoteCLU.getName(), cipherKey, encryptedPayload))
+                      .map(Payload::buffer)
+                      .flatMap(LuaScriptCommand::responseFromByteArray)
+                      .ifPresent(response -> onReport(response.getReturnValue()));
+            } catch (UncheckedInterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (closed) {
+                    return;
+                }
+
+                LOGGER.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Parses clientReport:sessionId:{value1, value2, ...} and publishes changed device states
+     *
+     * @return true, if the report matched a known session
+     */
+    boolean onReport(String report) {
+        if (!report.startsWith(CLIENT_REPORT_PREFIX)) {
+            return false;
+        }
+
+        final String[] reportParts = report.substring(CLIENT_REPORT_PREFIX.length()).split(":", 2);
+        if (reportParts.length != 2) {
+            return false;
+        }
+
+        final Optional<Session> sessionOptional = findSession(reportParts[0]);
+        if (sessionOptional.isEmpty()) {
+            LOGGER.debug("Ignoring report of unknown session from {}: {}", remoteCLU.getName(), report);
+
+            return false;
+        }
+
+        final Session session = sessionOptional.get();
+        final LuaValue[] values = parseValues(reportParts[1], session.size);
+        for (SessionEntry entry : session.entries) {
+            final RemoteCLUDevice device = entry.device();
+            final List<LuaValue> deviceValues = Arrays.asList(values)
+                                                      .subList(entry.offset(), entry.offset() + device.getStateExpressions().size());
+
+            try {
+                final Optional<JsonNode> stateNode = device.toState(deviceValues);
+                stateNode.ifPresent(node -> statePoller.publish(device, node, false));
+            } catch (RuntimeException e) {
+                LOGGER.error("Could not update state of {}", device.getDiscoveryMessage().getUniqueId(), e);
+            }
+        }
+
+        return true;
+    }
+
+    private Optional<Session> findSession(String sessionIdAsString) {
+        final int sessionId;
+        try {
+            sessionId = Integer.parseInt(sessionIdAsString.trim());
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+
+        return sessions.stream()
+                       .filter(session -> session.sessionId == sessionId)
+                       .findAny();
+    }
+
+    private LuaValue[] parseValues(String valuesAsString, int size) {
+        final LuaValue[] values = new LuaValue[size];
+        Arrays.fill(values, LuaValue.NIL);
+
+        final LuaValue table;
+        try {
+            synchronized (localLuaContext) {
+                table = localLuaContext.load("return %s".formatted(valuesAsString))
+                                       .call();
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Could not parse report values from {}: {}", remoteCLU.getName(), valuesAsString, e);
+
+            return values;
+        }
+
+        if (table instanceof LuaTable luaTable) {
+            for (int i = 0; i < size; i++) {
+                values[i] = luaTable.get(i + 1);
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Unsubscribes from the remote CLU (waiting for the requests to complete, so they are sent before the client gets closed)
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        synchronized (this) {
+            if (socket != null) {
+                unsubscribe(socket.getLocalPort());
+            }
+
+            IOUtil.closeQuietly(socket);
+            ThreadUtil.closeQuietly(receiverExecutor);
+        }
+    }
+
+    private void unsubscribe(int port) {
+        final List<CompletableFuture<LuaValue>> futures = new ArrayList<>();
+        for (Session session : sessions) {
+            try {
+                futures.add(
+                        remoteCLU.remoteExecuteAsync(
+                                "SYSTEM:clientDestroy(\"%s\", %d, %d)".formatted(localAddress.getHostAddress(), port, session.sessionId),
+                                UNSUBSCRIBE_TIMEOUT
+                        )
+                );
+            } catch (RuntimeException e) {
+                LOGGER.debug("Could not unsubscribe from {}", remoteCLU.getName(), e);
+            }
+        }
+
+        for (CompletableFuture<LuaValue> future : futures) {
+            try {
+                future.get(UNSUBSCRIBE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                return;
+            } catch (ExecutionException | TimeoutException e) {
+                LOGGER.debug("Could not unsubscribe from {}", remoteCLU.getName(), e);
+            }
+        }
+    }
+
+    private static class Session {
+        private final int sessionId;
+
+        private final List<SessionEntry> entries = new ArrayList<>();
+
+        private final List<String> features = new ArrayList<>();
+
+        private int size;
+
+        Session(int sessionId) {
+            this.sessionId = sessionId;
+        }
+    }
+
+    private record SessionEntry(RemoteCLUDevice device, int offset) {
+    }
+}
@@ -11,12 +11,15 @@ import pl.psobiech.opengr8on.vclu.util.LuaUtil;
 import pl.psobiech.opengr8on.xml.omp.system.specificObjects.Feature;
 import pl.psobiech.opengr8on.xml.omp.system.specificObjects.SpecificObject;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 
 public class RemoteCLUTemperatureSensor extends BaseRemoteCLUSensor implements RemoteCLUDevice {
     private final SpecificObject object;
 
+    private final List<String> stateExpressions;
+
     private final MqttDiscovery discoveryMessage;
 
     public RemoteCLUTemperatureSensor(
@@ -29,9 +32,10 @@ public class RemoteCLUTemperatureSensor extends BaseRemoteCLUSensor implements R
 
         this.object = object;
 
-        final Optional<Feature> valueFeature = object.getFeatures().stream()
-                                                     .filter(feature1 -> feature1.getName().equalsIgnoreCase("Value"))
-                                                     .findAny();
+        final Optional<Feature> valueFeature = findFeature(object, "Value");
+        this.stateExpressions = valueFeature.map(feature -> List.of(getFeatureExpression(object, feature)))
+                                            .orElseGet(List::of);
+
         if (valueFeature.isEmpty()) {
             this.discoveryMessage = null;
 
@@ -64,16 +68,13 @@ public class RemoteCLUTemperatureSensor extends BaseRemoteCLUSensor implements R
     }
 
     @Override
-    public Optional<JsonNode> readValue(RemoteCLU remoteCLU) {
-        final Optional<Feature> valueFeature = object.getFeatures().stream()
-                                                     .filter(feature1 -> feature1.getName().equalsIgnoreCase("Value"))
-                                                     .findAny();
-
-        if (valueFeature.isEmpty()) {
-            return Optional.empty();
-        }
+    public List<String> getStateExpressions() {
+        return stateExpressions;
+    }
 
-        final LuaValue luaValue = remoteCLU.remoteExecute("%s:get(%d)".formatted(object.getNameOnCLU(), valueFeature.get().getIndex()));
+    @Override
+    public Optional<JsonNode> toState(List<LuaValue> values) {
+        final LuaValue luaValue = values.getFirst();
         if (LuaUtil.isNil(luaValue)) {
             return Optional.empty();
         }
@@ -0,0 +1,80 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system.objects.remoteclu;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket, that limits the rate of requests sent to a single remote CLU. Tokens are reserved ahead of time, so the caller gets the delay
+ * after which its request may be sent, instead of being blocked.
+ */
+public class TokenBucket {
+    private final long nanosPerToken;
+
+    private final long capacityNanos;
+
+    private final LongSupplier nanoTime;
+
+    /**
+     * Point in time, when the bucket will be full again (earlier values mean a full bucket)
+     */
+    private long fullAt;
+
+    /**
+     * @param tokensPerSecond sustained request rate
+     * @param capacity        maximum burst of requests
+     */
+    public TokenBucket(double tokensPerSecond, int capacity) {
+        this(tokensPerSecond, capacity, System::nanoTime);
+    }
+
+    TokenBucket(double tokensPerSecond, int capacity, LongSupplier nanoTime) {
+        if (tokensPerSecond <= 0 || capacity < 1) {
+            throw new IllegalArgumentException("Token bucket requires a positive rate and capacity");
+        }
+
+        this.nanosPerToken = Math.round(TimeUnit.SECONDS.toNanos(1) / tokensPerSecond);
+        this.capacityNanos = nanosPerToken * capacity;
+        this.nanoTime = nanoTime;
+
+        this.fullAt = nanoTime.getAsLong();
+    }
+
+    /**
+     * Reserves a single token, if it becomes available within the maximum wait time
+     *
+     * @return delay in nanoseconds, after which the token can be used, or -1 if the token would not be available in time (nothing is reserved)
+     */
+    public synchronized long reserve(Duration maxWait) {
+        final long now = nanoTime.getAsLong();
+
+        // an empty bucket is full again at now + capacity
+        final long newFullAt = Math.max(fullAt, now) + nanosPerToken;
+        final long delayNanos = Math.max(0, newFullAt - now - capacityNanos);
+        if (delayNanos > maxWait.toNanos()) {
+            return -1;
+        }
+
+        fullAt = newFullAt;
+
+        return delayNanos;
+    }
+}
@@ -18,12 +18,16 @@
 
 package pl.psobiech.opengr8on.vclu.util;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.luaj.vm2.*;
 import pl.psobiech.opengr8on.util.Util;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -31,9 +35,6 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
-import java.util.regex.Matcher;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 public class LuaUtil {
     private static final String NIL_AS_STRING = "nil";
@@ -131,6 +132,56 @@ public class LuaUtil {
         return LuaValue.valueOf(jsonNode.asText());
     }
 
+    /**
+     * Converts the JSON value read from the parser, without building an intermediate tree (with the same conversions as {@link #fromJson(JsonNode)})
+     *
+     * @return lua value, NIL when the stream is empty
+     */
+    public static LuaValue fromJson(JsonParser parser) throws IOException {
+        final JsonToken token = parser.hasCurrentToken() ? parser.currentToken() : parser.nextToken();
+        if (token == null) {
+            return LuaValue.NIL;
+        }
+
+        return fromJson(parser, token);
+    }
+
+    private static LuaValue fromJson(JsonParser parser, JsonToken token) throws IOException {
+        return switch (token) {
+            case START_ARRAY -> {
+                final LuaTable table = LuaValue.tableOf();
+
+                int i = 0;
+                JsonToken elementToken;
+                while ((elementToken = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    table.set(i++, fromJson(parser, elementToken));
+                }
+
+                yield table;
+            }
+            case START_OBJECT -> {
+                final LuaTable table = LuaValue.tableOf();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String key = parser.currentName();
+
+                    table.set(key, fromJson(parser, parser.nextToken()));
+                }
+
+                yield table;
+            }
+            case VALUE_NUMBER_INT -> switch (parser.getNumberType()) {
+                case INT -> LuaValue.valueOf(parser.getIntValue());
+                case LONG -> LuaValue.valueOf((double) parser.getLongValue());
+                default -> LuaValue.valueOf(parser.getText());
+            };
+            case VALUE_NUMBER_FLOAT -> LuaValue.valueOf(parser.getDoubleValue());
+            case VALUE_TRUE -> LuaValue.TRUE;
+            case VALUE_FALSE -> LuaValue.FALSE;
+            case VALUE_NULL -> LuaValue.NIL;
+            default -> LuaValue.valueOf(parser.getText());
+        };
+    }
+
     /**
      * @return true, if the luaValue is true, != 0, "true"
      */
@@ -148,77 +199,197 @@ public class LuaUtil {
      * @return luaValue converted to String, with String quoted or nil
      */
     public static String stringifyRaw(Varargs args) {
-        if (args.narg() == 0) {
-            return "{}";
-        }
-
-        return stringifyList(
-                IntStream.rangeClosed(1, args.narg())
-                         .mapToObj(args::arg)
-                         .collect(Collectors.toList()),
-                LuaUtil::stringify
-        );
+        return appendRaw(new StringBuilder(), args).toString();
     }
 
     /**
      * @return luaValue converted to String, with String quoted or nil
      */
     public static String stringify(LuaValue luaValue) {
+        return append(new StringBuilder(), luaValue).toString();
+    }
+
+    /**
+     * @return luaValue converted to String, with String quoted or nil and table keys in a stable order
+     */
+    public static String stringifySorted(LuaValue luaValue) {
+        return append(new StringBuilder(), luaValue, true).toString();
+    }
+
+    /**
+     * @return luaValue converted to String, or null
+     */
+    public static String stringifyRaw(LuaValue luaValue) {
+        return stringifyRaw(luaValue, null);
+    }
+
+    /**
+     * @return luaValue converted to String, or nilValue
+     */
+    public static String stringifyRaw(LuaValue luaValue, String nilValue) {
         if (isNil(luaValue)) {
-            return NIL_AS_STRING;
+            return nilValue;
         }
 
-        if (luaValue instanceof LuaNumber) {
-            return String.valueOf(luaValue.checknumber());
+        if (luaValue.isstring() && !(luaValue instanceof LuaNumber)) {
+            return luaValue.checkjstring();
         }
 
-        if (luaValue instanceof LuaBoolean) {
-            return String.valueOf(luaValue.checkboolean());
+        return append(new StringBuilder(), luaValue).toString();
+    }
+
+    /**
+     * Appends all args as a LUA table literal, e.g. {1, "a", nil}
+     *
+     * @return the same StringBuilder
+     */
+    public static StringBuilder appendRaw(StringBuilder sb, Varargs args) {
+        sb.append('{');
+        for (int i = 1; i <= args.narg(); i++) {
+            if (i > 1) {
+                sb.append(TABLE_DELIMITER);
+            }
+
+            append(sb, args.arg(i), false);
         }
 
-        if (luaValue instanceof LuaTable table) {
-            return stringifyMap(table(table), LuaUtil::stringifyRaw, LuaUtil::stringify);
+        return sb.append('}');
+    }
+
+    /**
+     * Appends luaValue, with Strings unquoted or nilValue
+     *
+     * @return the same StringBuilder
+     */
+    public static StringBuilder appendRaw(StringBuilder sb, LuaValue luaValue, String nilValue) {
+        if (isNil(luaValue)) {
+            return sb.append(nilValue);
         }
 
-        if (luaValue.isstring()) {
-            return "\"" + luaValue.checkjstring().replaceAll("\"", Matcher.quoteReplacement("\\\"")) + "\"";
+        if (luaValue.isstring() && !(luaValue instanceof LuaNumber)) {
+            return sb.append(luaValue.checkjstring());
         }
 
-        return String.valueOf(luaValue);
+        return append(sb, luaValue, false);
     }
 
     /**
-     * @return luaValue converted to String, or null
+     * Appends luaValue, with Strings quoted or nil
+     *
+     * @return the same StringBuilder
      */
-    public static String stringifyRaw(LuaValue luaValue) {
-        return stringifyRaw(luaValue, null);
+    public static StringBuilder append(StringBuilder sb, LuaValue luaValue) {
+        return append(sb, luaValue, false);
     }
 
     /**
-     * @return luaValue converted to String, or nilValue
+     * Appends luaValue, with Strings quoted or nil
+     *
+     * @param sortKeys if true, table keys are written in a stable order (numbers ascending, then other keys by their String value)
+     * @return the same StringBuilder
      */
-    public static String stringifyRaw(LuaValue luaValue, String nilValue) {
+    public static StringBuilder append(StringBuilder sb, LuaValue luaValue, boolean sortKeys) {
         if (isNil(luaValue)) {
-            return nilValue;
+            return sb.append(NIL_AS_STRING);
         }
 
-        if (luaValue instanceof LuaNumber) {
-            return String.valueOf(luaValue.checknumber());
-        }
-
-        if (luaValue instanceof LuaBoolean) {
-            return String.valueOf(luaValue.checkboolean());
+        if (luaValue instanceof LuaNumber || luaValue instanceof LuaBoolean) {
+            return sb.append(luaValue.tojstring());
         }
 
         if (luaValue instanceof LuaTable table) {
-            return stringifyMap(table(table), LuaUtil::stringifyRaw, LuaUtil::stringify);
+            return appendTable(sb, table, sortKeys);
         }
 
         if (luaValue.isstring()) {
-            return luaValue.checkjstring();
+            return appendQuoted(sb, luaValue.checkjstring());
         }
 
-        return String.valueOf(luaValue);
+        return sb.append(luaValue);
+    }
+
+    private static StringBuilder appendTable(StringBuilder sb, LuaTable table, boolean sortKeys) {
+        sb.append('{');
+        if (sortKeys) {
+            final LuaValue[] keys = table.keys();
+            Arrays.sort(keys, LuaUtil::compareKeys);
+
+            for (int i = 0; i < keys.length; i++) {
+                appendEntry(sb, i > 0, keys[i], table.get(keys[i]), true);
+            }
+        } else {
+            boolean first = true;
+
+            Varargs entry = table.next(LuaValue.NIL);
+            while (!entry.arg1().isnil()) {
+                appendEntry(sb, !first, entry.arg1(), entry.arg(2), false);
+
+                first = false;
+                entry = table.next(entry.arg1());
+            }
+        }
+
+        return sb.append('}');
+    }
+
+    private static void appendEntry(StringBuilder sb, boolean delimited, LuaValue key, LuaValue value, boolean sortKeys) {
+        if (delimited) {
+            sb.append(TABLE_DELIMITER);
+        }
+
+        if (key.isstring() && !(key instanceof LuaNumber)) {
+            sb.append(key.checkjstring());
+        } else {
+            append(sb, key, sortKeys);
+        }
+
+        sb.append(ENTRY_DELIMITER);
+        append(sb, value, sortKeys);
+    }
+
+    private static int compareKeys(LuaValue a, LuaValue b) {
+        final boolean aNumber = a instanceof LuaNumber;
+        final boolean bNumber = b instanceof LuaNumber;
+        if (aNumber && bNumber) {
+            return Double.compare(a.todouble(), b.todouble());
+        }
+
+        if (aNumber != bNumber) {
+            return aNumber ? -1 : 1;
+        }
+
+        return a.tojstring().compareTo(b.tojstring());
+    }
+
+    /**
+     * Appends value as a quoted LUA string literal, escaping quotes, backslashes and control characters
+     */
+    private static StringBuilder appendQuoted(StringBuilder sb, String value) {
+        sb.append('"');
+
+        int start = 0;
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            final String escaped = switch (c) {
+                case '"' -> "\\\"";
+                case '\\' -> "\\\\";
+                case '\n' -> "\\n";
+                case '\r' -> "\\r";
+                case '\t' -> "\\t";
+                default -> c < ' ' || c == 0x7F ? "\\%03d".formatted((int) c) : null;
+            };
+            if (escaped == null) {
+                continue;
+            }
+
+            sb.append(value, start, i)
+              .append(escaped);
+            start = i + 1;
+        }
+
+        return sb.append(value, start, length)
+                 .append('"');
     }
 
     /**
@@ -34,6 +34,7 @@ import pl.psobiech.opengr8on.util.ResourceUtil;
 import pl.psobiech.opengr8on.vclu.util.LuaUtil;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class Server2ServerTest {
     private static CipherKey projectCipherKey;
@@ -113,4 +114,23 @@ class Server2ServerTest {
         final LuaValue resultValueLocal = server2.getServer().luaCall("testVariable");
         assertEquals(334, LuaUtil.asObject(resultValueLocal));
     }
-}
\ No newline at end of file
+
+    @Test
+    @Timeout(30)
+    void asyncRemoteCommunication() throws Exception {
+        final LuaValue requestId = server1.getServer().luaCall("CLU1:execute(10, \"40 + 2\", function(value) asyncResult = value end)");
+        assertTrue(requestId.isint());
+
+        LuaValue asyncResult;
+        do {
+            Thread.sleep(10L);
+
+            asyncResult = server1.getServer().luaCall("asyncResult");
+        } while (asyncResult.isnil());
+
+        assertEquals(42, LuaUtil.asObject(asyncResult));
+
+        // cancelling a completed request is a no-op
+        assertEquals(LuaValue.FALSE, server1.getServer().luaCall("CLU1:execute(11, %d)".formatted(requestId.checkint())));
+    }
+}
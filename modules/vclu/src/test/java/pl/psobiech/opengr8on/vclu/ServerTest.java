@@ -86,6 +86,33 @@ class ServerTest extends BaseServerTest {
         });
     }
 
+    @Test
+    @Timeout(30)
+    void userCoroutinesAreUnavailable() throws Exception {
+        execute((projectCipherKey, server, client) -> {
+            assertEquals(Optional.of("nil"), client.execute("setVar(\"STO1\", OBJECT:new(44, \"STO1\"))"));
+
+            final Optional<String> scheduledOptional = client.execute(
+                    "pcall(function() STO1:execute(4, \"stored\"); SYSTEM:Wait(10) end)"
+            );
+
+            assertTrue(scheduledOptional.isPresent());
+            assertEquals("true", scheduledOptional.get());
+
+            // coroutines created by scripts would not be run by the scheduler, so they must fail instead of blocking the globals
+            final Optional<String> coroutineOptional = client.execute(
+                    "pcall(function() coroutine.wrap(function() STO1:execute(4, \"stored\"); SYSTEM:Wait(10) end)() end)"
+            );
+
+            assertTrue(coroutineOptional.isPresent());
+            assertEquals("false", coroutineOptional.get());
+
+            final Optional<Boolean> aliveOptional = client.checkAlive();
+            assertTrue(aliveOptional.isPresent());
+            assertTrue(aliveOptional.get());
+        });
+    }
+
     @Test
     @Timeout(30)
     void emergencyMode() throws Exception {
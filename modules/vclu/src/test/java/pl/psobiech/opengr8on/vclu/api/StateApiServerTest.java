@@ -0,0 +1,195 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import pl.psobiech.opengr8on.util.FileUtil;
+import pl.psobiech.opengr8on.util.IOUtil;
+import pl.psobiech.opengr8on.util.ObjectMapperFactory;
+import pl.psobiech.opengr8on.vclu.system.VirtualSystem;
+import pl.psobiech.opengr8on.exceptions.UnexpectedException;
+import pl.psobiech.opengr8on.vclu.system.objects.Timer;
+import pl.psobiech.opengr8on.vclu.system.objects.VirtualCLU;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.WebSocket;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Execution(ExecutionMode.CONCURRENT)
+class StateApiServerTest {
+    private static final String TOKEN = "secret";
+
+    private Path rootDirectory;
+
+    private VirtualSystem virtualSystem;
+
+    private StateApiServer stateApiServer;
+
+    private HttpClient httpClient;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        final Inet4Address localAddress = (Inet4Address) InetAddress.getByName("127.0.0.1");
+
+        rootDirectory = FileUtil.temporaryDirectory();
+        virtualSystem = new VirtualSystem(rootDirectory.resolve("a"), localAddress, 0, null);
+        virtualSystem.newObject(VirtualCLU.INDEX, "clu", null);
+        virtualSystem.newObject(Timer.INDEX, "timer", null);
+
+        stateApiServer = new StateApiServer();
+        stateApiServer.start(localAddress, 0, TOKEN, virtualSystem);
+
+        httpClient = HttpClient.newHttpClient();
+    }
+
+    @AfterEach
+    void tearDown() {
+        IOUtil.closeQuietly(httpClient, stateApiServer, virtualSystem);
+        FileUtil.deleteRecursively(rootDirectory);
+    }
+
+    @Test
+    void requiresToken() throws Exception {
+        final HttpResponse<String> response = httpClient.send(
+                HttpRequest.newBuilder(uri("/api/objects")).build(),
+                BodyHandlers.ofString()
+        );
+
+        assertEquals(401, response.statusCode());
+        assertEquals(200, httpClient.send(HttpRequest.newBuilder(uri("/api/objects?token=" + TOKEN)).build(), BodyHandlers.ofString()).statusCode());
+    }
+
+    @Test
+    void refusesToStartWithoutToken() {
+        try (StateApiServer server = new StateApiServer()) {
+            final InetAddress localAddress = InetAddress.getLoopbackAddress();
+
+            assertThrows(UnexpectedException.class, () -> server.start(localAddress, 0, null, virtualSystem));
+            assertThrows(UnexpectedException.class, () -> server.start(localAddress, 0, "", virtualSystem));
+        }
+    }
+
+    @Test
+    void hidesSecretFeatures() throws Exception {
+        final JsonNode clu = send("GET", "/api/objects/clu", null);
+        assertTrue(clu.has("USE_MQTT"));
+        assertFalse(clu.has("MQTT_URL"));
+        assertFalse(clu.has("STATE_API_TOKEN"));
+
+        assertFalse(send("POST", "/api/get", "{\"clu\": []}").get("clu").has("MQTT_URL"));
+        assertEquals(404, httpClient.send(request("POST", "/api/get", "{\"clu\": [\"MQTT_URL\"]}"), BodyHandlers.ofString()).statusCode());
+        assertEquals(404, httpClient.send(request("POST", "/api/set", "{\"clu\": {\"STATE_API_TOKEN\": \"\"}}"), BodyHandlers.ofString()).statusCode());
+    }
+
+    @Test
+    void listsAndSetsFeatures() throws Exception {
+        final JsonNode objects = send("GET", "/api/objects", null);
+        assertTrue(objects.has("timer"));
+        assertTrue(objects.get("timer").has("TIME"));
+
+        final JsonNode setResponse = send("POST", "/api/set", "{\"timer\": {\"time\": 1500, \"MODE\": 1}}");
+        assertEquals(1500, setResponse.get("timer").get("TIME").asInt());
+
+        final JsonNode getResponse = send("POST", "/api/get", "{\"timer\": [\"TIME\", \"1\"]}");
+        assertEquals(1500, getResponse.get("timer").get("TIME").asInt());
+        assertEquals(1, getResponse.get("timer").get("MODE").asInt());
+
+        assertEquals(1500, send("GET", "/api/objects/timer", null).get("TIME").asInt());
+
+        final HttpResponse<String> unknownObject = httpClient.send(
+                request("POST", "/api/set", "{\"timer\": {\"TIME\": 1}, \"missing\": {\"TIME\": 1}}"),
+                BodyHandlers.ofString()
+        );
+        assertEquals(404, unknownObject.statusCode());
+        // nothing was changed by the invalid request
+        assertEquals(1500, virtualSystem.getObject("timer").getValue(0).checkint());
+    }
+
+    @Test
+    void streamsFeatureChanges() throws Exception {
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        final WebSocket webSocket = httpClient.newWebSocketBuilder()
+                                              .header("Authorization", "Bearer " + TOKEN)
+                                              .buildAsync(
+                                                      URI.create("ws://127.0.0.1:" + stateApiServer.getPort() + "/api/stream?objects=timer"),
+                                                      new WebSocket.Listener() {
+                                                          @Override
+                                                          public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+                                                              messages.add(data.toString());
+
+                                                              return WebSocket.Listener.super.onText(webSocket, data, last);
+                                                          }
+                                                      }
+                                              )
+                                              .get(5, TimeUnit.SECONDS);
+        try {
+            send("POST", "/api/set", "{\"timer\": {\"TIME\": 2500}}");
+
+            final String message = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull(message);
+
+            final JsonNode change = ObjectMapperFactory.JSON.readTree(message);
+            assertEquals("timer", change.get("object").asText());
+            assertEquals("TIME", change.get("feature").asText());
+            assertEquals(2500, change.get("value").asInt());
+        } finally {
+            webSocket.abort();
+        }
+    }
+
+    private JsonNode send(String method, String path, String body) throws Exception {
+        final HttpResponse<String> response = httpClient.send(request(method, path, body), BodyHandlers.ofString());
+        assertEquals(200, response.statusCode(), response.body());
+
+        return ObjectMapperFactory.JSON.readTree(response.body());
+    }
+
+    private HttpRequest request(String method, String path, String body) {
+        return HttpRequest.newBuilder(uri(path))
+                          .header("Authorization", "Bearer " + TOKEN)
+                          .method(method, body == null ? BodyPublishers.noBody() : BodyPublishers.ofString(body))
+                          .build();
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://127.0.0.1:" + stateApiServer.getPort() + path);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.mqtt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import pl.psobiech.opengr8on.util.ThreadUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Execution(ExecutionMode.CONCURRENT)
+class MqttCommandQueueTest {
+    @Test
+    void appliesLatestCommand() throws Exception {
+        final ExecutorService executor = ThreadUtil.virtualExecutor("MqttCommandQueueTest");
+        try {
+            final CountDownLatch commandStarted = new CountDownLatch(1);
+            final CountDownLatch commandReleased = new CountDownLatch(1);
+            final List<String> applied = new CopyOnWriteArrayList<>();
+            final BlockingQueue<String> published = new LinkedBlockingQueue<>();
+
+            final MqttCommandQueue<String> commandQueue = new MqttCommandQueue<>(
+                    executor,
+                    bytes -> {
+                        commandStarted.countDown();
+                        try {
+                            commandReleased.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+
+                        final String value = new String(bytes, StandardCharsets.UTF_8);
+                        applied.add(value);
+
+                        return value;
+                    },
+                    published::add
+            );
+
+            commandQueue.submit(bytes("10"));
+            assertTrue(commandStarted.await(4, TimeUnit.SECONDS));
+
+            // superseded while the first command is being applied
+            for (int i = 11; i <= 20; i++) {
+                commandQueue.submit(bytes(String.valueOf(i)));
+            }
+            commandReleased.countDown();
+
+            assertEquals("20", published.poll(4, TimeUnit.SECONDS));
+            assertNull(published.poll(100, TimeUnit.MILLISECONDS));
+            assertEquals(List.of("10", "20"), applied);
+            assertEquals(9, commandQueue.getCoalescedCount());
+
+            commandQueue.submit(bytes("30"));
+            assertEquals("30", published.poll(4, TimeUnit.SECONDS));
+        } finally {
+            ThreadUtil.closeQuietly(executor);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.mqtt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import pl.psobiech.opengr8on.util.FileUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Execution(ExecutionMode.CONCURRENT)
+class MqttOutboundJournalTest {
+    @Test
+    void keepsLatestMessagePerTopicAcrossRestarts() {
+        final Path path = FileUtil.temporaryFile();
+        try {
+            try (MqttOutboundJournal journal = new MqttOutboundJournal(path, 4096)) {
+                journal.write("state/a", bytes("1"), false);
+                journal.write("state/b", bytes("1"), false);
+                journal.write("config/a", bytes("{}"), true);
+                journal.write("state/a", bytes("2"), false);
+
+                assertEquals(3, journal.size());
+            }
+
+            try (MqttOutboundJournal journal = new MqttOutboundJournal(path, 4096)) {
+                assertEquals(
+                        List.of("state/b=1", "config/a={}(retained)", "state/a=2"),
+                        journal.drain().stream().map(MqttOutboundJournalTest::toString).toList()
+                );
+                assertEquals(0, journal.size());
+            }
+
+            try (MqttOutboundJournal journal = new MqttOutboundJournal(path, 4096)) {
+                assertEquals(0, journal.size());
+            }
+        } finally {
+            FileUtil.deleteQuietly(path);
+        }
+    }
+
+    @Test
+    void compactsWhenFull() {
+        final Path path = FileUtil.temporaryFile();
+        try (MqttOutboundJournal journal = new MqttOutboundJournal(path, 256)) {
+            // superseded records are discarded, when the journal runs out of space
+            for (int i = 0; i < 100; i++) {
+                assertTrue(journal.write("state/" + (i % 2), bytes(String.valueOf(i)), false));
+            }
+
+            assertFalse(journal.write("state/large", new byte[256], false));
+            assertEquals(1, journal.getDroppedCount());
+
+            assertEquals(
+                    List.of("state/0=98", "state/1=99"),
+                    journal.drain().stream().map(MqttOutboundJournalTest::toString).toList()
+            );
+        } finally {
+            FileUtil.deleteQuietly(path);
+        }
+    }
+
+    private static String toString(MqttOutboundJournal.Message message) {
+        return message.topic() + "=" + new String(message.payload(), StandardCharsets.UTF_8) + (message.retained() ? "(retained)" : "");
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import pl.psobiech.opengr8on.util.FileUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Execution(ExecutionMode.CONCURRENT)
+class MqttOutboundQueueTest {
+    private static final long TIMEOUT_SECONDS = 4L;
+
+    @Test
+    void coalescesPendingMessages() throws Exception {
+        final BlockingQueue<Publication> publications = new LinkedBlockingQueue<>();
+        try (MqttOutboundQueue queue = new MqttOutboundQueue(
+                1, 16,
+                (topic, payload, retained, listener) -> publications.add(new Publication(topic, new String(payload, StandardCharsets.UTF_8), listener))
+        )) {
+            queue.setConnected(true);
+
+            assertTrue(queue.offer("state/a", bytes("1"), false, true));
+            final Publication first = publications.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(first);
+            assertEquals("1", first.payload());
+
+            // window is full, following messages wait in the queue
+            queue.offer("state/a", bytes("2"), false, true);
+            queue.offer("state/b", bytes("1"), false, true);
+            queue.offer("state/a", bytes("3"), false, true);
+            queue.offer("config/a", bytes("c1"), true, false);
+            queue.offer("config/a", bytes("c2"), true, false);
+            assertNull(publications.poll(100, TimeUnit.MILLISECONDS));
+            assertEquals(4, queue.getMetrics().queueDepth());
+            assertEquals(1, queue.getMetrics().coalescedCount());
+
+            first.listener().onSuccess(null);
+            assertEquals("state/a=3", complete(publications));
+            assertEquals("state/b=1", complete(publications));
+            assertEquals("config/a=c1", complete(publications));
+            assertEquals("config/a=c2", complete(publications));
+
+            final MqttOutboundQueue.Metrics metrics = queue.getMetrics();
+            assertEquals(0, metrics.queueDepth());
+            assertEquals(1, metrics.coalescedCount());
+            assertEquals(0, metrics.droppedCount());
+            assertEquals(5, metrics.publishedCount());
+        }
+    }
+
+    @Test
+    void dropsWhenFull() throws Exception {
+        final BlockingQueue<Publication> publications = new LinkedBlockingQueue<>();
+        try (MqttOutboundQueue queue = new MqttOutboundQueue(
+                1, 1,
+                (topic, payload, retained, listener) -> publications.add(new Publication(topic, new String(payload, StandardCharsets.UTF_8), listener))
+        )) {
+            queue.setConnected(true);
+
+            queue.offer("state/a", bytes("1"), false, true);
+            assertNotNull(publications.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+            assertTrue(queue.offer("state/b", bytes("1"), false, true));
+            assertTrue(queue.offer("state/b", bytes("2"), false, true));
+            assertFalse(queue.offer("state/c", bytes("1"), false, true));
+
+            assertEquals(1, queue.getMetrics().droppedCount());
+        }
+    }
+
+    @Test
+    void retriesWhenClientIsBusy() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final BlockingQueue<Publication> publications = new LinkedBlockingQueue<>();
+        try (MqttOutboundQueue queue = new MqttOutboundQueue(
+                4, 16,
+                (topic, payload, retained, listener) -> {
+                    if (attempts.incrementAndGet() < 3) {
+                        throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+                    }
+
+                    publications.add(new Publication(topic, new String(payload, StandardCharsets.UTF_8), listener));
+                }
+        )) {
+            queue.setConnected(true);
+
+            queue.offer("state/a", bytes("1"), false, true);
+
+            assertEquals("state/a=1", complete(publications));
+            assertEquals(3, attempts.get());
+            assertEquals(0, queue.getMetrics().droppedCount());
+        }
+    }
+
+    @Test
+    void keepsOrderOfNonCoalescibleMessages() throws Exception {
+        final BlockingQueue<Publication> publications = new LinkedBlockingQueue<>();
+        try (MqttOutboundQueue queue = new MqttOutboundQueue(
+                1, 16,
+                (topic, payload, retained, listener) -> publications.add(new Publication(topic, new String(payload, StandardCharsets.UTF_8), listener))
+        )) {
+            queue.setConnected(true);
+
+            queue.offer("command/a", bytes("1"), false, false);
+            queue.offer("command/a", bytes("2"), false, false);
+            queue.offer("state/a", bytes("1"), false, true);
+            queue.offer("command/a", bytes("3"), false, false);
+
+            assertEquals("command/a=1", complete(publications));
+            assertEquals("command/a=2", complete(publications));
+            assertEquals("state/a=1", complete(publications));
+            assertEquals("command/a=3", complete(publications));
+            assertEquals(0, queue.getMetrics().coalescedCount());
+        }
+    }
+
+    @Test
+    void parksWhileDisconnected() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final BlockingQueue<Publication> publications = new LinkedBlockingQueue<>();
+        try (MqttOutboundQueue queue = new MqttOutboundQueue(
+                4, 16,
+                (topic, payload, retained, listener) -> {
+                    if (attempts.incrementAndGet() == 1) {
+                        throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+                    }
+
+                    publications.add(new Publication(topic, new String(payload, StandardCharsets.UTF_8), listener));
+                }
+        )) {
+            // not connected yet
+            queue.offer("state/a", bytes("1"), false, true);
+            assertNull(publications.poll(100, TimeUnit.MILLISECONDS));
+            assertEquals(0, attempts.get());
+
+            // connection is lost during the first publication
+            queue.setConnected(true);
+            queue.offer("state/b", bytes("1"), false, true);
+            assertNull(publications.poll(100, TimeUnit.MILLISECONDS));
+            assertEquals(1, attempts.get());
+            assertEquals(2, queue.getMetrics().queueDepth());
+
+            queue.setConnected(true);
+            assertEquals("state/a=1", complete(publications));
+            assertEquals("state/b=1", complete(publications));
+            assertEquals(0, queue.getMetrics().droppedCount());
+        }
+    }
+
+    @Test
+    void requeuesMessagesLostWithTheConnection() throws Exception {
+        final BlockingQueue<Publication> publications = new LinkedBlockingQueue<>();
+        try (MqttOutboundQueue queue = new MqttOutboundQueue(
+                1, 16,
+                (topic, payload, retained, listener) -> publications.add(new Publication(topic, new String(payload, StandardCharsets.UTF_8), listener))
+        )) {
+            queue.setConnected(true);
+
+            queue.offer("state/a", bytes("1"), false, true);
+            final Publication lostPublication = publications.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(lostPublication);
+
+            queue.setConnected(false);
+            lostPublication.listener().onFailure(null, new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+            assertEquals(1, queue.getMetrics().queueDepth());
+
+            queue.setConnected(true);
+            assertEquals("state/a=1", complete(publications));
+
+            // other errors are not retried
+            queue.offer("state/b", bytes("1"), false, true);
+            final Publication failedPublication = publications.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(failedPublication);
+            failedPublication.listener().onFailure(null, new MqttException(MqttException.REASON_CODE_NOT_AUTHORIZED));
+
+            final MqttOutboundQueue.Metrics metrics = queue.getMetrics();
+            assertEquals(0, metrics.queueDepth());
+            assertEquals(1, metrics.droppedCount());
+            assertEquals(1, metrics.publishedCount());
+        }
+    }
+
+    @Test
+    void drainsToJournal() {
+        final Path journalPath = FileUtil.temporaryFile();
+        try (
+                MqttOutboundJournal journal = new MqttOutboundJournal(journalPath, 4096);
+                MqttOutboundQueue queue = new MqttOutboundQueue(
+                        1, 16,
+                        (topic, payload, retained, listener) -> listener.onSuccess(null)
+                )
+        ) {
+            // not connected, so messages stay in the queue
+            queue.offer("command/a", bytes("1"), false, false);
+            queue.offer("command/a", bytes("2"), false, false);
+            queue.offer("state/b", bytes("1"), false, true);
+
+            // newer value was already journaled
+            journal.write("state/b", bytes("2"), false);
+
+            assertEquals(2, queue.drainTo(journal));
+            assertEquals(0, queue.getMetrics().queueDepth());
+
+            final List<MqttOutboundJournal.Message> messages = journal.drain();
+            assertEquals(2, messages.size());
+            assertEquals("state/b", messages.get(0).topic());
+            assertEquals("2", new String(messages.get(0).payload(), StandardCharsets.UTF_8));
+            assertEquals("command/a", messages.get(1).topic());
+            assertEquals("2", new String(messages.get(1).payload(), StandardCharsets.UTF_8));
+        } finally {
+            FileUtil.deleteQuietly(journalPath);
+        }
+    }
+
+    private static String complete(BlockingQueue<Publication> publications) throws InterruptedException {
+        final Publication publication = publications.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(publication);
+        publication.listener().onSuccess(null);
+
+        return publication.topic() + "=" + publication.payload();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private record Publication(String topic, String payload, IMqttActionListener listener) {
+    }
+}
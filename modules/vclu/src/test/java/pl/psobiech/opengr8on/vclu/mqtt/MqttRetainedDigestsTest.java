@@ -0,0 +1,88 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.mqtt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import pl.psobiech.opengr8on.util.FileUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Execution(ExecutionMode.CONCURRENT)
+class MqttRetainedDigestsTest {
+    @Test
+    void skipsPendingAndDeliveredPayloads() {
+        try (MqttRetainedDigests digests = new MqttRetainedDigests(null)) {
+            assertTrue(digests.markPending("a/config", bytes("1")));
+            assertFalse(digests.markPending("a/config", bytes("1")));
+
+            // failed delivery is retried
+            digests.onFailed("a/config", bytes("1"));
+            assertTrue(digests.markPending("a/config", bytes("1")));
+
+            digests.onDelivered("a/config", bytes("1"));
+            assertFalse(digests.markPending("a/config", bytes("1")));
+
+            // newer payload is pending, the delivered one is published again
+            assertTrue(digests.markPending("a/config", bytes("2")));
+            assertTrue(digests.markPending("a/config", bytes("1")));
+        }
+    }
+
+    @Test
+    void persistsDeliveredPayloads() {
+        final Path directory = FileUtil.temporaryDirectory();
+        final Path path = directory.resolve("retained.digests");
+        try {
+            try (MqttRetainedDigests digests = new MqttRetainedDigests(path)) {
+                digests.setServer("tcp://localhost:1883");
+
+                assertTrue(digests.markPending("a/config", bytes("1")));
+                assertTrue(digests.markPending("b/config", bytes("1")));
+                digests.onDelivered("a/config", bytes("1"));
+            }
+
+            try (MqttRetainedDigests digests = new MqttRetainedDigests(path)) {
+                digests.setServer("tcp://localhost:1883");
+
+                assertFalse(digests.markPending("a/config", bytes("1")));
+                // was never delivered
+                assertTrue(digests.markPending("b/config", bytes("1")));
+            }
+
+            try (MqttRetainedDigests digests = new MqttRetainedDigests(path)) {
+                // different broker does not have the retained messages
+                digests.setServer("tcp://localhost:1884");
+
+                assertTrue(digests.markPending("a/config", bytes("1")));
+            }
+        } finally {
+            FileUtil.deleteRecursively(directory);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
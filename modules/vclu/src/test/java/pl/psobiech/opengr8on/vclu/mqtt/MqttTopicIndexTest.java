@@ -0,0 +1,87 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.mqtt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Execution(ExecutionMode.CONCURRENT)
+class MqttTopicIndexTest {
+    @Test
+    void matchesWildcards() {
+        final MqttTopicIndex<String> index = new MqttTopicIndex<>();
+        index.add("zigbee2mqtt/lamp", "exact");
+        index.add("zigbee2mqtt/+", "single");
+        index.add("zigbee2mqtt/+/set", "singleSet");
+        index.add("zigbee2mqtt/#", "multi");
+        index.add("#", "all");
+        index.add("homeassistant/status", "other");
+
+        assertEquals(Set.of("exact", "single", "multi", "all"), index.match("zigbee2mqtt/lamp"));
+        assertEquals(Set.of("singleSet", "multi", "all"), index.match("zigbee2mqtt/lamp/set"));
+        assertEquals(Set.of("multi", "all"), index.match("zigbee2mqtt"));
+        assertEquals(Set.of("multi", "all"), index.match("zigbee2mqtt/lamp/set/brightness"));
+        assertEquals(Set.of("other", "all"), index.match("homeassistant/status"));
+        assertEquals(Set.of("all"), index.match("other"));
+
+        // wildcards do not match system topics
+        assertEquals(Set.of(), index.match("$SYS/broker"));
+        index.add("$SYS/#", "system");
+        assertEquals(Set.of("system"), index.match("$SYS/broker"));
+    }
+
+    @Test
+    void matchesEmptyLevels() {
+        final MqttTopicIndex<String> index = new MqttTopicIndex<>();
+        index.add("a/+/b", "single");
+        index.add("/#", "leading");
+
+        assertEquals(Set.of("single"), index.match("a//b"));
+        assertEquals(Set.of("leading"), index.match("/a"));
+        assertEquals(Set.of(), index.match("a/b"));
+    }
+
+    @Test
+    void tracksSubscribersPerFilter() {
+        final MqttTopicIndex<String> index = new MqttTopicIndex<>();
+        assertTrue(index.add("a/+", "first"));
+        assertFalse(index.add("a/+", "second"));
+        assertTrue(index.add("a/#", "first"));
+        assertEquals(Set.of("a/+", "a/#"), index.getTopicFilters());
+
+        // subscriber matched by multiple filters is returned once
+        assertEquals(Set.of("first", "second"), index.match("a/b"));
+
+        assertFalse(index.remove("a/+", "first"));
+        assertFalse(index.remove("a/+", "unknown"));
+        assertEquals(Set.of("first", "second"), index.match("a/b"));
+
+        assertTrue(index.remove("a/+", "second"));
+        assertTrue(index.remove("a/#", "first"));
+        assertEquals(Set.of(), index.match("a/b"));
+        assertEquals(Set.of(), index.getTopicFilters());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import pl.psobiech.opengr8on.util.FileUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Execution(ExecutionMode.CONCURRENT)
+class StorageLogTest {
+    @Test
+    void replaysLogOverSnapshot() throws Exception {
+        final Path directory = FileUtil.temporaryDirectory();
+        final Path snapshotPath = directory.resolve("storage.json");
+        final Path logPath = directory.resolve("storage.log");
+        try {
+            Files.writeString(snapshotPath, "{\"a\":1,\"b\":\"text\"}");
+
+            try (StorageLog storageLog = new StorageLog(snapshotPath, logPath, 4096, Map::of)) {
+                assertEquals(Map.of("a", 1, "b", "text"), storageLog.restore());
+
+                storageLog.append(Map.of("a", 2));
+                storageLog.append(Map.of("c", 3.5d));
+            }
+
+            // snapshot is not rewritten, until the log is compacted
+            assertEquals("{\"a\":1,\"b\":\"text\"}", Files.readString(snapshotPath));
+
+            // incomplete entry (eg. power loss during the write) is ignored
+            Files.writeString(logPath, "{\"b\":", StandardOpenOption.APPEND);
+
+            try (StorageLog storageLog = new StorageLog(snapshotPath, logPath, 4096, Map::of)) {
+                assertEquals(Map.of("a", 2, "b", "text", "c", 3.5d), storageLog.restore());
+                assertEquals(0, Files.size(logPath));
+            }
+        } finally {
+            FileUtil.deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    void compactsLog() throws Exception {
+        final Path directory = FileUtil.temporaryDirectory();
+        final Path snapshotPath = directory.resolve("storage.json");
+        final Path logPath = directory.resolve("storage.log");
+        final Map<String, Object> values = new HashMap<>();
+        try {
+            try (StorageLog storageLog = new StorageLog(snapshotPath, logPath, 256, () -> values)) {
+                assertEquals(Map.of(), storageLog.restore());
+
+                for (int i = 0; i < 100; i++) {
+                    values.put("counter", i);
+                    storageLog.append(Map.of("counter", i));
+                    assertTrue(Files.size(logPath) <= 256 + 64);
+                }
+            }
+
+            try (StorageLog storageLog = new StorageLog(snapshotPath, logPath, 256, () -> values)) {
+                assertEquals(Map.of("counter", 99), storageLog.restore());
+
+                storageLog.erase();
+                assertEquals("{}", Files.readString(snapshotPath, StandardCharsets.UTF_8));
+                assertEquals(0, Files.size(logPath));
+            }
+        } finally {
+            FileUtil.deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    void skipsCorruptedEntries() throws Exception {
+        final Path directory = FileUtil.temporaryDirectory();
+        final Path snapshotPath = directory.resolve("storage.json");
+        final Path logPath = directory.resolve("storage.log");
+        try {
+            Files.writeString(logPath, "{\"a\":1}\n{\"b\":#}\n{\"c\":3}\n{\"a\":4}\n{\"d\":");
+
+            try (StorageLog storageLog = new StorageLog(snapshotPath, logPath, 4096, Map::of)) {
+                // only the corrupted entry is skipped, the following entries are still applied
+                assertEquals(Map.of("a", 4, "c", 3), storageLog.restore());
+
+                // restored values are compacted into the snapshot
+                assertEquals(0, Files.size(logPath));
+            }
+
+            try (StorageLog storageLog = new StorageLog(snapshotPath, logPath, 4096, Map::of)) {
+                assertEquals(Map.of("a", 4, "c", 3), storageLog.restore());
+            }
+        } finally {
+            FileUtil.deleteRecursively(directory);
+        }
+    }
+}
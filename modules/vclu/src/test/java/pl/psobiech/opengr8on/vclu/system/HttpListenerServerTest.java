@@ -0,0 +1,141 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import pl.psobiech.opengr8on.vclu.system.HttpListenerServer.Request;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+@Execution(ExecutionMode.CONCURRENT)
+class HttpListenerServerTest {
+    @Test
+    void routesByLongestPrefix() throws Exception {
+        try (
+                HttpListenerServer server = new HttpListenerServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                HttpClient client = HttpClient.newHttpClient()
+        ) {
+            server.register("/api", 1, request -> respond(request, "api"));
+            server.register("/api/v2/", 1, request -> respond(request, "v2"));
+
+            assertEquals("api", get(client, server, "/api").body());
+            assertEquals("api", get(client, server, "/api/v1/x").body());
+            assertEquals("v2", get(client, server, "/api/v2/x?y=z").body());
+            assertEquals(404, get(client, server, "/apiv2").statusCode());
+            assertEquals(404, get(client, server, "/").statusCode());
+
+            final HttpListenerServer.Route route = server.register("/", 1, request -> respond(request, "root"));
+            assertEquals("root", get(client, server, "/apiv2").body());
+
+            route.close();
+            assertEquals(404, get(client, server, "/apiv2").statusCode());
+        }
+    }
+
+    @Test
+    void stacksRoutesOfTheSamePath() throws Exception {
+        try (
+                HttpListenerServer server = new HttpListenerServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                HttpClient client = HttpClient.newHttpClient()
+        ) {
+            final HttpListenerServer.Route first = server.register("", 1, request -> respond(request, "first"));
+            final HttpListenerServer.Route second = server.register("/", 1, request -> respond(request, "second"));
+            assertEquals("second", get(client, server, "/x").body());
+
+            // the first route is restored
+            second.close();
+            assertEquals("first", get(client, server, "/x").body());
+
+            // closing a shadowed route does not affect the active one
+            final HttpListenerServer.Route third = server.register("", 1, request -> respond(request, "third"));
+            first.close();
+            assertEquals("third", get(client, server, "/x").body());
+
+            third.close();
+            assertEquals(404, get(client, server, "/x").statusCode());
+        }
+    }
+
+    @Test
+    void concurrentRequestsAndOverflow() throws Exception {
+        try (
+                HttpListenerServer server = new HttpListenerServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                HttpClient client = HttpClient.newHttpClient()
+        ) {
+            final BlockingQueue<Request> pending = new LinkedBlockingQueue<>();
+            server.register("/slow", 2, pending::add);
+
+            final CompletableFuture<HttpResponse<String>> first = getAsync(client, server, "/slow?1");
+            final CompletableFuture<HttpResponse<String>> second = getAsync(client, server, "/slow?2");
+
+            // both requests are pending at the same time
+            final Request firstRequest = pending.poll(5, TimeUnit.SECONDS);
+            final Request secondRequest = pending.poll(5, TimeUnit.SECONDS);
+            assertNotNull(firstRequest);
+            assertNotNull(secondRequest);
+
+            assertEquals(503, get(client, server, "/slow?3").statusCode());
+
+            respond(secondRequest, "second " + secondRequest.getUri().getQuery());
+            respond(firstRequest, "first " + firstRequest.getUri().getQuery());
+            assertFalse(firstRequest.respond(500, Map.of(), null));
+
+            assertEquals(200, first.get(5, TimeUnit.SECONDS).statusCode());
+            assertEquals(200, second.get(5, TimeUnit.SECONDS).statusCode());
+
+            // permits are released after responding
+            final CompletableFuture<HttpResponse<String>> third = getAsync(client, server, "/slow?4");
+            respond(pending.poll(5, TimeUnit.SECONDS), "third");
+            assertEquals("third", third.get(5, TimeUnit.SECONDS).body());
+        }
+    }
+
+    private static void respond(Request request, String body) {
+        request.respond(200, Map.of("Content-Type", "text/plain"), body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static HttpResponse<String> get(HttpClient client, HttpListenerServer server, String path) throws Exception {
+        return getAsync(client, server, path).get(5, TimeUnit.SECONDS);
+    }
+
+    private static CompletableFuture<HttpResponse<String>> getAsync(HttpClient client, HttpListenerServer server, String path) {
+        return client.sendAsync(
+                HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getPort() + path)).build(),
+                BodyHandlers.ofString()
+        );
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Execution(ExecutionMode.CONCURRENT)
+class HttpResponseBodyTest {
+    @Test
+    void keptInMemory() throws Exception {
+        try (HttpResponseBody body = receive(16, "0123456789", "abcdef")) {
+            assertTrue(body.isInMemory());
+            assertEquals(16, body.size());
+            assertEquals("0123456789abcdef", body.asString());
+        }
+    }
+
+    @Test
+    void spilledToDisk() throws Exception {
+        final HttpResponseBody body = receive(8, "0123", "4567", "89ab", "cdef");
+        try {
+            assertFalse(body.isInMemory());
+            assertEquals(16, body.size());
+            assertEquals("0123456789abcdef", body.asString());
+
+            try (InputStream inputStream = body.openStream()) {
+                assertArrayEquals("0123456789abcdef".getBytes(StandardCharsets.UTF_8), inputStream.readAllBytes());
+            }
+        } finally {
+            body.close();
+        }
+
+        assertThrowsOnOpen(body);
+    }
+
+    private static void assertThrowsOnOpen(HttpResponseBody body) {
+        try (InputStream ignored = body.openStream()) {
+            throw new AssertionError("Temporary file should have been removed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static HttpResponseBody receive(long maxInMemoryBytes, String... chunks) throws Exception {
+        final BodySubscriber<HttpResponseBody> subscriber = HttpResponseBody.handler(maxInMemoryBytes).apply(null);
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                // NOP
+            }
+
+            @Override
+            public void cancel() {
+                // NOP
+            }
+        });
+
+        for (String chunk : chunks) {
+            subscriber.onNext(List.of(ByteBuffer.wrap(chunk.getBytes(StandardCharsets.UTF_8))));
+        }
+        subscriber.onComplete();
+
+        return subscriber.getBody()
+                         .toCompletableFuture()
+                         .get(1, TimeUnit.SECONDS);
+    }
+}
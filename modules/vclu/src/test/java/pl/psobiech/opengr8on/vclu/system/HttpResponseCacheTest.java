@@ -0,0 +1,176 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import pl.psobiech.opengr8on.vclu.system.HttpResponseCache.Entry;
+import pl.psobiech.opengr8on.vclu.system.HttpResponseCache.Key;
+import pl.psobiech.opengr8on.vclu.system.HttpResponseCache.Metrics;
+
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Execution(ExecutionMode.CONCURRENT)
+class HttpResponseCacheTest {
+    private static final Duration MAX_AGE = Duration.ofMinutes(1);
+
+    @Test
+    void freshnessLifetime() {
+        assertEquals(OptionalLong.of(10_000), lifetime(Map.of("Cache-Control", List.of("public, max-age=10"))));
+        assertEquals(OptionalLong.of(6_000), lifetime(Map.of("Cache-Control", List.of("max-age=10"), "Age", List.of("4"))));
+        assertEquals(OptionalLong.of(60_000), lifetime(Map.of("Cache-Control", List.of("max-age=3600"))));
+        assertEquals(OptionalLong.of(0), lifetime(Map.of("Cache-Control", List.of("max-age=10, no-cache"))));
+        assertEquals(OptionalLong.empty(), lifetime(Map.of("Cache-Control", List.of("no-store"))));
+
+        assertEquals(
+                OptionalLong.of(30_000),
+                lifetime(Map.of("Date", List.of("Mon, 19 Oct 2026 10:00:00 GMT"), "Expires", List.of("Mon, 19 Oct 2026 10:00:30 GMT")))
+        );
+        assertEquals(OptionalLong.of(0), lifetime(Map.of("Expires", List.of("0"))));
+
+        // no caching headers, the maximum age requested by the object is used
+        assertEquals(OptionalLong.of(60_000), lifetime(Map.of()));
+    }
+
+    @Test
+    void keyedByMethodUriAndSelectedHeaders() {
+        final URI uri = URI.create("http://localhost/api");
+
+        final Key key = HttpResponseCache.key(HttpRequest.newBuilder(uri).header("Accept", "application/json").build()).orElseThrow();
+        assertEquals(key, HttpResponseCache.key(HttpRequest.newBuilder(uri).header("Accept", "application/json").header("X-Other", "1").build()).orElseThrow());
+        assertNotEquals(key, HttpResponseCache.key(HttpRequest.newBuilder(uri).header("Accept", "application/xml").build()).orElseThrow());
+        assertFalse(HttpResponseCache.key(HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.noBody()).build()).isPresent());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        final HttpResponseCache cache = new HttpResponseCache(250);
+
+        final Key first = key("/first");
+        final Key second = key("/second");
+        final Key third = key("/third");
+        assertTrue(cache.put(first, 200, headers(Map.of()), Map.of(), new byte[100], MAX_AGE).isPresent());
+        assertTrue(cache.put(second, 200, headers(Map.of()), Map.of(), new byte[100], MAX_AGE).isPresent());
+
+        // first becomes the most recently used one
+        assertTrue(cache.get(first).isPresent());
+        assertTrue(cache.put(third, 200, headers(Map.of()), Map.of(), new byte[100], MAX_AGE).isPresent());
+
+        assertTrue(cache.get(first).isPresent());
+        assertFalse(cache.get(second).isPresent());
+        assertTrue(cache.get(third).isPresent());
+
+        final Metrics metrics = cache.getMetrics();
+        assertEquals(2, metrics.entryCount());
+        assertEquals(200, metrics.sizeBytes());
+        assertEquals(1, metrics.evictedCount());
+
+        // too large or not cacheable responses are not stored
+        assertFalse(cache.put(key("/large"), 200, headers(Map.of()), Map.of(), new byte[251], MAX_AGE).isPresent());
+        assertFalse(cache.put(key("/error"), 500, headers(Map.of()), Map.of(), new byte[1], MAX_AGE).isPresent());
+        assertFalse(cache.put(first, 200, headers(Map.of("Cache-Control", List.of("no-store"))), Map.of(), new byte[1], MAX_AGE).isPresent());
+        assertFalse(cache.get(first).isPresent());
+    }
+
+    @Test
+    void revalidation() {
+        final HttpResponseCache cache = new HttpResponseCache(1024);
+        final Key key = key("/etag");
+
+        final Entry entry = cache.put(
+                                         key, 200,
+                                         headers(Map.of("Cache-Control", List.of("no-cache"), "ETag", List.of("\"v1\""))),
+                                         Map.of("ETag", "\"v1\""), new byte[]{1, 2, 3},
+                                         MAX_AGE
+                                 )
+                                 .orElseThrow();
+        assertFalse(entry.isFresh(MAX_AGE));
+
+        final HttpRequest request = HttpResponseCache.withValidators(HttpRequest.newBuilder(key.uri()).build(), entry);
+        assertEquals("\"v1\"", request.headers().firstValue(HttpResponseCache.HEADER_IF_NONE_MATCH).orElseThrow());
+
+        final Entry revalidatedEntry = cache.revalidated(key, entry, headers(Map.of("Cache-Control", List.of("max-age=10"))));
+        assertTrue(revalidatedEntry.isFresh(MAX_AGE));
+        assertEquals(1, cache.getMetrics().revalidatedCount());
+    }
+
+    @Test
+    void freshnessCappedByMaxAgeOfEveryLookup() {
+        final HttpResponseCache cache = new HttpResponseCache(1024);
+
+        final Entry entry = cache.put(key("/fresh"), 200, headers(Map.of("Cache-Control", List.of("max-age=10"))), Map.of(), new byte[1], MAX_AGE)
+                                 .orElseThrow();
+        assertTrue(entry.isFresh(MAX_AGE));
+        assertFalse(entry.isFresh(Duration.ZERO));
+
+        // without caching headers, only the maximum age requested by the caller applies
+        final Entry heuristicEntry = cache.put(key("/heuristic"), 200, headers(Map.of()), Map.of(), new byte[1], MAX_AGE)
+                                          .orElseThrow();
+        assertTrue(heuristicEntry.isFresh(Duration.ofHours(1)));
+        assertFalse(heuristicEntry.isFresh(Duration.ZERO));
+    }
+
+    @Test
+    void revalidatedEntryIsAccountedAgain() {
+        final HttpResponseCache cache = new HttpResponseCache(250);
+
+        final Key key = key("/etag");
+        final Entry entry = cache.put(key, 200, headers(Map.of("ETag", List.of("\"v1\""))), Map.of(), new byte[100], MAX_AGE)
+                                 .orElseThrow();
+
+        // evicted while the revalidation request was pending
+        assertTrue(cache.put(key("/first"), 200, headers(Map.of()), Map.of(), new byte[100], MAX_AGE).isPresent());
+        assertTrue(cache.put(key("/second"), 200, headers(Map.of()), Map.of(), new byte[100], MAX_AGE).isPresent());
+        assertFalse(cache.get(key).isPresent());
+
+        cache.revalidated(key, entry, headers(Map.of()));
+        assertTrue(cache.get(key).isPresent());
+        assertFalse(cache.get(key("/first")).isPresent());
+
+        final Metrics metrics = cache.getMetrics();
+        assertEquals(2, metrics.entryCount());
+        assertEquals(200, metrics.sizeBytes());
+        assertEquals(2, metrics.evictedCount());
+    }
+
+    private static Key key(String path) {
+        return HttpResponseCache.key(HttpRequest.newBuilder(URI.create("http://localhost" + path)).build())
+                                .orElseThrow();
+    }
+
+    private static OptionalLong lifetime(Map<String, List<String>> headers) {
+        return HttpResponseCache.freshnessLifetimeMillis(headers(headers), MAX_AGE);
+    }
+
+    private static HttpHeaders headers(Map<String, List<String>> headers) {
+        return HttpHeaders.of(headers, (name, value) -> true);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Execution(ExecutionMode.CONCURRENT)
+class TimingWheelTest {
+    @Test
+    void expiresInDeadlineOrder() throws Exception {
+        // 8 buckets of 5ms, so the later deadlines need multiple rotations of the wheel
+        try (TimingWheel timingWheel = new TimingWheel(5, TimeUnit.MILLISECONDS, 8)) {
+            final List<Integer> expired = new CopyOnWriteArrayList<>();
+            final CountDownLatch latch = new CountDownLatch(3);
+
+            final long now = System.nanoTime();
+            for (int delayMillis : new int[]{150, 10, 75}) {
+                timingWheel.schedule(
+                        () -> {
+                            assertTrue(System.nanoTime() >= now + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+
+                            expired.add(delayMillis);
+                            latch.countDown();
+                        },
+                        now + TimeUnit.MILLISECONDS.toNanos(delayMillis)
+                );
+            }
+
+            final TimingWheel.Timeout cancelled = timingWheel.schedule(() -> expired.add(-1), now + TimeUnit.MILLISECONDS.toNanos(50));
+            assertTrue(cancelled.cancel());
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(List.of(10, 75, 150), expired);
+            assertFalse(cancelled.cancel());
+
+            assertEquals(0, timingWheel.getPendingCount());
+            assertEquals(3, Arrays.stream(timingWheel.getLatenessHistogram()).sum());
+        }
+    }
+
+    @Test
+    void expiresPastDeadlinesImmediately() throws Exception {
+        try (TimingWheel timingWheel = new TimingWheel(10, TimeUnit.MILLISECONDS, 16)) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            timingWheel.schedule(latch::countDown, System.nanoTime() - TimeUnit.SECONDS.toNanos(1));
+
+            assertTrue(latch.await(1, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system.lua;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.jse.JseBaseLib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@Execution(ExecutionMode.CONCURRENT)
+class LuaGlobalsWatcherTest {
+    @Test
+    void reportsAssignmentsOfWatchedVariables() {
+        final Globals globals = new Globals();
+        LoadState.install(globals);
+        LuaC.install(globals);
+        globals.load(new JseBaseLib());
+
+        globals.load("counter = 1; other = 1").call();
+
+        final List<String> assignments = new ArrayList<>();
+        final LuaGlobalsWatcher watcher = new LuaGlobalsWatcher(globals);
+        assertEquals(LuaValue.valueOf(1), watcher.watch("counter", (name, value) -> assignments.add(name + "=" + value)));
+        assertEquals(LuaValue.NIL, watcher.watch("missing", (name, value) -> assignments.add(name + "=" + value)));
+
+        assertEquals(
+                LuaValue.valueOf(13),
+                globals.load("counter = counter + 1; other = other + 1; missing = 'a'; counter = counter + 1; return counter + other + 8").call()
+        );
+        assertEquals(List.of("counter=2", "missing=a", "counter=3"), assignments);
+
+        // unwatched globals are not affected
+        assertEquals(LuaValue.valueOf(2), globals.rawget("other"));
+        assertEquals(LuaValue.valueOf(3), globals.get("counter"));
+    }
+
+    @Test
+    void keepsExistingMetatable() {
+        final Globals globals = new Globals();
+        LoadState.install(globals);
+        LuaC.install(globals);
+        globals.load(new JseBaseLib());
+
+        globals.load(
+                "assigned = {}\n"
+                + "setmetatable(_G, {\n"
+                + "  __index = function(t, k) return 'default' end,\n"
+                + "  __newindex = function(t, k, v) rawset(assigned, k, v); rawset(t, k, v) end\n"
+                + "})\n"
+                + "counter = 1"
+        ).call();
+
+        final List<String> assignments = new ArrayList<>();
+        final LuaGlobalsWatcher watcher = new LuaGlobalsWatcher(globals);
+        assertEquals(LuaValue.valueOf(1), watcher.watch("counter", (name, value) -> assignments.add(name + "=" + value)));
+
+        assertEquals(
+                LuaValue.valueOf("2 default 1"),
+                globals.load("counter = counter + 1; other = 1; return counter .. ' ' .. missing .. ' ' .. assigned.other").call()
+        );
+        assertEquals(List.of("counter=2"), assignments);
+
+        // watched variables are not visible to the raw access
+        assertEquals(LuaValue.NIL, globals.load("return rawget(_G, 'counter')").call());
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system.lua;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.PackageLib;
+import org.luaj.vm2.lib.OneArgFunction;
+import org.luaj.vm2.lib.ZeroArgFunction;
+import org.luaj.vm2.lib.jse.JseBaseLib;
+import pl.psobiech.opengr8on.util.ThreadUtil;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Execution(ExecutionMode.CONCURRENT)
+class LuaSchedulerTest {
+    @Test
+    void waitingCoroutineDoesNotBlockOthers() throws Exception {
+        final Globals globals = globals();
+        final ReentrantLock globalsLock = new ReentrantLock();
+        try (LuaScheduler scheduler = new LuaScheduler(globals, globalsLock)) {
+            final CompletableFuture<LuaValue> pending = new CompletableFuture<>();
+            globals.set("await", new ZeroArgFunction() {
+                @Override
+                public LuaValue call() {
+                    return LuaScheduler.await(pending);
+                }
+            });
+
+            final CompletableFuture<LuaValue> waiting = CompletableFuture.supplyAsync(
+                    () -> scheduler.call(globals.load("counter = 1; return await() + counter"), LuaValue.NONE)
+                                   .arg1()
+            );
+
+            // other scripts are executed, while the first one waits
+            do {
+                Thread.sleep(10L);
+            } while (!globals.get("counter").isnumber());
+            assertFalse(globalsLock.isLocked());
+
+            assertEquals(
+                    2,
+                    scheduler.call(globals.load("counter = counter + 1; return counter"), LuaValue.NONE)
+                             .arg1()
+                             .checkint()
+            );
+
+            //
+
+            pending.complete(LuaValue.valueOf(40));
+
+            assertEquals(42, waiting.get(5, TimeUnit.SECONDS).checkint());
+        }
+    }
+
+    @Test
+    void sleep() {
+        final Globals globals = globals();
+        try (LuaScheduler scheduler = new LuaScheduler(globals, new ReentrantLock())) {
+            globals.set("sleep", new OneArgFunction() {
+                @Override
+                public LuaValue call(LuaValue arg) {
+                    assertTrue(LuaScheduler.isCoroutine());
+
+                    LuaScheduler.sleep(arg.checklong());
+
+                    return NIL;
+                }
+            });
+
+            final long startedAt = System.nanoTime();
+            assertEquals(
+                    "done",
+                    scheduler.call(globals.load("sleep(50); return 'done'"), LuaValue.NONE)
+                             .arg1()
+                             .checkjstring()
+            );
+            assertTrue(System.nanoTime() - startedAt >= TimeUnit.MILLISECONDS.toNanos(50));
+            assertFalse(LuaScheduler.isCoroutine());
+        }
+    }
+
+    @Test
+    void errorIsPropagated() {
+        final Globals globals = globals();
+        try (LuaScheduler scheduler = new LuaScheduler(globals, new ReentrantLock())) {
+            assertThrows(LuaError.class, () -> scheduler.call(globals.load("error('failed')"), LuaValue.NONE));
+        }
+    }
+
+    @Test
+    void coroutinesAreReused() throws Exception {
+        final Globals globals = globals();
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        globals.set("sleep", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue arg) {
+                threads.add(Thread.currentThread());
+                LuaScheduler.sleep(arg.checklong());
+                threads.add(Thread.currentThread());
+
+                return NIL;
+            }
+        });
+
+        final LuaValue function = globals.load("local millis = ...; sleep(millis)");
+        final ExecutorService executor = ThreadUtil.virtualExecutor("LuaSchedulerTest");
+        try (LuaScheduler scheduler = new LuaScheduler(globals, new ReentrantLock())) {
+            for (int i = 0; i < 100; i++) {
+                scheduler.call(function, LuaValue.valueOf(1));
+            }
+
+            // sequential calls are executed by the same coroutine
+            assertEquals(1, threads.size());
+
+            for (int round = 0; round < 5; round++) {
+                final List<Future<Varargs>> futures = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    futures.add(executor.submit(() -> scheduler.call(function, LuaValue.valueOf(20))));
+                }
+
+                for (Future<Varargs> future : futures) {
+                    future.get(5, TimeUnit.SECONDS);
+                }
+            }
+
+            // concurrently waiting calls need own coroutines, which are reused afterwards
+            assertTrue(threads.size() <= 4, "Coroutine threads: " + threads.size());
+        } finally {
+            ThreadUtil.closeQuietly(executor);
+        }
+
+        // closing the scheduler finishes the coroutines
+        for (Thread thread : threads) {
+            assertTrue(thread.join(Duration.ofSeconds(5)));
+        }
+    }
+
+    private static Globals globals() {
+        final Globals globals = new Globals();
+        LoadState.install(globals);
+        LuaC.install(globals);
+        globals.load(new JseBaseLib());
+        globals.load(new PackageLib());
+
+        return globals;
+    }
+}
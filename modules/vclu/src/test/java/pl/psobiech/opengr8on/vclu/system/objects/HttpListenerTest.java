@@ -0,0 +1,132 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system.objects;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.ZeroArgFunction;
+import pl.psobiech.opengr8on.vclu.system.HttpListenerServer;
+import pl.psobiech.opengr8on.vclu.system.VirtualSystem;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@Execution(ExecutionMode.CONCURRENT)
+class HttpListenerTest {
+    private static final int PATH_FEATURE = 0;
+
+    private static final int RESPONSE_TYPE_FEATURE = 6;
+
+    private static final int RESPONSE_BODY_FEATURE = 8;
+
+    private static final int RESPONSE_STATUS_FEATURE = 9;
+
+    private static final int SEND_RESPONSE_METHOD = 0;
+
+    private static final int REQUEST_EVENT = 0;
+
+    private static final int TEXT_TYPE = 1;
+
+    @Test
+    @Timeout(30)
+    void concurrentRequestsHaveSeparateContexts() throws Exception {
+        final VirtualSystem virtualSystem = mock(VirtualSystem.class);
+        try (
+                HttpListenerServer server = new HttpListenerServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                HttpClient client = HttpClient.newHttpClient()
+        ) {
+            when(virtualSystem.getHttpListenerServer()).thenReturn(server);
+
+            try (
+                    HttpListener otherListener = new HttpListener(virtualSystem, "otherListener");
+                    HttpListener listener = new HttpListener(virtualSystem, "listener")
+            ) {
+                listener.set(PATH_FEATURE, LuaValue.valueOf("/api"));
+                for (HttpListener httpListener : new HttpListener[] {listener, otherListener}) {
+                    httpListener.set(RESPONSE_TYPE_FEATURE, LuaValue.valueOf(TEXT_TYPE));
+                    httpListener.set(RESPONSE_STATUS_FEATURE, LuaValue.valueOf(200));
+                }
+
+                final RequestFunction requestHandler = new RequestFunction();
+                final RequestFunction otherRequestHandler = new RequestFunction();
+
+                final CyclicBarrier bothRequestsHandled = new CyclicBarrier(2);
+                when(virtualSystem.call(any())).then(invocation -> {
+                    if (invocation.getArgument(0) == otherRequestHandler) {
+                        otherListener.execute(SEND_RESPONSE_METHOD, LuaValue.valueOf("other"));
+
+                        return LuaValue.NIL;
+                    }
+
+                    final LuaValue path = listener.get(PATH_FEATURE);
+
+                    // both handlers are running at the same time, each one sees its own request
+                    bothRequestsHandled.await(10, TimeUnit.SECONDS);
+
+                    listener.set(RESPONSE_BODY_FEATURE, path);
+                    listener.execute(SEND_RESPONSE_METHOD, LuaValue.NONE);
+
+                    return LuaValue.NIL;
+                });
+                listener.addEventHandler(REQUEST_EVENT, requestHandler);
+                otherListener.addEventHandler(REQUEST_EVENT, otherRequestHandler);
+
+                final CompletableFuture<HttpResponse<String>> first = getAsync(client, server, "/api/first");
+                final CompletableFuture<HttpResponse<String>> second = getAsync(client, server, "/api/second");
+
+                assertEquals("/api/first", first.get(10, TimeUnit.SECONDS).body());
+                assertEquals("/api/second", second.get(10, TimeUnit.SECONDS).body());
+
+                // the catch-all route of the other listener is still registered
+                assertEquals("other", getAsync(client, server, "/other").get(10, TimeUnit.SECONDS).body());
+                assertEquals("/api", listener.get(PATH_FEATURE).checkjstring());
+            }
+        }
+    }
+
+    private static class RequestFunction extends ZeroArgFunction {
+        @Override
+        public LuaValue call() {
+            return LuaValue.NIL;
+        }
+    }
+
+    private static CompletableFuture<HttpResponse<String>> getAsync(HttpClient client, HttpListenerServer server, String path) {
+        return client.sendAsync(
+                HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getPort() + path)).build(),
+                BodyHandlers.ofString()
+        );
+    }
+}
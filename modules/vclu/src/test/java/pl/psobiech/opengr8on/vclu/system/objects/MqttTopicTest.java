@@ -0,0 +1,120 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system.objects;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.ZeroArgFunction;
+import pl.psobiech.opengr8on.vclu.system.VirtualSystem;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@Execution(ExecutionMode.CONCURRENT)
+class MqttTopicTest {
+    private static final int MESSAGE_EVENT = 1;
+
+    private static final int MAX_QUEUED_MESSAGES_FEATURE = 2;
+
+    private static final int OVERFLOW_POLICY_FEATURE = 3;
+
+    @Test
+    void deliversInOrderAndAcknowledgesAfterHandler() throws Exception {
+        final VirtualSystem virtualSystem = mock(VirtualSystem.class);
+        try (MqttTopic mqttTopic = new MqttTopic(virtualSystem, "topic")) {
+            final List<String> handled = new CopyOnWriteArrayList<>();
+            final BlockingQueue<String> acknowledged = new LinkedBlockingQueue<>();
+            when(virtualSystem.call(any())).then(invocation -> {
+                handled.add(mqttTopic.get(0).checkjstring() + "=" + mqttTopic.get(1).checkjstring());
+
+                return LuaValue.NIL;
+            });
+            mqttTopic.addEventHandler(MESSAGE_EVENT, new NilFunction());
+
+            for (int i = 0; i < 16; i++) {
+                final String value = String.valueOf(i);
+                mqttTopic.onMessage("topic/" + (i % 2), bytes(value), () -> acknowledged.add(value));
+            }
+
+            for (int i = 0; i < 16; i++) {
+                assertEquals(String.valueOf(i), acknowledged.poll(4, TimeUnit.SECONDS));
+                assertEquals("topic/" + (i % 2) + "=" + i, handled.get(i));
+            }
+        }
+    }
+
+    @Test
+    void dropsMessagesOnOverflow() throws Exception {
+        final VirtualSystem virtualSystem = mock(VirtualSystem.class);
+        try (MqttTopic mqttTopic = new MqttTopic(virtualSystem, "topic")) {
+            mqttTopic.set(MAX_QUEUED_MESSAGES_FEATURE, LuaValue.valueOf(1));
+            mqttTopic.set(OVERFLOW_POLICY_FEATURE, LuaValue.valueOf(MqttTopic.OverflowPolicy.DROP_NEWEST.value()));
+
+            final CountDownLatch handlerStarted = new CountDownLatch(1);
+            final CountDownLatch handlerReleased = new CountDownLatch(1);
+            final List<String> handled = new CopyOnWriteArrayList<>();
+            when(virtualSystem.call(any())).then(invocation -> {
+                handlerStarted.countDown();
+                handlerReleased.await();
+                handled.add(mqttTopic.get(1).checkjstring());
+
+                return LuaValue.NIL;
+            });
+            mqttTopic.addEventHandler(MESSAGE_EVENT, new NilFunction());
+
+            final BlockingQueue<String> acknowledged = new LinkedBlockingQueue<>();
+            mqttTopic.onMessage("topic", bytes("1"), () -> acknowledged.add("1"));
+            assertTrue(handlerStarted.await(4, TimeUnit.SECONDS));
+
+            // first message is being handled, second is queued, third is dropped (and acknowledged)
+            mqttTopic.onMessage("topic", bytes("2"), () -> acknowledged.add("2"));
+            mqttTopic.onMessage("topic", bytes("3"), () -> acknowledged.add("3"));
+            assertEquals("3", acknowledged.poll(4, TimeUnit.SECONDS));
+
+            handlerReleased.countDown();
+            assertEquals("1", acknowledged.poll(4, TimeUnit.SECONDS));
+            assertEquals("2", acknowledged.poll(4, TimeUnit.SECONDS));
+            assertEquals(List.of("1", "2"), handled);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return ("\"" + value + "\"").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class NilFunction extends ZeroArgFunction {
+        @Override
+        public LuaValue call() {
+            return LuaValue.NIL;
+        }
+    }
+}
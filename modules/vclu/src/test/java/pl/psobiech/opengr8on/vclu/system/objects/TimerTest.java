@@ -0,0 +1,168 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system.objects;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.ZeroArgFunction;
+import pl.psobiech.opengr8on.vclu.system.TimingWheel;
+import pl.psobiech.opengr8on.vclu.system.VirtualSystem;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@Execution(ExecutionMode.CONCURRENT)
+class TimerTest {
+    private static final int TIME_FEATURE = 0;
+
+    private static final int MODE_FEATURE = 1;
+
+    private static final int STATE_FEATURE = 2;
+
+    private static final int START_METHOD = 0;
+
+    private static final int TIMER_EVENT = 0;
+
+    private static final int STOP_EVENT = 2;
+
+    private static final int INTERVAL_MODE = 1;
+
+    private static final int COUNTING_STATE = 1;
+
+    @Test
+    @Timeout(30)
+    void staleTimeoutIsIgnoredAfterRestart() throws Exception {
+        final VirtualSystem virtualSystem = mock(VirtualSystem.class);
+        final TimingWheel timingWheel = mock(TimingWheel.class);
+        try (TimingWheel idleTimingWheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 64)) {
+            // timeouts never expire on their own, the test runs them
+            final List<Runnable> timeoutTasks = new CopyOnWriteArrayList<>();
+            when(timingWheel.schedule(any(), anyLong())).then(invocation -> {
+                timeoutTasks.add(invocation.getArgument(0));
+
+                return idleTimingWheel.schedule(() -> { }, System.nanoTime() + TimeUnit.HOURS.toNanos(1));
+            });
+            when(virtualSystem.getTimingWheel()).thenReturn(timingWheel);
+
+            try (Timer timer = new Timer(virtualSystem, "timer")) {
+                final NamedFunction timerHandler = new NamedFunction("timer.TIMER");
+
+                final BlockingQueue<String> handled = new LinkedBlockingQueue<>();
+                when(virtualSystem.call(any())).then(invocation -> {
+                    handled.add(((NamedFunction) invocation.getArgument(0)).name);
+
+                    return LuaValue.NIL;
+                });
+
+                timer.addEventHandler(TIMER_EVENT, timerHandler);
+                timer.set(MODE_FEATURE, LuaValue.valueOf(INTERVAL_MODE));
+                timer.set(TIME_FEATURE, LuaValue.valueOf(1000));
+                timer.execute(START_METHOD, LuaValue.NONE);
+                assertEquals(1, timeoutTasks.size());
+
+                // restarted, while the first timeout is expiring (too late to cancel it)
+                timer.set(TIME_FEATURE, LuaValue.valueOf(2000));
+                assertEquals(2, timeoutTasks.size());
+
+                timeoutTasks.get(0).run();
+                assertEquals(2, timeoutTasks.size());
+                assertNull(handled.poll(200, TimeUnit.MILLISECONDS));
+                assertEquals(COUNTING_STATE, timer.get(STATE_FEATURE).checkint());
+
+                // the current timeout fires and reschedules the interval
+                timeoutTasks.get(1).run();
+                assertEquals("timer.TIMER", handled.poll(4, TimeUnit.SECONDS));
+                assertEquals(3, timeoutTasks.size());
+            }
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    void slowHandlersDoNotBlockTheTimingWheel() throws Exception {
+        final VirtualSystem virtualSystem = mock(VirtualSystem.class);
+        try (TimingWheel timingWheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 64)) {
+            when(virtualSystem.getTimingWheel()).thenReturn(timingWheel);
+
+            try (
+                    Timer slowTimer = new Timer(virtualSystem, "slowTimer");
+                    Timer timer = new Timer(virtualSystem, "timer")
+            ) {
+                final NamedFunction slowTimerHandler = new NamedFunction("slowTimer.TIMER");
+                final NamedFunction timerHandler = new NamedFunction("timer.TIMER");
+                final NamedFunction stopHandler = new NamedFunction("timer.STOP");
+
+                final CountDownLatch released = new CountDownLatch(1);
+                final BlockingQueue<String> handled = new LinkedBlockingQueue<>();
+                when(virtualSystem.call(any())).then(invocation -> {
+                    final NamedFunction handler = invocation.getArgument(0);
+                    handled.add(handler.name);
+                    if (handler == slowTimerHandler) {
+                        released.await();
+                    }
+
+                    return LuaValue.NIL;
+                });
+
+                slowTimer.addEventHandler(TIMER_EVENT, slowTimerHandler);
+                slowTimer.set(MODE_FEATURE, LuaValue.valueOf(INTERVAL_MODE));
+                slowTimer.set(TIME_FEATURE, LuaValue.valueOf(10));
+                slowTimer.execute(START_METHOD, LuaValue.NONE);
+                assertEquals("slowTimer.TIMER", handled.poll(4, TimeUnit.SECONDS));
+
+                // the handler of the interval timer is still running, the count-down timer expires anyway (stop is reported first)
+                timer.addEventHandler(TIMER_EVENT, timerHandler);
+                timer.addEventHandler(STOP_EVENT, stopHandler);
+                timer.set(TIME_FEATURE, LuaValue.valueOf(20));
+                timer.execute(START_METHOD, LuaValue.NONE);
+                assertEquals("timer.STOP", handled.poll(4, TimeUnit.SECONDS));
+                assertEquals("timer.TIMER", handled.poll(4, TimeUnit.SECONDS));
+
+                released.countDown();
+            }
+        }
+    }
+
+    private static class NamedFunction extends ZeroArgFunction {
+        private final String name;
+
+        private NamedFunction(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public LuaValue call() {
+            return LuaValue.NIL;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system.objects.remoteclu;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.jse.JseBaseLib;
+import pl.psobiech.opengr8on.vclu.MqttClient;
+import pl.psobiech.opengr8on.vclu.mqtt.MqttDiscovery;
+import pl.psobiech.opengr8on.vclu.system.objects.VirtualCLU;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@Execution(ExecutionMode.CONCURRENT)
+class RemoteCLUStatePollerTest {
+    @Test
+    void pollsAllDevicesInBatchesAndPublishesChanges() throws Exception {
+        final Globals remoteGlobals = new Globals();
+        remoteGlobals.load(new JseBaseLib());
+        LuaC.install(remoteGlobals);
+        remoteGlobals.load("offset = 0; OBJ = { get = function(self, index) return index + offset end }").call();
+
+        final List<String> scripts = new ArrayList<>();
+        final RemoteCLU remoteCLU = mock(RemoteCLU.class);
+        when(remoteCLU.remoteExecute(anyString())).then(invocation -> {
+            final String script = invocation.getArgument(0);
+            scripts.add(script);
+
+            return remoteGlobals.load("return " + script).call();
+        });
+
+        final MqttClient mqttClient = mock(MqttClient.class);
+        final VirtualCLU currentClu = mock(VirtualCLU.class);
+        when(currentClu.getMqttClient()).thenReturn(mqttClient);
+
+        final RemoteCLUStatePoller poller = new RemoteCLUStatePoller(remoteCLU, currentClu);
+
+        final int deviceCount = RemoteCLUStatePoller.MAX_BATCH_VALUES;
+        for (int i = 0; i < deviceCount; i++) {
+            poller.add(new SumDevice("state/" + i, i * 2, i * 2 + 1));
+        }
+
+        poller.poll();
+
+        // 2 values per device
+        assertEquals(2, scripts.size());
+        scripts.forEach(script -> assertTrue(script.length() <= RemoteCLUStatePoller.MAX_SCRIPT_LENGTH));
+        for (int i = 0; i < deviceCount; i++) {
+            verify(mqttClient).publishState("state/" + i, String.valueOf(4 * i + 1).getBytes(StandardCharsets.UTF_8));
+        }
+
+        //
+
+        poller.poll();
+
+        verify(mqttClient, times(deviceCount)).publishState(anyString(), any(byte[].class));
+
+        //
+
+        remoteGlobals.load("offset = 1").call();
+        poller.poll();
+
+        verify(mqttClient).publishState(eq("state/0"), eq("3".getBytes(StandardCharsets.UTF_8)));
+        verify(mqttClient, times(deviceCount * 2)).publishState(anyString(), any(byte[].class));
+    }
+
+    @Test
+    void readsSingleDeviceInOneRequest() {
+        final Globals remoteGlobals = new Globals();
+        remoteGlobals.load(new JseBaseLib());
+        LuaC.install(remoteGlobals);
+        remoteGlobals.load("OBJ = { get = function(self, index) return index end }").call();
+
+        final RemoteCLU remoteCLU = mock(RemoteCLU.class);
+        when(remoteCLU.remoteExecute(anyString())).then(invocation -> remoteGlobals.load("return " + invocation.getArgument(0)).call());
+
+        final RemoteCLUStatePoller poller = new RemoteCLUStatePoller(remoteCLU, mock(VirtualCLU.class));
+
+        assertEquals(Optional.of(new IntNode(7)), poller.read(new SumDevice("state", 3, 4)));
+        verify(remoteCLU, times(1)).remoteExecute(anyString());
+    }
+
+    @Test
+    void adaptsPollingIntervals() {
+        final Globals remoteGlobals = new Globals();
+        remoteGlobals.load(new JseBaseLib());
+        LuaC.install(remoteGlobals);
+        remoteGlobals.load("offset = 0; OBJ = { get = function(self, index) return index + offset end }").call();
+
+        final RemoteCLU remoteCLU = mock(RemoteCLU.class);
+        when(remoteCLU.remoteExecute(anyString())).then(invocation -> remoteGlobals.load("return " + invocation.getArgument(0)).call());
+
+        final VirtualCLU currentClu = mock(VirtualCLU.class);
+        when(currentClu.getMqttClient()).thenReturn(mock(MqttClient.class));
+
+        final AtomicLong now = new AtomicLong();
+        final RemoteCLUStatePoller poller = new RemoteCLUStatePoller(remoteCLU, currentClu, now::get);
+
+        final SumDevice device = new SumDevice("state", 1);
+        poller.add(device);
+
+        // initial poll is spread over the maximum interval
+        now.addAndGet(RemoteCLUStatePoller.MAX_POLL_INTERVAL_MILLIS);
+        poller.pollDue();
+        assertEquals(RemoteCLUStatePoller.MAX_POLL_INTERVAL_MILLIS, poller.getPollIntervalMillis(device));
+
+        // state change shortens the interval
+        remoteGlobals.load("offset = 1").call();
+        now.addAndGet(RemoteCLUStatePoller.MAX_POLL_INTERVAL_MILLIS);
+        poller.pollDue();
+        assertEquals(RemoteCLUStatePoller.MIN_POLL_INTERVAL_MILLIS, poller.getPollIntervalMillis(device));
+
+        // not due yet
+        poller.pollDue();
+        verify(remoteCLU, times(2)).remoteExecute(anyString());
+
+        // stable state backs off
+        now.addAndGet(RemoteCLUStatePoller.MIN_POLL_INTERVAL_MILLIS);
+        poller.pollDue();
+        assertEquals(RemoteCLUStatePoller.MIN_POLL_INTERVAL_MILLIS * 2, poller.getPollIntervalMillis(device));
+        verify(remoteCLU, times(3)).remoteExecute(anyString());
+
+        // commands shorten the interval again
+        poller.publish(device, new IntNode(2), true);
+        assertEquals(RemoteCLUStatePoller.MIN_POLL_INTERVAL_MILLIS, poller.getPollIntervalMillis(device));
+    }
+
+    /**
+     * Device, which state is a sum of the polled features
+     */
+    private record SumDevice(String stateTopic, int... indices) implements RemoteCLUDevice {
+        @Override
+        public Optional<JsonNode> writeValue(RemoteCLU remoteCLU, byte[] bytes) {
+            return Optional.empty();
+        }
+
+        @Override
+        public List<String> getStateExpressions() {
+            return IntStream.of(indices)
+                            .mapToObj("OBJ:get(%d)"::formatted)
+                            .toList();
+        }
+
+        @Override
+        public Optional<JsonNode> toState(List<LuaValue> values) {
+            return Optional.of(
+                    new IntNode(values.stream().mapToInt(LuaValue::checkint).sum())
+            );
+        }
+
+        @Override
+        public MqttDiscovery getDiscoveryMessage() {
+            final MqttDiscovery discoveryMessage = mock(MqttDiscovery.class);
+            when(discoveryMessage.getStateTopic()).thenReturn(stateTopic);
+
+            return discoveryMessage;
+        }
+    }
+}
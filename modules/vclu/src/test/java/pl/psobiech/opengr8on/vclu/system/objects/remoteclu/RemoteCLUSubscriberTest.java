@@ -0,0 +1,184 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system.objects.remoteclu;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import org.luaj.vm2.LuaValue;
+import pl.psobiech.opengr8on.client.CipherKey;
+import pl.psobiech.opengr8on.client.Mocks;
+import pl.psobiech.opengr8on.client.commands.LuaScriptCommand;
+import pl.psobiech.opengr8on.util.IPv4AddressUtil;
+import pl.psobiech.opengr8on.util.SocketUtil;
+import pl.psobiech.opengr8on.util.SocketUtil.UDPSocket;
+import pl.psobiech.opengr8on.vclu.MqttClient;
+import pl.psobiech.opengr8on.vclu.mqtt.MqttDiscovery;
+import pl.psobiech.opengr8on.vclu.system.objects.VirtualCLU;
+
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@Execution(ExecutionMode.CONCURRENT)
+class RemoteCLUSubscriberTest {
+    private static final Inet4Address LOCALHOST = IPv4AddressUtil.parseIPv4("127.0.0.1");
+
+    private static final Pattern REGISTER_PATTERN = Pattern.compile(
+            "^SYSTEM:clientRegister\\(\"127.0.0.1\", (\\d+), (\\d+), \\{\\{OBJ, 1},\\{OBJ, 2},\\{OBJ, 3}}\\)$"
+    );
+
+    @Test
+    void subscribable() {
+        assertTrue(RemoteCLUSubscriber.isSubscribable(new ExpressionDevice("state", "OBJ:get(1)", "OBJ_2:get(12)")));
+        assertFalse(RemoteCLUSubscriber.isSubscribable(new ExpressionDevice("state", "OBJ:get(1)", "{OBJ:get(2), 1}")));
+        assertFalse(RemoteCLUSubscriber.isSubscribable(new ExpressionDevice("state")));
+    }
+
+    @Test
+    void publishesReportedChanges() throws Exception {
+        final CipherKey cipherKey = Mocks.cipherKey();
+
+        final List<String> scripts = new ArrayList<>();
+        final RemoteCLU remoteCLU = mock(RemoteCLU.class);
+        when(remoteCLU.getName()).thenReturn("CLU1");
+        when(remoteCLU.remoteExecute(anyString())).then(invocation -> {
+            final String script = invocation.getArgument(0);
+            scripts.add(script);
+
+            final Matcher matcher = REGISTER_PATTERN.matcher(script);
+            assertTrue(matcher.matches(), script);
+
+            return LuaValue.valueOf("clientReport:" + matcher.group(2) + ":{1, 2, 3}");
+        });
+        when(remoteCLU.remoteExecuteAsync(anyString(), any())).thenReturn(CompletableFuture.completedFuture(LuaValue.NIL));
+
+        final MqttClient mqttClient = mock(MqttClient.class);
+        final VirtualCLU currentClu = mock(VirtualCLU.class);
+        when(currentClu.getMqttClient()).thenReturn(mqttClient);
+
+        final RemoteCLUStatePoller poller = new RemoteCLUStatePoller(remoteCLU, currentClu);
+        try (
+                RemoteCLUSubscriber subscriber = new RemoteCLUSubscriber(remoteCLU, poller, LOCALHOST, cipherKey);
+                UDPSocket cluSocket = SocketUtil.udpRandomPort(LOCALHOST)
+        ) {
+            subscriber.add(new ExpressionDevice("state/a", "OBJ:get(1)", "OBJ:get(2)"));
+            subscriber.add(new ExpressionDevice("state/b", "OBJ:get(3)"));
+
+            assertTrue(subscriber.register());
+            verify(mqttClient).publishState("state/a", "3".getBytes(StandardCharsets.UTF_8));
+            verify(mqttClient).publishState("state/b", "3".getBytes(StandardCharsets.UTF_8));
+
+            final Matcher matcher = REGISTER_PATTERN.matcher(scripts.getFirst());
+            assertTrue(matcher.matches());
+            assertEquals(subscriber.getPort(), Integer.parseInt(matcher.group(1)));
+
+            // pushed report
+            cluSocket.open();
+
+            final byte[] buffer = cipherKey.encrypt(
+                    LuaScriptCommand.response(LOCALHOST, Mocks.sessionId(), "clientReport:" + matcher.group(2) + ":{1, 2, 7}")
+                                    .asByteArray()
+            );
+            cluSocket.send(new DatagramPacket(buffer, buffer.length, LOCALHOST, subscriber.getPort()));
+
+            verify(mqttClient, timeout(4000)).publishState("state/b", "7".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void unsubscribesBeforeClosing() throws Exception {
+        final RemoteCLU remoteCLU = mock(RemoteCLU.class);
+        when(remoteCLU.getName()).thenReturn("CLU1");
+        when(remoteCLU.remoteExecute(anyString())).then(invocation -> {
+            final Matcher matcher = REGISTER_PATTERN.matcher(invocation.getArgument(0));
+            assertTrue(matcher.matches());
+
+            return LuaValue.valueOf("clientReport:" + matcher.group(2) + ":{1, 2, 3}");
+        });
+
+        final CompletableFuture<LuaValue> unsubscribed = new CompletableFuture<>();
+        when(remoteCLU.remoteExecuteAsync(startsWith("SYSTEM:clientDestroy(\"127.0.0.1\", "), any())).then(invocation ->
+                unsubscribed.completeAsync(() -> LuaValue.NIL, CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS))
+        );
+
+        final VirtualCLU currentClu = mock(VirtualCLU.class);
+        when(currentClu.getMqttClient()).thenReturn(mock(MqttClient.class));
+
+        final RemoteCLUSubscriber subscriber = new RemoteCLUSubscriber(
+                remoteCLU, new RemoteCLUStatePoller(remoteCLU, currentClu), LOCALHOST, Mocks.cipherKey()
+        );
+        subscriber.add(new ExpressionDevice("state", "OBJ:get(1)", "OBJ:get(2)", "OBJ:get(3)"));
+        assertTrue(subscriber.register());
+
+        subscriber.close();
+
+        assertTrue(unsubscribed.isDone());
+    }
+
+    /**
+     * Device, which state is a sum of its expression values
+     */
+    private record ExpressionDevice(String stateTopic, String... expressions) implements RemoteCLUDevice {
+        @Override
+        public Optional<JsonNode> writeValue(RemoteCLU remoteCLU, byte[] bytes) {
+            return Optional.empty();
+        }
+
+        @Override
+        public List<String> getStateExpressions() {
+            return List.of(expressions);
+        }
+
+        @Override
+        public Optional<JsonNode> toState(List<LuaValue> values) {
+            return Optional.of(
+                    new IntNode(values.stream().mapToInt(LuaValue::checkint).sum())
+            );
+        }
+
+        @Override
+        public MqttDiscovery getDiscoveryMessage() {
+            final MqttDiscovery discoveryMessage = mock(MqttDiscovery.class);
+            when(discoveryMessage.getStateTopic()).thenReturn(stateTopic);
+
+            return discoveryMessage;
+        }
+    }
+}
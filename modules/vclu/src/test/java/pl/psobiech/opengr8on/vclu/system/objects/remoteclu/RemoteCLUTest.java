@@ -0,0 +1,103 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system.objects.remoteclu;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import org.luaj.vm2.LuaValue;
+import pl.psobiech.opengr8on.client.CLUClient;
+import pl.psobiech.opengr8on.client.Mocks;
+import pl.psobiech.opengr8on.util.IPv4AddressUtil;
+import pl.psobiech.opengr8on.vclu.system.VirtualSystem;
+import pl.psobiech.opengr8on.vclu.system.objects.VirtualCLU;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@Execution(ExecutionMode.CONCURRENT)
+class RemoteCLUTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private static final int BURST = 20;
+
+    @Test
+    @Timeout(30)
+    void cancelDuringRateLimiterDelay() throws Exception {
+        final VirtualSystem virtualSystem = mock(VirtualSystem.class);
+        when(virtualSystem.getCurrentClu()).thenReturn(mock(VirtualCLU.class));
+
+        final BlockingQueue<CompletableFuture<Optional<String>>> requests = new LinkedBlockingQueue<>();
+        final CLUClient client = mock(CLUClient.class);
+        when(client.executeAsync(anyString(), any())).then(invocation -> {
+            final CompletableFuture<Optional<String>> request = new CompletableFuture<>();
+            requests.add(request);
+
+            return request;
+        });
+
+        try (RemoteCLU remoteCLU = new RemoteCLU(
+                virtualSystem, null, "CLU1",
+                client, IPv4AddressUtil.parseIPv4("127.0.0.1"), Mocks.cipherKey()
+        )) {
+            for (int i = 0; i < BURST; i++) {
+                remoteCLU.remoteExecuteAsync("SCRIPT", TIMEOUT);
+            }
+            verify(client, times(BURST)).executeAsync(anyString(), any());
+            for (int i = 0; i < BURST; i++) {
+                requests.take();
+            }
+
+            // cancelled before the rate limiter lets it through, never sent
+            final CompletableFuture<LuaValue> cancelledBeforeSend = remoteCLU.remoteExecuteAsync("CANCELLED", TIMEOUT);
+            cancelledBeforeSend.cancel(false);
+
+            // sent after the delay, cancelling abandons the in-flight request
+            final CompletableFuture<LuaValue> cancelledAfterSend = remoteCLU.remoteExecuteAsync("SENT", TIMEOUT);
+            final CompletableFuture<Optional<String>> sentRequest = requests.poll(5, TimeUnit.SECONDS);
+            cancelledAfterSend.cancel(false);
+
+            assertThrows(CancellationException.class, () -> sentRequest.get(5, TimeUnit.SECONDS));
+
+            // let the cancelled request delay pass
+            Thread.sleep(500);
+
+            verify(client, never()).executeAsync(eq("CANCELLED"), any());
+            verify(client).executeAsync(eq("SENT"), any());
+            assertTrue(requests.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.system.objects.remoteclu;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@Execution(ExecutionMode.CONCURRENT)
+class TokenBucketTest {
+    private static final long NANOS_PER_TOKEN = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    void burstThenRateLimited() {
+        final AtomicLong now = new AtomicLong();
+        final TokenBucket bucket = new TokenBucket(10, 3, now::get);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.reserve(Duration.ZERO));
+        }
+
+        assertEquals(-1, bucket.reserve(Duration.ZERO));
+        assertEquals(NANOS_PER_TOKEN, bucket.reserve(Duration.ofSeconds(1)));
+        assertEquals(2 * NANOS_PER_TOKEN, bucket.reserve(Duration.ofSeconds(1)));
+
+        // refills over time, up to the capacity
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.reserve(Duration.ZERO));
+        }
+        assertEquals(-1, bucket.reserve(Duration.ZERO));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * OpenGr8on, open source extensions to systems based on Grenton devices
+ * Copyright (C) 2023 Piotr Sobiech
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package pl.psobiech.opengr8on.vclu.util;
+
+import com.fasterxml.jackson.core.JsonParser;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import org.luaj.vm2.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.psobiech.opengr8on.util.ObjectMapperFactory;
+import pl.psobiech.opengr8on.util.Util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@Execution(ExecutionMode.CONCURRENT)
+class LuaUtilTest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LuaUtilTest.class);
+
+    private static final List<LuaValue> COMMON_VALUES = List.of(
+            LuaValue.NIL,
+            LuaValue.TRUE, LuaValue.FALSE,
+            LuaValue.valueOf(0), LuaValue.valueOf(-15), LuaValue.valueOf(1.5d), LuaValue.valueOf(1e20d),
+            LuaValue.valueOf(""), LuaValue.valueOf("value"), LuaValue.valueOf("with \"quotes\""),
+            LuaValue.listOf(new LuaValue[]{LuaValue.valueOf(1), LuaValue.valueOf("a"), LuaValue.TRUE}),
+            LuaValue.tableOf(new LuaValue[]{LuaValue.valueOf("key"), LuaValue.valueOf("value")}),
+            LuaValue.tableOf(new LuaValue[]{LuaValue.valueOf("nested"), LuaValue.listOf(new LuaValue[]{LuaValue.valueOf(1), LuaValue.valueOf(2)})}),
+            LuaValue.tableOf()
+    );
+
+    @Test
+    void sameAsLegacyInCommonCases() {
+        for (LuaValue value : COMMON_VALUES) {
+            assertEquals(Legacy.stringify(value), LuaUtil.stringify(value));
+            assertEquals(Legacy.stringifyRaw(value, "nil"), LuaUtil.stringifyRaw(value, "nil"));
+        }
+
+        final Varargs args = LuaValue.varargsOf(COMMON_VALUES.toArray(LuaValue[]::new));
+        assertEquals(Legacy.stringifyRaw(args), LuaUtil.stringifyRaw(args));
+        assertEquals(Legacy.stringifyRaw((Varargs) LuaValue.NONE), LuaUtil.stringifyRaw((Varargs) LuaValue.NONE));
+    }
+
+    @Test
+    void escaping() {
+        assertEquals("\"a\\\"b\\\\c\\nd\\re\\tf\\000g\\031\"", LuaUtil.stringify(LuaValue.valueOf("a\"b\\c\nd\re\tf\0g\u001F")));
+        assertEquals("a\"b", LuaUtil.stringifyRaw(LuaValue.valueOf("a\"b")));
+    }
+
+    @Test
+    void sortedKeys() {
+        final LuaTable table = LuaValue.tableOf();
+        table.set("b", LuaValue.valueOf(2));
+        table.set("a", LuaValue.valueOf(1));
+        table.set(10, LuaValue.valueOf("ten"));
+        table.set(1, LuaValue.valueOf("one"));
+
+        assertEquals("{1=\"one\", 10=\"ten\", a=1, b=2}", LuaUtil.stringifySorted(table));
+    }
+
+    @Test
+    void streamingJsonSameAsTree() throws Exception {
+        final String json = "{\"int\": 1, \"long\": 12345678901, \"big\": 123456789012345678901234567890, \"double\": -1.5e3, "
+                            + "\"bool\": true, \"null\": null, \"text\": \"a\\\"b\", "
+                            + "\"array\": [1, \"two\", [3], {\"four\": false}], \"object\": {\"nested\": {}}}";
+
+        final LuaValue fromTree = LuaUtil.fromJson(ObjectMapperFactory.JSON.readTree(json));
+        try (JsonParser parser = ObjectMapperFactory.JSON.createParser(json)) {
+            assertEquals(LuaUtil.stringifySorted(fromTree), LuaUtil.stringifySorted(LuaUtil.fromJson(parser)));
+        }
+
+        try (JsonParser parser = ObjectMapperFactory.JSON.createParser("")) {
+            assertEquals(LuaValue.NIL, LuaUtil.fromJson(parser));
+        }
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void benchmark() {
+        final LuaTable table = LuaValue.tableOf();
+        for (int i = 0; i < 32; i++) {
+            table.set("key" + i, COMMON_VALUES.get(1 + (i % (COMMON_VALUES.size() - 1))));
+        }
+
+        final Varargs args = LuaValue.varargsOf(COMMON_VALUES.toArray(LuaValue[]::new));
+        for (int round = 0; round < 5; round++) {
+            final long legacyNanos = measure(() -> Legacy.stringify(table).length() + Legacy.stringifyRaw(args).length());
+            final long currentNanos = measure(() -> LuaUtil.stringify(table).length() + LuaUtil.stringifyRaw(args).length());
+
+            LOGGER.info(
+                    "Round {}: legacy {}ms, current {}ms",
+                    round, TimeUnit.NANOSECONDS.toMillis(legacyNanos), TimeUnit.NANOSECONDS.toMillis(currentNanos)
+            );
+        }
+    }
+
+    private static long measure(LengthSupplier supplier) {
+        long blackhole = 0;
+
+        final long startedAt = System.nanoTime();
+        for (int i = 0; i < 200_000; i++) {
+            blackhole += supplier.get();
+        }
+        final long deltaNanos = System.nanoTime() - startedAt;
+
+        if (blackhole == 0) {
+            throw new IllegalStateException();
+        }
+
+        return deltaNanos;
+    }
+
+    @FunctionalInterface
+    private interface LengthSupplier {
+        int get();
+    }
+
+    /**
+     * Previous, map-copying implementation, used as a reference
+     */
+    private static class Legacy {
+        static String stringifyRaw(Varargs args) {
+            if (args.narg() == 0) {
+                return "{}";
+            }
+
+            return "{" + Util.stringifyList(
+                    IntStream.rangeClosed(1, args.narg())
+                             .mapToObj(args::arg)
+                             .collect(Collectors.toList()),
+                    ", ", Legacy::stringify
+            ) + "}";
+        }
+
+        static String stringify(LuaValue luaValue) {
+            if (LuaUtil.isNil(luaValue)) {
+                return "nil";
+            }
+
+            if (luaValue instanceof LuaNumber) {
+                return String.valueOf(luaValue.checknumber());
+            }
+
+            if (luaValue instanceof LuaBoolean) {
+                return String.valueOf(luaValue.checkboolean());
+            }
+
+            if (luaValue instanceof LuaTable table) {
+                return stringifyMap(LuaUtil.table(table));
+            }
+
+            if (luaValue.isstring()) {
+                return "\"" + luaValue.checkjstring().replaceAll("\"", Matcher.quoteReplacement("\\\"")) + "\"";
+            }
+
+            return String.valueOf(luaValue);
+        }
+
+        static String stringifyRaw(LuaValue luaValue, String nilValue) {
+            if (LuaUtil.isNil(luaValue)) {
+                return nilValue;
+            }
+
+            if (luaValue instanceof LuaNumber) {
+                return String.valueOf(luaValue.checknumber());
+            }
+
+            if (luaValue instanceof LuaBoolean) {
+                return String.valueOf(luaValue.checkboolean());
+            }
+
+            if (luaValue instanceof LuaTable table) {
+                return stringifyMap(LuaUtil.table(table));
+            }
+
+            if (luaValue.isstring()) {
+                return luaValue.checkjstring();
+            }
+
+            return String.valueOf(luaValue);
+        }
+
+        private static String stringifyMap(Map<LuaValue, LuaValue> map) {
+            final Function<LuaValue, String> toStringKey = key -> stringifyRaw(key, null);
+
+            return "{" + Util.stringifyMap(new HashMap<>(map), ", ", "=", toStringKey, Legacy::stringify) + "}";
+        }
+    }
+}